@@ -1,10 +1,16 @@
 package apps;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
 
 import common.*;
 import naming.*;
 import client.*;
+import rmi.*;
+import storage.*;
 
 /** Retrieves a file stored on the distributed filesystem.
 
@@ -89,6 +95,11 @@ public class Get extends ClientApplication
 
         try
         {
+            // Prefer the storage server's bulk-data port, which moves the
+            // file without serializing it.
+            if(bulkGet(naming_server, source.path, destination))
+                return;
+
             read_buffer = new byte[BLOCK_SIZE];
             output_stream = new FileOutputStream(destination);
             input_stream = new DFSInputStream(naming_server, source.path);
@@ -152,4 +163,72 @@ public class Get extends ClientApplication
             }
         }
     }
+
+    /** Receives a remote file over its storage server's bulk-data port.
+
+        @param naming_server Naming server listing the file.
+        @param file Path to the remote file.
+        @param destination Local file to be created or overwritten.
+        @return <code>true</code> if the file was received, <code>false</code>
+                if the storage server has no bulk-data port.
+        @throws IOException If the transfer fails.
+        @throws RMIException If a server cannot be contacted.
+     */
+    private boolean bulkGet(Service naming_server, Path file,
+                            File destination)
+        throws IOException, RMIException
+    {
+        Storage             storage_server = naming_server.getStorage(file);
+        long                size = storage_server.size(file);
+        TransferTicket      ticket =
+            storage_server.openTransfer(file, 0, size, false);
+
+        if(ticket == null)
+            return false;
+
+        try(FileChannel channel =
+                FileChannel.open(destination.toPath(),
+                                 StandardOpenOption.CREATE,
+                                 StandardOpenOption.READ,
+                                 StandardOpenOption.WRITE,
+                                 StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            BulkTransfer.receive(ticket, channel, 0);
+
+            // The bulk port sends raw file contents. Compare them with the
+            // checksum of the file, which the storage server computes while
+            // checking its stored chunk checksums.
+            if(checksum(channel, size) !=
+               storage_server.checksum(file, 0, size))
+            {
+                throw new ChecksumException(file, 0);
+            }
+        }
+
+        return true;
+    }
+
+    /** Computes the CRC-32C of the first <code>size</code> bytes of a local
+        file. */
+    private static long checksum(FileChannel channel, long size)
+        throws IOException
+    {
+        CRC32C              crc = new CRC32C();
+        ByteBuffer          buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        long                position = 0;
+
+        while(position < size)
+        {
+            buffer.clear();
+            int             read = channel.read(buffer, position);
+            if(read < 0)
+                throw new EOFException("unexpected end of file");
+
+            buffer.flip();
+            crc.update(buffer);
+            position += read;
+        }
+
+        return crc.getValue();
+    }
 }
@@ -1,10 +1,14 @@
 package apps;
 
 import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
 
 import common.*;
 import naming.*;
 import client.*;
+import rmi.*;
+import storage.*;
 
 /** Uploads a file to the distributed filesystem.
 
@@ -131,6 +135,11 @@ public class Put extends ClientApplication
             // Create a new file with the name of the destination file.
             naming_server.createFile(destination_path);
 
+            // Prefer the storage server's bulk-data port, which moves the
+            // file without serializing it.
+            if(bulkPut(naming_server, source, destination_path))
+                return;
+
             // Obtain the size of the source file.
             long            bytes_remaining = source.length();
 
@@ -213,4 +222,36 @@ public class Put extends ClientApplication
             }
         }
     }
+
+    /** Sends a local file over the bulk-data port of the storage server
+        hosting the remote file.
+
+        @param naming_server Naming server listing the file.
+        @param source Local file to be sent.
+        @param file Path to the remote file, which must already exist.
+        @return <code>true</code> if the file was sent, <code>false</code> if
+                the storage server has no bulk-data port.
+        @throws IOException If the transfer fails.
+        @throws RMIException If a server cannot be contacted.
+     */
+    private boolean bulkPut(Service naming_server, File source,
+                            Path file)
+        throws IOException, RMIException
+    {
+        Storage             storage_server = naming_server.getStorage(file);
+
+        try(FileChannel channel =
+                FileChannel.open(source.toPath(), StandardOpenOption.READ))
+        {
+            TransferTicket  ticket =
+                storage_server.openTransfer(file, 0, channel.size(), true);
+
+            if(ticket == null)
+                return false;
+
+            BulkTransfer.send(ticket, channel, 0);
+        }
+
+        return true;
+    }
 }
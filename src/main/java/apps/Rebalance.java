@@ -0,0 +1,137 @@
+package apps;
+
+import java.util.*;
+
+import naming.*;
+
+/** Starts cluster rebalancing and optionally follows its progress.
+
+    <p>
+    The application takes the naming server hostname, an optional band around
+    the mean utilisation (as a percentage, default 10), and an optional
+    throughput limit in megabytes per second (default 32). With the
+    <code>-w</code> flag, the application prints the progress of the
+    rebalancing run once a second until the run ends. With the
+    <code>-s</code> flag, it only prints the status of the current or last run.
+ */
+public class Rebalance extends ClientApplication
+{
+    /** Interval between two progress reports, in milliseconds. */
+    private static final long   WATCH_INTERVAL = 1000;
+
+    /** Application entry point. */
+    public static void main(String[] arguments)
+    {
+        new Rebalance().run(arguments);
+    }
+
+    /** Application main method.
+
+        @param arguments Command line arguments.
+     */
+    @Override
+    public void coreLogic(String[] arguments) throws ApplicationFailure
+    {
+        // Separate the flags from the positional arguments.
+        boolean             watch = false;
+        boolean             status_only = false;
+        ArrayList<String>   positional = new ArrayList<String>();
+
+        for(String argument : arguments)
+        {
+            if(argument.equals("-w"))
+                watch = true;
+            else if(argument.equals("-s"))
+                status_only = true;
+            else
+                positional.add(argument);
+        }
+
+        if(positional.size() < 1 || positional.size() > 3)
+        {
+            throw new ApplicationFailure("usage: rebalance [-w | -s] " +
+                                         "naming_server [band_percent " +
+                                         "[megabytes_per_second]]");
+        }
+
+        double              band = Rebalancer.DEFAULT_BAND;
+        long                bytes_per_second = Rebalancer.DEFAULT_BANDWIDTH;
+
+        try
+        {
+            if(positional.size() > 1)
+                band = Double.parseDouble(positional.get(1)) / 100;
+
+            if(positional.size() > 2)
+            {
+                bytes_per_second =
+                    (long)(Double.parseDouble(positional.get(2)) *
+                           1024 * 1024);
+            }
+        }
+        catch(NumberFormatException e)
+        {
+            throw new ApplicationFailure("cannot parse number: " +
+                                         e.getMessage());
+        }
+
+        Service             naming_server =
+            NamingStubs.service(positional.get(0));
+
+        try
+        {
+            if(!status_only)
+            {
+                if(naming_server.rebalance(band, bytes_per_second))
+                    System.out.println("rebalancing started");
+                else
+                    System.out.println("rebalancing already in progress");
+            }
+
+            RebalanceStatus status = naming_server.rebalanceStatus();
+            print(status);
+
+            while(watch && status != null && status.isRunning())
+            {
+                Thread.sleep(WATCH_INTERVAL);
+                status = naming_server.rebalanceStatus();
+                print(status);
+            }
+        }
+        catch(Throwable t)
+        {
+            throw new ApplicationFailure("cannot rebalance: " +
+                                         t.getMessage());
+        }
+    }
+
+    /** Prints a rebalancing status report.
+
+        @param status The status, or <code>null</code> if rebalancing has
+                      never been started.
+     */
+    private void print(RebalanceStatus status)
+    {
+        if(status == null)
+        {
+            System.out.println("rebalancing has not been started");
+            return;
+        }
+
+        System.out.printf("%s: %d files moved, %d bytes, %d failed, " +
+                          "mean utilisation %.1f%%%n", status.getState(),
+                          status.getFilesMoved(), status.getBytesMoved(),
+                          status.getFailedMoves(),
+                          status.getMeanUtilisation() * 100);
+
+        String[]            servers =
+            status.getUtilisation().keySet().toArray(new String[0]);
+        Arrays.sort(servers);
+
+        for(String server : servers)
+        {
+            System.out.printf("  %-24s %5.1f%%%n", server,
+                              status.getUtilisation().get(server) * 100);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package client;
+
+import java.io.*;
+import java.util.*;
+
+import rmi.*;
+import common.*;
+import naming.*;
+import storage.*;
+
+/** Output stream appending to a file in the distributed filesystem.
+
+    <p>
+    Each write call on a <code>DFSAppendStream</code> appends its bytes to the
+    end of the file in one request to the primary replica of the file, the
+    first storage server listed for it by the naming server. The primary
+    picks the offset while it holds the file, and writes the bytes at that
+    offset to the other replicas before releasing it, so the bytes of one call
+    are never interleaved with those of another appender, and every replica
+    holds the appends in the same order. Appenders need no exclusive lock: a
+    shared lock on the naming server is enough to keep the file from being
+    deleted. To append records in batches, the stream should be wrapped in a
+    <code>BufferedOutputStream</code> and flushed at record boundaries.
+
+    <p>
+    The replicas are those of the file when the stream is created.
+
+    <p>
+    Creating a <code>DFSAppendStream</code> for a file does not cause the file
+    to be created or truncated. The file must exist.
+ */
+public class DFSAppendStream extends OutputStream
+{
+    /** Path to the file. */
+    private final Path      path;
+    /** Primary replica of the file, to which appends are sent. */
+    private final Storage   primary;
+    /** Other replicas of the file, to which the primary forwards appends. */
+    private final Storage[] replicas;
+
+    /** Offset at which the last write was appended, or <code>-1</code>. */
+    private long            last_offset = -1;
+
+    /** Indicates that the stream has been closed. */
+    private boolean         closed = false;
+
+    /** Creates a <code>DFSAppendStream</code> for a file listed by the given
+        naming server.
+
+        <p>
+        The file should be locked on the naming server for shared access.
+
+        @param naming_server Stub for the naming server hosting metadata for the
+                             file.
+        @param file Path to the file.
+        @throws FileNotFoundException If the file is not listed by the given
+                                      naming server, or if the path refers to a
+                                      directory.
+        @throws IOException If the naming server cannot be contacted to
+                            retrieve file metadata.
+     */
+    public DFSAppendStream(Service naming_server, Path file)
+        throws FileNotFoundException, IOException
+    {
+        // Retrieve stubs for the storage servers hosting the file.
+        Storage[]   all;
+        try
+        {
+            all = naming_server.getReplicas(file);
+        }
+        catch(RMIException e)
+        {
+            throw new IOException("could not contact naming server", e);
+        }
+
+        primary = all[0];
+        replicas = Arrays.copyOfRange(all, 1, all.length);
+        path = file;
+    }
+
+    /** Creates a <code>DFSAppendStream</code> for a file listed by the given
+        naming server.
+
+        <p>
+        The file should be locked on the naming server for shared access. The
+        naming server is contacted on the default client interface port.
+
+        @param hostname Address of the naming server hosting metadata for the
+                        file.
+        @param file Path to the file.
+        @throws FileNotFoundException If the file is not listed by the given
+                                      naming server, or if the path refers to a
+                                      directory.
+        @throws IOException If the naming server cannot be contacted to
+                            retrieve file metadata.
+     */
+    public DFSAppendStream(String hostname, Path file)
+        throws FileNotFoundException, IOException
+    {
+        this(NamingStubs.service(hostname), file);
+    }
+
+    /** Closes the output stream.
+
+        <p>
+        The stream is marked as closed. Further attempts to use the output
+        stream will result in <code>IOException</code>.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+    }
+
+    /** Appends bytes from a buffer to the file.
+
+        <p>
+        The append is performed in a single request to the primary replica,
+        which forwards it to the other replicas.
+
+        @param buffer Buffer containing bytes to be appended.
+        @param buffer_offset Offset into the buffer from which bytes are to be
+                             appended.
+        @param write_length Number of bytes to be appended.
+        @throws IOException If the stream is closed, if the primary replica
+                            cannot be contacted, or if a write error occurs on
+                            any replica.
+        @throws NullPointerException If <code>buffer</code> is
+                                     <code>null</code>.
+        @throws IndexOutOfBoundsException If <code>buffer_offset</code> or
+                                          <code>write_length</code> is negative,
+                                          or if <code>buffer_offset +
+                                          write_length</code> exceeds the length
+                                          of the given buffer.
+     */
+    @Override
+    public void write(byte[] buffer, int buffer_offset, int write_length)
+        throws IOException
+    {
+        // Stop immediately if the stream is closed.
+        if(closed)
+        {
+            throw new IOException("distributed filesystem append stream " +
+                                  "already closed");
+        }
+
+        // Check that all the arguments are valid.
+        if(buffer == null)
+            throw new NullPointerException("buffer array argument is null");
+
+        if(buffer_offset < 0)
+            throw new IndexOutOfBoundsException("buffer offset is negative");
+
+        if(write_length < 0)
+            throw new IndexOutOfBoundsException("write length is negative");
+
+        if((buffer_offset + write_length) > buffer.length)
+            throw new IndexOutOfBoundsException("range extends past buffer");
+
+        // If the request is to append zero bytes, return immediately without
+        // contacting the storage server.
+        if(write_length == 0)
+            return;
+
+        byte[]      data;
+
+        if((buffer_offset == 0) && (buffer.length == write_length))
+            data = buffer;
+        else
+        {
+            data = new byte[write_length];
+            System.arraycopy(buffer, buffer_offset, data, 0, write_length);
+        }
+
+        try
+        {
+            last_offset = primary.append(path, data, replicas);
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new IOException("file missing on storage server", e);
+        }
+        catch(RMIException e)
+        {
+            throw new IOException("unable to contact storage server", e);
+        }
+    }
+
+    /** Appends a single byte to the file.
+
+        @param b Value of the byte to be appended. The argument is taken modulo
+                 <code>256</code> to obtain the byte value.
+        @throws IOException If the stream is closed, if the primary replica
+                            cannot be contacted, or if a write error occurs on
+                            any replica.
+     */
+    @Override
+    public void write(int b) throws IOException
+    {
+        write(new byte[] {(byte)b}, 0, 1);
+    }
+
+    /** Returns the offset in the file at which the last write was appended.
+
+        @return The offset, or <code>-1</code> if nothing has been appended
+                through this stream yet.
+     */
+    public long lastOffset()
+    {
+        return last_offset;
+    }
+}
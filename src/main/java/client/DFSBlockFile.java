@@ -0,0 +1,436 @@
+package client;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import rmi.*;
+import common.*;
+import naming.*;
+import storage.*;
+
+/** Random-access view of a block file in the distributed filesystem.
+
+    <p>
+    Block files are split into blocks of {@link Blocks#BLOCK_SIZE} bytes which
+    live on different storage servers. Each read or write is cut at block
+    boundaries, and every piece is addressed to the servers holding its block
+    by block ID and offset. The pieces of one call are sent side by side.
+    Reads go to one randomly chosen replica of each block, and move on to the
+    next replica if that one cannot be reached. Writes go to every replica at
+    once, and blocks are appended to the file as the written range needs them.
+    A write fails as a whole: every piece is given the chance to complete, and
+    then the write throws if any replica missed its piece, in which case the
+    range holds unspecified data until it is written again.
+
+    <p>
+    The length of the file is read when the file is opened, and then kept up
+    to date by the writes made through this object. Writes by other clients
+    are seen by opening the file again.
+
+    <p>
+    <code>DFSBlockFile</code> does not provide locking. The file should be
+    locked on the naming server for shared access while reading, and for
+    exclusive access while writing.
+ */
+public class DFSBlockFile
+{
+    /** Number of threads sending the pieces of reads and writes, shared by
+        all block files. */
+    private static final int                BLOCK_IO_THREADS = 16;
+    /** Threads sending the pieces of reads and writes. */
+    private static final ExecutorService    block_io =
+        Executors.newFixedThreadPool(BLOCK_IO_THREADS, task ->
+        {
+            Thread      thread = new Thread(task, "block-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    /** Path to the file. */
+    private final Path      path;
+    /** Naming server holding the block map of the file. */
+    private final Service   naming_server;
+    /** Most recently retrieved block map. */
+    private BlockMap        block_map;
+    /** Length of the file, as of opening it and the writes made since. */
+    private long            length;
+    /** Chooses the replica each read starts with. */
+    private final Random    random = new Random();
+
+    /** Opens a block file listed by the given naming server.
+
+        @param naming_server Stub for the naming server hosting metadata for the
+                             file.
+        @param file Path to the file.
+        @throws FileNotFoundException If the file is not a block file listed by
+                                      the naming server.
+        @throws IOException If the naming server cannot be contacted.
+     */
+    public DFSBlockFile(Service naming_server, Path file)
+        throws FileNotFoundException, IOException
+    {
+        this.naming_server = naming_server;
+        this.path = file;
+
+        try
+        {
+            block_map = naming_server.getBlockMap(file);
+        }
+        catch(RMIException e)
+        {
+            throw new IOException("could not contact naming server", e);
+        }
+
+        length = storedLength();
+    }
+
+    /** Returns the length of the file, in bytes, without contacting any
+        server. */
+    public long length()
+    {
+        return length;
+    }
+
+    /** Returns the length of the file as stored: that of all blocks but the
+        last one, which are full, plus the length of the last block.
+
+        @throws IOException If no replica of the last block can be reached.
+     */
+    private long storedLength() throws IOException
+    {
+        int             count = block_map.getBlockCount();
+        if(count == 0)
+            return 0;
+
+        long            last = block_map.getBlock(count - 1);
+        IOException     failure = null;
+
+        for(Storage replica : replicasInReadOrder(count - 1))
+        {
+            try
+            {
+                return (long)(count - 1) * Blocks.BLOCK_SIZE +
+                       replica.blockSize(last);
+            }
+            catch(RMIException e)
+            {
+                failure = new IOException("could not contact storage server",
+                                          e);
+            }
+        }
+
+        throw noReplica(count - 1, failure);
+    }
+
+    /** Reads bytes from the file.
+
+        @param offset Offset in the file of the first byte to read.
+        @param buffer Buffer to receive the bytes.
+        @param buffer_offset Offset into the buffer at which the bytes are to be
+                             written.
+        @param read_length The maximum number of bytes to read.
+        @return The number of bytes read, which is <code>read_length</code>
+                unless the end of the file is reached first, or <code>-1</code>
+                if <code>offset</code> is at or past the end of the file.
+        @throws IOException If no replica of a block in the range can be
+                            reached, or a read error occurs on a storage
+                            server.
+        @throws IndexOutOfBoundsException If <code>offset</code>,
+                                          <code>buffer_offset</code> or
+                                          <code>read_length</code> is negative,
+                                          or if the range does not fit in the
+                                          buffer.
+     */
+    public int read(long offset, byte[] buffer, int buffer_offset,
+                    int read_length) throws IOException
+    {
+        if(offset < 0 || buffer_offset < 0 || read_length < 0 ||
+           buffer_offset + read_length > buffer.length)
+        {
+            throw new IndexOutOfBoundsException("invalid read range");
+        }
+
+        if(offset >= length)
+            return -1;
+
+        read_length = (int)Math.min(read_length, length - offset);
+
+        // Start the read of every block in the range, then collect them.
+        List<Future<byte[]>>    reads = new ArrayList<Future<byte[]>>();
+        long                    position = offset;
+        int                     done = 0;
+        while(done < read_length)
+        {
+            int         index = (int)(position / Blocks.BLOCK_SIZE);
+            int         block_offset = (int)(position % Blocks.BLOCK_SIZE);
+            int         count = Math.min(read_length - done,
+                                         Blocks.BLOCK_SIZE - block_offset);
+
+            reads.add(block_io.submit(() ->
+                readBlock(index, block_offset, count)));
+
+            done += count;
+            position += count;
+        }
+
+        done = 0;
+        IOException             failure = null;
+        for(Future<byte[]> read : reads)
+        {
+            int         block_offset = (int)((offset + done) %
+                                             Blocks.BLOCK_SIZE);
+            int         count = Math.min(read_length - done,
+                                         Blocks.BLOCK_SIZE - block_offset);
+
+            try
+            {
+                byte[]  data = await(read);
+                System.arraycopy(data, 0, buffer, buffer_offset + done,
+                                 data.length);
+                // Short blocks in the middle of the file read as zeros.
+                Arrays.fill(buffer, buffer_offset + done + data.length,
+                            buffer_offset + done + count, (byte)0);
+            }
+            catch(IOException e)
+            {
+                if(failure == null)
+                    failure = e;
+            }
+
+            done += count;
+        }
+
+        if(failure != null)
+            throw failure;
+
+        return read_length;
+    }
+
+    /** Writes bytes to the file, extending it with new blocks as needed.
+
+        @param offset Offset in the file of the first byte to write.
+        @param data Buffer holding the bytes.
+        @param data_offset Offset into the buffer of the first byte to write.
+        @param write_length The number of bytes to write.
+        @throws IOException If a block cannot be added, or a replica of a block
+                            in the range cannot be written. The range then
+                            holds unspecified data.
+        @throws IndexOutOfBoundsException If <code>offset</code>,
+                                          <code>data_offset</code> or
+                                          <code>write_length</code> is
+                                          negative, or if the range does not
+                                          fit in the buffer.
+     */
+    public void write(long offset, byte[] data, int data_offset,
+                      int write_length) throws IOException
+    {
+        if(offset < 0 || data_offset < 0 || write_length < 0 ||
+           data_offset + write_length > data.length)
+        {
+            throw new IndexOutOfBoundsException("invalid write range");
+        }
+
+        if(write_length == 0)
+            return;
+
+        long            end = offset + write_length;
+        ensureBlocks((int)((end - 1) / Blocks.BLOCK_SIZE) + 1);
+
+        // Send every piece to every replica of its block at once.
+        List<Future<Void>>  writes = new ArrayList<Future<Void>>();
+        List<Integer>       written_blocks = new ArrayList<Integer>();
+        int                 done = 0;
+        while(done < write_length)
+        {
+            int         index = (int)(offset / Blocks.BLOCK_SIZE);
+            int         block_offset = (int)(offset % Blocks.BLOCK_SIZE);
+            int         count = Math.min(write_length - done,
+                                         Blocks.BLOCK_SIZE - block_offset);
+
+            byte[]      piece = Arrays.copyOfRange(data, data_offset + done,
+                                                   data_offset + done + count);
+            long        block = block_map.getBlock(index);
+            Storage[]   replicas = block_map.getReplicas(index);
+
+            if(replicas.length == 0)
+            {
+                cancel(writes);
+                throw noReplica(index, null);
+            }
+
+            for(Storage replica : replicas)
+            {
+                writes.add(block_io.submit(() ->
+                {
+                    replica.writeBlock(block, block_offset, piece);
+                    return null;
+                }));
+                written_blocks.add(index);
+            }
+
+            done += count;
+            offset += count;
+        }
+
+        // Wait for all of them, so that no piece is still in flight when the
+        // write is reported to have failed.
+        IOException     failure = null;
+        for(int i = 0; i < writes.size(); i++)
+        {
+            try
+            {
+                await(writes.get(i));
+            }
+            catch(IOException e)
+            {
+                if(failure == null)
+                {
+                    failure = new IOException("could not write block " +
+                                              written_blocks.get(i) + " of " +
+                                              path, e);
+                }
+            }
+        }
+
+        if(failure != null)
+            throw failure;
+
+        length = Math.max(length, end);
+    }
+
+    /** Reads from one block, trying each replica in turn.
+
+        <p>
+        The returned array is shorter than <code>length</code> if the block
+        itself is shorter.
+     */
+    private byte[] readBlock(int index, int block_offset, int length)
+        throws IOException
+    {
+        long            block = block_map.getBlock(index);
+        IOException     failure = null;
+
+        for(Storage replica : replicasInReadOrder(index))
+        {
+            try
+            {
+                try
+                {
+                    return replica.readBlock(block, block_offset, length);
+                }
+                catch(IndexOutOfBoundsException e)
+                {
+                    // The block ends inside the range; read what it has.
+                    long    size = replica.blockSize(block);
+                    int     available =
+                        (int)Math.max(0, Math.min(length,
+                                                  size - block_offset));
+
+                    if(available == 0)
+                        return new byte[0];
+
+                    return replica.readBlock(block, block_offset, available);
+                }
+            }
+            catch(RMIException e)
+            {
+                failure = new IOException("could not contact storage server",
+                                          e);
+            }
+        }
+
+        throw noReplica(index, failure);
+    }
+
+    /** Cancels the pieces of a write that has failed before it was sent in
+        full. */
+    private static void cancel(List<Future<Void>> writes)
+    {
+        for(Future<Void> write : writes)
+            write.cancel(false);
+    }
+
+    /** Waits for the read or write of a piece, and rethrows its failure. */
+    private static <T> T await(Future<T> task) throws IOException
+    {
+        try
+        {
+            return task.get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted during block I/O");
+        }
+        catch(CancellationException e)
+        {
+            throw new IOException("block I/O cancelled", e);
+        }
+        catch(ExecutionException e)
+        {
+            Throwable   cause = e.getCause();
+            if(cause instanceof IOException)
+                throw (IOException)cause;
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new IOException("block I/O failed", cause);
+        }
+    }
+
+    /** Appends blocks to the file until it has at least <code>count</code>
+        blocks. */
+    private void ensureBlocks(int count) throws IOException
+    {
+        if(block_map.getBlockCount() >= count)
+            return;
+
+        refresh();
+
+        try
+        {
+            while(block_map.getBlockCount() < count)
+                block_map = naming_server.addBlock(path);
+        }
+        catch(RMIException e)
+        {
+            throw new IOException("could not contact naming server", e);
+        }
+    }
+
+    /** Retrieves the current block map, which reflects replicas lost or
+        added since the file was opened. */
+    private void refresh() throws IOException
+    {
+        try
+        {
+            block_map = naming_server.getBlockMap(path);
+        }
+        catch(RMIException e)
+        {
+            throw new IOException("could not contact naming server", e);
+        }
+    }
+
+    /** Returns the replicas of a block, starting at a random one. */
+    private List<Storage> replicasInReadOrder(int index)
+    {
+        Storage[]       replicas = block_map.getReplicas(index);
+        List<Storage>   ordered = new ArrayList<Storage>(replicas.length);
+
+        if(replicas.length == 0)
+            return ordered;
+
+        int             first = random.nextInt(replicas.length);
+        for(int i = 0; i < replicas.length; i++)
+            ordered.add(replicas[(first + i) % replicas.length]);
+
+        return ordered;
+    }
+
+    private IOException noReplica(int index, IOException cause)
+    {
+        return new IOException("no live replica of block " + index + " of " +
+                               path, cause);
+    }
+}
@@ -2,6 +2,8 @@ package client;
 
 import java.io.*;
 import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 import rmi.*;
 import common.*;
@@ -12,10 +14,21 @@ import storage.*;
 
     <p>
     Read calls on a <code>DFSInputStream</code> are directed to a storage server
-    hosting the given file. Each read call corresponds to one network request.
-    If this behavior is not desirable, the <code>DFSInputStream</code> should be
-    wrapped in a <code>BufferedInputStream</code> or other class providing
-    buffered input.
+    hosting the given file. Random reads correspond to one network request
+    each. Once the stream sees sequential reads, it reads ahead: the file is
+    fetched in blocks of {@link #READAHEAD_BLOCK_SIZE} bytes, a window of
+    block reads is kept in flight ahead of the stream offset, and reads are
+    served from the blocks fetched. The window starts at one block and doubles
+    each time the reader moves on to the next block, up to the limit set by
+    <code>setReadahead</code>. A skip halves it, and the stream falls back to
+    one request per read once it has shrunk to nothing, so random readers do
+    not pay for data they never use. The block reads of all streams share a
+    fixed number of threads, so many streams reading ahead at once queue
+    their reads rather than flood the storage servers.
+
+    <p>
+    Every read carries the checksums of the data. They are checked as the data
+    arrives, and a read that does not match is repeated on another replica.
 
     <p>
     <code>DFSInputStream</code> does not support marks.
@@ -28,13 +41,46 @@ import storage.*;
  */
 public class DFSInputStream extends InputStream
 {
+    /** Size of the blocks read ahead, in bytes. */
+    public static final int     READAHEAD_BLOCK_SIZE = 1024 * 1024;
+    /** Default limit of the readahead window, in blocks. */
+    public static final int     DEFAULT_READAHEAD = 16;
+    /** Number of sequential reads after which the stream reads ahead. */
+    private static final int    SEQUENTIAL_READS = 2;
+    /** Number of threads reading blocks ahead for all streams. Block reads
+        started beyond this wait their turn, so the requests in flight stay
+        bounded however many streams read ahead at once. */
+    private static final int    READAHEAD_THREADS = 16;
+
+    /** Threads reading blocks ahead for all streams. Idle threads exit. */
+    private static final ThreadPoolExecutor readahead_io =
+        new ThreadPoolExecutor(READAHEAD_THREADS, READAHEAD_THREADS,
+                               60, TimeUnit.SECONDS,
+                               new LinkedBlockingQueue<Runnable>(),
+                               task ->
+                               {
+                                   Thread  thread =
+                                       new Thread(task, "readahead");
+                                   thread.setDaemon(true);
+                                   return thread;
+                               });
+
+    static
+    {
+        readahead_io.allowCoreThreadTimeOut(true);
+    }
+
     /** Path to the file. */
     private final Path      path;
-    /** Storage server hosting the file. */
-    private final Storage   storage_server;
+    /** Storage server hosting the file. This changes if the replica read
+        first turns out to be corrupt. */
+    private volatile Storage    storage_server;
     /** Naming server used to find the storage server hosting the file. */
     private final Service   naming_server;
 
+    /** Number of replicas tried before a checksum mismatch is reported. */
+    private static final int    CHECKSUM_ATTEMPTS = 3;
+
     /** Current read offset in the file. */
     private long            offset = 0;
     /** Total file length. */
@@ -43,6 +89,20 @@ public class DFSInputStream extends InputStream
     /** Indicates that the stream has been closed. */
     private boolean         closed = false;
 
+    /** Limit of the readahead window, in blocks. */
+    private int             readahead_limit = DEFAULT_READAHEAD;
+    /** Current readahead window, in blocks. Zero while the stream does not
+        read ahead. */
+    private int             window = 0;
+    /** Number of reads in a row that started where the previous one ended. */
+    private int             sequential_reads = 0;
+    /** Whether the stream offset has been moved by a skip since the last
+        read. */
+    private boolean         skipped = false;
+    /** Block reads in flight or completed, by block index, in file order. */
+    private final TreeMap<Long, Future<ChecksummedData>>    blocks =
+        new TreeMap<Long, Future<ChecksummedData>>();
+
     /** Creates a <code>DFSInputStream</code> for a file listed by the given
         naming server.
 
@@ -154,25 +214,58 @@ public class DFSInputStream extends InputStream
         this(NamingStubs.service(hostname), new Path(filename));
     }
 
+    /** Sets the limit of the readahead window.
+
+        <p>
+        The readahead window never grows past <code>max_blocks</code> blocks
+        of {@link #READAHEAD_BLOCK_SIZE} bytes. Zero turns readahead off, so
+        that every read is one request.
+
+        @param max_blocks Limit of the window, in blocks.
+        @throws IllegalArgumentException If <code>max_blocks</code> is
+                                         negative.
+     */
+    public void setReadahead(int max_blocks)
+    {
+        if(max_blocks < 0)
+            throw new IllegalArgumentException("negative readahead window");
+
+        readahead_limit = max_blocks;
+        window = Math.min(window, readahead_limit);
+        if(window == 0)
+            dropBlocks(Long.MAX_VALUE);
+    }
+
+    /** Returns the limit of the readahead window, in blocks. */
+    public int getReadahead()
+    {
+        return readahead_limit;
+    }
+
     /** Closes the input stream.
 
         <p>
-        The stream is marked as closed. Further attempts to use the input stream
-        will result in <code>IOException</code>.
+        The stream is marked as closed, and block reads still in flight are
+        cancelled. Further attempts to use the input stream will result in
+        <code>IOException</code>.
      */
     @Override
     public void close()
     {
         closed = true;
+        dropBlocks(Long.MAX_VALUE);
     }
 
     /** Reads bytes from the input stream into a byte buffer.
 
         <p>
-        The read is performed in a single request to the storage server. If the
-        operation succeeds, the number of bytes read will be either
-        <code>read_length</code> or the number of bytes remaining in the file,
-        whichever is less.
+        The read is served from the blocks read ahead if the stream reads
+        ahead, and is performed in a single request to the storage server
+        otherwise. If the operation succeeds, the number of bytes read will be
+        either <code>read_length</code> or the number of bytes remaining in the
+        file, whichever is less, unless a block read ahead fails after bytes
+        of the blocks before it were read: those bytes are then returned
+        alone, and the next read reports the failure.
 
         @param buffer Buffer to receive bytes read from the stream.
         @param buffer_offset Offset into the buffer at which the bytes are to be
@@ -232,31 +325,203 @@ public class DFSInputStream extends InputStream
         if(read_length > (length - offset))
             read_length = (int)(length - offset);
 
-        // Read bytes from file and advance the stream offset if the request
-        // succeeds.
-        byte[]      result;
+        // Grow the readahead window on sequential reads.
+        if(skipped)
+            sequential_reads = 0;
+        else
+            ++sequential_reads;
 
+        skipped = false;
+
+        if(window == 0 && readahead_limit > 0 &&
+           sequential_reads >= SEQUENTIAL_READS)
+        {
+            window = 1;
+        }
+
+        if(window > 0)
+            return readAhead(buffer, buffer_offset, read_length);
+
+        // Read bytes from file, together with their checksums, and advance
+        // the stream offset if the request succeeds.
+        ChecksummedData     result = readChecked(offset, read_length);
+
+        // Copy bytes from the buffer that was received over the network into
+        // the buffer provided by the caller. The data received starts at a
+        // checksum chunk boundary at or before the stream offset.
+        System.arraycopy(result.getData(),
+                         (int)(offset - result.getPosition()), buffer,
+                         buffer_offset, read_length);
+        offset += read_length;
+
+        // Return the number of bytes read.
+        return read_length;
+    }
+
+    /** Serves a read from the blocks read ahead, and keeps the window of
+        block reads ahead of the stream offset full.
+
+        <p>
+        The arguments have been checked, and the range lies within the file.
+        If a block read fails after bytes of earlier blocks have been copied,
+        those bytes are returned as a short read, and the failure is met again
+        by the next read. If it fails before any byte is copied, the stream
+        offset is left where it was.
+     */
+    private int readAhead(byte[] buffer, int buffer_offset, int read_length)
+        throws IOException
+    {
+        long            start = offset;
+        int             done = 0;
+        while(done < read_length)
+        {
+            long        index = offset / READAHEAD_BLOCK_SIZE;
+
+            // Blocks behind the stream offset are no longer needed, and the
+            // reader moving on to a new block earns a wider window.
+            if(!blocks.isEmpty() && blocks.firstKey() < index)
+            {
+                dropBlocks(index);
+                window = Math.min(window * 2, readahead_limit);
+            }
+
+            fillWindow(index);
+
+            ChecksummedData block;
+            try
+            {
+                block = await(blocks.get(index));
+            }
+            catch(IOException e)
+            {
+                // Let the next read try the block again.
+                blocks.remove(index);
+                if(done > 0)
+                    return done;
+
+                offset = start;
+                throw e;
+            }
+
+            int         block_offset = (int)(offset - block.getPosition());
+            int         count = Math.min(read_length - done,
+                                         block.getData().length -
+                                         block_offset);
+
+            System.arraycopy(block.getData(), block_offset, buffer,
+                             buffer_offset + done, count);
+            done += count;
+            offset += count;
+        }
+
+        return done;
+    }
+
+    /** Starts reads of the blocks of the window beginning at block
+        <code>first</code> that are not already in flight. */
+    private void fillWindow(long first)
+    {
+        long            last_block = (length - 1) / READAHEAD_BLOCK_SIZE;
+
+        for(long index = first;
+            index < first + window && index <= last_block; ++index)
+        {
+            if(blocks.containsKey(index))
+                continue;
+
+            long        position = index * READAHEAD_BLOCK_SIZE;
+            int         block_length =
+                (int)Math.min(READAHEAD_BLOCK_SIZE, length - position);
+
+            blocks.put(index, readahead_io.submit(() ->
+                readChecked(position, block_length)));
+        }
+    }
+
+    /** Cancels and forgets the block reads before block <code>index</code>. */
+    private void dropBlocks(long index)
+    {
+        Map<Long, Future<ChecksummedData>>  dropped = blocks.headMap(index);
+
+        for(Future<ChecksummedData> block : dropped.values())
+            block.cancel(false);
+
+        dropped.clear();
+    }
+
+    /** Waits for a block read, and rethrows its failure. */
+    private static ChecksummedData await(Future<ChecksummedData> block)
+        throws IOException
+    {
         try
         {
-            result = storage_server.read(path, offset, read_length);
-            offset += read_length;
+            return block.get();
         }
-        catch(FileNotFoundException e)
+        catch(InterruptedException e)
         {
-            throw new IOException("file missing on storage server", e);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted during readahead");
         }
-        catch(RMIException e)
+        catch(ExecutionException e)
         {
-            throw new IOException("unable to contact storage server", e);
+            Throwable   cause = e.getCause();
+            if(cause instanceof IOException)
+                throw (IOException)cause;
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new IOException("readahead failed", cause);
         }
+    }
 
-        // Copy bytes from the buffer that was received over the network into
-        // the buffer provided by the caller.
-        for(int index = 0; index < read_length; ++index)
-            buffer[buffer_offset + index] = result[index];
+    /** Reads bytes at a given offset and checks them against their
+        checksums.
 
-        // Return the number of bytes read.
-        return read_length;
+        <p>
+        If the data does not match, the read is repeated on another replica of
+        the file chosen by the naming server. Block reads ahead call this
+        method from readahead threads.
+
+        @param position Offset in the file of the first byte to read.
+        @param read_length The number of bytes to read.
+        @return The data, which covers the requested range.
+        @throws ChecksumException If no replica tried returned matching data.
+        @throws IOException If a server cannot be contacted, or if a read error
+                            occurs on the storage server.
+     */
+    private ChecksummedData readChecked(long position, int read_length)
+        throws IOException
+    {
+        ChecksumException   mismatch = null;
+
+        for(int attempt = 0; attempt < CHECKSUM_ATTEMPTS; ++attempt)
+        {
+            ChecksummedData result;
+
+            try
+            {
+                if(attempt > 0)
+                    storage_server = naming_server.getStorage(path);
+
+                result = storage_server.readWithChecksums(path, position,
+                                                          read_length);
+            }
+            catch(FileNotFoundException e)
+            {
+                throw new IOException("file missing on storage server", e);
+            }
+            catch(RMIException e)
+            {
+                throw new IOException("unable to contact storage server", e);
+            }
+
+            long            corrupt = result.verify();
+            if(corrupt < 0)
+                return result;
+
+            mismatch = new ChecksumException(path, corrupt);
+        }
+
+        throw mismatch;
     }
 
     /** Reads a single byte from the input stream.
@@ -312,6 +577,16 @@ public class DFSInputStream extends InputStream
 
         offset += count;
 
+        // A skip is not sequential access: narrow the window, and keep only
+        // the blocks still ahead of the stream offset.
+        if(count > 0)
+        {
+            skipped = true;
+            window /= 2;
+            dropBlocks(window == 0 ? Long.MAX_VALUE
+                                   : offset / READAHEAD_BLOCK_SIZE);
+        }
+
         return count;
     }
 
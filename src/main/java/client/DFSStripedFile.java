@@ -0,0 +1,648 @@
+package client;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import rmi.*;
+import common.*;
+import naming.*;
+import storage.*;
+
+/** Erasure-coded file in the distributed filesystem.
+
+    <p>
+    Erasure-coded files are laid out in stripes of Reed-Solomon coded cells,
+    as described in {@link StripeMap}. They are written by appending: bytes
+    are gathered into a row of <code>k</code> cells, the parity of the row is
+    computed on the client, and the <code>k + m</code> pieces of the row are
+    written to their cells in parallel. A partial row is written to a freshly
+    staged tail when the file is flushed, and is read back and completed by
+    the next append. A row is only written to cells the length of the file
+    does not yet cover, and becomes part of the file when the new length is
+    recorded on the naming server, so a write that fails half way leaves the
+    file as it was.
+
+    <p>
+    Reads go to the data cell holding each byte. If that cell is lost, or its
+    storage server cannot be reached, the same range is read from
+    <code>k</code> other cells of the stripe in parallel and the missing piece
+    is reconstructed on the client, so a stripe stays readable as long as no
+    more than <code>m</code> of its cells are lost. Lost cells are rebuilt
+    on other storage servers by the naming server, in the background.
+
+    <p>
+    The stripe map, and with it the length of the file, is retrieved when the
+    file is opened and after each write through this object, rather than on
+    every read. <code>DFSStripedFile</code> does not provide locking. The
+    file should be locked on the naming server for shared access while
+    reading, and for exclusive access while appending, so that the map does
+    not change under a reader.
+ */
+public class DFSStripedFile implements Closeable
+{
+    /** Threads reading and writing the cells of a row in parallel. */
+    private static final ExecutorService    cell_io =
+        Executors.newCachedThreadPool(task ->
+        {
+            Thread      thread = new Thread(task, "striped-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    /** Path to the file. */
+    private final Path          path;
+    /** Naming server holding the stripe map of the file. */
+    private final Service       naming_server;
+    /** Most recently retrieved stripe map. */
+    private StripeMap           stripe_map;
+    /** Code of the stripes of the file. */
+    private final ReedSolomon   code;
+    /** Cells of the row being appended, data cells first. */
+    private byte[][]            row;
+    /** Offset in the file of the row being appended. */
+    private long                row_start;
+    /** Number of bytes of the file in the row being appended. */
+    private int                 row_length;
+    /** Whether bytes of the row already in the file have been read into
+        <code>row</code>. */
+    private boolean             row_loaded;
+    /** Whether <code>row</code> holds bytes not yet written to the file. */
+    private boolean             row_dirty;
+
+    /** Opens an erasure-coded file listed by the given naming server.
+
+        @param naming_server Stub for the naming server hosting metadata for the
+                             file.
+        @param file Path to the file.
+        @throws FileNotFoundException If the file is not an erasure-coded file
+                                      listed by the naming server.
+        @throws IOException If the naming server cannot be contacted.
+     */
+    public DFSStripedFile(Service naming_server, Path file)
+        throws FileNotFoundException, IOException
+    {
+        this.naming_server = naming_server;
+        this.path = file;
+
+        refresh();
+        code = new ReedSolomon(stripe_map.getDataCells(),
+                               stripe_map.getParityCells());
+
+        long            length = stripe_map.getLength();
+        row_length = (int)(length % stripe_map.getRowSize());
+        row_start = length - row_length;
+        row_loaded = row_length == 0;
+    }
+
+    /** Returns the length of the file, in bytes, as of its last flush
+        through this object, or as of its opening if it has not been written
+        since. */
+    public long length()
+    {
+        return stripe_map.getLength();
+    }
+
+    /** Reads bytes from the file.
+
+        @param offset Offset in the file of the first byte to read.
+        @param buffer Buffer to receive the bytes.
+        @param buffer_offset Offset into the buffer at which the bytes are to be
+                             written.
+        @param read_length The maximum number of bytes to read.
+        @return The number of bytes read, which is <code>read_length</code>
+                unless the end of the file is reached first, or <code>-1</code>
+                if <code>offset</code> is at or past the end of the file.
+        @throws IOException If more cells of a stripe in the range are lost or
+                            unreachable than the parity of the file can make
+                            up for.
+        @throws IndexOutOfBoundsException If <code>offset</code>,
+                                          <code>buffer_offset</code> or
+                                          <code>read_length</code> is negative,
+                                          or if the range does not fit in the
+                                          buffer.
+     */
+    public int read(long offset, byte[] buffer, int buffer_offset,
+                    int read_length) throws IOException
+    {
+        if(offset < 0 || buffer_offset < 0 || read_length < 0 ||
+           buffer_offset + read_length > buffer.length)
+        {
+            throw new IndexOutOfBoundsException("invalid read range");
+        }
+
+        long            length = stripe_map.getLength();
+        if(offset >= length)
+            return -1;
+
+        read_length = (int)Math.min(read_length, length - offset);
+
+        int             row_size = stripe_map.getRowSize();
+        int             done = 0;
+        while(done < read_length)
+        {
+            long        row_index = offset / row_size;
+            int         in_row = (int)(offset % row_size);
+            int         cell = in_row / StripeMap.CELL_SIZE;
+            int         in_cell = in_row % StripeMap.CELL_SIZE;
+            int         count = Math.min(read_length - done,
+                                         StripeMap.CELL_SIZE - in_cell);
+
+            byte[]      data;
+            try
+            {
+                data = readCell(row_index, cell, in_cell, count);
+            }
+            catch(IOException e)
+            {
+                // Cells may have been lost or rebuilt since the map was
+                // retrieved.
+                refresh();
+                data = reconstruct(row_index, cell, in_cell, count, e);
+            }
+            System.arraycopy(data, 0, buffer, buffer_offset + done, count);
+
+            done += count;
+            offset += count;
+        }
+
+        return read_length;
+    }
+
+    /** Appends bytes to the file.
+
+        <p>
+        Every full row is written to its cells, and the new length recorded
+        on the naming server, before this method returns. Bytes of a partial
+        row are kept on the client until the next flush.
+
+        @param data Buffer holding the bytes.
+        @param data_offset Offset into the buffer of the first byte to write.
+        @param write_length The number of bytes to write.
+        @throws IOException If a stripe cannot be added, or a cell of a row
+                            cannot be written.
+        @throws IndexOutOfBoundsException If <code>data_offset</code> or
+                                          <code>write_length</code> is
+                                          negative, or if the range does not
+                                          fit in the buffer.
+     */
+    public void append(byte[] data, int data_offset, int write_length)
+        throws IOException
+    {
+        if(data_offset < 0 || write_length < 0 ||
+           data_offset + write_length > data.length)
+        {
+            throw new IndexOutOfBoundsException("invalid write range");
+        }
+
+        loadRow();
+
+        int             row_size = stripe_map.getRowSize();
+        int             done = 0;
+        while(done < write_length)
+        {
+            int         cell = row_length / StripeMap.CELL_SIZE;
+            int         cell_offset = row_length % StripeMap.CELL_SIZE;
+            int         count = Math.min(write_length - done,
+                                         StripeMap.CELL_SIZE - cell_offset);
+
+            System.arraycopy(data, data_offset + done, row[cell], cell_offset,
+                             count);
+            row_length += count;
+            row_dirty = true;
+            done += count;
+
+            if(row_length == row_size)
+            {
+                writeRow(false);
+                row_start += row_size;
+                row_length = 0;
+                clearRow();
+            }
+        }
+    }
+
+    /** Writes the partial row being appended, if any, and records the length
+        of the file on the naming server.
+
+        @throws IOException If a stripe cannot be added, or a cell of the row
+                            cannot be written.
+     */
+    public void flush() throws IOException
+    {
+        if(row_dirty)
+            writeRow(false);
+    }
+
+    /** Shortens the file.
+
+        <p>
+        Bytes appended but not yet flushed are written first. If the new
+        length ends in the middle of a row, what is left of that row is
+        written to a new tail. Stripes past the new length are deleted.
+
+        @param length New length of the file, in bytes.
+        @throws IOException If the file cannot be flushed, the row holding the
+                            new end of the file cannot be read or written, or
+                            the naming server cannot be contacted.
+        @throws IllegalArgumentException If <code>length</code> is negative or
+                                         greater than the length of the file.
+     */
+    public void truncate(long length) throws IOException
+    {
+        flush();
+
+        if(length < 0 || length > stripe_map.getLength())
+        {
+            throw new IllegalArgumentException("cannot truncate " + path +
+                                               " to " + length + " bytes");
+        }
+
+        clearRow();
+        row_length = (int)(length % stripe_map.getRowSize());
+        row_start = length - row_length;
+        row_loaded = row_length == 0;
+
+        if(row_loaded)
+            commit(length, true);
+        else
+        {
+            loadRow();
+            writeRow(true);
+        }
+    }
+
+    /** Flushes the file. */
+    @Override
+    public void close() throws IOException
+    {
+        flush();
+    }
+
+    /** Writes the row being appended, padded with zeros, to its cells, and
+        records the new length of the file.
+
+        <p>
+        A full row goes to its place in its stripe, which the length of the
+        file does not cover yet. A partial row goes to a newly staged tail,
+        so that the tail already in the file stays intact until the new
+        length is recorded.
+
+        @param truncate Whether the new length may be shorter than the file.
+     */
+    private void writeRow(boolean truncate) throws IOException
+    {
+        long            row_index = row_start / stripe_map.getRowSize();
+        int             stripe =
+            (int)(row_index / stripe_map.getRowsPerStripe());
+        boolean         full = row_length == stripe_map.getRowSize();
+
+        ensureStripes(stripe + 1);
+        if(!full)
+            stageTail();
+
+        code.encode(row, 0, StripeMap.CELL_SIZE);
+
+        List<Future<Void>>  writes = new ArrayList<Future<Void>>();
+        for(int cell = 0; cell < row.length; cell++)
+        {
+            // A full row goes to its stripe even if the tail holds it now.
+            Storage     holder = full ? stripe_map.getHolder(stripe, cell)
+                                      : stripe_map.getStagedHolder(cell);
+            long        block = full ? stripe_map.getCell(stripe, cell)
+                                     : stripe_map.getStagedCell(cell);
+            int         cell_offset = full
+                ? (int)(row_index % stripe_map.getRowsPerStripe()) *
+                  StripeMap.CELL_SIZE
+                : 0;
+            byte[]      piece = row[cell];
+
+            if(holder == null)
+                throw lostCell(row_index, cell, null);
+
+            writes.add(cell_io.submit(() ->
+            {
+                holder.writeBlock(block, cell_offset, piece);
+                return null;
+            }));
+        }
+
+        for(int cell = 0; cell < writes.size(); cell++)
+        {
+            try
+            {
+                await(writes.get(cell));
+            }
+            catch(IOException e)
+            {
+                throw new IOException("could not write cell " + cell +
+                                      " of row " + row_index + " of " + path,
+                                      e);
+            }
+        }
+
+        commit(row_start + row_length, truncate);
+        row_dirty = false;
+    }
+
+    /** Records the length of the file on the naming server, and retrieves
+        the stripe map it leaves. */
+    private void commit(long length, boolean truncate) throws IOException
+    {
+        try
+        {
+            naming_server.setStripedLength(path, length, truncate);
+        }
+        catch(RMIException e)
+        {
+            throw new IOException("could not contact naming server", e);
+        }
+
+        refresh();
+    }
+
+    /** Places a new staged tail for the last row. */
+    private void stageTail() throws IOException
+    {
+        try
+        {
+            stripe_map = naming_server.stageTail(path);
+        }
+        catch(RMIException e)
+        {
+            throw new IOException("could not contact naming server", e);
+        }
+        catch(IllegalStateException e)
+        {
+            throw new IOException("could not stage a tail for " + path, e);
+        }
+    }
+
+    /** Fills the row being appended with zeros. */
+    private void clearRow()
+    {
+        if(row == null)
+            return;
+
+        for(byte[] piece : row)
+            Arrays.fill(piece, (byte)0);
+    }
+
+    /** Reads the bytes of the last row already in the file, so that appends
+        complete the row rather than overwrite it. */
+    private void loadRow() throws IOException
+    {
+        if(row == null)
+        {
+            row = new byte[stripe_map.getDataCells() +
+                           stripe_map.getParityCells()]
+                          [StripeMap.CELL_SIZE];
+        }
+
+        if(row_loaded)
+            return;
+
+        byte[]          data = new byte[row_length];
+        int             done = 0;
+        while(done < row_length)
+        {
+            int         count = read(row_start + done, data, done,
+                                     row_length - done);
+            if(count < 0)
+                throw new IOException(path + " is shorter than recorded");
+
+            done += count;
+        }
+
+        for(int cell = 0; cell * StripeMap.CELL_SIZE < row_length; cell++)
+        {
+            int         start = cell * StripeMap.CELL_SIZE;
+            System.arraycopy(data, start, row[cell], 0,
+                             Math.min(StripeMap.CELL_SIZE,
+                                      row_length - start));
+        }
+
+        row_loaded = true;
+    }
+
+    /** Reads a range of the piece of a row held by one cell. Bytes past the
+        end of the cell read as zeros.
+
+        @param in_cell Offset of the range in the piece of the row.
+        @throws IOException If the cell is lost, or cannot be read.
+     */
+    private byte[] readCell(long row_index, int cell, int in_cell, int length)
+        throws IOException
+    {
+        Storage         holder = holder(row_index, cell);
+        long            block = block(row_index, cell);
+        int             cell_offset = cellOffset(row_index) + in_cell;
+
+        if(holder == null)
+            throw lostCell(row_index, cell, null);
+
+        try
+        {
+            try
+            {
+                return holder.readBlock(block, cell_offset, length);
+            }
+            catch(IndexOutOfBoundsException e)
+            {
+                // The cell ends inside the range; read what it has.
+                long    size = holder.blockSize(block);
+                int     available =
+                    (int)Math.max(0, Math.min(length, size - cell_offset));
+                byte[]  data = new byte[length];
+
+                if(available > 0)
+                {
+                    System.arraycopy(holder.readBlock(block, cell_offset,
+                                                      available),
+                                     0, data, 0, available);
+                }
+
+                return data;
+            }
+        }
+        catch(RMIException e)
+        {
+            throw lostCell(row_index, cell, e);
+        }
+    }
+
+    /** Rebuilds a range of the piece of a row held by a data cell from the
+        same range of the other pieces of the row.
+
+        <p>
+        Cells are read <code>k</code> at a time in stripe order, the data
+        cells first, and cells that fail are replaced by the next ones until
+        <code>k</code> have been read or none are left.
+
+        @param failure Why the cell itself could not be read.
+     */
+    private byte[] reconstruct(long row_index, int missing, int in_cell,
+                               int length, IOException failure)
+        throws IOException
+    {
+        int             data_cells = stripe_map.getDataCells();
+        int             width = data_cells + stripe_map.getParityCells();
+        byte[][]        shards = new byte[width][];
+        boolean[]       present = new boolean[width];
+        int             read = 0;
+        int             next = 0;
+
+        while(read < data_cells && next < width)
+        {
+            Map<Integer, Future<byte[]>>    reads =
+                new LinkedHashMap<Integer, Future<byte[]>>();
+
+            while(reads.size() < data_cells - read && next < width)
+            {
+                int     cell = next++;
+                if(cell == missing || holder(row_index, cell) == null)
+                    continue;
+
+                reads.put(cell, cell_io.submit(() ->
+                    readCell(row_index, cell, in_cell, length)));
+            }
+
+            for(Map.Entry<Integer, Future<byte[]>> entry : reads.entrySet())
+            {
+                try
+                {
+                    shards[entry.getKey()] = await(entry.getValue());
+                    present[entry.getKey()] = true;
+                    read++;
+                }
+                catch(IOException e)
+                {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+
+        if(read < data_cells)
+        {
+            throw new IOException("cannot reconstruct cell " + missing +
+                                  " of row " + row_index + " of " + path +
+                                  ": only " + read + " of " + data_cells +
+                                  " cells needed are readable", failure);
+        }
+
+        for(int cell = 0; cell < width; cell++)
+        {
+            if(shards[cell] == null)
+                shards[cell] = new byte[length];
+        }
+
+        code.decode(shards, present, 0, length);
+        return shards[missing];
+    }
+
+    /** Checks whether a row of the file is the partial last row, held by the
+        tail rather than by its stripe. */
+    private boolean inTail(long row_index)
+    {
+        return stripe_map.hasTail() &&
+               row_index == stripe_map.getLength() / stripe_map.getRowSize();
+    }
+
+    /** Returns the storage server holding the piece of a row in a cell, or
+        <code>null</code> if the cell is lost. */
+    private Storage holder(long row_index, int cell)
+    {
+        if(inTail(row_index))
+            return stripe_map.getTailHolder(cell);
+
+        return stripe_map.getHolder(
+            (int)(row_index / stripe_map.getRowsPerStripe()), cell);
+    }
+
+    /** Returns the block holding the piece of a row in a cell. */
+    private long block(long row_index, int cell)
+    {
+        if(inTail(row_index))
+            return stripe_map.getTailCell(cell);
+
+        return stripe_map.getCell(
+            (int)(row_index / stripe_map.getRowsPerStripe()), cell);
+    }
+
+    /** Returns the offset of the piece of a row in the block holding it. */
+    private int cellOffset(long row_index)
+    {
+        if(inTail(row_index))
+            return 0;
+
+        return (int)(row_index % stripe_map.getRowsPerStripe()) *
+               StripeMap.CELL_SIZE;
+    }
+
+    /** Appends stripes to the file until it has at least <code>count</code>
+        stripes. */
+    private void ensureStripes(int count) throws IOException
+    {
+        if(stripe_map.getStripeCount() >= count)
+            return;
+
+        refresh();
+
+        try
+        {
+            while(stripe_map.getStripeCount() < count)
+                stripe_map = naming_server.addStripe(path);
+        }
+        catch(RMIException e)
+        {
+            throw new IOException("could not contact naming server", e);
+        }
+        catch(IllegalStateException e)
+        {
+            throw new IOException("could not add a stripe to " + path, e);
+        }
+    }
+
+    /** Retrieves the current stripe map, which reflects cells lost since the
+        file was opened. */
+    private void refresh() throws IOException
+    {
+        try
+        {
+            stripe_map = naming_server.getStripeMap(path);
+        }
+        catch(RMIException e)
+        {
+            throw new IOException("could not contact naming server", e);
+        }
+    }
+
+    /** Waits for a cell read or write, and rethrows its failure. */
+    private static <T> T await(Future<T> task) throws IOException
+    {
+        try
+        {
+            return task.get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted during cell I/O");
+        }
+        catch(ExecutionException e)
+        {
+            Throwable   cause = e.getCause();
+            if(cause instanceof IOException)
+                throw (IOException)cause;
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new IOException("cell I/O failed", cause);
+        }
+    }
+
+    private IOException lostCell(long row_index, int cell, Exception cause)
+    {
+        return new IOException("cell " + cell + " of row " + row_index +
+                               " of " + path + " is not reachable", cause);
+    }
+}
@@ -0,0 +1,154 @@
+package common;
+
+/**
+ * Arithmetic in the Galois field GF(2^8), as used by {@link ReedSolomon}.
+ *
+ * <p>
+ * Field elements are bytes. Addition is exclusive or. Multiplication is done
+ * by table: <code>MULTIPLY[a][b]</code> is the product of <code>a</code> and
+ * <code>b</code>, so multiplying a whole buffer by one coefficient is a
+ * lookup per byte in one 256-byte row, with no branch and no logarithm. The
+ * field is generated by the polynomial
+ * <code>x^8 + x^4 + x^3 + x^2 + 1</code>, for which 2 is a generator.
+ */
+public abstract class Galois {
+
+	/** Generating polynomial, with its <code>x^8</code> term. */
+	private static final int POLYNOMIAL = 0x11d;
+
+	private static final int[] LOG = new int[256];
+	private static final byte[] EXP = new byte[512];
+
+	/** Products of every pair of field elements. */
+	static final byte[][] MULTIPLY = new byte[256][256];
+
+	static {
+		int x = 1;
+		for (int i = 0; i < 255; i++) {
+			EXP[i] = (byte) x;
+			EXP[i + 255] = (byte) x;
+			LOG[x] = i;
+			x <<= 1;
+			if (x >= 256) {
+				x ^= POLYNOMIAL;
+			}
+		}
+		for (int a = 1; a < 256; a++) {
+			for (int b = 1; b < 256; b++) {
+				MULTIPLY[a][b] = EXP[LOG[a] + LOG[b]];
+			}
+		}
+	}
+
+	/** Returns the product of two field elements. */
+	public static byte multiply(byte a, byte b) {
+		return MULTIPLY[a & 0xff][b & 0xff];
+	}
+
+	/**
+	 * Returns the quotient of two field elements.
+	 *
+	 * @throws ArithmeticException
+	 *             If <code>b</code> is zero.
+	 */
+	public static byte divide(byte a, byte b) {
+		if (b == 0) {
+			throw new ArithmeticException("division by zero in GF(256)");
+		}
+		if (a == 0) {
+			return 0;
+		}
+		return EXP[LOG[a & 0xff] - LOG[b & 0xff] + 255];
+	}
+
+	/** Returns a field element raised to a power. */
+	public static byte power(byte a, int exponent) {
+		if (exponent == 0) {
+			return 1;
+		}
+		if (a == 0) {
+			return 0;
+		}
+		return EXP[(LOG[a & 0xff] * exponent) % 255];
+	}
+
+	/**
+	 * Sets <code>out</code> to the product of <code>in</code> and a
+	 * coefficient, byte by byte.
+	 */
+	public static void multiply(byte coefficient, byte[] in, int inOffset,
+			byte[] out, int outOffset, int length) {
+		byte[] row = MULTIPLY[coefficient & 0xff];
+		for (int i = 0; i < length; i++) {
+			out[outOffset + i] = row[in[inOffset + i] & 0xff];
+		}
+	}
+
+	/**
+	 * Adds the product of <code>in</code> and a coefficient to
+	 * <code>out</code>, byte by byte.
+	 */
+	public static void multiplyAdd(byte coefficient, byte[] in, int inOffset,
+			byte[] out, int outOffset, int length) {
+		byte[] row = MULTIPLY[coefficient & 0xff];
+		for (int i = 0; i < length; i++) {
+			out[outOffset + i] ^= row[in[inOffset + i] & 0xff];
+		}
+	}
+
+	/**
+	 * Inverts a square matrix by Gauss-Jordan elimination.
+	 *
+	 * @return The inverse, as a new matrix.
+	 * @throws IllegalArgumentException
+	 *             If the matrix is singular.
+	 */
+	static byte[][] invert(byte[][] matrix) {
+		int size = matrix.length;
+		byte[][] work = new byte[size][2 * size];
+		for (int row = 0; row < size; row++) {
+			System.arraycopy(matrix[row], 0, work[row], 0, size);
+			work[row][size + row] = 1;
+		}
+		for (int column = 0; column < size; column++) {
+			int pivot = column;
+			while (pivot < size && work[pivot][column] == 0) {
+				pivot++;
+			}
+			if (pivot == size) {
+				throw new IllegalArgumentException("matrix is singular");
+			}
+			byte[] swap = work[pivot];
+			work[pivot] = work[column];
+			work[column] = swap;
+
+			byte scale = divide((byte) 1, work[column][column]);
+			multiply(scale, work[column], 0, work[column], 0, 2 * size);
+			for (int row = 0; row < size; row++) {
+				if (row != column && work[row][column] != 0) {
+					multiplyAdd(work[row][column], work[column], 0, work[row],
+							0, 2 * size);
+				}
+			}
+		}
+		byte[][] inverse = new byte[size][size];
+		for (int row = 0; row < size; row++) {
+			System.arraycopy(work[row], size, inverse[row], 0, size);
+		}
+		return inverse;
+	}
+
+	/** Returns the product of two matrices. */
+	static byte[][] multiply(byte[][] a, byte[][] b) {
+		byte[][] product = new byte[a.length][b[0].length];
+		for (int row = 0; row < a.length; row++) {
+			for (int k = 0; k < b.length; k++) {
+				if (a[row][k] != 0) {
+					multiplyAdd(a[row][k], b[k], 0, product[row], 0,
+							b[0].length);
+				}
+			}
+		}
+		return product;
+	}
+}
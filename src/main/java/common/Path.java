@@ -257,7 +257,7 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
 	 */
 	@Override
 	public boolean equals(Object other) {
-		return this.path == other.toString();
+		return other instanceof Path && this.path.equals(((Path) other).path);
 	}
 
 	/** Returns the hash code of the path. */
@@ -0,0 +1,196 @@
+package common;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reed-Solomon erasure code over GF(2^8) with <code>k</code> data shards and
+ * <code>m</code> parity shards.
+ *
+ * <p>
+ * The code is systematic: the data shards are stored as they are, and the
+ * parity shards are linear combinations of them. Any <code>k</code> of the
+ * <code>k + m</code> shards are enough to rebuild the others. The coding
+ * matrix is a <code>(k + m) x k</code> Vandermonde matrix multiplied by the
+ * inverse of its top <code>k x k</code> square, so its top is the identity
+ * and every <code>k</code> of its rows are independent.
+ *
+ * <p>
+ * Shards are equal ranges of byte arrays. Encoding and decoding walk each
+ * input slice once per output shard, multiplying by one coefficient through a
+ * row of {@link Galois#MULTIPLY} and adding by exclusive or. The inner loop
+ * has no branch and no carried dependency, so the JIT compiler unrolls it.
+ * Decoding matrices are cached by the set of shards present.
+ */
+public class ReedSolomon {
+
+	// Bytes of each shard coded at a time, so that the slices of all inputs
+	// stay in the processor cache while every output is computed
+	private static final int SLICE = 16 * 1024;
+
+	private final int dataShards;
+	private final int parityShards;
+	// Rows k..k+m-1 of the coding matrix
+	private final byte[][] parity;
+	// Decoding matrix for each set of shards used, keyed by their indexes
+	private final ConcurrentHashMap<String, byte[][]> decoders = new ConcurrentHashMap<String, byte[][]>();
+
+	/**
+	 * Creates a code.
+	 *
+	 * @param dataShards
+	 *            Number of data shards, at least one.
+	 * @param parityShards
+	 *            Number of parity shards, at least one.
+	 * @throws IllegalArgumentException
+	 *             If a count is below one, or there are more than 256 shards.
+	 */
+	public ReedSolomon(int dataShards, int parityShards) {
+		if (dataShards < 1 || parityShards < 1
+				|| dataShards + parityShards > 256) {
+			throw new IllegalArgumentException("invalid shard counts "
+					+ dataShards + "+" + parityShards);
+		}
+		this.dataShards = dataShards;
+		this.parityShards = parityShards;
+
+		byte[][] vandermonde = new byte[dataShards + parityShards][dataShards];
+		for (int row = 0; row < vandermonde.length; row++) {
+			for (int column = 0; column < dataShards; column++) {
+				vandermonde[row][column] = Galois.power((byte) row, column);
+			}
+		}
+		byte[][] top = Galois.invert(Arrays.copyOf(vandermonde, dataShards));
+		byte[][] coding = Galois.multiply(vandermonde, top);
+		this.parity = Arrays.copyOfRange(coding, dataShards, coding.length);
+	}
+
+	public int getDataShards() {
+		return dataShards;
+	}
+
+	public int getParityShards() {
+		return parityShards;
+	}
+
+	/**
+	 * Computes the parity shards of a stripe.
+	 *
+	 * @param shards
+	 *            The <code>k + m</code> shards, data shards first. The
+	 *            parity shards are overwritten.
+	 * @param offset
+	 *            Offset of the range to encode in every shard.
+	 * @param length
+	 *            Length of the range.
+	 */
+	public void encode(byte[][] shards, int offset, int length) {
+		checkShards(shards, offset, length);
+		for (int slice = 0; slice < length; slice += SLICE) {
+			int sliceLength = Math.min(SLICE, length - slice);
+			for (int p = 0; p < parityShards; p++) {
+				combine(parity[p], shards, offset + slice,
+						shards[dataShards + p], offset + slice, sliceLength);
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds the missing data shards of a stripe from any <code>k</code>
+	 * shards present. Missing parity shards are left alone; once the data
+	 * shards are whole, <code>encode</code> rebuilds them.
+	 *
+	 * @param shards
+	 *            The <code>k + m</code> shards, data shards first. The
+	 *            missing data shards are overwritten, and must be allocated.
+	 * @param present
+	 *            Which shards hold valid data.
+	 * @param offset
+	 *            Offset of the range to decode in every shard.
+	 * @param length
+	 *            Length of the range.
+	 * @throws IllegalArgumentException
+	 *             If fewer than <code>k</code> shards are present.
+	 */
+	public void decode(byte[][] shards, boolean[] present, int offset,
+			int length) {
+		checkShards(shards, offset, length);
+		int[] used = new int[dataShards];
+		int count = 0;
+		for (int i = 0; i < shards.length && count < dataShards; i++) {
+			if (present[i]) {
+				used[count++] = i;
+			}
+		}
+		if (count < dataShards) {
+			throw new IllegalArgumentException("only " + count + " of "
+					+ shards.length + " shards present, " + dataShards
+					+ " needed");
+		}
+
+		byte[][] inputs = new byte[dataShards][];
+		for (int i = 0; i < dataShards; i++) {
+			inputs[i] = shards[used[i]];
+		}
+		byte[][] decoder = decoder(used);
+		for (int slice = 0; slice < length; slice += SLICE) {
+			int sliceLength = Math.min(SLICE, length - slice);
+			for (int d = 0; d < dataShards; d++) {
+				if (!present[d]) {
+					combine(decoder[d], inputs, offset + slice, shards[d],
+							offset + slice, sliceLength);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the matrix that turns the shards with the given indexes back
+	 * into the data shards.
+	 */
+	private byte[][] decoder(int[] used) {
+		String key = Arrays.toString(used);
+		byte[][] decoder = decoders.get(key);
+		if (decoder == null) {
+			byte[][] rows = new byte[dataShards][];
+			for (int i = 0; i < dataShards; i++) {
+				if (used[i] < dataShards) {
+					rows[i] = new byte[dataShards];
+					rows[i][used[i]] = 1;
+				} else {
+					rows[i] = parity[used[i] - dataShards];
+				}
+			}
+			decoder = Galois.invert(rows);
+			decoders.putIfAbsent(key, decoder);
+		}
+		return decoder;
+	}
+
+	/**
+	 * Sets <code>out</code> to the sum of the first inputs multiplied by the
+	 * coefficients.
+	 */
+	private static void combine(byte[] coefficients, byte[][] inputs,
+			int inOffset, byte[] out, int outOffset, int length) {
+		Galois.multiply(coefficients[0], inputs[0], inOffset, out, outOffset,
+				length);
+		for (int i = 1; i < coefficients.length; i++) {
+			Galois.multiplyAdd(coefficients[i], inputs[i], inOffset, out,
+					outOffset, length);
+		}
+	}
+
+	private void checkShards(byte[][] shards, int offset, int length) {
+		if (shards.length != dataShards + parityShards) {
+			throw new IllegalArgumentException(shards.length
+					+ " shards given, " + (dataShards + parityShards)
+					+ " expected");
+		}
+		for (byte[] shard : shards) {
+			if (offset < 0 || length < 0 || offset + length > shard.length) {
+				throw new IndexOutOfBoundsException("invalid shard range");
+			}
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package common;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the rate at which bytes are transferred.
+ *
+ * <p>
+ * Background tasks such as replication call <code>acquire</code> with the
+ * number of bytes they are about to move. The call blocks long enough to keep
+ * the long-term rate at or below the configured number of bytes per second.
+ * A single limiter can be shared by several threads, in which case the rate
+ * is shared among them.
+ */
+public class ThroughputLimiter {
+	private final long bytesPerSecond;
+	private final long burstBytes;
+	private double available;
+	private long lastRefill;
+
+	/**
+	 * Creates a limiter that allows bursts of up to one second of traffic.
+	 *
+	 * @param bytesPerSecond
+	 *            Long-term rate limit. Zero or a negative value disables the
+	 *            limit.
+	 */
+	public ThroughputLimiter(long bytesPerSecond) {
+		this(bytesPerSecond, bytesPerSecond);
+	}
+
+	/**
+	 * Creates a limiter.
+	 *
+	 * @param bytesPerSecond
+	 *            Long-term rate limit. Zero or a negative value disables the
+	 *            limit.
+	 * @param burstBytes
+	 *            Number of bytes that may be acquired at once after the limiter
+	 *            has been idle.
+	 */
+	public ThroughputLimiter(long bytesPerSecond, long burstBytes) {
+		this.bytesPerSecond = bytesPerSecond;
+		this.burstBytes = Math.max(burstBytes, 1);
+		this.available = this.burstBytes;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Takes the given number of bytes from the budget, blocking until the
+	 * budget allows the transfer.
+	 *
+	 * <p>
+	 * Requests larger than the burst size are allowed; they put the bucket in
+	 * debt, which later requests pay off by waiting.
+	 *
+	 * @param bytes
+	 *            Number of bytes about to be transferred.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting.
+	 */
+	public void acquire(long bytes) throws InterruptedException {
+		if (!isLimited() || bytes <= 0) {
+			return;
+		}
+		long waitNanos;
+		synchronized (this) {
+			refill();
+			available -= bytes;
+			waitNanos = available >= 0 ? 0
+					: (long) (-available * 1e9 / bytesPerSecond);
+		}
+		if (waitNanos > 0) {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		}
+	}
+
+	/**
+	 * Takes the given number of bytes from the budget only if they are
+	 * available right now.
+	 *
+	 * @return <code>true</code> if the bytes were taken.
+	 */
+	public synchronized boolean tryAcquire(long bytes) {
+		if (!isLimited() || bytes <= 0) {
+			return true;
+		}
+		refill();
+		if (available < bytes) {
+			return false;
+		}
+		available -= bytes;
+		return true;
+	}
+
+	public boolean isLimited() {
+		return bytesPerSecond > 0;
+	}
+
+	public long getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		available = Math.min(burstBytes,
+				available + (now - lastRefill) * bytesPerSecond / 1e9);
+		lastRefill = now;
+	}
+}
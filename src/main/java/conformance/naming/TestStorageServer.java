@@ -165,6 +165,107 @@ class TestStorageServer implements Storage, Command
         throw new UnsupportedOperationException("write method not implemented");
     }
 
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public void writev(Path file, long[] offsets, byte[][] data)
+    {
+        test.failure(new TestFailed("unexpected call to writev method in " +
+                                    "storage server"));
+
+        throw new UnsupportedOperationException("writev method not " +
+                                                "implemented");
+    }
+
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public long append(Path file, byte[] data, Storage[] replicas)
+    {
+        test.failure(new TestFailed("unexpected call to append method in " +
+                                    "storage server"));
+
+        throw new UnsupportedOperationException("append method not " +
+                                                "implemented");
+    }
+
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public byte[][] readv(Path file, long[] offsets, int[] lengths)
+    {
+        test.failure(new TestFailed("unexpected call to readv method in " +
+                                    "storage server"));
+
+        throw new UnsupportedOperationException("readv method not " +
+                                                "implemented");
+    }
+
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public byte[][] readv(Path[] files, long[] offsets, int[] lengths)
+    {
+        test.failure(new TestFailed("unexpected call to readv method in " +
+                                    "storage server"));
+
+        throw new UnsupportedOperationException("readv method not " +
+                                                "implemented");
+    }
+
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public ChecksummedData readWithChecksums(Path file, long offset,
+                                             int length)
+    {
+        test.failure(new TestFailed("unexpected call to readWithChecksums " +
+                                    "method in storage server"));
+
+        throw new UnsupportedOperationException("readWithChecksums method " +
+                                                "not implemented");
+    }
+
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public long checksum(Path file, long offset, long length)
+    {
+        test.failure(new TestFailed("unexpected call to checksum method in " +
+                                    "storage server"));
+
+        throw new UnsupportedOperationException("checksum method not " +
+                                                "implemented");
+    }
+
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public TransferTicket openTransfer(Path file, long offset, long length,
+                                       boolean write)
+    {
+        test.failure(new TestFailed("unexpected call to openTransfer method " +
+                                    "in storage server"));
+
+        throw new UnsupportedOperationException("openTransfer method not " +
+                                                "implemented");
+    }
+
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public Recipe recipe(Path file)
+    {
+        test.failure(new TestFailed("unexpected call to recipe method in " +
+                                    "storage server"));
+
+        throw new UnsupportedOperationException("recipe method not " +
+                                                "implemented");
+    }
+
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public byte[] readChunk(String hash)
+    {
+        test.failure(new TestFailed("unexpected call to readChunk method in " +
+                                    "storage server"));
+
+        throw new UnsupportedOperationException("readChunk method not " +
+                                                "implemented");
+    }
+
     /** Throws <code>UnsupportedOperationException</code>. */
     @Override
     public boolean create(Path file)
@@ -196,6 +297,71 @@ class TestStorageServer implements Storage, Command
         throw new UnsupportedOperationException("copy method not implemented");
     }
 
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public boolean copy(Path file, Storage server, long bytes_per_second)
+    {
+        test.failure(new TestFailed("unexpected call to copy method in " +
+                                    "storage server"));
+
+        throw new UnsupportedOperationException("copy method not implemented");
+    }
+
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public long blockSize(long block)
+    {
+        test.failure(new TestFailed("unexpected call to blockSize method in " +
+                                    "storage server"));
+
+        throw new UnsupportedOperationException("blockSize method not " +
+                                                "implemented");
+    }
+
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public byte[] readBlock(long block, int offset, int length)
+    {
+        test.failure(new TestFailed("unexpected call to readBlock method in " +
+                                    "storage server"));
+
+        throw new UnsupportedOperationException("readBlock method not " +
+                                                "implemented");
+    }
+
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public void writeBlock(long block, int offset, byte[] data)
+    {
+        test.failure(new TestFailed("unexpected call to writeBlock method in " +
+                                    "storage server"));
+
+        throw new UnsupportedOperationException("writeBlock method not " +
+                                                "implemented");
+    }
+
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public boolean createBlock(long block)
+    {
+        test.failure(new TestFailed("unexpected call to createBlock method in " +
+                                    "storage server"));
+
+        throw new UnsupportedOperationException("createBlock method not " +
+                                                "implemented");
+    }
+
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public boolean deleteBlock(long block)
+    {
+        test.failure(new TestFailed("unexpected call to deleteBlock method in " +
+                                    "storage server"));
+
+        throw new UnsupportedOperationException("deleteBlock method not " +
+                                                "implemented");
+    }
+
     /** Client interface skeleton.
 
         <p>
@@ -133,6 +133,38 @@ class TestNamingServer implements naming.Registration
             return new Path[0];
     }
 
+    /** Accepts heartbeats from the storage server under test without
+        checking them. */
+    @Override
+    public boolean heartbeat(Command command_stub, HeartbeatReport report)
+        throws RMIException
+    {
+        return true;
+    }
+
+    /** Ignores block reports from the storage server under test. */
+    @Override
+    public void reportBlocks(Storage client_stub, Command command_stub,
+                             long[] blocks) throws RMIException
+    {
+    }
+
+    /** Keeps corrupt copies, as the test server tracks no replicas. */
+    @Override
+    public boolean reportCorrupt(Command command_stub, Path file)
+        throws RMIException
+    {
+        return false;
+    }
+
+    /** Keeps lost copies, as the test server tracks no replicas. */
+    @Override
+    public Path[] reportLost(Command command_stub, Path[] files)
+        throws RMIException
+    {
+        return new Path[0];
+    }
+
     /** Retrieves a registration stub for the test server.
 
         @return The stub.
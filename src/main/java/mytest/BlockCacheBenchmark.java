@@ -0,0 +1,104 @@
+package mytest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import common.Path;
+import storage.BlockCache;
+import storage.StorageServer;
+
+/**
+ * Measures the off-heap block cache of the storage server on a skewed random
+ * read load, with and without sequential scans of the whole file mixed in.
+ *
+ * <p>
+ * Usage:
+ * <code>BlockCacheBenchmark [file_megabytes [cache_megabytes [reads]]]</code>.
+ * Nine reads in ten go to a hot region of an eighth of the cache size; the
+ * rest are spread over the file. In the second phase a full sequential scan
+ * runs after every tenth of the reads; a scan-resistant cache keeps the hot
+ * region through it. Memory-mapped reads are turned off, so uncached reads
+ * go through the file channel. The file is served from the page cache when
+ * uncached, so the figures show the saving in system calls and checksum
+ * checks rather than in disk I/O.
+ */
+public class BlockCacheBenchmark {
+
+	private static final int READ_SIZE = 4 * 1024;
+	private static final int SCAN_READ = 1024 * 1024;
+
+	public static void main(String[] args) throws IOException {
+		long fileSize = (args.length > 0 ? Long.parseLong(args[0]) : 512)
+				* 1024 * 1024;
+		long cacheSize = (args.length > 1 ? Long.parseLong(args[1]) : 128)
+				* 1024 * 1024;
+		int reads = args.length > 2 ? Integer.parseInt(args[2]) : 500000;
+
+		File directory = new File("/data/block-cache-benchmark");
+		directory.mkdirs();
+		Path file = new Path(directory.getPath() + "/data");
+		StorageServer server = new StorageServer(directory);
+		server.setMappedReadBudget(0);
+		server.create(file);
+		byte[] chunk = new byte[SCAN_READ];
+		Random random = new Random(7);
+		for (long offset = 0; offset < fileSize; offset += chunk.length) {
+			random.nextBytes(chunk);
+			server.write(file, offset, chunk);
+		}
+
+		for (boolean scans : new boolean[] { false, true }) {
+			System.out.println(scans ? "== skewed reads with full scans"
+					: "== skewed reads");
+			server.setBlockCacheCapacity(0);
+			long uncached = run(server, file, fileSize, cacheSize / 8, reads,
+					scans);
+			server.setBlockCacheCapacity(cacheSize);
+			run(server, file, fileSize, cacheSize / 8, reads, scans);
+			BlockCache cache = server.getBlockCache();
+			long hitsBefore = cache.getHits();
+			long missesBefore = cache.getMisses();
+			long cached = run(server, file, fileSize, cacheSize / 8, reads,
+					scans);
+			System.out.printf("%-22s %10.0f op/s -> %10.0f op/s%n",
+					"random 4K reads", reads / (uncached / 1e9),
+					reads / (cached / 1e9));
+			long hits = cache.getHits() - hitsBefore;
+			long misses = cache.getMisses() - missesBefore;
+			System.out.printf("%-22s %9.2f%%%n", "cache hit ratio",
+					100.0 * hits / (hits + misses));
+			System.out.println(cache.report());
+		}
+		server.setBlockCacheCapacity(0);
+		server.delete(file);
+		directory.delete();
+	}
+
+	/**
+	 * Runs the read load once.
+	 *
+	 * @return The time taken by the random reads, excluding the scans.
+	 */
+	private static long run(StorageServer server, Path file, long fileSize,
+			long hotSize, int reads, boolean scans) throws IOException {
+		Random random = new Random(42);
+		long nanos = 0;
+		for (int round = 0; round < 10; round++) {
+			if (scans) {
+				for (long offset = 0; offset < fileSize; offset += SCAN_READ) {
+					server.read(file, offset, SCAN_READ);
+				}
+			}
+			long start = System.nanoTime();
+			for (int i = 0; i < reads / 10; i++) {
+				long range = random.nextInt(10) < 9 ? hotSize : fileSize;
+				long offset = (long) (random.nextDouble()
+						* (range / READ_SIZE)) * READ_SIZE;
+				server.read(file, offset, READ_SIZE);
+			}
+			nanos += System.nanoTime() - start;
+		}
+		return nanos;
+	}
+}
@@ -0,0 +1,132 @@
+package mytest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import common.Path;
+import storage.StorageServer;
+
+/**
+ * Measures the cost of chunk checksums on the storage server read and write
+ * paths.
+ *
+ * <p>
+ * Usage: <code>ChecksumBenchmark [file_megabytes [random_reads]]</code>. The
+ * benchmark first times raw CRC-32C over an in-memory buffer, then times
+ * sequential and random reads through <code>StorageServer.read</code> with
+ * checksum verification off and on, and finally sequential writes, which
+ * always maintain checksums, against writes of the same data to a plain
+ * file. The scratch file lives in the temporary directory, so all reads are
+ * served from the page cache; that is the worst case for the relative
+ * overhead.
+ */
+public class ChecksumBenchmark {
+
+	private static final int SMALL_READ = 4 * 1024;
+	private static final int LARGE_READ = 1024 * 1024;
+
+	public static void main(String[] args) throws IOException {
+		long fileSize = (args.length > 0 ? Long.parseLong(args[0]) : 256)
+				* 1024 * 1024;
+		int randomReads = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+		byte[] block = new byte[LARGE_READ];
+		new Random(7).nextBytes(block);
+
+		File scratch = File.createTempFile("checksum-benchmark", ".bin");
+		scratch.deleteOnExit();
+		scratch.delete();
+		Path file = new Path(scratch.getAbsolutePath());
+		StorageServer server = new StorageServer(scratch.getParentFile());
+		// Keep the comparison on the channel read path
+		server.setMappedReadBudget(0);
+		server.create(file);
+
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			CRC32C crc = new CRC32C();
+			for (long done = 0; done < fileSize; done += block.length) {
+				crc.update(block, 0, block.length);
+			}
+			report("crc32c only", fileSize / LARGE_READ, fileSize,
+					System.nanoTime() - start);
+
+			report("write plain file", fileSize / LARGE_READ, fileSize,
+					plainWrites(scratch, block, fileSize));
+			report("write + checksums", fileSize / LARGE_READ, fileSize,
+					serverWrites(server, file, block, fileSize));
+
+			server.setChecksumVerification(false);
+			report("seq 1M unchecked", fileSize / LARGE_READ, fileSize,
+					sequentialReads(server, file, fileSize));
+			server.setChecksumVerification(true);
+			report("seq 1M checked", fileSize / LARGE_READ, fileSize,
+					sequentialReads(server, file, fileSize));
+
+			server.setChecksumVerification(false);
+			report("random 4K unchecked", randomReads, (long) randomReads
+					* SMALL_READ, randomReads(server, file, fileSize,
+							randomReads));
+			server.setChecksumVerification(true);
+			report("random 4K checked", randomReads, (long) randomReads
+					* SMALL_READ, randomReads(server, file, fileSize,
+							randomReads));
+		}
+		server.delete(file);
+	}
+
+	private static long plainWrites(File scratch, byte[] block, long fileSize)
+			throws IOException {
+		File plain = new File(scratch.getPath() + ".plain");
+		plain.deleteOnExit();
+		long start = System.nanoTime();
+		try (RandomAccessFile out = new RandomAccessFile(plain, "rw")) {
+			for (long offset = 0; offset < fileSize; offset += block.length) {
+				out.getChannel().write(ByteBuffer.wrap(block), offset);
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long serverWrites(StorageServer server, Path file,
+			byte[] block, long fileSize) throws IOException {
+		long start = System.nanoTime();
+		for (long offset = 0; offset < fileSize; offset += block.length) {
+			server.write(file, offset, block);
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long sequentialReads(StorageServer server, Path file,
+			long fileSize) throws IOException {
+		long start = System.nanoTime();
+		for (long offset = 0; offset + LARGE_READ <= fileSize; offset += LARGE_READ) {
+			server.read(file, offset, LARGE_READ);
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long randomReads(StorageServer server, Path file,
+			long fileSize, int count) throws IOException {
+		Random random = new Random(42);
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			// Page-aligned, as most small reads from clients are
+			long offset = (long) (random.nextDouble() * (fileSize / SMALL_READ))
+					* SMALL_READ;
+			server.read(file, offset, SMALL_READ);
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static void report(String name, long operations, long bytes,
+			long nanos) {
+		double seconds = nanos / 1e9;
+		System.out.printf("%-20s %10.0f ops/s %10.1f MB/s%n", name,
+				operations / seconds, bytes / seconds / (1024 * 1024));
+	}
+}
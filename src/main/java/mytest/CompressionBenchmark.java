@@ -0,0 +1,205 @@
+package mytest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import common.Path;
+import storage.Codec;
+import storage.StorageServer;
+
+/**
+ * Measures compression at rest on representative data: the ratio and speed of
+ * each codec, the codec picked by sampling, and the cost of reading a
+ * compressed file through the storage server compared with reading it
+ * uncompressed, with the codec picked by sampling and with LZ only.
+ *
+ * <p>
+ * Usage: <code>CompressionBenchmark [file_megabytes [random_reads]]</code>.
+ * The data sets are generated log lines, CSV rows, JSON records and random
+ * bytes. The scratch files live under <code>/data</code>, next to the
+ * metadata directory, and are served from the page cache, so the read
+ * figures show the CPU cost of decompression rather than any saving in disk
+ * I/O.
+ */
+public class CompressionBenchmark {
+
+	private static final int BLOCK = 64 * 1024;
+	private static final int SMALL_READ = 4 * 1024;
+	private static final int LARGE_READ = 1024 * 1024;
+
+	public static void main(String[] args) throws IOException {
+		int fileSize = (args.length > 0 ? Integer.parseInt(args[0]) : 64)
+				* 1024 * 1024;
+		int randomReads = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+
+		File directory = new File("/data/compression-benchmark");
+		directory.mkdirs();
+		StorageServer server = new StorageServer(directory);
+		server.setCompression(true);
+
+		String[] names = { "logs", "csv", "json", "random" };
+		for (String name : names) {
+			byte[] data = generate(name, fileSize);
+			System.out.println("== " + name + " ("
+					+ data.length / (1024 * 1024) + " MB)");
+			for (Codec codec : new Codec[] { Codec.LZ, Codec.DEFLATE }) {
+				codecFigures(codec, data);
+			}
+
+			Path file = new Path(directory.getPath() + "/" + name);
+			server.create(file);
+			server.write(file, 0, data);
+			long plainSequential = sequentialReads(server, file, data.length);
+			long plainRandom = randomReads(server, file, data.length,
+					randomReads);
+			server.delete(file);
+
+			for (boolean fast : new boolean[] { false, true }) {
+				server.setFastCompression(fast);
+				server.create(file);
+				server.write(file, 0, data);
+				long start = System.nanoTime();
+				boolean sealed = server.seal(file);
+				long sealNanos = System.nanoTime() - start;
+				System.out.printf("%-22s %s%n",
+						fast ? "LZ only" : "picked by sampling",
+						sealed ? "compressed" : "left uncompressed");
+				if (sealed) {
+					report("seal", data.length, sealNanos);
+				}
+
+				long sequential = sequentialReads(server, file, data.length);
+				long random = randomReads(server, file, data.length,
+						randomReads);
+				System.out.printf("%-22s %10.1f MB/s -> %10.1f MB/s%n",
+						"sequential 1M reads", megabytesPerSecond(data.length,
+								plainSequential),
+						megabytesPerSecond(data.length, sequential));
+				System.out.printf("%-22s %10.0f op/s -> %10.0f op/s%n",
+						"random 4K reads", randomReads / (plainRandom / 1e9),
+						randomReads / (random / 1e9));
+				server.delete(file);
+			}
+		}
+		directory.delete();
+	}
+
+	/** Prints the ratio and speed of a codec over 64 KiB blocks. */
+	private static void codecFigures(Codec codec, byte[] data) {
+		long stored = 0;
+		byte[][] blocks = new byte[(data.length + BLOCK - 1) / BLOCK][];
+		long start = System.nanoTime();
+		for (int i = 0; i < blocks.length; i++) {
+			int offset = i * BLOCK;
+			int length = Math.min(BLOCK, data.length - offset);
+			blocks[i] = codec.compress(data, offset, length);
+			stored += blocks[i] == null ? length : blocks[i].length;
+		}
+		long compressNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < blocks.length; i++) {
+			if (blocks[i] != null) {
+				codec.decompress(blocks[i],
+						Math.min(BLOCK, data.length - i * BLOCK));
+			}
+		}
+		long decompressNanos = System.nanoTime() - start;
+
+		System.out.printf(
+				"%-22s ratio %5.2fx  compress %7.1f MB/s  decompress %7.1f MB/s%n",
+				codec, (double) data.length / stored,
+				megabytesPerSecond(data.length, compressNanos),
+				megabytesPerSecond(data.length, decompressNanos));
+	}
+
+	private static long sequentialReads(StorageServer server, Path file,
+			long fileSize) throws IOException {
+		long start = System.nanoTime();
+		for (long offset = 0; offset < fileSize; offset += LARGE_READ) {
+			server.read(file, offset,
+					(int) Math.min(LARGE_READ, fileSize - offset));
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long randomReads(StorageServer server, Path file,
+			long fileSize, int count) throws IOException {
+		Random random = new Random(42);
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			long offset = (long) (random.nextDouble()
+					* (fileSize / SMALL_READ)) * SMALL_READ;
+			server.read(file, offset, SMALL_READ);
+		}
+		return System.nanoTime() - start;
+	}
+
+	/** Generates a data set of about the given size. */
+	private static byte[] generate(String name, int size) {
+		Random random = new Random(7);
+		if (name.equals("random")) {
+			byte[] data = new byte[size];
+			random.nextBytes(data);
+			return data;
+		}
+		String[] levels = { "INFO ", "INFO ", "INFO ", "DEBUG", "WARN ",
+				"ERROR" };
+		String[] paths = { "/api/v1/items", "/api/v1/users", "/api/v1/orders",
+				"/health", "/api/v2/search" };
+		String[] events = { "click", "view", "purchase", "scroll", "login" };
+		StringBuilder text = new StringBuilder(size + 256);
+		if (name.equals("csv")) {
+			text.append("id,timestamp,sensor,temperature,humidity\n");
+		}
+		long time = 1760000000000L;
+		for (long id = 0; text.length() < size; id++) {
+			time += random.nextInt(50);
+			switch (name) {
+			case "logs":
+				text.append(String.format(
+						"2026-10-19T12:%02d:%02d.%03dZ %s [worker-%d] request id=%08x path=%s/%d status=%d latency_ms=%d%n",
+						(time / 60000) % 60, (time / 1000) % 60, time % 1000,
+						levels[random.nextInt(levels.length)],
+						random.nextInt(16), random.nextInt(),
+						paths[random.nextInt(paths.length)],
+						random.nextInt(100000),
+						random.nextInt(20) == 0 ? 500 : 200,
+						random.nextInt(300)));
+				break;
+			case "csv":
+				text.append(id).append(',').append(time).append(",sensor-")
+						.append(random.nextInt(64)).append(',')
+						.append(String.format("%.2f",
+								15 + random.nextGaussian() * 5))
+						.append(',').append(String.format("%.1f",
+								40 + random.nextGaussian() * 10))
+						.append('\n');
+				break;
+			default:
+				text.append("{\"id\":").append(id).append(",\"user\":\"user")
+						.append(random.nextInt(10000))
+						.append("\",\"event\":\"")
+						.append(events[random.nextInt(events.length)])
+						.append("\",\"ts\":").append(time)
+						.append(",\"value\":")
+						.append(String.format("%.2f", random.nextDouble() * 100))
+						.append("}\n");
+			}
+		}
+		return Arrays.copyOf(text.toString().getBytes(StandardCharsets.UTF_8),
+				size);
+	}
+
+	private static double megabytesPerSecond(long bytes, long nanos) {
+		return bytes / (nanos / 1e9) / (1024 * 1024);
+	}
+
+	private static void report(String name, long bytes, long nanos) {
+		System.out.printf("%-22s %10.1f MB/s%n", name,
+				megabytesPerSecond(bytes, nanos));
+	}
+}
@@ -0,0 +1,107 @@
+package mytest;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.Path;
+import storage.Durability;
+import storage.StorageServer;
+
+/**
+ * Measures the cost of durable writes: the throughput and latency of small
+ * writes with no forcing, with a force per write, and with group commit, for
+ * growing numbers of concurrent writers.
+ *
+ * <p>
+ * Usage: <code>DurabilityBenchmark [seconds [write_bytes]]</code>. In the
+ * first phase every writer appends to a file of its own under
+ * <code>/data/durability-benchmark</code>; in the second all writers write
+ * interleaved records of one shared file, where a single force covers the
+ * writes of a whole batch. The figures depend entirely on how long the disk
+ * under <code>/data</code> takes to force a file.
+ */
+public class DurabilityBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		int writeSize = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+
+		File directory = new File("/data/durability-benchmark");
+		directory.mkdirs();
+		StorageServer server = new StorageServer(directory);
+
+		for (boolean shared : new boolean[] { false, true }) {
+			System.out.println(shared ? "== one shared file"
+					: "== one file per writer");
+			System.out.printf("%-14s %8s %12s %12s %12s%n", "mode",
+					"writers", "writes/s", "mean ms", "p99 ms");
+			for (Durability durability : Durability.values()) {
+				server.setDurability(durability);
+				for (int writers : new int[] { 1, 4, 16, 64 }) {
+					run(server, directory, durability, writers, shared,
+							seconds, writeSize);
+				}
+				if (server.getGroupCommitter() != null) {
+					System.out.println(server.getGroupCommitter().report());
+				}
+			}
+		}
+		server.setDurability(Durability.NONE);
+		for (int i = 0; i < 64; i++) {
+			server.delete(new Path(directory.getPath() + "/writer-" + i));
+		}
+		directory.delete();
+	}
+
+	private static void run(StorageServer server, File directory,
+			Durability durability, int writers, boolean shared, int seconds,
+			int writeSize) throws Exception {
+		long deadline = System.nanoTime() + seconds * 1000000000L;
+		AtomicLong writes = new AtomicLong();
+		long[][] latencies = new long[writers][];
+		Thread[] threads = new Thread[writers];
+		for (int w = 0; w < writers; w++) {
+			int writer = w;
+			Path file = new Path(
+					directory.getPath() + "/writer-" + (shared ? 0 : w));
+			if (!shared || w == 0) {
+				server.delete(file);
+				server.create(file);
+			}
+			threads[w] = new Thread(() -> {
+				byte[] data = new byte[writeSize];
+				long[] samples = new long[1 << 16];
+				int count = 0;
+				long offset = shared ? (long) writer * writeSize : 0;
+				long step = shared ? (long) writers * writeSize : writeSize;
+				try {
+					while (System.nanoTime() < deadline) {
+						long start = System.nanoTime();
+						server.write(file, offset, data);
+						samples[count++ & (samples.length - 1)] = System
+								.nanoTime() - start;
+						offset += step;
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+				writes.addAndGet(count);
+				latencies[writer] = Arrays.copyOf(samples,
+						Math.min(count, samples.length));
+			});
+			threads[w].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream)
+				.sorted().toArray();
+		double mean = Arrays.stream(all).average().orElse(0) / 1e6;
+		double p99 = all.length == 0 ? 0
+				: all[(int) (all.length * 0.99)] / 1e6;
+		System.out.printf("%-14s %8d %12.0f %12.3f %12.3f%n", durability,
+				writers, writes.get() / (double) seconds, mean, p99);
+	}
+}
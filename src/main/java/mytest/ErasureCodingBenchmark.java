@@ -0,0 +1,84 @@
+package mytest;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import common.ReedSolomon;
+
+/**
+ * Measures the throughput of Reed-Solomon encoding and decoding on the
+ * client, for several stripe layouts.
+ *
+ * <p>
+ * Usage: <code>ErasureCodingBenchmark [cell_kilobytes]</code>. Each layout
+ * encodes rows of random data, then rebuilds the data from rows missing one
+ * up to <code>m</code> data cells, and checks the result. Throughput counts
+ * the data bytes of a row, not its parity.
+ */
+public class ErasureCodingBenchmark {
+
+	private static final int[][] LAYOUTS = { { 4, 2 }, { 6, 3 }, { 10, 4 } };
+	private static final long BYTES_PER_RUN = 512L * 1024 * 1024;
+
+	public static void main(String[] args) throws Exception {
+		int cellSize = (args.length > 0 ? Integer.parseInt(args[0]) : 1024)
+				* 1024;
+		for (int[] layout : LAYOUTS) {
+			run(layout[0], layout[1], cellSize);
+		}
+	}
+
+	private static void run(int k, int m, int cellSize) {
+		ReedSolomon code = new ReedSolomon(k, m);
+		byte[][] shards = new byte[k + m][cellSize];
+		Random random = new Random(k * 31 + m);
+		for (int i = 0; i < k; i++) {
+			random.nextBytes(shards[i]);
+		}
+		byte[][] original = new byte[k][];
+		for (int i = 0; i < k; i++) {
+			original[i] = shards[i].clone();
+		}
+		int rows = (int) Math.max(1, BYTES_PER_RUN / ((long) k * cellSize));
+		double megabytes = (double) rows * k * cellSize / 1e6;
+
+		// Warm up, so that the JIT compiler has compiled the loops
+		for (int i = 0; i < 4; i++) {
+			code.encode(shards, 0, cellSize);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < rows; i++) {
+			code.encode(shards, 0, cellSize);
+		}
+		double encode = megabytes / ((System.nanoTime() - start) / 1e9);
+		System.out.printf("RS(%d,%d) encode %8.1f MB/s%n", k, m, encode);
+
+		for (int missing = 1; missing <= m; missing++) {
+			boolean[] present = new boolean[k + m];
+			Arrays.fill(present, true);
+			// Lose the first data cells, the case that needs most decoding
+			for (int i = 0; i < missing; i++) {
+				present[i] = false;
+			}
+			for (int i = 0; i < 4; i++) {
+				code.decode(shards, present, 0, cellSize);
+			}
+			start = System.nanoTime();
+			for (int i = 0; i < rows; i++) {
+				for (int j = 0; j < missing; j++) {
+					Arrays.fill(shards[j], 0, 16, (byte) 0);
+				}
+				code.decode(shards, present, 0, cellSize);
+			}
+			double decode = megabytes / ((System.nanoTime() - start) / 1e9);
+			for (int i = 0; i < k; i++) {
+				if (!Arrays.equals(shards[i], original[i])) {
+					throw new IllegalStateException("RS(" + k + "," + m
+							+ ") rebuilt data cell " + i + " wrongly");
+				}
+			}
+			System.out.printf("RS(%d,%d) decode %8.1f MB/s, %d data cells "
+					+ "missing%n", k, m, decode, missing);
+		}
+	}
+}
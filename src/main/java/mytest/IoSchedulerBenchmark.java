@@ -0,0 +1,128 @@
+package mytest;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.Path;
+import storage.StorageServer;
+
+/**
+ * Measures how far background copies hurt the latency of client reads, with
+ * and without the I/O scheduler.
+ *
+ * <p>
+ * Usage:
+ * <code>IoSchedulerBenchmark [seconds [slots [background_threads]]]</code>.
+ * Four client threads read 4 KiB at random offsets of one file while
+ * background threads checksum 4 MiB ranges of another, as servers copying it
+ * would. The files live under <code>/data/io-scheduler-benchmark</code> and
+ * are served from the page cache, so the disk slots are contended for CPU
+ * and memory bandwidth rather than for disk time.
+ */
+public class IoSchedulerBenchmark {
+
+	private static final long FILE_SIZE = 256 * 1024 * 1024;
+	private static final int READ_SIZE = 4096;
+	private static final int CHECKSUM_SIZE = 4 * 1024 * 1024;
+	private static final int CLIENTS = 4;
+
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		int slots = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int background = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+		File directory = new File("/data/io-scheduler-benchmark");
+		directory.mkdirs();
+		StorageServer server = new StorageServer(directory);
+		server.setMappedReadBudget(0);
+		Path foreground = new Path(directory.getPath() + "/foreground");
+		Path copied = new Path(directory.getPath() + "/copied");
+		byte[] chunk = new byte[1024 * 1024];
+		Random random = new Random(7);
+		for (Path file : new Path[] { foreground, copied }) {
+			server.create(file);
+			for (long offset = 0; offset < FILE_SIZE; offset += chunk.length) {
+				random.nextBytes(chunk);
+				server.write(file, offset, chunk);
+			}
+		}
+
+		run("clients alone", server, foreground, copied, seconds, 0);
+		run("with copies", server, foreground, copied, seconds, background);
+		server.setIoSlots(slots);
+		run("with copies, " + slots + " slots", server, foreground, copied,
+				seconds, background);
+		System.out.print(server.getIoScheduler().report());
+
+		server.setIoSlots(0);
+		server.delete(foreground);
+		server.delete(copied);
+		directory.delete();
+	}
+
+	private static void run(String name, StorageServer server,
+			Path foreground, Path copied, int seconds, int background)
+			throws Exception {
+		long deadline = System.nanoTime() + seconds * 1000000000L;
+		AtomicLong copiedBytes = new AtomicLong();
+		Thread[] copiers = new Thread[background];
+		for (int i = 0; i < background; i++) {
+			Random random = new Random(100 + i);
+			copiers[i] = new Thread(() -> {
+				try {
+					while (System.nanoTime() < deadline) {
+						long offset = (long) random.nextInt(
+								(int) (FILE_SIZE / CHECKSUM_SIZE))
+								* CHECKSUM_SIZE;
+						server.checksum(copied, offset, CHECKSUM_SIZE);
+						copiedBytes.addAndGet(CHECKSUM_SIZE);
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			});
+			copiers[i].start();
+		}
+
+		long[][] latencies = new long[CLIENTS][];
+		Thread[] clients = new Thread[CLIENTS];
+		for (int i = 0; i < CLIENTS; i++) {
+			int client = i;
+			Random random = new Random(i);
+			clients[i] = new Thread(() -> {
+				long[] samples = new long[1 << 20];
+				int count = 0;
+				try {
+					while (System.nanoTime() < deadline
+							&& count < samples.length) {
+						long offset = (long) random.nextInt(
+								(int) (FILE_SIZE / READ_SIZE)) * READ_SIZE;
+						long start = System.nanoTime();
+						server.read(foreground, offset, READ_SIZE);
+						samples[count++] = System.nanoTime() - start;
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+				latencies[client] = Arrays.copyOf(samples, count);
+			});
+			clients[i].start();
+		}
+		for (Thread thread : clients) {
+			thread.join();
+		}
+		for (Thread thread : copiers) {
+			thread.join();
+		}
+
+		long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream)
+				.sorted().toArray();
+		System.out.printf(
+				"%-24s %9.0f reads/s, p50 %7.3f ms, p99 %7.3f ms, copies %6.0f MB/s%n",
+				name, all.length / (double) seconds,
+				all[all.length / 2] / 1e6, all[(int) (all.length * 0.99)] / 1e6,
+				copiedBytes.get() / 1e6 / seconds);
+	}
+}
@@ -0,0 +1,96 @@
+package mytest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import common.Path;
+import storage.StorageServer;
+
+/**
+ * Compares memory-mapped and channel reads on the storage server read path.
+ *
+ * <p>
+ * Usage: <code>MappedReadBenchmark [file_megabytes [random_reads]]</code>.
+ * The benchmark creates a scratch file in the temporary directory, then times
+ * small random reads and large sequential reads against two storage servers:
+ * one with memory-mapped reads disabled, and one with them enabled and the
+ * file already hot.
+ */
+public class MappedReadBenchmark {
+
+	private static final int SMALL_READ = 4 * 1024;
+	private static final int LARGE_READ = 1024 * 1024;
+
+	public static void main(String[] args) throws IOException {
+		long fileSize = (args.length > 0 ? Long.parseLong(args[0]) : 256)
+				* 1024 * 1024;
+		int randomReads = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+		File scratch = File.createTempFile("mapped-read-benchmark", ".bin");
+		scratch.deleteOnExit();
+		fill(scratch, fileSize);
+		Path file = new Path(scratch.getAbsolutePath());
+
+		StorageServer channelServer = new StorageServer(scratch.getParentFile());
+		channelServer.setMappedReadBudget(0);
+		StorageServer mappedServer = new StorageServer(scratch.getParentFile());
+		mappedServer.setMappedReadBudget(Math.max(2 * fileSize,
+				mappedServer.getMappedReadBudget()));
+
+		// Warm up both paths, which also makes the file hot for mmap
+		randomReads(channelServer, file, fileSize, randomReads / 10);
+		randomReads(mappedServer, file, fileSize, randomReads / 10);
+
+		for (int round = 0; round < 3; round++) {
+			report("channel random 4K", randomReads, (long) randomReads
+					* SMALL_READ,
+					randomReads(channelServer, file, fileSize, randomReads));
+			report("mmap    random 4K", randomReads, (long) randomReads
+					* SMALL_READ,
+					randomReads(mappedServer, file, fileSize, randomReads));
+			report("channel seq 1M", fileSize / LARGE_READ, fileSize,
+					sequentialReads(channelServer, file, fileSize));
+			report("mmap    seq 1M", fileSize / LARGE_READ, fileSize,
+					sequentialReads(mappedServer, file, fileSize));
+		}
+	}
+
+	private static long randomReads(StorageServer server, Path file,
+			long fileSize, int count) throws IOException {
+		Random random = new Random(42);
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			long offset = (long) (random.nextDouble() * (fileSize - SMALL_READ));
+			server.read(file, offset, SMALL_READ);
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long sequentialReads(StorageServer server, Path file,
+			long fileSize) throws IOException {
+		long start = System.nanoTime();
+		for (long offset = 0; offset + LARGE_READ <= fileSize; offset += LARGE_READ) {
+			server.read(file, offset, LARGE_READ);
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static void fill(File scratch, long size) throws IOException {
+		byte[] block = new byte[LARGE_READ];
+		new Random(7).nextBytes(block);
+		try (RandomAccessFile out = new RandomAccessFile(scratch, "rw")) {
+			for (long written = 0; written < size; written += block.length) {
+				out.write(block, 0, (int) Math.min(block.length, size - written));
+			}
+		}
+	}
+
+	private static void report(String name, long operations, long bytes,
+			long nanos) {
+		double seconds = nanos / 1e9;
+		System.out.printf("%-20s %10.0f ops/s %10.1f MB/s%n", name,
+				operations / seconds, bytes / seconds / (1024 * 1024));
+	}
+}
@@ -0,0 +1,113 @@
+package mytest;
+
+import java.io.File;
+import java.util.Random;
+
+import common.Path;
+import storage.Durability;
+import storage.Placement;
+import storage.StorageServer;
+
+/**
+ * Measures the aggregate write and read throughput of a storage server with
+ * its data directory alone, and with further disks.
+ *
+ * <p>
+ * Usage: <code>MultiDiskBenchmark directory...</code>. Sixteen threads each
+ * write files of 8 MiB in 1 MiB synchronous writes under
+ * <code>/data/multi-disk-benchmark</code>, then read them back. The
+ * directories should lie on separate devices; on one device the figures only
+ * show the cost of placement.
+ */
+public class MultiDiskBenchmark {
+
+	private static final int THREADS = 16;
+	private static final int FILES_PER_THREAD = 4;
+	private static final int FILE_SIZE = 8 * 1024 * 1024;
+	private static final int WRITE_SIZE = 1024 * 1024;
+
+	public static void main(String[] args) throws Exception {
+		File[] directories = new File[args.length];
+		for (int i = 0; i < args.length; i++) {
+			directories[i] = new File(args[i]);
+		}
+		run("data directory only", new File[0]);
+		run((directories.length + 1) + " disks", directories);
+	}
+
+	private static void run(String name, File[] directories) throws Exception {
+		File directory = new File("/data/multi-disk-benchmark");
+		directory.mkdirs();
+		StorageServer server = new StorageServer(directory);
+		server.setDisks(directories, Placement.ROUND_ROBIN);
+		server.setIoSlots(4);
+		server.setDurability(Durability.SYNC);
+		server.setMappedReadBudget(0);
+
+		long start = System.nanoTime();
+		runThreads(thread -> {
+			byte[] data = new byte[WRITE_SIZE];
+			new Random(thread).nextBytes(data);
+			for (int i = 0; i < FILES_PER_THREAD; i++) {
+				Path file = path(directory, thread, i);
+				server.create(file);
+				for (long offset = 0; offset < FILE_SIZE; offset += WRITE_SIZE) {
+					server.write(file, offset, data);
+				}
+			}
+		});
+		double written = elapsed(start);
+
+		start = System.nanoTime();
+		runThreads(thread -> {
+			for (int i = 0; i < FILES_PER_THREAD; i++) {
+				Path file = path(directory, thread, i);
+				for (long offset = 0; offset < FILE_SIZE; offset += WRITE_SIZE) {
+					server.read(file, offset, WRITE_SIZE);
+				}
+			}
+		});
+		double read = elapsed(start);
+
+		double megabytes = (double) THREADS * FILES_PER_THREAD * FILE_SIZE / 1e6;
+		System.out.printf("%-22s writes %7.1f MB/s, reads %7.1f MB/s%n", name,
+				megabytes / written, megabytes / read);
+
+		for (int thread = 0; thread < THREADS; thread++) {
+			for (int i = 0; i < FILES_PER_THREAD; i++) {
+				server.delete(path(directory, thread, i));
+			}
+		}
+		directory.delete();
+	}
+
+	private static Path path(File directory, int thread, int i) {
+		return new Path(directory.getPath() + "/file-" + thread + "-" + i);
+	}
+
+	private static void runThreads(Worker worker) throws Exception {
+		Thread[] threads = new Thread[THREADS];
+		for (int i = 0; i < THREADS; i++) {
+			int thread = i;
+			threads[i] = new Thread(() -> {
+				try {
+					worker.run(thread);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+
+	private static double elapsed(long start) {
+		return (System.nanoTime() - start) / 1e9;
+	}
+
+	private interface Worker {
+		void run(int thread) throws Exception;
+	}
+}
@@ -0,0 +1,134 @@
+package mytest;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.Random;
+
+import client.DFSInputStream;
+import common.Path;
+import naming.Service;
+import rmi.Skeleton;
+import rmi.Stub;
+import storage.Storage;
+import storage.StorageServer;
+
+/**
+ * Measures sequential and random reads through <code>DFSInputStream</code>
+ * with and without readahead.
+ *
+ * <p>
+ * Usage:
+ * <code>ReadaheadBenchmark [round_trip_ms [file_megabytes [read_kilobytes]]]</code>.
+ * A storage server on the local host serves a file under
+ * <code>/data/readahead-benchmark</code> through its RMI interface. Every
+ * call to it is delayed by the given round trip time, 2 ms by default, to
+ * stand for a network between client and server; the naming server is a
+ * local object that only hands out the storage server's stub.
+ */
+public class ReadaheadBenchmark {
+
+	private static final int PORT = 7412;
+	private static final int RANDOM_READS = 500;
+	private static final int RANDOM_READ_SIZE = 4096;
+
+	public static void main(String[] args) throws Exception {
+		long roundTrip = args.length > 0 ? Long.parseLong(args[0]) : 2;
+		long fileSize = (args.length > 1 ? Long.parseLong(args[1]) : 128)
+				* 1024 * 1024;
+		int readSize = (args.length > 2 ? Integer.parseInt(args[2]) : 64)
+				* 1024;
+
+		File directory = new File("/data/readahead-benchmark");
+		directory.mkdirs();
+		StorageServer server = new StorageServer(directory);
+		Path file = new Path(directory.getPath() + "/data");
+		server.create(file);
+		byte[] chunk = new byte[1024 * 1024];
+		Random random = new Random(7);
+		for (long offset = 0; offset < fileSize; offset += chunk.length) {
+			random.nextBytes(chunk);
+			server.write(file, offset, chunk);
+		}
+
+		Skeleton<Storage> skeleton = new Skeleton<Storage>(Storage.class,
+				server, new InetSocketAddress("127.0.0.1", PORT));
+		skeleton.start();
+		Storage stub = delayed(Stub.create(Storage.class, skeleton),
+				roundTrip);
+		Service naming = (Service) Proxy.newProxyInstance(
+				Service.class.getClassLoader(),
+				new Class<?>[] { Service.class }, (proxy, method, arguments) -> {
+					if (method.getName().equals("getStorage")) {
+						return stub;
+					}
+					throw new UnsupportedOperationException(method.getName());
+				});
+
+		for (int round = 0; round < 2; round++) {
+			for (int readahead : new int[] { 0,
+					DFSInputStream.DEFAULT_READAHEAD }) {
+				double sequential = sequential(naming, file, readahead,
+						readSize);
+				double randomReads = random(naming, file, readahead);
+				System.out.printf("readahead %2d blocks: sequential %7.1f MB/s,"
+						+ " random 4K %6.0f reads/s%n", readahead, sequential,
+						randomReads);
+			}
+		}
+
+		skeleton.stop();
+		server.delete(file);
+		directory.delete();
+	}
+
+	/** Reads the whole file in order, and returns the MB/s. */
+	private static double sequential(Service naming, Path file, int readahead,
+			int readSize) throws Exception {
+		byte[] buffer = new byte[readSize];
+		long total = 0;
+		long start = System.nanoTime();
+		try (DFSInputStream input = new DFSInputStream(naming, file)) {
+			input.setReadahead(readahead);
+			int read;
+			while ((read = input.read(buffer, 0, buffer.length)) > 0) {
+				total += read;
+			}
+		}
+		return total / 1e6 / ((System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * Reads 4 KiB at random increasing offsets, skipping between reads, and
+	 * returns the reads per second.
+	 */
+	private static double random(Service naming, Path file, int readahead)
+			throws Exception {
+		byte[] buffer = new byte[RANDOM_READ_SIZE];
+		Random random = new Random(42);
+		long start = System.nanoTime();
+		try (DFSInputStream input = new DFSInputStream(naming, file)) {
+			input.setReadahead(readahead);
+			long gap = input.available() / RANDOM_READS - RANDOM_READ_SIZE;
+			for (int i = 0; i < RANDOM_READS; i++) {
+				input.skip((random.nextLong() & Long.MAX_VALUE) % gap);
+				input.read(buffer, 0, buffer.length);
+			}
+		}
+		return RANDOM_READS / ((System.nanoTime() - start) / 1e9);
+	}
+
+	/** Wraps a storage stub so that every call takes a round trip longer. */
+	private static Storage delayed(Storage stub, long roundTrip) {
+		return (Storage) Proxy.newProxyInstance(Storage.class.getClassLoader(),
+				new Class<?>[] { Storage.class }, (proxy, method, arguments) -> {
+					Thread.sleep(roundTrip);
+					try {
+						return method.invoke(stub, arguments);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+				});
+	}
+}
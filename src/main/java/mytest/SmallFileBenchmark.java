@@ -0,0 +1,117 @@
+package mytest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import common.Path;
+import storage.StorageServer;
+
+/**
+ * Measures small-file packing: the time to list the files of a storage server
+ * on startup, and the speed of random reads, with many small files stored one
+ * per local file and then packed.
+ *
+ * <p>
+ * Usage: <code>SmallFileBenchmark [files [file_bytes [reads]]]</code>. The
+ * files live under <code>/data/small-file-benchmark</code>, spread over 100
+ * directories. The startup figure after packing includes loading the pack
+ * index, which a restarted server does instead of finding the files. The
+ * page cache is not dropped between runs, so the figures show the cost of
+ * system calls and metadata rather than of disk seeks.
+ */
+public class SmallFileBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int fileSize = args.length > 1 ? Integer.parseInt(args[1]) : 2048;
+		int reads = args.length > 2 ? Integer.parseInt(args[2]) : 200000;
+
+		File directory = new File("/data/small-file-benchmark");
+		directory.mkdirs();
+		StorageServer server = new StorageServer(directory);
+		server.setSmallFilePacking(64 * 1024);
+
+		Random random = new Random(7);
+		byte[] data = new byte[fileSize];
+		long start = System.nanoTime();
+		for (int i = 0; i < fileCount; i++) {
+			Path file = path(directory, i);
+			new File(file.parent().getPath()).mkdirs();
+			random.nextBytes(data);
+			server.create(file);
+			server.write(file, 0, data);
+		}
+		report("create and write", fileCount, System.nanoTime() - start);
+
+		long plainScan = scan(null);
+		long plainReads = randomReads(server, directory, fileCount, fileSize,
+				reads);
+
+		start = System.nanoTime();
+		for (int i = 0; i < fileCount; i++) {
+			server.seal(path(directory, i));
+		}
+		report("pack", fileCount, System.nanoTime() - start);
+
+		// A restarted server loads the pack index and finds what is left
+		StorageServer restarted = new StorageServer(directory);
+		long packedScan = scan(restarted);
+		long packedReads = randomReads(server, directory, fileCount, fileSize,
+				reads);
+
+		System.out.printf("%-22s %10.1f ms   -> %10.1f ms%n", "startup listing",
+				plainScan / 1e6, packedScan / 1e6);
+		System.out.printf("%-22s %10.0f op/s -> %10.0f op/s%n",
+				"random reads", reads / (plainReads / 1e9),
+				reads / (packedReads / 1e9));
+
+		for (int i = 0; i < fileCount; i++) {
+			server.delete(path(directory, i));
+		}
+		server.compactPacks();
+	}
+
+	private static Path path(File directory, int i) {
+		return new Path(directory.getPath() + "/d" + (i % 100) + "/f" + i);
+	}
+
+	/**
+	 * Lists the files the way a starting server does, adding the packed files
+	 * if a server is given.
+	 */
+	private static long scan(StorageServer server) throws IOException {
+		long start = System.nanoTime();
+		long count;
+		try (Stream<java.nio.file.Path> found = Files.find(Paths.get("/data"),
+				Integer.MAX_VALUE,
+				(filePath, fileAttr) -> fileAttr.isRegularFile()
+						&& !filePath.startsWith("/data/.dfs"))) {
+			count = found.count();
+		}
+		if (server != null) {
+			count += server.packedFiles().size();
+		}
+		long nanos = System.nanoTime() - start;
+		System.out.println("listed " + count + " files");
+		return nanos;
+	}
+
+	private static long randomReads(StorageServer server, File directory,
+			int fileCount, int fileSize, int count) throws IOException {
+		Random random = new Random(42);
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			server.read(path(directory, random.nextInt(fileCount)), 0,
+					fileSize);
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static void report(String name, int files, long nanos) {
+		System.out.printf("%-22s %10.0f files/s%n", name, files / (nanos / 1e9));
+	}
+}
@@ -0,0 +1,116 @@
+package mytest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import common.Path;
+import storage.StorageServer;
+
+/**
+ * Measures moving files to a compressed cold tier and back, and reads served
+ * from each tier.
+ *
+ * <p>
+ * Usage: <code>TieringBenchmark [cold_directory [files [file_megabytes]]]</code>.
+ * The files are written under <code>/data/tiering-benchmark</code> with
+ * text-like content, demoted one by one, read at random 4 KiB offsets, and
+ * promoted again. The cold tier defaults to <code>/tmp/cold-tier</code>,
+ * which may lie on another filesystem than <code>/data</code>, as a real one
+ * would.
+ */
+public class TieringBenchmark {
+
+	private static final int READ_SIZE = 4096;
+	private static final int READS = 20000;
+	private static final String[] WORDS = { "storage", "server", "naming",
+			"replica", "block", "chunk", "the", "of", "a", "file", "path",
+			"lock", "read", "write", "copy", "cold", "tier", "data" };
+
+	public static void main(String[] args) throws Exception {
+		File coldDirectory = new File(
+				args.length > 0 ? args[0] : "/tmp/cold-tier");
+		int files = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+		long fileSize = (args.length > 2 ? Long.parseLong(args[2]) : 8)
+				* 1024 * 1024;
+
+		File directory = new File("/data/tiering-benchmark");
+		directory.mkdirs();
+		StorageServer server = new StorageServer(directory);
+		server.setColdTier(coldDirectory, 24L * 60 * 60 * 1000, true, 0);
+		Path[] paths = new Path[files];
+		byte[] content = text(fileSize, new Random(7));
+		for (int i = 0; i < files; i++) {
+			paths[i] = new Path(directory.getPath() + "/file-" + i);
+			server.create(paths[i]);
+			server.write(paths[i], 0, content);
+		}
+
+		double hot = reads(server, paths, fileSize);
+
+		long start = System.nanoTime();
+		for (Path path : paths) {
+			server.demote(path);
+		}
+		long demoted = System.nanoTime() - start;
+		long coldBytes = size(new File(coldDirectory, "files"));
+		double cold = reads(server, paths, fileSize);
+		for (Path path : paths) {
+			if (!Arrays.equals(server.read(path, 0, (int) fileSize),
+					content)) {
+				throw new IllegalStateException(path + " changed on the way");
+			}
+		}
+
+		start = System.nanoTime();
+		for (Path path : paths) {
+			server.promote(path);
+		}
+		long promoted = System.nanoTime() - start;
+
+		double total = (double) files * fileSize;
+		System.out.printf("demotion  %8.1f MB/s, cold tier %5.1f%% of %d MB%n",
+				total / 1e6 / (demoted / 1e9), 100.0 * coldBytes / total,
+				(long) (total / 1e6));
+		System.out.printf("promotion %8.1f MB/s%n",
+				total / 1e6 / (promoted / 1e9));
+		System.out.printf("4K reads  %8.0f/s hot, %8.0f/s cold%n", hot, cold);
+
+		for (Path path : paths) {
+			server.delete(path);
+		}
+		directory.delete();
+	}
+
+	/** Reads at random offsets, and returns the reads per second. */
+	private static double reads(StorageServer server, Path[] paths,
+			long fileSize) throws IOException {
+		Random random = new Random(42);
+		long start = System.nanoTime();
+		for (int i = 0; i < READS; i++) {
+			server.read(paths[random.nextInt(paths.length)],
+					random.nextInt((int) (fileSize / READ_SIZE)) * READ_SIZE,
+					READ_SIZE);
+		}
+		return READS / ((System.nanoTime() - start) / 1e9);
+	}
+
+	private static byte[] text(long size, Random random) {
+		StringBuilder text = new StringBuilder();
+		while (text.length() < size) {
+			text.append(WORDS[random.nextInt(WORDS.length)]).append(
+					random.nextInt(16) == 0 ? '\n' : ' ');
+		}
+		return text.substring(0, (int) size).getBytes();
+	}
+
+	private static long size(File directory) throws IOException {
+		try (Stream<java.nio.file.Path> found = Files.walk(directory.toPath())) {
+			return found.filter(Files::isRegularFile)
+					.mapToLong(path -> path.toFile().length()).sum();
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package mytest;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+
+import common.Path;
+import rmi.Skeleton;
+import rmi.Stub;
+import storage.Storage;
+import storage.StorageServer;
+
+/**
+ * Measures small random reads and writes issued one call at a time against
+ * batches of them in one vectored call, through the RMI interface of a
+ * storage server on the local host.
+ *
+ * <p>
+ * Usage:
+ * <code>VectoredIOBenchmark [file_megabytes [operations [batch]]]</code>.
+ * The reads and writes are 4 KiB at random aligned offsets of a file under
+ * <code>/data/vectored-io-benchmark</code>. Over the loopback interface a
+ * round trip is cheap, so the gain over a real network is larger still.
+ */
+public class VectoredIOBenchmark {
+
+	private static final int IO_SIZE = 4096;
+	private static final int PORT = 7411;
+
+	public static void main(String[] args) throws Exception {
+		long fileSize = (args.length > 0 ? Long.parseLong(args[0]) : 256)
+				* 1024 * 1024;
+		int operations = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+		int batch = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+
+		File directory = new File("/data/vectored-io-benchmark");
+		directory.mkdirs();
+		StorageServer server = new StorageServer(directory);
+		Path file = new Path(directory.getPath() + "/data");
+		server.create(file);
+		byte[] chunk = new byte[1024 * 1024];
+		Random random = new Random(7);
+		for (long offset = 0; offset < fileSize; offset += chunk.length) {
+			random.nextBytes(chunk);
+			server.write(file, offset, chunk);
+		}
+
+		InetSocketAddress address = new InetSocketAddress("127.0.0.1", PORT);
+		Skeleton<Storage> skeleton = new Skeleton<Storage>(Storage.class,
+				server, address);
+		skeleton.start();
+		Storage stub = Stub.create(Storage.class, skeleton);
+
+		long blocks = fileSize / IO_SIZE;
+		for (int round = 0; round < 2; round++) {
+			random = new Random(42);
+			long start = System.nanoTime();
+			for (int i = 0; i < operations; i++) {
+				stub.read(file, (random.nextLong() & Long.MAX_VALUE) % blocks
+						* IO_SIZE, IO_SIZE);
+			}
+			long single = System.nanoTime() - start;
+
+			random = new Random(42);
+			long[] offsets = new long[batch];
+			int[] lengths = new int[batch];
+			Arrays.fill(lengths, IO_SIZE);
+			start = System.nanoTime();
+			for (int i = 0; i < operations; i += batch) {
+				for (int j = 0; j < batch; j++) {
+					offsets[j] = (random.nextLong() & Long.MAX_VALUE) % blocks
+							* IO_SIZE;
+				}
+				stub.readv(file, offsets, lengths);
+			}
+			long vectored = System.nanoTime() - start;
+			report("random 4K reads", operations, single, vectored);
+
+			byte[] data = new byte[IO_SIZE];
+			random = new Random(43);
+			start = System.nanoTime();
+			for (int i = 0; i < operations; i++) {
+				stub.write(file, (random.nextLong() & Long.MAX_VALUE) % blocks
+						* IO_SIZE, data);
+			}
+			single = System.nanoTime() - start;
+
+			byte[][] batchData = new byte[batch][];
+			Arrays.fill(batchData, data);
+			random = new Random(43);
+			start = System.nanoTime();
+			for (int i = 0; i < operations; i += batch) {
+				for (int j = 0; j < batch; j++) {
+					offsets[j] = (random.nextLong() & Long.MAX_VALUE) % blocks
+							* IO_SIZE;
+				}
+				stub.writev(file, offsets, batchData);
+			}
+			vectored = System.nanoTime() - start;
+			report("random 4K writes", operations, single, vectored);
+		}
+
+		skeleton.stop();
+		server.delete(file);
+		directory.delete();
+	}
+
+	private static void report(String name, int operations, long single,
+			long vectored) {
+		System.out.printf("%-18s %10.0f op/s -> %10.0f op/s (%.1fx)%n", name,
+				operations / (single / 1e9), operations / (vectored / 1e9),
+				(double) single / vectored);
+	}
+}
@@ -0,0 +1,55 @@
+package naming;
+
+import java.io.Serializable;
+
+import common.Path;
+import storage.Blocks;
+import storage.Storage;
+
+/**
+ * Snapshot of the blocks of a block file and the storage servers holding
+ * them.
+ *
+ * <p>
+ * Byte <code>n</code> of the file is byte <code>n % BLOCK_SIZE</code> of block
+ * <code>n / BLOCK_SIZE</code>. Every block but the last is full; a block that
+ * is shorter than it should be reads as if padded with zeros.
+ */
+public class BlockMap implements Serializable {
+	private static final long serialVersionUID = -2431870593627441952L;
+
+	private final Path file;
+	private final long[] blocks;
+	private final Storage[][] replicas;
+
+	public BlockMap(Path file, long[] blocks, Storage[][] replicas) {
+		this.file = file;
+		this.blocks = blocks;
+		this.replicas = replicas;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	public int getBlockSize() {
+		return Blocks.BLOCK_SIZE;
+	}
+
+	public int getBlockCount() {
+		return blocks.length;
+	}
+
+	/** Returns the ID of the block with the given index in the file. */
+	public long getBlock(int index) {
+		return blocks[index];
+	}
+
+	/**
+	 * Returns the client stubs of the live storage servers holding the block
+	 * with the given index in the file.
+	 */
+	public Storage[] getReplicas(int index) {
+		return replicas[index].clone();
+	}
+}
@@ -0,0 +1,169 @@
+package naming;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Phi-accrual failure detector for storage servers.
+ *
+ * <p>
+ * For every storage server the detector keeps a sliding window of heartbeat
+ * inter-arrival times. The suspicion level <code>phi</code> is the negative
+ * decimal logarithm of the probability that a heartbeat would arrive later
+ * than now, assuming normally distributed inter-arrival times. A storage
+ * server whose <code>phi</code> rises above the threshold is reported to the
+ * naming server as dead.
+ *
+ * <p>
+ * A silence of up to <code>ACCEPTABLE_PAUSE</code> beyond the mean interval
+ * is not held against a server. Steady heartbeats have a small deviation, so
+ * without this margin a single garbage collection pause or slow call would
+ * have a live server declared dead and its files copied again.
+ */
+public class FailureDetector extends Thread {
+
+	/** Expected interval between two heartbeats of a storage server. */
+	public static final long HEARTBEAT_INTERVAL = 1000;
+	/** Silence beyond the mean interval tolerated before suspicion rises. */
+	public static final long ACCEPTABLE_PAUSE = 3000;
+
+	private static final int WINDOW_SIZE = 100;
+	private static final long CHECK_INTERVAL = 200;
+	private static final double MIN_STD_DEVIATION = 100;
+
+	private NamingServer namingServer;
+	private double threshold;
+	private Map<String, ArrivalWindow> windows;
+	private volatile boolean askedToStopThread = false;
+
+	public FailureDetector(NamingServer namingServer, double threshold) {
+		this.namingServer = namingServer;
+		this.threshold = threshold;
+		this.windows = new ConcurrentHashMap<String, ArrivalWindow>();
+		setDaemon(true);
+	}
+
+	public FailureDetector(NamingServer namingServer) {
+		this(namingServer, 8.0);
+	}
+
+	public void run() {
+		while (!askedToStopThread) {
+			check(System.currentTimeMillis());
+			try {
+				Thread.sleep(CHECK_INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Reports to the naming server, and stops tracking, every storage server
+	 * suspected at the given time.
+	 */
+	void check(long now) {
+		for (Entry<String, ArrivalWindow> entry : windows.entrySet()) {
+			if (entry.getValue().phi(now) > threshold
+					&& windows.remove(entry.getKey(), entry.getValue())) {
+				namingServer.storageServerFailed(entry.getKey());
+			}
+		}
+	}
+
+	/** Records a heartbeat, or a registration, of a storage server. */
+	public void heartbeat(String serverId) {
+		heartbeat(serverId, System.currentTimeMillis());
+	}
+
+	/** Records a heartbeat of a storage server arriving at the given time. */
+	void heartbeat(String serverId, long now) {
+		ArrivalWindow window = windows.get(serverId);
+		if (window == null) {
+			window = new ArrivalWindow();
+			ArrivalWindow existing = windows.putIfAbsent(serverId, window);
+			if (existing != null) {
+				window = existing;
+			}
+		}
+		window.add(now);
+	}
+
+	/** Stops tracking a storage server. */
+	public void remove(String serverId) {
+		windows.remove(serverId);
+	}
+
+	/** Returns the current suspicion level for a storage server. */
+	public double phi(String serverId) {
+		return phi(serverId, System.currentTimeMillis());
+	}
+
+	/** Returns the suspicion level for a storage server at the given time. */
+	double phi(String serverId, long now) {
+		ArrivalWindow window = windows.get(serverId);
+		if (window == null) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return window.phi(now);
+	}
+
+	public void stopGracefully() {
+		askedToStopThread = true;
+		interrupt();
+	}
+
+	/** Inter-arrival history of one storage server. */
+	private static class ArrivalWindow {
+		private final Deque<Long> intervals = new ArrayDeque<Long>();
+		private long lastArrival = -1;
+		private double sum = 0;
+		private double squaredSum = 0;
+
+		ArrivalWindow() {
+			// Seed the window with the expected interval so that a server
+			// which dies right after registering is still detected.
+			addInterval(HEARTBEAT_INTERVAL);
+			addInterval(HEARTBEAT_INTERVAL + (long) MIN_STD_DEVIATION);
+		}
+
+		synchronized void add(long now) {
+			if (lastArrival >= 0) {
+				addInterval(now - lastArrival);
+			}
+			lastArrival = now;
+		}
+
+		private void addInterval(long interval) {
+			if (intervals.size() == WINDOW_SIZE) {
+				long dropped = intervals.removeFirst();
+				sum -= dropped;
+				squaredSum -= (double) dropped * dropped;
+			}
+			intervals.addLast(interval);
+			sum += interval;
+			squaredSum += (double) interval * interval;
+		}
+
+		synchronized double phi(long now) {
+			if (lastArrival < 0) {
+				return 0;
+			}
+			double mean = sum / intervals.size();
+			double variance = squaredSum / intervals.size() - mean * mean;
+			double stdDeviation = Math.max(Math.sqrt(Math.max(variance, 0)),
+					MIN_STD_DEVIATION);
+			double y = (now - lastArrival - mean - ACCEPTABLE_PAUSE)
+					/ stdDeviation;
+			// Logistic approximation of the normal cumulative distribution
+			double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+			if (y > 0) {
+				return -Math.log10(e / (1.0 + e));
+			}
+			return -Math.log10(1.0 - 1.0 / (1.0 + e));
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package naming;
+
+import java.io.Serializable;
+
+/**
+ * Liveness and load figures sent periodically by a storage server to the
+ * naming server.
+ */
+public class HeartbeatReport implements Serializable {
+
+	private static final long serialVersionUID = 4871730461931268412L;
+	private long timestamp;
+	private long usedBytes;
+	private long freeBytes;
+	private int activeRequests;
+
+	public HeartbeatReport(long timestamp, long usedBytes, long freeBytes,
+			int activeRequests) {
+		this.timestamp = timestamp;
+		this.usedBytes = usedBytes;
+		this.freeBytes = freeBytes;
+		this.activeRequests = activeRequests;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public long getUsedBytes() {
+		return usedBytes;
+	}
+
+	public long getFreeBytes() {
+		return freeBytes;
+	}
+
+	public int getActiveRequests() {
+		return activeRequests;
+	}
+
+	/** Fraction of the storage server's capacity currently in use. */
+	public double getUtilisation() {
+		long capacity = usedBytes + freeBytes;
+		if (capacity <= 0) {
+			return 0;
+		}
+		return (double) usedBytes / capacity;
+	}
+}
@@ -1,85 +1,170 @@
 package naming;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.locks.Condition;
 
 import common.Path;
 
-public class LockScheduler extends Thread {
+/**
+ * Grants shared and exclusive locks on paths in the order they are requested.
+ *
+ * <p>
+ * Locking a path also locks every directory above it for shared access. A
+ * request is granted once it conflicts neither with a lock held nor with a
+ * request made before it that is still waiting. Shared requests are therefore
+ * granted together, but wait behind an exclusive request queued ahead of
+ * them. Locks belong to no thread: a lock taken over RMI may be released from
+ * any thread.
+ */
+public class LockScheduler {
 
-	private Queue<Entry<Entry<Path, Boolean>, Condition>> waitQueue;
-	private Set<Path> exclusiveLockList;
-	private Set<Path> sharedLockList;
-	private int currentWaitQueueSize = 0;
-	private Map<Path, Integer> accessCount;
-	private boolean askedToStopThread = false;
-	ReplicationHandler replicationHandler;
+	// Number of shared locks held on each path
+	private Map<Path, Integer> shared = new HashMap<Path, Integer>();
+	// Paths locked for exclusive access
+	private Set<Path> exclusive = new HashSet<Path>();
+	// Number of locks held on paths below each directory
+	private Map<Path, Integer> below = new HashMap<Path, Integer>();
+	// Requests not granted yet, in arrival order
+	private List<Request> waiting = new ArrayList<Request>();
 
-	public LockScheduler(
-			Queue<Entry<Entry<Path, Boolean>, Condition>> waitQueue,
-			Set<Path> exclusiveLockList, Set<Path> sharedLockList,
-			Map<Path, Integer> accessCount,
-			ReplicationHandler replicationHandler) {
-		this.waitQueue = waitQueue;
-		this.exclusiveLockList = exclusiveLockList;
-		this.sharedLockList = sharedLockList;
-		this.currentWaitQueueSize = waitQueue.size();
-		this.accessCount = accessCount;
-		this.replicationHandler = replicationHandler;
-	}
+	/**
+	 * Locks a path, waiting until the lock can be granted.
+	 *
+	 * @throws IllegalStateException
+	 *             If the thread is interrupted while waiting.
+	 */
+	public synchronized void lock(Path path, boolean exclusive) {
+		Request request = new Request(path, exclusive);
+		waiting.add(request);
+		try {
+			while (!grantable(request)) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			waiting.remove(request);
+			// Requests queued behind this one may go ahead now
+			notifyAll();
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(
+					"Interrupted while waiting to lock " + path);
+		}
+		waiting.remove(request);
 
-	public void run() {
-		while (!askedToStopThread) {
-			if (waitQueue.size() > currentWaitQueueSize) {
-				Entry<Entry<Path, Boolean>, Condition> poppedLockRequest = waitQueue
-						.poll();
-				Path path = poppedLockRequest.getKey().getKey();
-				boolean exclusive = poppedLockRequest.getKey().getValue();
-				Condition conditionVariable = poppedLockRequest.getValue();
+		if (exclusive) {
+			this.exclusive.add(path);
+		} else {
+			shared.merge(path, 1, Integer::sum);
+		}
+		for (Path parent : request.parents) {
+			below.merge(parent, 1, Integer::sum);
+		}
+	}
 
-				Path[] parentPathList = path.getParentPathList();
+	/**
+	 * Releases a lock on a path.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the path is not locked in the given mode.
+	 */
+	public synchronized void unlock(Path path, boolean exclusive) {
+		if (exclusive) {
+			if (!this.exclusive.remove(path)) {
+				throw new IllegalArgumentException(
+						path + " is not locked for exclusive access");
+			}
+		} else if (!release(shared, path)) {
+			throw new IllegalArgumentException(
+					path + " is not locked for shared access");
+		}
+		for (Path parent : parents(path)) {
+			release(below, parent);
+		}
+		notifyAll();
+	}
 
-				// Parent directories will always only need shared lock
-				for (int i = 0; i < parentPathList.length; i++) {
-					while (sharedLockList.contains(parentPathList[i])) {
-						// Wait until path is removed from the shared lock set
-					}
-					sharedLockList.add(parentPathList[i]);
-				}
+	/**
+	 * Takes one off the count of a path, dropping counts that reach zero.
+	 *
+	 * @return <code>false</code> if the path had no count.
+	 */
+	private static boolean release(Map<Path, Integer> counts, Path path) {
+		Integer count = counts.get(path);
+		if (count == null) {
+			return false;
+		}
+		if (count == 1) {
+			counts.remove(path);
+		} else {
+			counts.put(path, count - 1);
+		}
+		return true;
+	}
 
-				if (exclusive) {
-					while (exclusiveLockList.contains(path)) {
-						// Wait until path is removed from the exclusive lock
-						// set
-					}
-					exclusiveLockList.add(path);
-				} else {
-					while (sharedLockList.contains(path)) {
-						// Wait until path is removed from the shared lock set
-					}
-					sharedLockList.add(path);
-					if (accessCount.containsKey(path)) {
-						int newCount = accessCount.get(path) + 1;
-						accessCount.put(path, newCount);
-						if (newCount % 20 == 0) {
-							replicationHandler.replicateFile(path);
-						}
-					} else {
-						accessCount.put(path, 1);
-					}
-				}
-				// signal path is locked
-				conditionVariable.signal();
+	/**
+	 * Checks whether a waiting request can be granted: it conflicts with no
+	 * lock held, and with no request ahead of it.
+	 */
+	private boolean grantable(Request request) {
+		for (Path parent : request.parents) {
+			if (exclusive.contains(parent)) {
+				return false;
 			}
-			currentWaitQueueSize = waitQueue.size();
 		}
+		if (exclusive.contains(request.path)) {
+			return false;
+		}
+		if (request.exclusive && (shared.containsKey(request.path)
+				|| below.containsKey(request.path))) {
+			return false;
+		}
+		for (Request earlier : waiting) {
+			if (earlier == request) {
+				break;
+			}
+			if (earlier.conflicts(request)) {
+				return false;
+			}
+		}
+		return true;
 	}
 
-	public void stopGracefully() {
-		askedToStopThread = true;
+	/** Lists the directories above a path, nearest first. */
+	private static List<Path> parents(Path path) {
+		List<Path> parents = new ArrayList<Path>();
+		while (!path.isRoot()) {
+			path = path.parent();
+			parents.add(path);
+		}
+		return parents;
 	}
 
+	/** Lock request waiting to be granted. */
+	private static class Request {
+		final Path path;
+		final boolean exclusive;
+		final List<Path> parents;
+
+		Request(Path path, boolean exclusive) {
+			this.path = path;
+			this.exclusive = exclusive;
+			this.parents = parents(path);
+		}
+
+		/**
+		 * Checks whether two requests cannot hold their locks at once: one
+		 * is exclusive, on the other's path or a directory above it.
+		 */
+		boolean conflicts(Request other) {
+			return (exclusive && covers(other))
+					|| (other.exclusive && other.covers(this));
+		}
+
+		private boolean covers(Request other) {
+			return path.equals(other.path) || other.parents.contains(path);
+		}
+	}
 }
@@ -1,13 +1,11 @@
 package naming;
 
 import java.io.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 import rmi.*;
 import common.*;
@@ -43,29 +41,35 @@ public class NamingServer implements Service, Registration, Serializable {
 	Set<Path> serverfiles;
 	Map<String, List<Storage>> clientStubsForFile;
 	Map<String, List<Command>> commandStubsForFile;
-	Set<Map<String, Object>> storageServerStubs;
+	// Registered storage servers, keyed by server id
+	Map<String, Map<String, Object>> storageServerStubs;
 	Directory directoryTree;
 
-	// Lock data structures
-	// Good luck with that queue!! 😑 🙄 🔥
-	Queue<Entry<Entry<Path, Boolean>, Condition>> waitQueue;
-	Set<Path> exclusiveLockList;
-	Set<Path> sharedLockList;
-
 	String rootDirName = "data";
 
-	// This lock is used to lock the set that contains the paths to lock
-	// And not the path itself
-	// It should be unlocked after path to lock is added to the lock sets
-	final Lock lock;
-
 	// Replication data structures
 	private Map<Path, Integer> accessCount;
+	// Number of replicas each file should have, recorded when it loses one
+	private Map<String, Integer> replicationTargets;
+
+	/** Number of storage servers each new block is placed on. */
+	public static final int BLOCK_REPLICATION = 3;
+	// Block IDs of each block file, in file order. Block replicas are kept in
+	// the stub lists under the block's local path, so that re-replication and
+	// rebalancing treat them like any other file.
+	private Map<String, List<Long>> blockMaps;
+	private Random blockIds;
+	// Layout of each erasure-coded file. Its cells are blocks too, with one
+	// replica each and no replication target.
+	private Map<String, StripedFile> stripeMaps;
 
 	// Threads
 	NamingListener namingListeners;
 	LockScheduler lockScheduler;
 	ReplicationHandler replicationHandler;
+	transient FailureDetector failureDetector;
+	transient ReReplicationScheduler reReplicationScheduler;
+	transient Rebalancer rebalancer;
 
 	/**
 	 * Creates the naming server object.
@@ -79,13 +83,16 @@ public class NamingServer implements Service, Registration, Serializable {
 		this.commandStubsForFile = new HashMap<String, List<Command>>();
 		this.directoryTree = new Directory(rootDirName,
 				new Hashtable<String, Directory>(), new HashSet<String>());
-		this.storageServerStubs = new HashSet<Map<String, Object>>();
-		this.waitQueue = new ConcurrentLinkedQueue<Entry<Entry<Path, Boolean>, Condition>>();
-		this.exclusiveLockList = new HashSet<Path>();
-		this.sharedLockList = new HashSet<Path>();
-		this.lock = new ReentrantLock();
+		this.storageServerStubs = new HashMap<String, Map<String, Object>>();
+		this.lockScheduler = new LockScheduler();
 		this.accessCount = new HashMap<Path, Integer>();
+		this.replicationTargets = new HashMap<String, Integer>();
+		this.blockMaps = new HashMap<String, List<Long>>();
+		this.blockIds = new Random();
+		this.stripeMaps = new HashMap<String, StripedFile>();
 		this.replicationHandler = new ReplicationHandler(this);
+		this.failureDetector = new FailureDetector(this);
+		this.reReplicationScheduler = new ReReplicationScheduler(this);
 	}
 
 	/**
@@ -103,9 +110,8 @@ public class NamingServer implements Service, Registration, Serializable {
 	 */
 	public synchronized void start() throws RMIException {
 		this.namingListeners = new NamingListener(this);
-		this.lockScheduler = new LockScheduler(waitQueue, exclusiveLockList,
-				sharedLockList, accessCount, replicationHandler);
-		this.lockScheduler.start();
+		this.failureDetector.start();
+		this.reReplicationScheduler.start();
 	}
 
 	/**
@@ -119,7 +125,13 @@ public class NamingServer implements Service, Registration, Serializable {
 	 * should not be restarted.
 	 */
 	public void stop() {
-		this.lockScheduler.stopGracefully();
+		this.failureDetector.stopGracefully();
+		this.reReplicationScheduler.stopGracefully();
+		synchronized (this) {
+			if (rebalancer != null) {
+				rebalancer.stopGracefully();
+			}
+		}
 		this.namingListeners.stopListeners();
 	}
 
@@ -140,293 +152,819 @@ public class NamingServer implements Service, Registration, Serializable {
 	@Override
 	public void lock(Path path, boolean exclusive)
 			throws FileNotFoundException {
-		if (!serverfiles.contains(path)) {
-			throw new FileNotFoundException();
+		synchronized (serverfiles) {
+			if (!serverfiles.contains(path)) {
+				throw new FileNotFoundException(path + " does not exist");
+			}
 		}
-		final Condition notPushedToQueue = lock.newCondition();
-		lock.lock();
-		lock(path, exclusive, notPushedToQueue);
+		lockScheduler.lock(path, exclusive);
+		if (!exclusive) {
+			countAccess(path);
+		}
+	}
+
+	/** Counts a shared access, asking for a replica every 20 of them. */
+	private void countAccess(Path path) {
+		synchronized (accessCount) {
+			int count = accessCount.merge(path, 1, Integer::sum);
+			if (count % 20 == 0) {
+				replicationHandler.replicateFile(path);
+			}
+		}
+	}
+
+	@Override
+	public void unlock(Path path, boolean exclusive) {
+		lockScheduler.unlock(path, exclusive);
+	}
+
+	/**
+	 * Locks a file for the naming server's own copies and deletes of its
+	 * replicas. Unlike <code>lock</code>, the file need not be listed any more,
+	 * and the lock does not count as an access.
+	 */
+	void lockFile(Path file, boolean exclusive) {
+		lockScheduler.lock(file, exclusive);
+	}
+
+	/** Releases a lock taken by <code>lockFile</code>. */
+	void unlockFile(Path file, boolean exclusive) {
+		lockScheduler.unlock(file, exclusive);
+	}
+
+	@Override
+	public boolean isDirectory(Path path) throws FileNotFoundException {
+		lock(path, false);
 		try {
-			if (exclusive) {
-				while (exclusiveLockList.contains(path)) {
-					notPushedToQueue.await();
-				}
-			} else {
-				while (sharedLockList.contains(path)) {
-					notPushedToQueue.await();
+			java.nio.file.Path dir = Paths.get(path.getPath());
+
+			// Validate root directory
+			if (!dir.getName(0).toString().equals(directoryTree.getName())) {
+				throw new FileNotFoundException("Invalid directory path");
+			}
+
+			int length = dir.getNameCount();
+			if (length == 1) {
+				// Since length is 1, the directory is root directory
+				// Root directory is already validated above
+				return true;
+			}
+
+			Hashtable<String, Directory> currentDirs = directoryTree
+					.getSubDirs();
+			for (int i = 0; i < length; i++) {
+
+				if (!currentDirs.keySet().contains(dir.getName(i).toString())) {
+					if (i == length - 1) {
+						return false;
+					} else {
+						throw new FileNotFoundException(
+								"Invalid directory path");
+					}
 				}
+				currentDirs = currentDirs.get(dir.getName(i).toString())
+						.getSubDirs();
 			}
-		} catch (InterruptedException e) {
-			System.out.println(e.getMessage());
-			e.printStackTrace();
+			return true;
 		} finally {
-			lock.unlock();
+			unlock(path, false);
 		}
 	}
 
-	// Helper lock method
-	private void lock(Path path, boolean exclusive,
-			Condition notPushedToQueue) {
-		synchronized (waitQueue) {
-			waitQueue
-					.add(new AbstractMap.SimpleEntry<Entry<Path, Boolean>, Condition>(
-							new AbstractMap.SimpleEntry<Path, Boolean>(path,
-									exclusive),
-							notPushedToQueue));
+	@Override
+	public String[] list(Path directory) throws FileNotFoundException {
+		lock(directory, false);
+		try {
+			java.nio.file.Path dir = Paths.get(directory.getPath());
+			HashSet<String> files = null;
+			// Validate root directory
+			if (!dir.getName(0).toString().equals(directoryTree.getName())) {
+				throw new FileNotFoundException("Invalid directory path");
+			}
+
+			int length = dir.getNameCount();
+			if (length == 1) {
+				// Since length is 1, the directory is root directory
+				// Root directory is already validated above
+				files = directoryTree.getFiles();
+			}
+
+			Hashtable<String, Directory> currentDirs = directoryTree
+					.getSubDirs();
+			for (int i = 0; i < length; i++) {
+
+				if (!currentDirs.keySet().contains(dir.getName(i).toString())) {
+					throw new FileNotFoundException("Invalid directory path");
+				}
+				if (i == length - 1) {
+					files = currentDirs
+							.get(dir.getName(dir.getNameCount() - 1).toString())
+							.getFiles();
+				}
+				currentDirs = currentDirs.get(dir.getName(i).toString())
+						.getSubDirs();
+			}
+
+			files.addAll(currentDirs.keySet());
+			return files.toArray(new String[files.size()]);
+		} finally {
+			unlock(directory, false);
 		}
 	}
 
 	@Override
-	public void unlock(Path path, boolean exclusive) {
-		Path[] parentPathList = path.getParentPathList();
-		if (exclusive) {
-			if (!exclusiveLockList.contains(path)) {
-				throw new IllegalArgumentException(
-						path.getPath() + " does not exist");
+	public boolean createFile(Path file)
+			throws RMIException, FileNotFoundException {
+		lock(file, true);
+		try {
+			Command cmd_stub = null;
+			Storage clnt_stub = null;
+			synchronized (storageServerStubs) {
+				java.nio.file.Path path = Paths.get(file.getPath());
+				if (!serverfiles
+						.contains(path.subpath(0, path.getNameCount() - 1))) {
+					throw new FileNotFoundException(
+							"Parent directory does not exist");
+				}
+
+				Map<String, Object> server = leastUtilisedServer();
+				cmd_stub = (Command) server.get("command_stub");
+				clnt_stub = (Storage) server.get("client_stub");
 			}
-			exclusiveLockList.remove(path);
-		} else {
-			if (!sharedLockList.contains(path)) {
-				throw new IllegalArgumentException(
-						path.getPath() + " does not exist");
+
+			boolean isFileCreated = cmd_stub.create(file);
+
+			if (isFileCreated) {
+				HashSet<Path> fileSet = new HashSet<Path>();
+				fileSet.add(file);
+				serverfiles.add(file);
+				addFilesToDirectoryTree(fileSet, clnt_stub, cmd_stub);
 			}
-			sharedLockList.remove(path);
+			return isFileCreated;
+		} finally {
+			unlock(file, true);
 		}
+	}
 
-		for (int i = 0; i < parentPathList.length; i++) {
-			if (!sharedLockList.contains(parentPathList[i])) {
-				throw new IllegalArgumentException(
-						parentPathList[i].getPath() + " does not exist");
+	@Override
+	public boolean createDirectory(Path directory)
+			throws FileNotFoundException, RMIException {
+		lock(directory, true);
+		try {
+			Command cmd_stub = null;
+			Storage clnt_stub = null;
+			synchronized (storageServerStubs) {
+				java.nio.file.Path path = Paths.get(directory.getPath());
+				if (!serverfiles
+						.contains(path.subpath(0, path.getNameCount() - 1))) {
+					throw new FileNotFoundException(
+							"Parent directory does not exist");
+				}
+				Map<String, Object> server = leastUtilisedServer();
+				cmd_stub = (Command) server.get("command_stub");
+				clnt_stub = (Storage) server.get("client_stub");
+			}
+			boolean isDirCreated = cmd_stub.create(directory);
+
+			if (isDirCreated) {
+				HashSet<Path> dirSet = new HashSet<Path>();
+				dirSet.add(directory);
+				serverfiles.add(directory);
+				addDirectoriesToDirectoryTree(dirSet, clnt_stub, cmd_stub);
 			}
-			sharedLockList.remove(parentPathList[i]);
+			return isDirCreated;
+		} finally {
+			unlock(directory, true);
 		}
 	}
 
 	@Override
-	public boolean isDirectory(Path path) throws FileNotFoundException {
-		lock(path, false);
-		java.nio.file.Path dir = Paths.get(path.getPath());
+	public boolean delete(Path path) throws FileNotFoundException {
+		boolean inBlocks;
+		synchronized (directoryTree) {
+			inBlocks = blockMaps.containsKey(path.getPath())
+					|| stripeMaps.containsKey(path.getPath());
+		}
+		if (inBlocks) {
+			return deleteBlockFile(path);
+		}
+		lock(path, true);
+		try {
+			if (!serverfiles.contains(path.getPath())) {
+				throw new FileNotFoundException();
+			}
+			boolean isDeleted = false;
+			try {
+
+				// Delete from all the nodes
+				for (int i = 0; i < commandStubsForFile.get(path.getPath())
+						.size(); i++) {
+					isDeleted = commandStubsForFile.get(path.getPath()).get(i)
+							.delete(path);
+					if (!isDeleted) {
+						return isDeleted;
+					}
+				}
 
-		// Validate root directory
-		if (!dir.getName(0).toString().equals(directoryTree.getName())) {
-			throw new FileNotFoundException("Invalid directory path");
+				// To remove from naming server
+
+				// Remove from directory tree
+				boolean deletedFromTree = false;
+				Directory parentDir = getParentDir(path);
+				String fileName = Paths.get(path.getPath()).getFileName()
+						.toString();
+				for (String file : parentDir.getFiles()) {
+					if (file.equals(fileName)) {
+						parentDir.getFiles().remove(file);
+						deletedFromTree = true;
+						break;
+					}
+				}
+				if (!deletedFromTree) {
+					for (String dir : parentDir.getSubDirs().keySet()) {
+						if (dir.equals(fileName)) {
+							parentDir.getSubDirs().remove(fileName);
+						}
+					}
+				}
+				// Remove from file list
+				serverfiles.remove(path.getPath());
+				// Delete from stub command stub list
+				commandStubsForFile.remove(path.getPath());
+				// Delete from stub storage stub list
+				clientStubsForFile.remove(path.getPath());
+				synchronized (directoryTree) {
+					replicationTargets.remove(path.getPath());
+				}
+				isDeleted = true;
+			} catch (RMIException e) {
+				System.out.println(e.getMessage());
+				e.printStackTrace();
+				isDeleted = false;
+			}
+			return isDeleted;
+		} finally {
+			unlock(path, true);
 		}
+	}
 
-		int length = dir.getNameCount();
-		if (length == 1) {
-			// Since length is 1, the directory is root directory
-			// Root directory is already validated above
-			return true;
+	@Override
+	public Storage getStorage(Path file) throws FileNotFoundException {
+		lock(file, false);
+		try {
+			synchronized (serverfiles) {
+				if (!serverfiles.contains(file)) {
+					throw new FileNotFoundException();
+				}
+			}
+		} finally {
+			unlock(file, false);
 		}
+		synchronized (directoryTree) {
+			// Only live replicas are kept in the list, see
+			// storageServerFailed
+			List<Storage> replicas = clientStubsForFile.get(file.getPath());
+			if (replicas == null || replicas.isEmpty()) {
+				throw new FileNotFoundException(
+						"No live storage server hosts " + file);
+			}
+			return replicas.get(new Random().nextInt(replicas.size()));
+		}
+	}
 
-		Hashtable<String, Directory> currentDirs = directoryTree.getSubDirs();
-		for (int i = 0; i < length; i++) {
+	@Override
+	public Storage[] getReplicas(Path file) throws FileNotFoundException {
+		synchronized (directoryTree) {
+			// Replicas are added at the end and dropped or swapped in
+			// place, so the first one stays first while it lives
+			List<Storage> replicas = clientStubsForFile.get(file.getPath());
+			if (replicas == null || replicas.isEmpty()) {
+				throw new FileNotFoundException(
+						"No live storage server hosts " + file);
+			}
+			return replicas.toArray(new Storage[replicas.size()]);
+		}
+	}
 
-			if (!currentDirs.keySet().contains(dir.getName(i).toString())) {
-				if (i == length - 1) {
+	@Override
+	public boolean createBlockFile(Path file) throws FileNotFoundException {
+		// Registered in one step, so nobody can lock or open the file before
+		// its block map exists. The file list is taken first, as
+		// registration does.
+		synchronized (serverfiles) {
+			synchronized (directoryTree) {
+				if (!addFileEntry(file)) {
 					return false;
-				} else {
-					throw new FileNotFoundException("Invalid directory path");
 				}
+				blockMaps.put(file.getPath(), new ArrayList<Long>());
+				serverfiles.add(file);
 			}
-			currentDirs = currentDirs.get(dir.getName(i).toString())
-					.getSubDirs();
 		}
-		unlock(path, false);
 		return true;
 	}
 
-	@Override
-	public String[] list(Path directory) throws FileNotFoundException {
-		lock(directory, false);
-		java.nio.file.Path dir = Paths.get(directory.getPath());
-		HashSet<String> files = null;
-		// Validate root directory
-		if (!dir.getName(0).toString().equals(directoryTree.getName())) {
-			throw new FileNotFoundException("Invalid directory path");
+	/**
+	 * Adds a file kept in blocks to the directory tree. The caller holds the
+	 * directory tree lock.
+	 * 
+	 * @return <code>false</code> if a file or directory of that name exists.
+	 */
+	private boolean addFileEntry(Path file) throws FileNotFoundException {
+		java.nio.file.Path path = Paths.get(file.getPath());
+		if (path.getNameCount() < 2) {
+			return false;
 		}
+		Directory parent = directoryTree;
+		for (int i = 0; i < path.getNameCount() - 1; i++) {
+			parent = parent.getSubDirs().get(path.getName(i).toString());
+			if (parent == null) {
+				throw new FileNotFoundException(
+						"Parent directory does not exist");
+			}
+		}
+		String name = path.getFileName().toString();
+		if (parent.getFiles().contains(name)
+				|| parent.getSubDirs().containsKey(name)) {
+			return false;
+		}
+		parent.getFiles().add(name);
+		return true;
+	}
 
-		int length = dir.getNameCount();
-		if (length == 1) {
-			// Since length is 1, the directory is root directory
-			// Root directory is already validated above
-			files = directoryTree.getFiles();
+	@Override
+	public BlockMap getBlockMap(Path file) throws FileNotFoundException {
+		synchronized (directoryTree) {
+			List<Long> blocks = blockMaps.get(file.getPath());
+			if (blocks == null) {
+				throw new FileNotFoundException(file + " is not a block file");
+			}
+			long[] ids = new long[blocks.size()];
+			Storage[][] replicas = new Storage[blocks.size()][];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = blocks.get(i);
+				List<Storage> stubs = clientStubsForFile
+						.get(Blocks.path(ids[i]).getPath());
+				replicas[i] = stubs == null ? new Storage[0]
+						: stubs.toArray(new Storage[stubs.size()]);
+			}
+			return new BlockMap(file, ids, replicas);
 		}
+	}
 
-		Hashtable<String, Directory> currentDirs = directoryTree.getSubDirs();
-		for (int i = 0; i < length; i++) {
+	@Override
+	public BlockMap addBlock(Path file)
+			throws RMIException, FileNotFoundException {
+		synchronized (directoryTree) {
+			if (!blockMaps.containsKey(file.getPath())) {
+				throw new FileNotFoundException(file + " is not a block file");
+			}
+		}
 
-			if (!currentDirs.keySet().contains(dir.getName(i).toString())) {
-				throw new FileNotFoundException("Invalid directory path");
+		// Place the block on the least utilised servers
+		List<Map<String, Object>> servers = liveServers();
+		servers.sort(Comparator.comparingDouble(
+				server -> server.get("report") == null ? 0
+						: ((HeartbeatReport) server.get("report"))
+								.getUtilisation()));
+		long block = reserveBlock();
+		String blockPath = Blocks.path(block).getPath();
+		int placed = 0;
+		for (Map<String, Object> server : servers) {
+			if (placed == BLOCK_REPLICATION) {
+				break;
 			}
-			if (i == length - 1) {
-				files = currentDirs
-						.get(dir.getName(dir.getNameCount() - 1).toString())
-						.getFiles();
+			Command command_stub = (Command) server.get("command_stub");
+			try {
+				if (command_stub.createBlock(block)) {
+					addReplica(blockPath, (Storage) server.get("client_stub"),
+							command_stub);
+					placed++;
+				}
+			} catch (RMIException e) {
+				System.out.println("Cannot place block on " + server.get("id")
+						+ " : " + e.getMessage());
 			}
-			currentDirs = currentDirs.get(dir.getName(i).toString())
-					.getSubDirs();
 		}
 
-		files.addAll(currentDirs.keySet());
-		unlock(directory, false);
-		return files.toArray(new String[files.size()]);
+		synchronized (directoryTree) {
+			List<Long> blocks = blockMaps.get(file.getPath());
+			if (placed == 0 || blocks == null) {
+				commandStubsForFile.remove(blockPath);
+				clientStubsForFile.remove(blockPath);
+				if (placed == 0) {
+					throw new IllegalStateException(
+							"No storage server could create a block");
+				}
+				throw new FileNotFoundException(file + " has been deleted");
+			}
+			blocks.add(block);
+			// Let re-replication restore the full count if servers fail
+			replicationTargets.put(blockPath,
+					Math.min(BLOCK_REPLICATION, servers.size()));
+		}
+		return getBlockMap(file);
+	}
+
+	/**
+	 * Chooses the ID of a new block, and gives it empty replica lists so that
+	 * it is not chosen twice.
+	 */
+	private long reserveBlock() {
+		synchronized (directoryTree) {
+			long block;
+			String blockPath;
+			do {
+				block = blockIds.nextLong() & Long.MAX_VALUE;
+				blockPath = Blocks.path(block).getPath();
+			} while (commandStubsForFile.containsKey(blockPath));
+			commandStubsForFile.put(blockPath, new ArrayList<Command>());
+			clientStubsForFile.put(blockPath, new ArrayList<Storage>());
+			return block;
+		}
 	}
 
 	@Override
-	public boolean createFile(Path file)
-			throws RMIException, FileNotFoundException {
-		lock(file, true);
-		Command cmd_stub = null;
-		Storage clnt_stub = null;
-		synchronized (storageServerStubs) {
-			java.nio.file.Path path = Paths.get(file.getPath());
-			if (!serverfiles
-					.contains(path.subpath(0, path.getNameCount() - 1))) {
-				throw new FileNotFoundException(
-						"Parent directory does not exist");
+	public boolean createStripedFile(Path file, int data_cells,
+			int parity_cells) throws FileNotFoundException {
+		if (data_cells < 1 || parity_cells < 1
+				|| data_cells + parity_cells > 256) {
+			throw new IllegalArgumentException("invalid stripe layout "
+					+ data_cells + "+" + parity_cells);
+		}
+		synchronized (serverfiles) {
+			synchronized (directoryTree) {
+				if (!addFileEntry(file)) {
+					return false;
+				}
+				stripeMaps.put(file.getPath(),
+						new StripedFile(data_cells, parity_cells));
+				serverfiles.add(file);
 			}
+		}
+		return true;
+	}
 
-			Long serverSize = 0L;
-			Iterator<Map<String, Object>> iter = storageServerStubs.iterator();
-			while (iter.hasNext()) {
-				Map<String, Object> currObj = (Map<String, Object>) iter.next();
-				Long currServerSize = (Long) currObj.get("size");
-				if (currServerSize > serverSize) {
-					serverSize = (Long) currObj.get("size");
-					cmd_stub = (Command) currObj.get("command_stub");
-					clnt_stub = (Storage) currObj.get("client_stub");
-				}
+	@Override
+	public StripeMap getStripeMap(Path file) throws FileNotFoundException {
+		synchronized (directoryTree) {
+			StripedFile striped = stripedFile(file);
+			long[][] cells = new long[striped.stripes.size()][];
+			Storage[][] holders = new Storage[cells.length][];
+			for (int s = 0; s < cells.length; s++) {
+				cells[s] = striped.stripes.get(s).clone();
+				holders[s] = cellHolders(cells[s]);
 			}
+			long[] tail = striped.tail == null ? null : striped.tail.clone();
+			long[] staged = striped.staged == null ? null
+					: striped.staged.clone();
+			return new StripeMap(file, striped.dataCells, striped.parityCells,
+					striped.length, cells, holders, tail, cellHolders(tail),
+					staged, cellHolders(staged));
 		}
+	}
 
-		boolean isFileCreated = cmd_stub.create(file);
+	/**
+	 * Returns the client stub of the live storage server holding each cell,
+	 * or <code>null</code> for a lost cell. The caller holds the directory
+	 * tree lock.
+	 */
+	private Storage[] cellHolders(long[] cells) {
+		if (cells == null) {
+			return null;
+		}
+		Storage[] holders = new Storage[cells.length];
+		for (int c = 0; c < cells.length; c++) {
+			List<Storage> stubs = clientStubsForFile
+					.get(Blocks.path(cells[c]).getPath());
+			if (stubs != null && !stubs.isEmpty()) {
+				holders[c] = stubs.get(0);
+			}
+		}
+		return holders;
+	}
 
-		if (isFileCreated) {
-			HashSet<Path> fileSet = new HashSet<Path>();
-			fileSet.add(file);
-			serverfiles.add(file);
-			addFilesToDirectoryTree(fileSet, clnt_stub, cmd_stub);
+	@Override
+	public StripeMap addStripe(Path file)
+			throws RMIException, FileNotFoundException {
+		long[] stripe = placeCells(file);
+		synchronized (directoryTree) {
+			StripedFile striped = stripeMaps.get(file.getPath());
+			if (striped != null) {
+				striped.stripes.add(stripe);
+				return getStripeMap(file);
+			}
 		}
-		unlock(file, true);
-		return isFileCreated;
+		deleteBlocks(cellList(stripe));
+		throw new FileNotFoundException(file + " has been deleted");
 	}
 
 	@Override
-	public boolean createDirectory(Path directory)
-			throws FileNotFoundException, RMIException {
-		lock(directory, true);
-		Command cmd_stub = null;
-		Storage clnt_stub = null;
-		synchronized (storageServerStubs) {
-			java.nio.file.Path path = Paths.get(directory.getPath());
-			if (!serverfiles
-					.contains(path.subpath(0, path.getNameCount() - 1))) {
-				throw new FileNotFoundException(
-						"Parent directory does not exist");
+	public StripeMap stageTail(Path file)
+			throws RMIException, FileNotFoundException {
+		long[] tail = placeCells(file);
+		long[] replaced;
+		synchronized (directoryTree) {
+			StripedFile striped = stripeMaps.get(file.getPath());
+			if (striped == null) {
+				replaced = tail;
+			} else {
+				replaced = striped.staged;
+				striped.staged = tail;
 			}
-			Long serverSize = 0L;
-			Iterator<Map<String, Object>> iter = storageServerStubs.iterator();
-			while (iter.hasNext()) {
-				Map<String, Object> currObj = (Map<String, Object>) iter.next();
-				Long currServerSize = (Long) currObj.get("size");
-				if (currServerSize > serverSize) {
-					serverSize = (Long) currObj.get("size");
-					cmd_stub = (Command) currObj.get("command_stub");
-					clnt_stub = (Storage) currObj.get("client_stub");
+		}
+		if (replaced != null) {
+			deleteBlocks(cellList(replaced));
+		}
+		if (replaced == tail) {
+			throw new FileNotFoundException(file + " has been deleted");
+		}
+		return getStripeMap(file);
+	}
+
+	/**
+	 * Creates a stripe's worth of empty cells for an erasure-coded file, one
+	 * on each of the least utilised live storage servers.
+	 *
+	 * @return The block IDs of the cells, data cells first.
+	 * @throws IllegalStateException
+	 *             If fewer storage servers than cells in a stripe could create
+	 *             a cell.
+	 */
+	private long[] placeCells(Path file) throws FileNotFoundException {
+		int width;
+		synchronized (directoryTree) {
+			StripedFile striped = stripedFile(file);
+			width = striped.dataCells + striped.parityCells;
+		}
+
+		List<Map<String, Object>> servers = liveServers();
+		servers.sort(Comparator.comparingDouble(
+				server -> server.get("report") == null ? 0
+						: ((HeartbeatReport) server.get("report"))
+								.getUtilisation()));
+		List<Long> cells = new ArrayList<Long>();
+		for (Map<String, Object> server : servers) {
+			if (cells.size() == width) {
+				break;
+			}
+			long cell = reserveBlock();
+			String cellPath = Blocks.path(cell).getPath();
+			Command command_stub = (Command) server.get("command_stub");
+			try {
+				if (command_stub.createBlock(cell)) {
+					addReplica(cellPath, (Storage) server.get("client_stub"),
+							command_stub);
+					cells.add(cell);
+					continue;
 				}
+			} catch (RMIException e) {
+				System.out.println("Cannot place cell on " + server.get("id")
+						+ " : " + e.getMessage());
+			}
+			synchronized (directoryTree) {
+				commandStubsForFile.remove(cellPath);
+				clientStubsForFile.remove(cellPath);
 			}
 		}
-		boolean isDirCreated = cmd_stub.create(directory);
 
-		if (isDirCreated) {
-			HashSet<Path> dirSet = new HashSet<Path>();
-			dirSet.add(directory);
-			serverfiles.add(directory);
-			addDirectoriesToDirectoryTree(dirSet, clnt_stub, cmd_stub);
+		if (cells.size() < width) {
+			deleteBlocks(cells);
+			throw new IllegalStateException("Only " + cells.size()
+					+ " storage servers could create a cell, " + width
+					+ " needed");
 		}
-		unlock(directory, true);
-		return isDirCreated;
+		long[] placed = new long[width];
+		for (int c = 0; c < width; c++) {
+			placed[c] = cells.get(c);
+		}
+		return placed;
 	}
 
 	@Override
-	public boolean delete(Path path) throws FileNotFoundException {
-		lock(path, true);
-		if (!serverfiles.contains(path.getPath())) {
-			throw new FileNotFoundException();
+	public void setStripedLength(Path file, long length, boolean truncate)
+			throws FileNotFoundException {
+		List<Long> dropped = new ArrayList<Long>();
+		synchronized (directoryTree) {
+			StripedFile striped = stripedFile(file);
+			if (length < 0 || length > striped.stripes.size()
+					* (long) striped.dataCells * Blocks.BLOCK_SIZE) {
+				throw new IllegalArgumentException("length " + length
+						+ " does not fit in the stripes of " + file);
+			}
+			if (length < striped.length && !truncate) {
+				throw new IllegalArgumentException("length " + length
+						+ " would shrink " + file + " from " + striped.length
+						+ " bytes without truncating it");
+			}
+			boolean partial = length
+					% ((long) striped.dataCells * StripeMap.CELL_SIZE) != 0;
+			if (partial && striped.staged == null) {
+				throw new IllegalStateException("no tail staged for the "
+						+ "partial last row of " + file);
+			}
+			// The old tail goes once the new length no longer needs it
+			dropped.addAll(cellList(striped.tail));
+			striped.tail = null;
+			if (partial) {
+				striped.tail = striped.staged;
+			} else {
+				dropped.addAll(cellList(striped.staged));
+			}
+			striped.staged = null;
+			striped.length = length;
+
+			long capacity = (long) striped.dataCells * Blocks.BLOCK_SIZE;
+			while (truncate && striped.stripes.size() > (length + capacity - 1)
+					/ capacity) {
+				dropped.addAll(cellList(
+						striped.stripes.remove(striped.stripes.size() - 1)));
+			}
 		}
-		boolean isDeleted = false;
-		try {
+		deleteBlocks(dropped);
+	}
 
-			// Delete from all the nodes
-			for (int i = 0; i < commandStubsForFile.get(path.getPath())
-					.size(); i++) {
-				isDeleted = commandStubsForFile.get(path.getPath()).get(i)
-						.delete(path);
-				if (!isDeleted) {
-					return isDeleted;
-				}
+	/** Lists the block IDs of cells, if there are any. */
+	private static List<Long> cellList(long[] cells) {
+		List<Long> list = new ArrayList<Long>();
+		if (cells != null) {
+			for (long cell : cells) {
+				list.add(cell);
 			}
+		}
+		return list;
+	}
 
-			// To remove from naming server
+	/**
+	 * Returns the layout of an erasure-coded file. The caller holds the
+	 * directory tree lock.
+	 */
+	private StripedFile stripedFile(Path file) throws FileNotFoundException {
+		StripedFile striped = stripeMaps.get(file.getPath());
+		if (striped == null) {
+			throw new FileNotFoundException(file + " is not erasure-coded");
+		}
+		return striped;
+	}
 
-			// Remove from directory tree
-			boolean deletedFromTree = false;
-			Directory parentDir = getParentDir(path);
-			String fileName = Paths.get(path.getPath()).getFileName()
-					.toString();
-			for (String file : parentDir.getFiles()) {
-				if (file.equals(fileName)) {
-					parentDir.getFiles().remove(file);
-					deletedFromTree = true;
-					break;
+	// The method reportBlocks is documented in Registration.java.
+	@Override
+	public void reportBlocks(Storage client_stub, Command command_stub,
+			long[] blocks) {
+		String serverId = serverId(command_stub);
+		synchronized (directoryTree) {
+			for (long block : blocks) {
+				String blockPath = Blocks.path(block).getPath();
+				// Only blocks of known block files have replica lists
+				if (commandStubsForFile.containsKey(blockPath)
+						&& !replicaServerIds(blockPath).contains(serverId)) {
+					addReplica(blockPath, client_stub, command_stub);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes a block file or an erasure-coded file, and all replicas of its
+	 * blocks. The file is locked for exclusive access meanwhile, so clients
+	 * reading or writing it under a lock are done first.
+	 * 
+	 * @return <code>false</code> if the file was deleted by someone else in
+	 *         the meantime.
+	 */
+	private boolean deleteBlockFile(Path file) throws FileNotFoundException {
+		lock(file, true);
+		try {
+			List<Long> blocks;
+			synchronized (directoryTree) {
+				if (blockMaps.containsKey(file.getPath())) {
+					blocks = new ArrayList<Long>(blockMaps.get(file.getPath()));
+				} else if (stripeMaps.containsKey(file.getPath())) {
+					blocks = stripeMaps.get(file.getPath()).cells();
+				} else {
+					return false;
 				}
 			}
-			if (!deletedFromTree) {
-				for (String dir : parentDir.getSubDirs().keySet()) {
-					if (dir.equals(fileName)) {
-						parentDir.getSubDirs().remove(fileName);
+			deleteBlocks(blocks);
+			synchronized (serverfiles) {
+				synchronized (directoryTree) {
+					blockMaps.remove(file.getPath());
+					stripeMaps.remove(file.getPath());
+					Directory parent = getParentDir(file);
+					if (parent != null) {
+						parent.getFiles().remove(Paths.get(file.getPath())
+								.getFileName().toString());
 					}
+					serverfiles.remove(file);
+				}
+			}
+			return true;
+		} finally {
+			unlock(file, true);
+		}
+	}
+
+	/** Deletes all replicas of blocks and forgets them. */
+	private void deleteBlocks(List<Long> blocks) {
+		for (long block : blocks) {
+			String blockPath = Blocks.path(block).getPath();
+			List<Command> replicas;
+			synchronized (directoryTree) {
+				replicas = commandStubsForFile.remove(blockPath);
+				clientStubsForFile.remove(blockPath);
+				replicationTargets.remove(blockPath);
+			}
+			if (replicas == null) {
+				continue;
+			}
+			for (Command replica : replicas) {
+				try {
+					replica.deleteBlock(block);
+				} catch (RMIException e) {
+					// The block is orphaned on that server
+					System.out.println("Cannot delete block " + block + " : "
+							+ e.getMessage());
 				}
 			}
-			// Remove from file list
-			serverfiles.remove(path.getPath());
-			// Delete from stub command stub list
-			commandStubsForFile.remove(path.getPath());
-			// Delete from stub storage stub list
-			clientStubsForFile.remove(path.getPath());
-			isDeleted = true;
-		} catch (RMIException e) {
-			System.out.println(e.getMessage());
-			e.printStackTrace();
-			isDeleted = false;
 		}
-		unlock(path, true);
-		return isDeleted;
 	}
 
 	@Override
-	public Storage getStorage(Path file) throws FileNotFoundException {
-		lock(file, false);
-		if (!serverfiles.contains(file.getPath())) {
-			throw new FileNotFoundException();
+	public synchronized boolean rebalance(double band,
+			long bytes_per_second) {
+		if (band < 0 || band > 1) {
+			throw new IllegalArgumentException("band must be within [0, 1]");
+		}
+		if (bytes_per_second < 0) {
+			throw new IllegalArgumentException(
+					"bytes_per_second is negative");
+		}
+		if (rebalancer != null && rebalancer.isAlive()) {
+			return false;
+		}
+		rebalancer = new Rebalancer(this, band, bytes_per_second);
+		rebalancer.start();
+		return true;
+	}
+
+	@Override
+	public synchronized RebalanceStatus rebalanceStatus() {
+		if (rebalancer == null) {
+			return null;
+		}
+		return rebalancer.getStatus();
+	}
+
+	/**
+	 * Picks the storage server on which new files and directories are placed.
+	 * 
+	 * <p>
+	 * This is the server with the lowest reported utilisation. Servers that
+	 * have not sent a heartbeat yet are compared by their registration size.
+	 */
+	private Map<String, Object> leastUtilisedServer() {
+		if (storageServerStubs.isEmpty()) {
+			throw new IllegalStateException(
+					"No storage servers are connected");
 		}
-		unlock(file, false);
-		return clientStubsForFile.get(file.getPath())
-				.get(new Random().nextInt(storageServerStubs.size() - 0));
+		Map<String, Object> best = null;
+		double bestUtilisation = 0;
+		for (Map<String, Object> server : storageServerStubs.values()) {
+			HeartbeatReport report = (HeartbeatReport) server.get("report");
+			double utilisation = report != null ? report.getUtilisation()
+					: 0;
+			if (best == null || utilisation < bestUtilisation
+					|| (utilisation == bestUtilisation && (Long) server
+							.get("size") < (Long) best.get("size"))) {
+				best = server;
+				bestUtilisation = utilisation;
+			}
+		}
+		return best;
 	}
 
 	// The method register is documented in Registration.java.
 	@Override
 	public Path[] register(Storage client_stub, Command command_stub,
 			Path[] files) {
+		String serverId = serverId(command_stub);
+		synchronized (storageServerStubs) {
+			if (storageServerStubs.containsKey(serverId)) {
+				throw new IllegalStateException(
+						"Storage server " + serverId + " already registered");
+			}
+		}
+
 		// Store the stubs for server
 		try {
 			Map<String, Object> stubs = new HashMap<String, Object>();
+			stubs.put("id", serverId);
 			stubs.put("command_stub", command_stub);
 			stubs.put("client_stub", client_stub);
 			stubs.put("size", client_stub.size(new Path("/data")));
-			storageServerStubs.add(stubs);
+			synchronized (storageServerStubs) {
+				storageServerStubs.put(serverId, stubs);
+			}
+			failureDetector.heartbeat(serverId);
 		} catch (FileNotFoundException | RMIException e) {
 			System.out.println("Registration failed : " + e.getMessage());
 			e.printStackTrace();
@@ -435,16 +973,383 @@ public class NamingServer implements Service, Registration, Serializable {
 		// Add files to directory tree
 		synchronized (serverfiles) {
 			serverfiles.addAll(Arrays.asList(files));
-			boolean addToTreeStatus = addFilesToDirectoryTree(serverfiles,
-					client_stub, command_stub);
+			// Only the files of this server get it as a replica
+			boolean addToTreeStatus = addFilesToDirectoryTree(
+					new HashSet<Path>(Arrays.asList(files)), client_stub,
+					command_stub);
 			if (addToTreeStatus) {
 				// TODO : log files that should be deleted and returned on
 				// storage server
 			}
 		}
+		// Returning replicas may make lost files copyable again
+		reReplicationScheduler.schedule();
+		return null;
+	}
+
+	// The method heartbeat is documented in Registration.java.
+	@Override
+	public boolean heartbeat(Command command_stub, HeartbeatReport report) {
+		String serverId = serverId(command_stub);
+		synchronized (storageServerStubs) {
+			Map<String, Object> stubs = storageServerStubs.get(serverId);
+			if (stubs == null) {
+				return false;
+			}
+			stubs.put("size", report.getUsedBytes());
+			stubs.put("report", report);
+		}
+		failureDetector.heartbeat(serverId);
+		return true;
+	}
+
+	// The method reportCorrupt is documented in Registration.java.
+	@Override
+	public boolean reportCorrupt(Command command_stub, Path file) {
+		if (command_stub == null || file == null) {
+			throw new NullPointerException("command_stub or file is null");
+		}
+		String serverId = serverId(command_stub);
+		if (!dropReplica(serverId, file.getPath(), false)) {
+			return false;
+		}
+		System.out.println("Corrupt replica of " + file
+				+ " dropped from storage server " + serverId);
+		reReplicationScheduler.schedule();
+		return true;
+	}
+
+	// The method reportLost is documented in Registration.java.
+	@Override
+	public Path[] reportLost(Command command_stub, Path[] files) {
+		if (command_stub == null || files == null) {
+			throw new NullPointerException("command_stub or files is null");
+		}
+		String serverId = serverId(command_stub);
+		List<Path> dropped = new ArrayList<Path>();
+		for (Path file : files) {
+			if (dropReplica(serverId, file.getPath(), true)) {
+				dropped.add(file);
+			}
+		}
+		System.out.println(dropped.size() + " lost replicas dropped from "
+				+ "storage server " + serverId);
+		reReplicationScheduler.schedule();
+		return dropped.toArray(new Path[dropped.size()]);
+	}
+
+	/**
+	 * Takes the replica of a file held by a storage server out of service,
+	 * and raises the replication target of the file so that it is copied
+	 * again.
+	 *
+	 * @param serverId
+	 *            Id of the storage server.
+	 * @param key
+	 *            Path of the file.
+	 * @param evenLast
+	 *            Whether the replica is dropped even if it is the last one.
+	 * @return <code>true</code> if the replica was dropped.
+	 */
+	private boolean dropReplica(String serverId, String key,
+			boolean evenLast) {
+		synchronized (directoryTree) {
+			List<Command> commandStubs = commandStubsForFile.get(key);
+			List<Storage> clientStubs = clientStubsForFile.get(key);
+			if (commandStubs == null) {
+				return false;
+			}
+			int replicasBefore = commandStubs.size();
+			if (replicasBefore <= 1 && !evenLast) {
+				System.out.println("Only replica of " + key
+						+ " is corrupt on storage server " + serverId);
+				return false;
+			}
+			boolean removed = false;
+			// Client and command stub lists are filled in the same order
+			for (int i = commandStubs.size() - 1; i >= 0; i--) {
+				if (serverId(commandStubs.get(i)).equals(serverId)) {
+					commandStubs.remove(i);
+					if (clientStubs != null && i < clientStubs.size()) {
+						clientStubs.remove(i);
+					}
+					removed = true;
+				}
+			}
+			if (!removed) {
+				return false;
+			}
+			Integer target = replicationTargets.get(key);
+			if (target == null || target < replicasBefore) {
+				replicationTargets.put(key, replicasBefore);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Removes a storage server that has been declared dead from file placement
+	 * and from the replica lists of all files.
+	 * 
+	 * <p>
+	 * Files are kept in the directory tree even if their last replica is gone,
+	 * so that they become available again if the storage server registers
+	 * again.
+	 * 
+	 * @param serverId
+	 *            Id of the dead storage server.
+	 */
+	void storageServerFailed(String serverId) {
+		synchronized (storageServerStubs) {
+			if (storageServerStubs.remove(serverId) == null) {
+				return;
+			}
+		}
+		failureDetector.remove(serverId);
+		System.out.println("Storage server " + serverId + " declared dead");
+
+		synchronized (directoryTree) {
+			for (Entry<String, List<Command>> entry : commandStubsForFile
+					.entrySet()) {
+				List<Command> commandStubs = entry.getValue();
+				List<Storage> clientStubs = clientStubsForFile
+						.get(entry.getKey());
+				int replicasBefore = commandStubs.size();
+				// Client and command stub lists are filled in the same order
+				for (int i = commandStubs.size() - 1; i >= 0; i--) {
+					if (serverId(commandStubs.get(i)).equals(serverId)) {
+						commandStubs.remove(i);
+						if (clientStubs != null && i < clientStubs.size()) {
+							clientStubs.remove(i);
+						}
+					}
+				}
+				if (commandStubs.size() < replicasBefore
+						&& !isDirectoryPath(entry.getKey())) {
+					Integer target = replicationTargets.get(entry.getKey());
+					if (target == null || target < replicasBefore) {
+						replicationTargets.put(entry.getKey(), replicasBefore);
+					}
+				}
+			}
+		}
+		reReplicationScheduler.schedule();
+	}
+
+	/**
+	 * Returns the files that have fewer live replicas than their replication
+	 * target, mapped to their number of live replicas.
+	 */
+	Map<String, Integer> underReplicatedFiles() {
+		Map<String, Integer> files = new HashMap<String, Integer>();
+		synchronized (directoryTree) {
+			for (Entry<String, Integer> target : replicationTargets
+					.entrySet()) {
+				List<Command> replicas = commandStubsForFile
+						.get(target.getKey());
+				if (replicas != null && replicas.size() < target.getValue()) {
+					files.put(target.getKey(), replicas.size());
+				}
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Returns the erasure-coded file a cell belongs to, or <code>null</code>
+	 * if the path is not that of a cell.
+	 */
+	String stripedFileOf(String cellPath) {
+		synchronized (directoryTree) {
+			for (Entry<String, StripedFile> entry : stripeMaps.entrySet()) {
+				for (long cell : entry.getValue().cells()) {
+					if (Blocks.path(cell).getPath().equals(cellPath)) {
+						return entry.getKey();
+					}
+				}
+			}
+		}
 		return null;
 	}
 
+	/**
+	 * Returns the file whose lock covers a replicated path: the block file or
+	 * erasure-coded file a block belongs to, or else the path itself.
+	 */
+	Path lockedFileOf(String file) {
+		synchronized (directoryTree) {
+			for (Entry<String, List<Long>> entry : blockMaps.entrySet()) {
+				for (long block : entry.getValue()) {
+					if (Blocks.path(block).getPath().equals(file)) {
+						return new Path(entry.getKey());
+					}
+				}
+			}
+		}
+		String striped = stripedFileOf(file);
+		return new Path(striped != null ? striped : file);
+	}
+
+	/**
+	 * Returns the IDs of the storage servers holding a cell of the same
+	 * stripe as a cell, or of the same tail, the cell itself included. The
+	 * set is empty if the path is not that of a cell.
+	 */
+	Set<String> stripeServerIds(String cellPath) {
+		Set<String> ids = new HashSet<String>();
+		synchronized (directoryTree) {
+			for (StripedFile striped : stripeMaps.values()) {
+				for (long[] group : striped.groups()) {
+					List<String> paths = new ArrayList<String>();
+					for (long cell : group) {
+						paths.add(Blocks.path(cell).getPath());
+					}
+					if (paths.contains(cellPath)) {
+						for (String path : paths) {
+							ids.addAll(replicaServerIds(path));
+						}
+						return ids;
+					}
+				}
+			}
+		}
+		return ids;
+	}
+
+	/** Returns the client stubs of the live replicas of a file. */
+	List<Storage> liveReplicas(String file) {
+		synchronized (directoryTree) {
+			List<Storage> replicas = clientStubsForFile.get(file);
+			if (replicas == null) {
+				return new ArrayList<Storage>();
+			}
+			return new ArrayList<Storage>(replicas);
+		}
+	}
+
+	/** Returns the ids of the storage servers holding a file. */
+	Set<String> replicaServerIds(String file) {
+		Set<String> ids = new HashSet<String>();
+		synchronized (directoryTree) {
+			List<Command> replicas = commandStubsForFile.get(file);
+			if (replicas != null) {
+				for (Command replica : replicas) {
+					ids.add(serverId(replica));
+				}
+			}
+		}
+		return ids;
+	}
+
+	/** Returns a snapshot of the registered storage servers. */
+	List<Map<String, Object>> liveServers() {
+		synchronized (storageServerStubs) {
+			List<Map<String, Object>> servers = new ArrayList<Map<String, Object>>();
+			for (Map<String, Object> stubs : storageServerStubs.values()) {
+				servers.add(new HashMap<String, Object>(stubs));
+			}
+			return servers;
+		}
+	}
+
+	/**
+	 * Adds a new replica of a file to its replica lists.
+	 * 
+	 * @return <code>false</code> if the file has been deleted in the meantime.
+	 */
+	boolean addReplica(String file, Storage client_stub,
+			Command command_stub) {
+		synchronized (directoryTree) {
+			List<Command> commandStubs = commandStubsForFile.get(file);
+			List<Storage> clientStubs = clientStubsForFile.get(file);
+			if (commandStubs == null || clientStubs == null) {
+				return false;
+			}
+			commandStubs.add(command_stub);
+			clientStubs.add(client_stub);
+			return true;
+		}
+	}
+
+	/** Returns the files, but not directories, held by a storage server. */
+	List<String> filesOnServer(String serverId) {
+		List<String> files = new ArrayList<String>();
+		synchronized (directoryTree) {
+			for (Entry<String, List<Command>> entry : commandStubsForFile
+					.entrySet()) {
+				if (isDirectoryPath(entry.getKey())) {
+					continue;
+				}
+				for (Command replica : entry.getValue()) {
+					if (serverId(replica).equals(serverId)) {
+						files.add(entry.getKey());
+						break;
+					}
+				}
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Replaces the replica of a file held by one storage server with a replica
+	 * on another storage server.
+	 * 
+	 * @return <code>false</code> if the file has been deleted, or the source
+	 *         server no longer holds it.
+	 */
+	boolean swapReplica(String file, String sourceServerId,
+			Storage client_stub, Command command_stub) {
+		synchronized (directoryTree) {
+			List<Command> commandStubs = commandStubsForFile.get(file);
+			List<Storage> clientStubs = clientStubsForFile.get(file);
+			if (commandStubs == null || clientStubs == null) {
+				return false;
+			}
+			for (int i = 0; i < commandStubs.size(); i++) {
+				if (serverId(commandStubs.get(i)).equals(sourceServerId)) {
+					commandStubs.set(i, command_stub);
+					clientStubs.set(i, client_stub);
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/** Checks whether a path names a directory in the directory tree. */
+	private boolean isDirectoryPath(String path) {
+		Hashtable<String, Directory> currentDirs = directoryTree.getSubDirs();
+		for (java.nio.file.Path name : Paths.get(path)) {
+			Directory dir = currentDirs.get(name.toString());
+			if (dir == null) {
+				return false;
+			}
+			currentDirs = dir.getSubDirs();
+		}
+		return true;
+	}
+
+	/**
+	 * Identifies a storage server by the address of its command stub.
+	 * 
+	 * <p>
+	 * Stubs forward <code>equals</code> and <code>hashCode</code> to the remote
+	 * server, so they cannot be compared or hashed directly.
+	 */
+	static String serverId(Command command_stub) {
+		if (Proxy.isProxyClass(command_stub.getClass())) {
+			InvocationHandler handler = Proxy
+					.getInvocationHandler(command_stub);
+			if (handler instanceof InvocationHandlerImpl) {
+				InvocationHandlerImpl<?> stubHandler = (InvocationHandlerImpl<?>) handler;
+				return stubHandler.getAddress() + ":" + stubHandler.getPort();
+			}
+		}
+		return command_stub.getClass().getName() + "@"
+				+ Integer.toHexString(System.identityHashCode(command_stub));
+	}
+
 	public boolean addFilesToDirectoryTree(Set<Path> files, Storage client_stub,
 			Command command_stub) {
 		try {
@@ -469,12 +1374,11 @@ public class NamingServer implements Service, Registration, Serializable {
 								currentDir.getSubDirs().put(
 										path.getName(i).toString(), newDir);
 
-								String currSubPath = null;
-								if (i == 0) {
-									currSubPath = path.toString();
-								} else {
-									currSubPath = path.subpath(0, i).toString();
-								}
+								// Keyed like createDirectory, not under the
+								// file's own path, which would list this
+								// server as a second replica of the file
+								String currSubPath = "/"
+										+ path.subpath(0, i + 1).toString();
 
 								// Add storage stubs for the directory
 								if (!commandStubsForFile
@@ -604,4 +1508,46 @@ public class NamingServer implements Service, Registration, Serializable {
 		return null;
 	}
 
+	/** Layout of an erasure-coded file. */
+	private static class StripedFile implements Serializable {
+		private static final long serialVersionUID = -6216349071525914713L;
+
+		final int dataCells;
+		final int parityCells;
+		// Block IDs of the cells of each stripe, data cells first
+		final List<long[]> stripes = new ArrayList<long[]>();
+		// Cells of the partial last row, and of the next one being written
+		long[] tail;
+		long[] staged;
+		long length;
+
+		StripedFile(int dataCells, int parityCells) {
+			this.dataCells = dataCells;
+			this.parityCells = parityCells;
+		}
+
+		/**
+		 * Returns the block IDs of the cells of each stripe, then of the
+		 * tail and staged tail if there are any.
+		 */
+		List<long[]> groups() {
+			List<long[]> groups = new ArrayList<long[]>(stripes);
+			if (tail != null) {
+				groups.add(tail);
+			}
+			if (staged != null) {
+				groups.add(staged);
+			}
+			return groups;
+		}
+
+		/** Returns the block IDs of all cells of the file. */
+		List<Long> cells() {
+			List<Long> cells = new ArrayList<Long>();
+			for (long[] group : groups()) {
+				cells.addAll(cellList(group));
+			}
+			return cells;
+		}
+	}
 }
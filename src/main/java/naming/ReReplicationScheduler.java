@@ -0,0 +1,408 @@
+package naming;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import common.Path;
+import common.ReedSolomon;
+import common.ThroughputLimiter;
+import rmi.RMIException;
+import storage.Blocks;
+import storage.Command;
+import storage.Storage;
+
+/**
+ * Restores the replication level of files after storage servers are lost.
+ *
+ * <p>
+ * The scheduler wakes up whenever a storage server is declared dead, and
+ * periodically otherwise. It asks the naming server for the files that have
+ * fewer live replicas than their replication target and copies them from a
+ * surviving replica to a healthy storage server using
+ * <code>Command.copy</code>. Files with the fewest surviving copies are
+ * copied first. All copies share one cluster-wide bandwidth budget so that
+ * recovery does not swamp client traffic: each of the copy workers gets an
+ * equal share, which the target server meters chunk by chunk. A file is
+ * locked for shared access while it is copied and its new replica
+ * registered, which keeps writers out. A file whose copy fails is retried
+ * after a delay that doubles with every failure, up to
+ * <code>MAX_RETRY_DELAY</code>.
+ *
+ * <p>
+ * A cell of an erasure-coded file has a single replica, so a lost cell
+ * cannot be copied. It is rebuilt instead, row by row, from <code>k</code>
+ * other cells of its stripe, on a server holding no cell of that stripe,
+ * under the same budget and locking as a copy.
+ */
+public class ReReplicationScheduler extends Thread {
+
+	/** Default cluster-wide replication budget, in bytes per second. */
+	public static final long DEFAULT_BANDWIDTH = 64L * 1024 * 1024;
+
+	private static final int COPY_WORKERS = 4;
+	private static final long RESCAN_INTERVAL = 5000;
+	private static final long MAX_RETRY_DELAY = 10 * 60 * 1000;
+
+	private NamingServer namingServer;
+	private long bytesPerSecond;
+	private ThreadPoolExecutor copyWorkers;
+	private Set<String> inFlight;
+	private Set<String> reportedLost;
+	// Failed copies, by file, and when each may be tried again
+	private Map<String, Retry> retries;
+	private boolean scheduled = false;
+	private volatile boolean askedToStopThread = false;
+
+	public ReReplicationScheduler(NamingServer namingServer,
+			long bytesPerSecond) {
+		this.namingServer = namingServer;
+		this.bytesPerSecond = bytesPerSecond;
+		this.copyWorkers = new ThreadPoolExecutor(COPY_WORKERS, COPY_WORKERS,
+				0, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>());
+		this.inFlight = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		this.reportedLost = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		this.retries = new ConcurrentHashMap<String, Retry>();
+		setDaemon(true);
+	}
+
+	public ReReplicationScheduler(NamingServer namingServer) {
+		this(namingServer, DEFAULT_BANDWIDTH);
+	}
+
+	public void run() {
+		while (!askedToStopThread) {
+			try {
+				waitForWork();
+			} catch (InterruptedException e) {
+				break;
+			}
+
+			Map<String, Integer> underReplicated = namingServer
+					.underReplicatedFiles();
+			// Files back at their target need no more retries
+			retries.keySet().retainAll(underReplicated.keySet());
+			List<Entry<String, Integer>> files = new ArrayList<Entry<String, Integer>>(
+					underReplicated.entrySet());
+			long now = System.currentTimeMillis();
+			for (Entry<String, Integer> file : files) {
+				int survivors = file.getValue();
+				String striped = null;
+				if (survivors == 0) {
+					striped = namingServer.stripedFileOf(file.getKey());
+				}
+				if (survivors == 0 && striped == null) {
+					// Nothing to copy from until a replica comes back
+					if (reportedLost.add(file.getKey())) {
+						System.out.println("No live replica of "
+								+ file.getKey() + ", cannot re-replicate");
+					}
+					continue;
+				}
+				reportedLost.remove(file.getKey());
+				Retry retry = retries.get(file.getKey());
+				if (retry != null && retry.notBefore > now) {
+					continue;
+				}
+				if (inFlight.add(file.getKey())) {
+					copyWorkers.execute(new ReplicationTask(file.getKey(),
+							striped, survivors));
+				}
+			}
+		}
+		copyWorkers.shutdownNow();
+	}
+
+	/** Asks the scheduler to look for under-replicated files right away. */
+	public synchronized void schedule() {
+		scheduled = true;
+		notifyAll();
+	}
+
+	public void stopGracefully() {
+		askedToStopThread = true;
+		interrupt();
+	}
+
+	private synchronized void waitForWork() throws InterruptedException {
+		if (!scheduled) {
+			wait(RESCAN_INTERVAL);
+		}
+		scheduled = false;
+	}
+
+	/** Copies one file from a surviving replica to a healthy server. */
+	private void replicate(String file) {
+		boolean copied = false;
+		try {
+			List<Storage> sources = namingServer.liveReplicas(file);
+			if (sources.isEmpty()) {
+				return;
+			}
+			Storage source = sources.get(new Random().nextInt(sources.size()));
+			Map<String, Object> target = chooseTarget(file);
+			if (target == null) {
+				System.out.println(
+						"No healthy storage server to re-replicate " + file);
+				return;
+			}
+
+			Path path = new Path(file);
+			Path locked = namingServer.lockedFileOf(file);
+			Command command_stub = (Command) target.get("command_stub");
+			// Writers are kept out until the new replica is registered, so
+			// it cannot miss a write. A block is written under the lock of
+			// its file.
+			namingServer.lockFile(locked, false);
+			try {
+				if (command_stub.copy(path, source,
+						bytesPerSecond / COPY_WORKERS)) {
+					copied = namingServer.addReplica(file,
+							(Storage) target.get("client_stub"), command_stub);
+					if (!copied) {
+						// Deleted meanwhile; leave no orphaned copy behind
+						command_stub.delete(path);
+					}
+				}
+			} finally {
+				namingServer.unlockFile(locked, false);
+			}
+		} catch (Throwable t) {
+			System.out.println(
+					"Re-replication of " + file + " failed : " + t.getMessage());
+		} finally {
+			finished(file, copied);
+		}
+	}
+
+	/**
+	 * Rebuilds a lost cell of an erasure-coded file from the other cells of
+	 * its stripe.
+	 */
+	private void rebuild(String cellPath, String file) {
+		boolean rebuilt = false;
+		try {
+			Path path = new Path(file);
+			// Writers are kept out, so no row is committed meanwhile
+			namingServer.lockFile(path, false);
+			try {
+				rebuilt = rebuildCell(cellPath,
+						namingServer.getStripeMap(path));
+			} finally {
+				namingServer.unlockFile(path, false);
+			}
+		} catch (Throwable t) {
+			System.out.println("Rebuilding " + cellPath + " of " + file
+					+ " failed : " + t.getMessage());
+		} finally {
+			finished(cellPath, rebuilt);
+		}
+	}
+
+	/**
+	 * Rebuilds the committed rows of a lost cell on a server holding no cell
+	 * of its stripe, and registers it there.
+	 *
+	 * @return <code>false</code> if the cell could not be rebuilt now.
+	 */
+	private boolean rebuildCell(String cellPath, StripeMap map)
+			throws IOException, RMIException, InterruptedException {
+		int dataCells = map.getDataCells();
+		int width = dataCells + map.getParityCells();
+		long fullRows = map.getLength() / map.getRowSize();
+		long[] cells = new long[width];
+		Storage[] holders = new Storage[width];
+		int rows = -1;
+		for (int s = 0; s < map.getStripeCount() && rows < 0; s++) {
+			for (int c = 0; c < width; c++) {
+				cells[c] = map.getCell(s, c);
+				holders[c] = map.getHolder(s, c);
+			}
+			if (indexOf(cells, cellPath) >= 0) {
+				long first = (long) s * map.getRowsPerStripe();
+				rows = (int) Math.max(0,
+						Math.min(map.getRowsPerStripe(), fullRows - first));
+			}
+		}
+		if (rows < 0 && map.hasTail()) {
+			for (int c = 0; c < width; c++) {
+				cells[c] = map.getTailCell(c);
+				holders[c] = map.getTailHolder(c);
+			}
+			if (indexOf(cells, cellPath) >= 0) {
+				rows = 1;
+			}
+		}
+		if (rows < 0) {
+			// A staged tail is rewritten by its writer, not rebuilt
+			System.out.println(cellPath + " is not a committed cell of "
+					+ map.getFile());
+			return false;
+		}
+		int lost = indexOf(cells, cellPath);
+
+		Map<String, Object> target = chooseTarget(
+				namingServer.stripeServerIds(cellPath));
+		if (target == null) {
+			System.out.println("No storage server free of the stripe of "
+					+ cellPath + " to rebuild it");
+			return false;
+		}
+		Command command_stub = (Command) target.get("command_stub");
+		Storage client_stub = (Storage) target.get("client_stub");
+		if (!command_stub.createBlock(cells[lost])) {
+			return false;
+		}
+
+		boolean added = false;
+		try {
+			ReedSolomon code = new ReedSolomon(dataCells, width - dataCells);
+			ThroughputLimiter limiter = new ThroughputLimiter(
+					bytesPerSecond / COPY_WORKERS);
+			byte[][] shards = new byte[width][StripeMap.CELL_SIZE];
+			boolean[] present = new boolean[width];
+			for (int row = 0; row < rows; row++) {
+				int offset = row * StripeMap.CELL_SIZE;
+				Arrays.fill(present, false);
+				int read = 0;
+				for (int c = 0; c < width && read < dataCells; c++) {
+					if (c == lost || holders[c] == null) {
+						continue;
+					}
+					limiter.acquire(StripeMap.CELL_SIZE);
+					try {
+						byte[] piece = holders[c].readBlock(cells[c], offset,
+								StripeMap.CELL_SIZE);
+						System.arraycopy(piece, 0, shards[c], 0,
+								StripeMap.CELL_SIZE);
+						present[c] = true;
+						read++;
+					} catch (IOException | RMIException e) {
+						// Another cell of the stripe may do
+					}
+				}
+				if (read < dataCells) {
+					throw new IOException("only " + read + " of " + dataCells
+							+ " cells needed are readable");
+				}
+				code.decode(shards, present, 0, StripeMap.CELL_SIZE);
+				if (lost >= dataCells) {
+					code.encode(shards, 0, StripeMap.CELL_SIZE);
+				}
+				client_stub.writeBlock(cells[lost], offset, shards[lost]);
+			}
+			added = namingServer.addReplica(cellPath, client_stub,
+					command_stub);
+			return added;
+		} finally {
+			if (!added) {
+				// Failed or deleted meanwhile; leave no partial cell behind
+				command_stub.deleteBlock(cells[lost]);
+			}
+		}
+	}
+
+	/** Returns the index of the cell kept under a path, or <code>-1</code>. */
+	private static int indexOf(long[] cells, String cellPath) {
+		for (int c = 0; c < cells.length; c++) {
+			if (Blocks.path(cells[c]).getPath().equals(cellPath)) {
+				return c;
+			}
+		}
+		return -1;
+	}
+
+	/** Records the outcome of a copy or rebuild of a file. */
+	private void finished(String file, boolean done) {
+		if (done) {
+			retries.remove(file);
+		} else {
+			retries.compute(file, (key, retry) -> new Retry(retry));
+		}
+		inFlight.remove(file);
+		if (done) {
+			// The file may still be below its target. It is out of flight
+			// first, or the scan would pass it over until the next rescan.
+			schedule();
+		}
+	}
+
+	/**
+	 * Picks the least used live storage server that does not hold the file.
+	 */
+	private Map<String, Object> chooseTarget(String file) {
+		return chooseTarget(namingServer.replicaServerIds(file));
+	}
+
+	/** Picks the least used live storage server not among the given ones. */
+	private Map<String, Object> chooseTarget(Set<String> holders) {
+		Map<String, Object> target = null;
+		for (Map<String, Object> server : namingServer.liveServers()) {
+			if (holders.contains(server.get("id"))) {
+				continue;
+			}
+			if (target == null || (Long) server.get("size") < (Long) target
+					.get("size")) {
+				target = server;
+			}
+		}
+		return target;
+	}
+
+	/** Failed copies of a file, and when it may be copied again. */
+	private static class Retry {
+		final long delay;
+		final long notBefore;
+
+		Retry(Retry previous) {
+			delay = previous == null ? RESCAN_INTERVAL
+					: Math.min(2 * previous.delay, MAX_RETRY_DELAY);
+			notBefore = System.currentTimeMillis() + delay;
+		}
+	}
+
+	/**
+	 * Queued copy, or rebuild of a lost cell, ordered by the number of
+	 * surviving replicas.
+	 */
+	private class ReplicationTask
+			implements Runnable, Comparable<ReplicationTask> {
+		private String file;
+		// Erasure-coded file the lost cell belongs to, if it is one
+		private String striped;
+		private int survivors;
+
+		ReplicationTask(String file, String striped, int survivors) {
+			this.file = file;
+			this.striped = striped;
+			this.survivors = survivors;
+		}
+
+		@Override
+		public void run() {
+			if (striped != null) {
+				rebuild(file, striped);
+			} else {
+				replicate(file);
+			}
+		}
+
+		@Override
+		public int compareTo(ReplicationTask other) {
+			return Integer.compare(survivors, other.survivors);
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package naming;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Progress of a cluster rebalancing run, as reported to clients.
+ */
+public class RebalanceStatus implements Serializable {
+
+	private static final long serialVersionUID = -2201746398829146620L;
+	private boolean running;
+	private String state;
+	private int filesMoved;
+	private long bytesMoved;
+	private int failedMoves;
+	private double meanUtilisation;
+	private Map<String, Double> utilisation;
+
+	public RebalanceStatus(boolean running, String state, int filesMoved,
+			long bytesMoved, int failedMoves, double meanUtilisation,
+			Map<String, Double> utilisation) {
+		this.running = running;
+		this.state = state;
+		this.filesMoved = filesMoved;
+		this.bytesMoved = bytesMoved;
+		this.failedMoves = failedMoves;
+		this.meanUtilisation = meanUtilisation;
+		this.utilisation = new HashMap<String, Double>(utilisation);
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public String getState() {
+		return state;
+	}
+
+	public int getFilesMoved() {
+		return filesMoved;
+	}
+
+	public long getBytesMoved() {
+		return bytesMoved;
+	}
+
+	public int getFailedMoves() {
+		return failedMoves;
+	}
+
+	public double getMeanUtilisation() {
+		return meanUtilisation;
+	}
+
+	/** Estimated utilisation of each storage server, keyed by server id. */
+	public Map<String, Double> getUtilisation() {
+		return utilisation;
+	}
+}
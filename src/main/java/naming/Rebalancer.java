@@ -0,0 +1,309 @@
+package naming;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import common.Path;
+import storage.Command;
+import storage.Storage;
+
+/**
+ * Moves files from over-utilised to under-utilised storage servers.
+ *
+ * <p>
+ * Utilisation is taken from the size reports storage servers send with their
+ * heartbeats, and is then tracked locally as files are moved, since reports
+ * lag behind. Each move copies the file to the target server while the file
+ * is locked for shared access, which keeps writers out, swaps the source
+ * replica for the new one, and finally deletes the source copy under an
+ * exclusive lock, once readers that may still use the old replica are done.
+ * A block is moved under the lock of its file. The target server meters
+ * each copy chunk by chunk at the rebalancing rate, so moves never run
+ * faster than that rate, not even in bursts. The rebalancer stops when every
+ * server is within the configured band around the mean utilisation, or when
+ * no more files can be moved.
+ */
+public class Rebalancer extends Thread {
+
+	/** Default allowed distance from the mean utilisation. */
+	public static final double DEFAULT_BAND = 0.10;
+	/** Default rebalancing throughput, in bytes per second. */
+	public static final long DEFAULT_BANDWIDTH = 32L * 1024 * 1024;
+
+	private static final int CANDIDATES_PER_MOVE = 32;
+	private static final int MAX_CONSECUTIVE_FAILURES = 10;
+
+	private NamingServer namingServer;
+	private double band;
+	private long bytesPerSecond;
+	private volatile boolean askedToStopThread = false;
+
+	// Progress, guarded by this
+	private boolean running = true;
+	private String state = "starting";
+	private int filesMoved = 0;
+	private long bytesMoved = 0;
+	private int failedMoves = 0;
+	private Map<String, ServerLoad> loads = new HashMap<String, ServerLoad>();
+
+	public Rebalancer(NamingServer namingServer, double band,
+			long bytesPerSecond) {
+		this.namingServer = namingServer;
+		this.band = band;
+		this.bytesPerSecond = bytesPerSecond;
+		setDaemon(true);
+	}
+
+	public void run() {
+		try {
+			synchronized (this) {
+				loads = currentLoads();
+			}
+			rebalance();
+		} catch (InterruptedException e) {
+			finish("stopped");
+		} catch (Throwable t) {
+			System.out.println("Rebalancing failed : " + t.getMessage());
+			finish("failed: " + t.getMessage());
+		}
+	}
+
+	public void stopGracefully() {
+		askedToStopThread = true;
+		interrupt();
+	}
+
+	/** Returns a snapshot of the progress of this run. */
+	public synchronized RebalanceStatus getStatus() {
+		Map<String, Double> utilisation = new HashMap<String, Double>();
+		for (ServerLoad load : loads.values()) {
+			utilisation.put(load.id, load.utilisation());
+		}
+		return new RebalanceStatus(running, state, filesMoved, bytesMoved,
+				failedMoves, meanUtilisation(), utilisation);
+	}
+
+	private void rebalance() throws InterruptedException {
+		Set<String> exhausted = new HashSet<String>();
+		int consecutiveFailures = 0;
+
+		while (!askedToStopThread) {
+			ServerLoad source = null;
+			ServerLoad target = null;
+			double mean;
+			synchronized (this) {
+				if (loads.size() < 2) {
+					finish("fewer than two storage servers report their size");
+					return;
+				}
+				mean = meanUtilisation();
+				if (isBalanced(mean)) {
+					finish("balanced");
+					return;
+				}
+				for (ServerLoad load : loads.values()) {
+					if (!exhausted.contains(load.id) && (source == null
+							|| load.utilisation() > source.utilisation())) {
+						source = load;
+					}
+					if (target == null
+							|| load.utilisation() < target.utilisation()) {
+						target = load;
+					}
+				}
+				if (source == null || source == target
+						|| source.utilisation() <= mean) {
+					finish("no more files can be moved");
+					return;
+				}
+				state = "moving files from " + source.id + " to "
+						+ target.id;
+			}
+
+			long wanted = Math.min(
+					source.used - (long) (mean * source.capacity),
+					(long) (mean * target.capacity) - target.used);
+			Map.Entry<String, Long> file = pickFile(source, target, wanted);
+			if (file == null) {
+				exhausted.add(source.id);
+				continue;
+			}
+
+			if (move(file.getKey(), file.getValue(), source, target)) {
+				consecutiveFailures = 0;
+			} else if (++consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+				finish("too many failed moves");
+				return;
+			}
+		}
+		finish("stopped");
+	}
+
+	/**
+	 * Picks a file on the source that the target does not hold, preferring
+	 * the largest file that does not overshoot the wanted number of bytes. A
+	 * cell of an erasure-coded file is not moved to a server holding another
+	 * cell of its stripe, where one failure would take both.
+	 */
+	private Map.Entry<String, Long> pickFile(ServerLoad source,
+			ServerLoad target, long wanted) {
+		List<String> candidates = new ArrayList<String>(
+				namingServer.filesOnServer(source.id));
+		Collections.shuffle(candidates);
+
+		String best = null;
+		long bestSize = 0;
+		int examined = 0;
+		for (String file : candidates) {
+			if (examined == CANDIDATES_PER_MOVE) {
+				break;
+			}
+			if (namingServer.replicaServerIds(file).contains(target.id)
+					|| namingServer.stripeServerIds(file)
+							.contains(target.id)) {
+				continue;
+			}
+			examined++;
+			long size;
+			try {
+				size = source.client_stub.size(new Path(file));
+			} catch (Throwable t) {
+				continue;
+			}
+			if (size <= 0 || size >= 2 * wanted) {
+				// Moving it would not reduce the imbalance
+				continue;
+			}
+			boolean fits = size <= wanted;
+			boolean bestFits = best != null && bestSize <= wanted;
+			if (best == null || (fits && !bestFits)
+					|| (fits == bestFits && (fits ? size > bestSize
+							: size < bestSize))) {
+				best = file;
+				bestSize = size;
+			}
+		}
+		if (best == null) {
+			return null;
+		}
+		return new AbstractMap.SimpleEntry<String, Long>(best, bestSize);
+	}
+
+	/** Moves one file, returning <code>true</code> on success. */
+	private boolean move(String file, long size, ServerLoad source,
+			ServerLoad target) {
+		Path path = new Path(file);
+		Path locked = namingServer.lockedFileOf(file);
+
+		boolean swapped = false;
+		try {
+			namingServer.lockFile(locked, false);
+			try {
+				if (target.command_stub.copy(path, source.client_stub,
+						bytesPerSecond)) {
+					swapped = namingServer.swapReplica(file, source.id,
+							target.client_stub, target.command_stub);
+				}
+			} finally {
+				namingServer.unlockFile(locked, false);
+			}
+		} catch (Throwable t) {
+			System.out.println("Moving " + file + " from " + source.id + " to "
+					+ target.id + " failed : " + t.getMessage());
+		}
+
+		// The copy no longer listed is deleted whatever became of the move
+		try {
+			if (!swapped) {
+				target.command_stub.delete(path);
+			} else {
+				namingServer.lockFile(locked, true);
+				try {
+					source.command_stub.delete(path);
+				} finally {
+					namingServer.unlockFile(locked, true);
+				}
+			}
+		} catch (Throwable t) {
+			System.out.println("Cannot delete the old copy of " + file
+					+ " on " + (swapped ? source.id : target.id) + " : "
+					+ t.getMessage());
+		}
+
+		synchronized (this) {
+			if (!swapped) {
+				failedMoves++;
+				return false;
+			}
+			source.used -= size;
+			target.used += size;
+			filesMoved++;
+			bytesMoved += size;
+			return true;
+		}
+	}
+
+	private boolean isBalanced(double mean) {
+		for (ServerLoad load : loads.values()) {
+			if (Math.abs(load.utilisation() - mean) > band) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private double meanUtilisation() {
+		long used = 0;
+		long capacity = 0;
+		for (ServerLoad load : loads.values()) {
+			used += load.used;
+			capacity += load.capacity;
+		}
+		return capacity == 0 ? 0 : (double) used / capacity;
+	}
+
+	private synchronized void finish(String finalState) {
+		running = false;
+		state = finalState;
+	}
+
+	/** Builds the load model from the latest heartbeat of each server. */
+	private Map<String, ServerLoad> currentLoads() {
+		Map<String, ServerLoad> current = new HashMap<String, ServerLoad>();
+		for (Map<String, Object> server : namingServer.liveServers()) {
+			HeartbeatReport report = (HeartbeatReport) server.get("report");
+			if (report == null) {
+				continue;
+			}
+			ServerLoad load = new ServerLoad();
+			load.id = (String) server.get("id");
+			load.client_stub = (Storage) server.get("client_stub");
+			load.command_stub = (Command) server.get("command_stub");
+			load.used = report.getUsedBytes();
+			load.capacity = report.getUsedBytes() + report.getFreeBytes();
+			if (load.capacity > 0) {
+				current.put(load.id, load);
+			}
+		}
+		return current;
+	}
+
+	/** Estimated load of one storage server. */
+	private static class ServerLoad {
+		String id;
+		Storage client_stub;
+		Command command_stub;
+		long used;
+		long capacity;
+
+		double utilisation() {
+			return (double) used / capacity;
+		}
+	}
+}
@@ -7,7 +7,9 @@ import rmi.RMIException;
 /** Naming server registration interface.
 
     <p>
-    This interface is used once, on startup, by each storage server.
+    This interface is used once, on startup, by each storage server to
+    register, and then periodically to report that the storage server is still
+    alive.
  */
 public interface Registration
 {
@@ -52,4 +54,95 @@ public interface Registration
      */
     public Path[] register(Storage client_stub, Command command_stub,
                            Path[] files) throws RMIException;
+
+    /** Reports that a registered storage server is alive.
+
+        <p>
+        Storage servers call this method at a fixed interval after registering.
+        The naming server feeds the arrival times into a failure detector. A
+        storage server whose heartbeats stop arriving is declared dead, and is
+        removed from file placement and from the replica lists used to route
+        client requests.
+
+        @param command_stub Command service stub of the storage server, as
+                            given during registration. It identifies the
+                            storage server.
+        @param report Current liveness and load figures of the storage server.
+        @return <code>true</code> if the storage server is registered with the
+                naming server, <code>false</code> if it is unknown - for
+                example because it has been declared dead. In the latter case
+                the storage server must register again.
+        @throws NullPointerException If any of the arguments is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public boolean heartbeat(Command command_stub, HeartbeatReport report)
+        throws RMIException;
+
+    /** Reports the blocks held by a storage server.
+
+        <p>
+        Storage servers call this method right after registering. Replicas of
+        blocks that belong to a block file known to the naming server become
+        available to clients again. Other blocks are left alone, as the block
+        maps are only kept in memory by the naming server.
+
+        @param client_stub Storage server client service stub.
+        @param command_stub Storage server command service stub.
+        @param blocks IDs of the blocks the storage server holds.
+        @throws NullPointerException If any of the arguments is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void reportBlocks(Storage client_stub, Command command_stub,
+                             long[] blocks) throws RMIException;
+
+    /** Reports that a storage server holds a corrupt copy of a file.
+
+        <p>
+        Storage servers call this method when data on their disks no longer
+        matches its checksums. If other replicas of the file are live, the
+        naming server stops routing clients to the corrupt copy and copies the
+        file again from a good replica. The last replica of a file is left in
+        service, as partly damaged data is better than none.
+
+        @param command_stub Command service stub of the reporting storage
+                            server, as given during registration.
+        @param file Path to the corrupt file or block.
+        @return <code>true</code> if the copy was taken out of service and the
+                storage server should delete it, <code>false</code> if it must
+                be kept.
+        @throws NullPointerException If any of the arguments is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public boolean reportCorrupt(Command command_stub, Path file)
+        throws RMIException;
+
+    /** Reports that a storage server lost its copies of files.
+
+        <p>
+        Storage servers call this method when a disk fails. The naming server
+        stops routing clients to the lost copies and copies the files again
+        from other replicas. Unlike corrupt copies, lost copies are taken out
+        of service even if they are the last replica, since there is nothing
+        left to read; such files stay in the directory tree, as the files of
+        a dead storage server do.
+
+        @param command_stub Command service stub of the reporting storage
+                            server, as given during registration.
+        @param files Paths to the lost files.
+        @return The files whose copies were taken out of service, which the
+                storage server should delete. Files the storage server was not
+                known to host are left out.
+        @throws NullPointerException If any of the arguments is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Path[] reportLost(Command command_stub, Path[] files)
+        throws RMIException;
 }
@@ -1,6 +1,7 @@
 package naming;
 
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import common.Path;
 
@@ -10,6 +11,7 @@ public class ReplicationHandler extends Thread {
 
 	public ReplicationHandler(NamingServer namingServer) {
 		this.namingServer = namingServer;
+		this.fileQueue = new ConcurrentLinkedQueue<Path>();
 	}
 
 	public void run() {
@@ -228,4 +228,238 @@ public interface Service
      */
     public Storage getStorage(Path file)
         throws RMIException, FileNotFoundException;
+
+    /** Returns stubs for all the storage servers hosting a file.
+
+        <p>
+        The first server is the primary replica of the file. It stays first
+        for as long as it is alive, so appenders that go through it agree on
+        the order of their appends; see {@link storage.Storage#append}.
+
+        @param file Path to the file.
+        @return Stubs for the storage servers hosting the file, primary replica
+                first.
+        @throws FileNotFoundException If the file does not exist, or no live
+                                      storage server hosts it.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Storage[] getReplicas(Path file)
+        throws RMIException, FileNotFoundException;
+
+    /** Creates an empty block file, if no file or directory of that name
+        exists.
+
+        <p>
+        A block file is not kept on a single storage server. Its contents are
+        split into blocks of {@link storage.Blocks#BLOCK_SIZE} bytes, and every
+        block is placed and replicated on its own. Block files are read and
+        written through their block map rather than through
+        <code>getStorage</code>.
+
+        <p>
+        The parent directory should be locked for exclusive access before this
+        operation is performed.
+
+        @param file Path at which the file is to be created.
+        @return <code>true</code> if the file is created successfully,
+                <code>false</code> if a file or directory with the given name
+                already exists.
+        @throws FileNotFoundException If the parent directory does not exist.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public boolean createBlockFile(Path file)
+        throws RMIException, FileNotFoundException;
+
+    /** Returns the blocks of a block file and the storage servers holding
+        them.
+
+        <p>
+        The file should be locked for shared access before this call.
+
+        @param file Path to the file.
+        @return The block map of the file.
+        @throws FileNotFoundException If the file does not exist or is not a
+                                      block file.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public BlockMap getBlockMap(Path file)
+        throws RMIException, FileNotFoundException;
+
+    /** Appends an empty block to a block file.
+
+        <p>
+        The block is created on the least utilised storage servers, as many as
+        the block replication factor of the naming server asks for. Writers
+        must write each block to all of its replicas. The file should be
+        locked for exclusive access before this call.
+
+        @param file Path to the file.
+        @return The block map of the file, ending with the new block.
+        @throws FileNotFoundException If the file does not exist or is not a
+                                      block file.
+        @throws IllegalStateException If no storage server could create the
+                                      block.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public BlockMap addBlock(Path file)
+        throws RMIException, FileNotFoundException;
+
+    /** Creates an empty erasure-coded file, if no file or directory of that
+        name exists.
+
+        <p>
+        An erasure-coded file is kept as stripes of Reed-Solomon coded cells
+        rather than as replicas, as described in {@link StripeMap}. It costs
+        <code>(data_cells + parity_cells) / data_cells</code> times its length
+        in storage, and survives the loss of any <code>parity_cells</code>
+        cells of a stripe. It suits cold data, which is written once and read
+        seldom. Erasure-coded files are read and written through their stripe
+        map.
+
+        <p>
+        The parent directory should be locked for exclusive access before this
+        operation is performed.
+
+        @param file Path at which the file is to be created.
+        @param data_cells Number of data cells in each stripe.
+        @param parity_cells Number of parity cells in each stripe.
+        @return <code>true</code> if the file is created successfully,
+                <code>false</code> if a file or directory with the given name
+                already exists.
+        @throws FileNotFoundException If the parent directory does not exist.
+        @throws IllegalArgumentException If a cell count is below one, or a
+                                         stripe would have more than 256
+                                         cells.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public boolean createStripedFile(Path file, int data_cells,
+                                     int parity_cells)
+        throws RMIException, FileNotFoundException;
+
+    /** Returns the stripes of an erasure-coded file and the storage servers
+        holding them.
+
+        <p>
+        The file should be locked for shared access before this call.
+
+        @param file Path to the file.
+        @return The stripe map of the file.
+        @throws FileNotFoundException If the file does not exist or is not
+                                      erasure-coded.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public StripeMap getStripeMap(Path file)
+        throws RMIException, FileNotFoundException;
+
+    /** Appends an empty stripe to an erasure-coded file.
+
+        <p>
+        Every cell of the stripe is created on a different storage server,
+        chosen among the least utilised. The file should be locked for
+        exclusive access before this call.
+
+        @param file Path to the file.
+        @return The stripe map of the file, ending with the new stripe.
+        @throws FileNotFoundException If the file does not exist or is not
+                                      erasure-coded.
+        @throws IllegalStateException If fewer storage servers than cells in a
+                                      stripe could create a cell.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public StripeMap addStripe(Path file)
+        throws RMIException, FileNotFoundException;
+
+    /** Places a staged tail for an erasure-coded file: one empty cell for
+        each data and parity cell of a row, each on a different storage
+        server.
+
+        <p>
+        A partial last row is never written over in place. It is written to
+        the staged tail, which becomes the tail of the file when the new
+        length is recorded by <code>setStripedLength</code>. A tail staged
+        earlier and never committed is deleted. The file should be locked for
+        exclusive access before this call.
+
+        @param file Path to the file.
+        @return The stripe map of the file, with the staged tail.
+        @throws FileNotFoundException If the file does not exist or is not
+                                      erasure-coded.
+        @throws IllegalStateException If fewer storage servers than cells in a
+                                      row could create a cell.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public StripeMap stageTail(Path file)
+        throws RMIException, FileNotFoundException;
+
+    /** Records the length of an erasure-coded file, once the rows holding it
+        have been written to their cells.
+
+        <p>
+        If the new length ends in the middle of a row, the staged tail holding
+        that row becomes the tail of the file. Otherwise any staged tail is
+        dropped. The tail the file had before is deleted either way, so a
+        reader sees either the old last row or the new one, never a mix. The
+        file should be locked for exclusive access before this call.
+
+        @param file Path to the file.
+        @param length New length of the file, in bytes.
+        @param truncate Whether the file may shrink. Stripes no longer needed
+                        by a shorter file are deleted.
+        @throws FileNotFoundException If the file does not exist or is not
+                                      erasure-coded.
+        @throws IllegalArgumentException If the length is negative, does not
+                                         fit in the stripes of the file, or is
+                                         shorter than the file without
+                                         <code>truncate</code>.
+        @throws IllegalStateException If the length ends in the middle of a
+                                      row and no tail is staged.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void setStripedLength(Path file, long length, boolean truncate)
+        throws RMIException, FileNotFoundException;
+
+    /** Starts moving files between storage servers to even out their
+        utilisation.
+
+        <p>
+        Utilisation is the fraction of a storage server's capacity in use, as
+        last reported in its heartbeat. Files are moved from the most to the
+        least utilised servers until every server is within
+        <code>band</code> of the mean utilisation of the cluster. Rebalancing
+        runs in the background; its progress can be followed with
+        <code>rebalanceStatus</code>.
+
+        @param band Allowed distance from the mean utilisation, as a fraction
+                    between <code>0</code> and <code>1</code>.
+        @param bytes_per_second Upper bound on the rate at which file data is
+                                moved, or zero for no limit.
+        @return <code>true</code> if rebalancing has been started,
+                <code>false</code> if a rebalancing run is already in progress.
+        @throws IllegalArgumentException If <code>band</code> is outside
+                                         <code>[0, 1]</code> or
+                                         <code>bytes_per_second</code> is
+                                         negative.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public boolean rebalance(double band, long bytes_per_second)
+        throws RMIException;
+
+    /** Returns the progress of the current or last rebalancing run.
+
+        @return The rebalancing status, or <code>null</code> if rebalancing has
+                never been started on this naming server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public RebalanceStatus rebalanceStatus() throws RMIException;
 }
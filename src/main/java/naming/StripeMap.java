@@ -0,0 +1,156 @@
+package naming;
+
+import java.io.Serializable;
+
+import common.Path;
+import storage.Blocks;
+import storage.Storage;
+
+/**
+ * Snapshot of the stripes of an erasure-coded file and the storage servers
+ * holding them.
+ *
+ * <p>
+ * The file is cut into stripes of <code>k</code> data cells and
+ * <code>m</code> parity cells, each cell being a block on its own storage
+ * server. A stripe is filled in rows of <code>k * CELL_SIZE</code> bytes: row
+ * <code>r</code> puts its <code>k</code> consecutive pieces of
+ * <code>CELL_SIZE</code> bytes at offset <code>r * CELL_SIZE</code> of the
+ * data cells in order, and the Reed-Solomon parity of those pieces at the same
+ * offset of the parity cells. Any <code>k</code> cells of a stripe are enough
+ * to read all of it.
+ *
+ * <p>
+ * Rows are never rewritten in place once the length of the file covers them,
+ * so their parity always matches their data. A last row that is only partly
+ * filled is kept apart, padded with zeros, in a tail of <code>k + m</code>
+ * cells of one row each; completing it or changing it means writing a new
+ * tail, or the full row into its stripe, and then recording the new length,
+ * which switches from the old cells to the new ones at once. A tail placed
+ * for the next such write, but not yet recorded, is the staged tail.
+ */
+public class StripeMap implements Serializable {
+	private static final long serialVersionUID = 5190734316620415735L;
+
+	/** Bytes of a row stored in each cell. */
+	public static final int CELL_SIZE = 1024 * 1024;
+
+	private final Path file;
+	private final int dataCells;
+	private final int parityCells;
+	private final long length;
+	private final long[][] cells;
+	private final Storage[][] holders;
+	private final long[] tail;
+	private final Storage[] tailHolders;
+	private final long[] staged;
+	private final Storage[] stagedHolders;
+
+	public StripeMap(Path file, int dataCells, int parityCells, long length,
+			long[][] cells, Storage[][] holders, long[] tail,
+			Storage[] tailHolders, long[] staged, Storage[] stagedHolders) {
+		this.file = file;
+		this.dataCells = dataCells;
+		this.parityCells = parityCells;
+		this.length = length;
+		this.cells = cells;
+		this.holders = holders;
+		this.tail = tail;
+		this.tailHolders = tailHolders;
+		this.staged = staged;
+		this.stagedHolders = stagedHolders;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	/** Returns the number of data cells of a stripe. */
+	public int getDataCells() {
+		return dataCells;
+	}
+
+	/** Returns the number of parity cells of a stripe. */
+	public int getParityCells() {
+		return parityCells;
+	}
+
+	/** Returns the length of the file, in bytes. */
+	public long getLength() {
+		return length;
+	}
+
+	/** Returns the number of bytes of the file held by one stripe. */
+	public long getStripeCapacity() {
+		return (long) dataCells * Blocks.BLOCK_SIZE;
+	}
+
+	/** Returns the number of bytes of the file held by one row. */
+	public int getRowSize() {
+		return dataCells * CELL_SIZE;
+	}
+
+	/** Returns the number of rows of a stripe. */
+	public int getRowsPerStripe() {
+		return Blocks.BLOCK_SIZE / CELL_SIZE;
+	}
+
+	public int getStripeCount() {
+		return cells.length;
+	}
+
+	/**
+	 * Returns the block ID of a cell of a stripe, the data cells coming
+	 * first.
+	 */
+	public long getCell(int stripe, int cell) {
+		return cells[stripe][cell];
+	}
+
+	/**
+	 * Returns the client stub of the live storage server holding a cell of a
+	 * stripe, or <code>null</code> if the cell is lost.
+	 */
+	public Storage getHolder(int stripe, int cell) {
+		return holders[stripe][cell];
+	}
+
+	/**
+	 * Checks whether the last row of the file is partly filled and kept in
+	 * the tail.
+	 */
+	public boolean hasTail() {
+		return tail != null;
+	}
+
+	/** Returns the block ID of a cell of the tail. */
+	public long getTailCell(int cell) {
+		return tail[cell];
+	}
+
+	/**
+	 * Returns the client stub of the live storage server holding a cell of
+	 * the tail, or <code>null</code> if the cell is lost.
+	 */
+	public Storage getTailHolder(int cell) {
+		return tailHolders[cell];
+	}
+
+	/** Checks whether a tail is staged for the next write of the last row. */
+	public boolean hasStagedTail() {
+		return staged != null;
+	}
+
+	/** Returns the block ID of a cell of the staged tail. */
+	public long getStagedCell(int cell) {
+		return staged[cell];
+	}
+
+	/**
+	 * Returns the client stub of the live storage server holding a cell of
+	 * the staged tail, or <code>null</code> if the cell is lost.
+	 */
+	public Storage getStagedHolder(int cell) {
+		return stagedHolders[cell];
+	}
+}
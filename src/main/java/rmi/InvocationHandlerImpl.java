@@ -29,6 +29,14 @@ public class InvocationHandlerImpl<T>
 		this.port = port;
 	}
 
+	public String getAddress() {
+		return address;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
 	@Override
 	public Object invoke(Object proxy, Method method, Object[] args)
 			throws Throwable {
@@ -0,0 +1,90 @@
+package storage;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-file access counters kept by a storage server.
+ *
+ * <p>
+ * The counters are kept in memory only. They are used to tell hot files from
+ * cold ones, for example to decide which files are worth memory-mapping.
+ */
+public class AccessStatistics {
+
+	private final ConcurrentHashMap<String, FileAccesses> files = new ConcurrentHashMap<String, FileAccesses>();
+	private final long since = System.currentTimeMillis();
+
+	/**
+	 * Records a read of a file.
+	 *
+	 * @return The number of reads of the file recorded so far, including this
+	 *         one.
+	 */
+	public long recordRead(File file) {
+		FileAccesses accesses = accessesOf(file);
+		accesses.lastAccess = System.currentTimeMillis();
+		return accesses.reads.incrementAndGet();
+	}
+
+	/** Records a write to a file. */
+	public void recordWrite(File file) {
+		FileAccesses accesses = accessesOf(file);
+		accesses.lastAccess = System.currentTimeMillis();
+		accesses.writes.incrementAndGet();
+	}
+
+	/** Returns the number of reads of a file recorded so far. */
+	public long reads(File file) {
+		FileAccesses accesses = files.get(file.getPath());
+		return accesses == null ? 0 : accesses.reads.get();
+	}
+
+	/** Returns the number of writes to a file recorded so far. */
+	public long writes(File file) {
+		FileAccesses accesses = files.get(file.getPath());
+		return accesses == null ? 0 : accesses.writes.get();
+	}
+
+	/**
+	 * Returns the time of the last recorded access to a file, in milliseconds
+	 * since the epoch, or <code>0</code> if no access has been recorded.
+	 */
+	public long lastAccess(File file) {
+		FileAccesses accesses = files.get(file.getPath());
+		return accesses == null ? 0 : accesses.lastAccess;
+	}
+
+	/**
+	 * Returns the time the counters were started, in milliseconds since the
+	 * epoch. Accesses before then are not known.
+	 */
+	public long since() {
+		return since;
+	}
+
+	/** Forgets the counters of a deleted file. */
+	public void forget(File file) {
+		files.remove(file.getPath());
+	}
+
+	private FileAccesses accessesOf(File file) {
+		FileAccesses accesses = files.get(file.getPath());
+		if (accesses == null) {
+			accesses = new FileAccesses();
+			FileAccesses existing = files.putIfAbsent(file.getPath(),
+					accesses);
+			if (existing != null) {
+				accesses = existing;
+			}
+		}
+		return accesses;
+	}
+
+	private static class FileAccesses {
+		final AtomicLong reads = new AtomicLong();
+		final AtomicLong writes = new AtomicLong();
+		volatile long lastAccess;
+	}
+}
@@ -0,0 +1,366 @@
+package storage;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Off-heap cache of file blocks read by a storage server.
+ *
+ * <p>
+ * Files are cached in aligned blocks of <code>BLOCK_SIZE</code> bytes, held
+ * in direct buffers outside the Java heap, so a hit costs neither a system
+ * call nor heap space beyond the copy handed out. Blocks enter the cache
+ * after their checksums have been checked, so hits are not checked again.
+ *
+ * <p>
+ * The cache is split into segments by key, each with its own lock, its own
+ * slab of slots and its own 2Q eviction: a block read for the first time
+ * enters a FIFO queue holding a quarter of the slots, and is forgotten from
+ * there unless it is read again while its key is still remembered in a ghost
+ * queue, in which case it enters the main LRU queue. A one-off sequential
+ * scan therefore passes through the FIFO queue and leaves the blocks read
+ * again and again in place.
+ *
+ * <p>
+ * Writers invalidate the blocks they change while holding the file lock for
+ * exclusive access, so readers, which hold it for shared access, never see a
+ * stale block.
+ */
+public class BlockCache {
+
+	/** Size of a cached block; a multiple of the checksum chunk size. */
+	public static final int BLOCK_SIZE = 16 * 1024;
+
+	private static final int SEGMENTS = 16;
+
+	private final long capacity;
+	private final Segment[] segments;
+	// Highest block of each file that may be cached, to bound invalidation
+	private final ConcurrentHashMap<String, Long> extents = new ConcurrentHashMap<String, Long>();
+	// Reads served from the cache, and reads that had to load blocks
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Creates a cache.
+	 *
+	 * @param capacity
+	 *            Number of bytes of direct memory the cache may use, or zero
+	 *            for no caching. The memory of a segment is allocated the
+	 *            first time it caches a block.
+	 */
+	public BlockCache(long capacity) {
+		int slots = (int) Math.min(capacity / BLOCK_SIZE / SEGMENTS,
+				Integer.MAX_VALUE / BLOCK_SIZE);
+		this.capacity = (long) slots * SEGMENTS * BLOCK_SIZE;
+		this.segments = new Segment[slots > 0 ? SEGMENTS : 0];
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment(slots);
+		}
+	}
+
+	/** Checks whether the cache holds any blocks at all. */
+	public boolean isEnabled() {
+		return segments.length > 0;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Reads a range of a file from the cache. Since every change to a file
+	 * drops its changed blocks, a range whose blocks are all cached lies
+	 * within the file, and is read without looking at the file at all.
+	 *
+	 * @return The bytes, or <code>null</code> if a block of the range is not
+	 *         cached.
+	 */
+	public byte[] read(File file, long offset, int length) {
+		if (!isEnabled()) {
+			return null;
+		}
+		byte[] data = new byte[length];
+		int done = 0;
+		while (done < length) {
+			long block = (offset + done) / BLOCK_SIZE;
+			int inBlock = (int) ((offset + done) % BLOCK_SIZE);
+			int count = Math.min(length - done, BLOCK_SIZE - inBlock);
+			if (!copy(file, block, inBlock, data, done, count)) {
+				misses.increment();
+				return null;
+			}
+			done += count;
+		}
+		hits.increment();
+		return data;
+	}
+
+	/**
+	 * Copies bytes of a cached block, without counting a hit or miss.
+	 *
+	 * @param block
+	 *            Index of the block in the file.
+	 * @param offset
+	 *            Offset of the first byte to copy in the block.
+	 * @return <code>true</code> if the block was cached and the bytes were
+	 *         copied.
+	 */
+	boolean copy(File file, long block, int offset, byte[] target,
+			int targetOffset, int length) {
+		if (!isEnabled()) {
+			return false;
+		}
+		Key key = new Key(file.getPath(), block);
+		return segmentOf(key).read(key, offset, target, targetOffset, length);
+	}
+
+	/**
+	 * Caches a block read from a file.
+	 *
+	 * @param data
+	 *            Content of the block; shorter than <code>BLOCK_SIZE</code>
+	 *            only for the last block of the file.
+	 */
+	public void put(File file, long block, byte[] data) {
+		if (!isEnabled()) {
+			return;
+		}
+		extents.merge(file.getPath(), block, Math::max);
+		Key key = new Key(file.getPath(), block);
+		segmentOf(key).put(key, data);
+	}
+
+	/** Drops the cached blocks that overlap a byte range of a file. */
+	public void invalidate(File file, long start, long end) {
+		if (!isEnabled() || end <= start) {
+			return;
+		}
+		Long extent = extents.get(file.getPath());
+		if (extent == null) {
+			return;
+		}
+		long last = Math.min(extent, (end - 1) / BLOCK_SIZE);
+		for (long block = start / BLOCK_SIZE; block <= last; block++) {
+			Key key = new Key(file.getPath(), block);
+			segmentOf(key).remove(key);
+		}
+	}
+
+	/** Drops all cached blocks of a file. */
+	public void invalidate(File file) {
+		if (!isEnabled()) {
+			return;
+		}
+		Long extent = extents.remove(file.getPath());
+		if (extent == null) {
+			return;
+		}
+		for (long block = 0; block <= extent; block++) {
+			Key key = new Key(file.getPath(), block);
+			segmentOf(key).remove(key);
+		}
+	}
+
+	/** Drops every cached block, and releases the memory of the cache. */
+	public void clear() {
+		for (Segment segment : segments) {
+			segment.clear();
+		}
+		extents.clear();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/** Fraction of all reads served entirely from the cache. */
+	public double getHitRatio() {
+		long hit = hits.sum();
+		long total = hit + misses.sum();
+		return total == 0 ? 0 : (double) hit / total;
+	}
+
+	/** Returns the number of blocks currently cached. */
+	public int getCachedBlocks() {
+		int blocks = 0;
+		for (Segment segment : segments) {
+			blocks += segment.size();
+		}
+		return blocks;
+	}
+
+	/** Returns a one-line summary of the counters. */
+	public String report() {
+		return String.format(
+				"%d MiB, %d blocks cached, %d hits, %d misses (%.2f%% hits), %d evictions",
+				capacity / (1024 * 1024), getCachedBlocks(), getHits(),
+				getMisses(), getHitRatio() * 100, getEvictions());
+	}
+
+	private Segment segmentOf(Key key) {
+		int hash = key.hashCode();
+		hash ^= hash >>> 16;
+		return segments[hash & (SEGMENTS - 1)];
+	}
+
+	/** Cache key: a block of a file. */
+	private static class Key {
+		final String path;
+		final long block;
+
+		Key(String path, long block) {
+			this.path = path;
+			this.block = block;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) other;
+			return block == key.block && path.equals(key.path);
+		}
+
+		@Override
+		public int hashCode() {
+			return path.hashCode() * 31 + Long.hashCode(block);
+		}
+	}
+
+	/** Slot of a slab holding a cached block. */
+	private static class Node {
+		final int slot;
+		int length;
+
+		Node(int slot) {
+			this.slot = slot;
+		}
+	}
+
+	/** Part of the cache with its own lock, slab and 2Q queues. */
+	private class Segment {
+		private final int slots;
+		// Blocks read once, oldest first
+		private final LinkedHashMap<Key, Node> recent = new LinkedHashMap<Key, Node>();
+		// Blocks read again, least recently used first
+		private final LinkedHashMap<Key, Node> frequent = new LinkedHashMap<Key, Node>(
+				16, 0.75f, true);
+		// Keys recently evicted from the FIFO queue, oldest first
+		private final LinkedHashMap<Key, Boolean> ghosts = new LinkedHashMap<Key, Boolean>();
+		private final int recentLimit;
+		private final int ghostLimit;
+		private ByteBuffer slab;
+		private int[] free;
+		private int freeCount;
+
+		Segment(int slots) {
+			this.slots = slots;
+			this.recentLimit = Math.max(1, slots / 4);
+			this.ghostLimit = Math.max(1, slots / 2);
+		}
+
+		synchronized boolean read(Key key, int offset, byte[] target,
+				int targetOffset, int length) {
+			Node node = frequent.get(key);
+			if (node == null) {
+				node = recent.get(key);
+			}
+			if (node == null || offset + length > node.length) {
+				return false;
+			}
+			slab.limit(node.slot * BLOCK_SIZE + offset + length);
+			slab.position(node.slot * BLOCK_SIZE + offset);
+			slab.get(target, targetOffset, length);
+			return true;
+		}
+
+		synchronized void put(Key key, byte[] data) {
+			Node node = frequent.get(key);
+			if (node == null) {
+				node = recent.get(key);
+			}
+			if (node == null) {
+				node = new Node(allocate());
+				if (ghosts.remove(key) != null) {
+					frequent.put(key, node);
+				} else {
+					recent.put(key, node);
+				}
+			}
+			node.length = data.length;
+			slab.limit(node.slot * BLOCK_SIZE + data.length);
+			slab.position(node.slot * BLOCK_SIZE);
+			slab.put(data);
+		}
+
+		synchronized void remove(Key key) {
+			Node node = recent.remove(key);
+			if (node == null) {
+				node = frequent.remove(key);
+			}
+			if (node != null) {
+				free[freeCount++] = node.slot;
+			}
+			ghosts.remove(key);
+		}
+
+		synchronized void clear() {
+			recent.clear();
+			frequent.clear();
+			ghosts.clear();
+			slab = null;
+			free = null;
+		}
+
+		synchronized int size() {
+			return recent.size() + frequent.size();
+		}
+
+		/** Returns a free slot, evicting a block if there is none. */
+		private int allocate() {
+			if (slab == null) {
+				slab = ByteBuffer.allocateDirect(slots * BLOCK_SIZE);
+				free = new int[slots];
+				for (int i = 0; i < slots; i++) {
+					free[i] = slots - 1 - i;
+				}
+				freeCount = slots;
+			}
+			if (freeCount > 0) {
+				return free[--freeCount];
+			}
+			evictions.increment();
+			if (recent.size() >= recentLimit || frequent.isEmpty()) {
+				Key key = recent.keySet().iterator().next();
+				ghosts.put(key, Boolean.TRUE);
+				if (ghosts.size() > ghostLimit) {
+					Iterator<Key> oldest = ghosts.keySet().iterator();
+					oldest.next();
+					oldest.remove();
+				}
+				return recent.remove(key).slot;
+			}
+			Iterator<Map.Entry<Key, Node>> lru = frequent.entrySet()
+					.iterator();
+			Node node = lru.next().getValue();
+			lru.remove();
+			return node.slot;
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package storage;
+
+import common.Path;
+
+/**
+ * Constants and naming conventions of the block-based storage engine.
+ *
+ * <p>
+ * Files created as block files are not stored as one local file on one
+ * storage server. They are split into fixed-size blocks, each identified by a
+ * cluster-wide block ID and replicated independently, and the naming server
+ * keeps the list of blocks of every such file. A storage server keeps each
+ * block it holds as one local file in its metadata directory, so blocks are
+ * never registered as files, and can be created, copied and deleted with the
+ * same machinery as plain files.
+ */
+public abstract class Blocks {
+
+	/** Size of every block but the last one of a file. */
+	public static final int BLOCK_SIZE = 64 * 1024 * 1024;
+
+	/** Local directory holding the blocks of a storage server. */
+	static final String BLOCK_DIR = StorageServer.METADATA_DIR + "/blocks";
+
+	/** Returns the local path under which a storage server keeps a block. */
+	public static Path path(long block) {
+		return new Path(BLOCK_DIR + "/" + String.format("%016x", block));
+	}
+
+	/**
+	 * Returns the ID of the block kept under a local file name, or
+	 * <code>-1</code> if the name is not that of a block.
+	 */
+	static long idOf(String fileName) {
+		if (fileName.length() != 16) {
+			return -1;
+		}
+		try {
+			return Long.parseUnsignedLong(fileName, 16);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package storage;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import common.Path;
+
+/**
+ * Accepts raw socket connections on the storage server's bulk-data port.
+ *
+ * <p>
+ * File contents sent through the RMI interfaces are serialized into byte
+ * arrays and copied several times on each side. Bulk transfers instead
+ * negotiate a ticket over RMI and then move the bytes over a plain socket,
+ * between the file channel and the socket with
+ * <code>FileChannel.transferTo</code> and <code>transferFrom</code>, which the
+ * operating system can serve without copying through user space.
+ *
+ * <p>
+ * The protocol is deliberately small. The client sends the eight-byte ticket
+ * token, and the server answers with one status byte. For reads, the range
+ * follows, and the server closes the connection. For writes, the client sends
+ * the range, and the server answers with a second status byte once the data
+ * is in the file. A connection that sends nothing for
+ * <code>READ_TIMEOUT</code> is dropped, so a stalled client cannot hold a
+ * handler forever.
+ */
+public class BulkDataServer extends Thread {
+
+	/** Status byte for an accepted token or a completed write. */
+	static final byte STATUS_OK = 0;
+	/** Status byte for an unknown or expired token, or a failed write. */
+	static final byte STATUS_FAILED = 1;
+	/** Time after which an unused ticket is no longer accepted. */
+	static final long TICKET_LIFETIME = 60 * 1000;
+	/** Time a connection may send nothing before it is dropped. */
+	static final int READ_TIMEOUT = 30 * 1000;
+
+	private final StorageServer storageServer;
+	private final String hostname;
+	private final ServerSocketChannel listener;
+	private final ExecutorService handlers;
+	private final Map<Long, PendingTransfer> pending = new ConcurrentHashMap<Long, PendingTransfer>();
+	private final SecureRandom random = new SecureRandom();
+	private volatile boolean askedToStopThread = false;
+
+	/**
+	 * Opens the bulk-data port.
+	 *
+	 * @throws IOException
+	 *             If the port cannot be bound.
+	 */
+	public BulkDataServer(StorageServer storageServer, String hostname,
+			int port) throws IOException {
+		this.storageServer = storageServer;
+		this.hostname = hostname;
+		this.listener = ServerSocketChannel.open();
+		this.listener.bind(new InetSocketAddress(hostname, port));
+		this.handlers = Executors.newCachedThreadPool(task -> {
+			Thread thread = new Thread(task, "bulk-transfer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		setDaemon(true);
+	}
+
+	/** Returns the port the server is listening on. */
+	public int getPort() {
+		return listener.socket().getLocalPort();
+	}
+
+	/**
+	 * Issues a ticket for a transfer. The caller has already checked that the
+	 * file exists and the range is valid, and hands in the checksums of a
+	 * range to be read.
+	 */
+	TransferTicket offer(Path file, long offset, long length, boolean write,
+			int[] checksums) {
+		long now = System.currentTimeMillis();
+		Iterator<PendingTransfer> iter = pending.values().iterator();
+		while (iter.hasNext()) {
+			if (iter.next().deadline < now) {
+				iter.remove();
+			}
+		}
+
+		long token;
+		TransferTicket ticket;
+		do {
+			token = random.nextLong();
+			ticket = new TransferTicket(token, hostname, getPort(), file,
+					offset, length, write, checksums);
+		} while (pending.putIfAbsent(token,
+				new PendingTransfer(ticket, now + TICKET_LIFETIME)) != null);
+		return ticket;
+	}
+
+	public void run() {
+		while (!askedToStopThread) {
+			try {
+				SocketChannel connection = listener.accept();
+				handlers.execute(() -> serve(connection));
+			} catch (IOException e) {
+				if (!askedToStopThread) {
+					System.out.println("Bulk-data port failed : "
+							+ e.getMessage());
+				}
+				return;
+			}
+		}
+	}
+
+	public void stopGracefully() {
+		askedToStopThread = true;
+		try {
+			listener.close();
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+		}
+		handlers.shutdownNow();
+		interrupt();
+	}
+
+	private void serve(SocketChannel connection) {
+		try (SocketChannel socket = connection) {
+			// Reads through the socket's stream, which honours the timeout
+			// that reads on the channel itself ignore
+			socket.socket().setSoTimeout(READ_TIMEOUT);
+			ReadableByteChannel in = Channels
+					.newChannel(socket.socket().getInputStream());
+			ByteBuffer header = ByteBuffer.allocate(Long.BYTES);
+			while (header.hasRemaining()) {
+				if (in.read(header) < 0) {
+					return;
+				}
+			}
+			header.flip();
+			PendingTransfer transfer = pending.remove(header.getLong());
+			if (transfer == null
+					|| transfer.deadline < System.currentTimeMillis()) {
+				sendStatus(socket, STATUS_FAILED);
+				return;
+			}
+			sendStatus(socket, STATUS_OK);
+
+			TransferTicket ticket = transfer.ticket;
+			if (ticket.isWrite()) {
+				byte status = STATUS_OK;
+				try {
+					storageServer.transferIn(ticket.getFile(),
+							ticket.getOffset(), ticket.getLength(), in);
+				} catch (IOException e) {
+					System.out.println(e.getMessage());
+					status = STATUS_FAILED;
+				}
+				sendStatus(socket, status);
+			} else {
+				storageServer.transferOut(ticket.getFile(), ticket.getOffset(),
+						ticket.getLength(), socket);
+			}
+		} catch (IOException e) {
+			System.out.println("Bulk transfer failed : " + e.getMessage());
+		}
+	}
+
+	private static void sendStatus(SocketChannel socket, byte status)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(new byte[] { status });
+		while (buffer.hasRemaining()) {
+			socket.write(buffer);
+		}
+	}
+
+	/** Ticket waiting for its connection. */
+	private static class PendingTransfer {
+		final TransferTicket ticket;
+		final long deadline;
+
+		PendingTransfer(TransferTicket ticket, long deadline) {
+			this.ticket = ticket;
+			this.deadline = deadline;
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Client side of the bulk-data protocol served by <code>BulkDataServer</code>.
+ *
+ * <p>
+ * Both directions move bytes directly between a local file channel and the
+ * socket, so the data never passes through Java byte arrays.
+ */
+public abstract class BulkTransfer {
+
+	/**
+	 * Receives the range named by a read ticket into a local file.
+	 *
+	 * @param ticket
+	 *            Ticket from <code>Storage.openTransfer</code> with
+	 *            <code>write</code> set to <code>false</code>.
+	 * @param destination
+	 *            Channel of the local file to write to.
+	 * @param position
+	 *            Position in the local file of the first byte received.
+	 * @throws IOException
+	 *             If the server refuses the ticket, or the connection fails
+	 *             before the whole range has arrived.
+	 */
+	public static void receive(TransferTicket ticket, FileChannel destination,
+			long position) throws IOException {
+		if (ticket.isWrite()) {
+			throw new IllegalArgumentException("ticket is for a write");
+		}
+		try (SocketChannel socket = connect(ticket)) {
+			long end = position + ticket.getLength();
+			extend(destination, end);
+			while (position < end) {
+				long received = destination.transferFrom(socket, position,
+						end - position);
+				if (received == 0) {
+					// A blocking socket only yields nothing at end of stream
+					break;
+				}
+				position += received;
+			}
+			if (position < end) {
+				throw new EOFException("transfer of " + ticket.getFile()
+						+ " ended " + (end - position) + " bytes early");
+			}
+		}
+	}
+
+	/**
+	 * Sends a range of a local file to the server under a write ticket.
+	 *
+	 * @param ticket
+	 *            Ticket from <code>Storage.openTransfer</code> with
+	 *            <code>write</code> set to <code>true</code>.
+	 * @param source
+	 *            Channel of the local file to read from.
+	 * @param position
+	 *            Position in the local file of the first byte sent.
+	 * @throws IOException
+	 *             If the server refuses the ticket, the local file ends before
+	 *             the range does, or the server cannot store the data.
+	 */
+	public static void send(TransferTicket ticket, FileChannel source,
+			long position) throws IOException {
+		if (!ticket.isWrite()) {
+			throw new IllegalArgumentException("ticket is for a read");
+		}
+		if (position + ticket.getLength() > source.size()) {
+			throw new EOFException("local file is shorter than the transfer");
+		}
+		try (SocketChannel socket = connect(ticket)) {
+			long end = position + ticket.getLength();
+			while (position < end) {
+				position += source.transferTo(position, end - position, socket);
+			}
+			socket.shutdownOutput();
+			if (readStatus(socket) != BulkDataServer.STATUS_OK) {
+				throw new IOException("server could not store "
+						+ ticket.getFile());
+			}
+		}
+	}
+
+	/**
+	 * Makes the file at least <code>size</code> bytes long.
+	 * <code>transferFrom</code> transfers nothing at positions past the end
+	 * of the file, which ranges received out of order would otherwise hit.
+	 * The gap is left as a hole, and the transfer overwrites it.
+	 */
+	static void extend(FileChannel channel, long size) throws IOException {
+		if (size > 0 && channel.size() < size) {
+			channel.write(ByteBuffer.allocate(1), size - 1);
+		}
+	}
+
+	private static SocketChannel connect(TransferTicket ticket)
+			throws IOException {
+		SocketChannel socket = SocketChannel.open(new InetSocketAddress(
+				ticket.getHostname(), ticket.getPort()));
+		try {
+			ByteBuffer header = ByteBuffer.allocate(Long.BYTES);
+			header.putLong(ticket.getToken()).flip();
+			while (header.hasRemaining()) {
+				socket.write(header);
+			}
+			if (readStatus(socket) != BulkDataServer.STATUS_OK) {
+				throw new IOException("server refused the transfer of "
+						+ ticket.getFile());
+			}
+			return socket;
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	private static byte readStatus(SocketChannel socket) throws IOException {
+		ByteBuffer status = ByteBuffer.allocate(1);
+		while (status.hasRemaining()) {
+			if (socket.read(status) < 0) {
+				throw new EOFException("connection closed by the server");
+			}
+		}
+		return status.get(0);
+	}
+}
@@ -0,0 +1,132 @@
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+/**
+ * Bounded cache of open file channels, keyed by local file.
+ *
+ * <p>
+ * Opening a file for every read or write costs two system calls and a file
+ * descriptor churn. The cache keeps the most recently used channels open.
+ * Channels are reference counted: a channel evicted or invalidated while a
+ * request is still using it is closed when the last user releases it.
+ */
+public class ChannelCache {
+
+	/** Default number of channels kept open. */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private final int capacity;
+	private final LinkedHashMap<String, CachedChannel> channels;
+
+	public ChannelCache(int capacity) {
+		this.capacity = capacity;
+		// Access order makes iteration start at the least recently used
+		this.channels = new LinkedHashMap<String, CachedChannel>(16, 0.75f,
+				true);
+	}
+
+	public ChannelCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Returns an open channel for the given file, opening it if needed. The
+	 * caller must hand the channel back with <code>release</code>.
+	 */
+	public synchronized CachedChannel acquire(File file) throws IOException {
+		String key = file.getPath();
+		CachedChannel cached = channels.get(key);
+		if (cached == null) {
+			cached = new CachedChannel(open(file));
+			channels.put(key, cached);
+			evictExcess();
+		}
+		cached.references++;
+		return cached;
+	}
+
+	/** Hands back a channel obtained from <code>acquire</code>. */
+	public synchronized void release(CachedChannel cached) {
+		cached.references--;
+		if (cached.references == 0 && cached.removed) {
+			cached.close();
+		}
+	}
+
+	/**
+	 * Drops the channel for a file, for example because the file has been
+	 * deleted or replaced.
+	 */
+	public synchronized void invalidate(File file) {
+		CachedChannel cached = channels.remove(file.getPath());
+		if (cached != null) {
+			remove(cached);
+		}
+	}
+
+	/** Closes all channels that are not in use. */
+	public synchronized void closeAll() {
+		for (CachedChannel cached : channels.values()) {
+			remove(cached);
+		}
+		channels.clear();
+	}
+
+	private FileChannel open(File file) throws IOException {
+		try {
+			return FileChannel.open(file.toPath(), StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+		} catch (AccessDeniedException e) {
+			// Read-only files can still be served
+			return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		}
+	}
+
+	private void evictExcess() {
+		Iterator<Entry<String, CachedChannel>> iter = channels.entrySet()
+				.iterator();
+		while (channels.size() > capacity && iter.hasNext()) {
+			CachedChannel cached = iter.next().getValue();
+			iter.remove();
+			remove(cached);
+		}
+	}
+
+	private void remove(CachedChannel cached) {
+		cached.removed = true;
+		if (cached.references == 0) {
+			cached.close();
+		}
+	}
+
+	/** Open channel together with its reference count. */
+	public static class CachedChannel {
+		private final FileChannel channel;
+		private int references = 0;
+		private boolean removed = false;
+
+		CachedChannel(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		public FileChannel channel() {
+			return channel;
+		}
+
+		private void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.out.println(e.getMessage());
+			}
+		}
+	}
+}
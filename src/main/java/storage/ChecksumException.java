@@ -0,0 +1,30 @@
+package storage;
+
+import java.io.IOException;
+
+import common.Path;
+
+/**
+ * Signals that data read from a file does not match its stored checksum.
+ */
+public class ChecksumException extends IOException {
+	private static final long serialVersionUID = 2921475402518622631L;
+
+	private final Path file;
+	private final long position;
+
+	public ChecksumException(Path file, long position) {
+		super("checksum mismatch in " + file + " at " + position);
+		this.file = file;
+		this.position = position;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	/** Returns the file position of the first corrupt chunk. */
+	public long getPosition() {
+		return position;
+	}
+}
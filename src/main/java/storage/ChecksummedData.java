@@ -0,0 +1,66 @@
+package storage;
+
+import java.io.Serializable;
+import java.util.zip.CRC32C;
+
+/**
+ * Bytes read from a file together with the stored checksums of the chunks
+ * they cover.
+ *
+ * <p>
+ * The data starts at a chunk boundary and covers whole chunks, except that
+ * the last chunk of the file may be short. Receivers call <code>verify</code>
+ * before using the data, so corruption on the storage server's disk, in its
+ * memory or on the network is detected by whoever consumes the bytes.
+ */
+public class ChecksummedData implements Serializable {
+	private static final long serialVersionUID = -5513990240964858405L;
+
+	private final long position;
+	private final byte[] data;
+	private final int[] checksums;
+	private final int bytesPerChecksum;
+
+	public ChecksummedData(long position, byte[] data, int[] checksums,
+			int bytesPerChecksum) {
+		this.position = position;
+		this.data = data;
+		this.checksums = checksums;
+		this.bytesPerChecksum = bytesPerChecksum;
+	}
+
+	/** Returns the file position of the first byte of the data. */
+	public long getPosition() {
+		return position;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	public int[] getChecksums() {
+		return checksums;
+	}
+
+	public int getBytesPerChecksum() {
+		return bytesPerChecksum;
+	}
+
+	/**
+	 * Returns the file position of the first chunk whose data does not match
+	 * its checksum, or <code>-1</code> if all chunks match.
+	 */
+	public long verify() {
+		CRC32C crc = new CRC32C();
+		for (int i = 0; i < checksums.length; i++) {
+			int start = i * bytesPerChecksum;
+			crc.reset();
+			crc.update(data, start, Math.min(bytesPerChecksum,
+					data.length - start));
+			if ((int) crc.getValue() != checksums[i]) {
+				return position + start;
+			}
+		}
+		return -1;
+	}
+}
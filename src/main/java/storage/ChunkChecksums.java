@@ -0,0 +1,422 @@
+package storage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32C;
+
+import common.Path;
+
+/**
+ * Per-chunk CRC-32C checksums of local files.
+ *
+ * <p>
+ * Every file is divided into chunks of <code>BYTES_PER_CHECKSUM</code> bytes.
+ * The checksum of chunk <code>i</code> is stored as a four-byte integer at
+ * position <code>4 * i</code> of a sidecar file in the metadata directory.
+ * Writes recompute the checksums of the chunks they touch, and reads check the
+ * chunks they cover. Files without a sidecar, such as files stored before
+ * checksums were kept, get one computed from their current contents on first
+ * use.
+ *
+ * <p>
+ * The checksums of recently read files are also kept in memory, up to
+ * <code>CACHE_BUDGET</code> bytes, so that small reads do not pay for a
+ * second read from the sidecar. Writes update cached checksums in place.
+ *
+ * <p>
+ * <code>CRC32C</code> is intrinsified on current x86 and ARM processors and
+ * runs at several gigabytes per second, well above disk bandwidth.
+ */
+class ChunkChecksums {
+
+	/** Number of data bytes covered by one checksum. */
+	static final int BYTES_PER_CHECKSUM = 4096;
+	/** Number of data bytes checked per pass when checking long ranges. */
+	private static final int WINDOW = 256 * BYTES_PER_CHECKSUM;
+	/** Memory used for checksums kept in memory, in bytes. */
+	static final long CACHE_BUDGET = 64L * 1024 * 1024;
+
+	private final ChannelCache channels;
+	// Checksums of whole files, least recently used first
+	private final LinkedHashMap<String, int[]> cache = new LinkedHashMap<String, int[]>(
+			16, 0.75f, true);
+	private long cachedBytes = 0;
+
+	ChunkChecksums(ChannelCache channels) {
+		this.channels = channels;
+	}
+
+	/** Returns the sidecar file holding the checksums of a local file. */
+	static File sidecar(File file) {
+		return StorageServer.metadataFile("crc", new Path(file.getPath()));
+	}
+
+	/** Computes the checksums of data starting at a chunk boundary. */
+	static int[] checksumsOf(byte[] data) {
+		int[] checksums = new int[(data.length + BYTES_PER_CHECKSUM - 1)
+				/ BYTES_PER_CHECKSUM];
+		CRC32C crc = new CRC32C();
+		for (int i = 0; i < checksums.length; i++) {
+			int start = i * BYTES_PER_CHECKSUM;
+			crc.reset();
+			crc.update(data, start,
+					Math.min(BYTES_PER_CHECKSUM, data.length - start));
+			checksums[i] = (int) crc.getValue();
+		}
+		return checksums;
+	}
+
+	/** Rounds a file position down to the start of its chunk. */
+	static long chunkStart(long position) {
+		return position - position % BYTES_PER_CHECKSUM;
+	}
+
+	/**
+	 * Rounds the end of a range up to the end of its last chunk, but not past
+	 * the end of the file.
+	 */
+	static long chunkEnd(long end, long fileSize) {
+		long rounded = chunkStart(end + BYTES_PER_CHECKSUM - 1);
+		return Math.min(rounded, fileSize);
+	}
+
+	/**
+	 * Returns the stored checksums of the chunks covering a range.
+	 *
+	 * @param file
+	 *            Local file.
+	 * @param data
+	 *            Open channel for the file.
+	 * @param fileSize
+	 *            Current size of the file.
+	 * @param position
+	 *            Start of the range, at a chunk boundary.
+	 * @param length
+	 *            Length of the range.
+	 */
+	int[] load(File file, FileChannel data, long fileSize, long position,
+			long length) throws IOException {
+		return load(file, data, fileSize, position, length, true);
+	}
+
+	private int[] load(File file, FileChannel data, long fileSize,
+			long position, long length, boolean keep) throws IOException {
+		int firstChunk = (int) (position / BYTES_PER_CHECKSUM);
+		int count = (int) ((length + BYTES_PER_CHECKSUM - 1)
+				/ BYTES_PER_CHECKSUM);
+		long chunks = (fileSize + BYTES_PER_CHECKSUM - 1) / BYTES_PER_CHECKSUM;
+		int[] all = cached(file);
+		if (all != null && all.length >= chunks) {
+			return Arrays.copyOfRange(all, firstChunk, firstChunk + count);
+		}
+
+		ChannelCache.CachedChannel cached = acquireSidecar(file);
+		try {
+			FileChannel side = cached.channel();
+			if (side.size() < chunks * Integer.BYTES) {
+				compute(side, data, side.size() / Integer.BYTES, chunks, null,
+						0, null);
+			}
+			if (keep && chunks * Integer.BYTES <= CACHE_BUDGET / 4) {
+				// Small enough to keep in memory for the next reads
+				all = readChecksums(side, 0, (int) chunks);
+				remember(file, all);
+				return Arrays.copyOfRange(all, firstChunk, firstChunk + count);
+			}
+			return readChecksums(side, firstChunk, count);
+		} finally {
+			channels.release(cached);
+		}
+	}
+
+	private static int[] readChecksums(FileChannel side, long firstChunk,
+			int count) throws IOException {
+		ByteBuffer stored = ByteBuffer.allocate(count * Integer.BYTES);
+		readFully(side, stored, firstChunk * Integer.BYTES);
+		stored.flip();
+		int[] checksums = new int[count];
+		stored.asIntBuffer().get(checksums);
+		return checksums;
+	}
+
+	/**
+	 * Checks data read from a file against the stored checksums.
+	 *
+	 * @param file
+	 *            Local file.
+	 * @param data
+	 *            Open channel for the file.
+	 * @param fileSize
+	 *            Current size of the file.
+	 * @param position
+	 *            File position of the first byte, at a chunk boundary.
+	 * @param bytes
+	 *            The data, covering whole chunks, or ending at the end of the
+	 *            file.
+	 * @throws ChecksumException
+	 *             If a chunk does not match its checksum.
+	 */
+	void verify(File file, FileChannel data, long fileSize, long position,
+			byte[] bytes) throws IOException {
+		verify(file, data, fileSize, position, bytes, true);
+	}
+
+	private void verify(File file, FileChannel data, long fileSize,
+			long position, byte[] bytes, boolean keep) throws IOException {
+		int count = (bytes.length + BYTES_PER_CHECKSUM - 1)
+				/ BYTES_PER_CHECKSUM;
+		long chunks = (fileSize + BYTES_PER_CHECKSUM - 1) / BYTES_PER_CHECKSUM;
+		// Compare against the cached checksums in place where possible
+		int[] stored = cached(file);
+		int base = (int) (position / BYTES_PER_CHECKSUM);
+		if (stored == null || stored.length < chunks) {
+			stored = load(file, data, fileSize, position, bytes.length, keep);
+			base = 0;
+		}
+		CRC32C crc = new CRC32C();
+		for (int i = 0; i < count; i++) {
+			int start = i * BYTES_PER_CHECKSUM;
+			crc.reset();
+			crc.update(bytes, start,
+					Math.min(BYTES_PER_CHECKSUM, bytes.length - start));
+			if ((int) crc.getValue() != stored[base + i]) {
+				throw new ChecksumException(new Path(file.getPath()),
+						position + start);
+			}
+		}
+	}
+
+	/**
+	 * Reads a range of a file, checking the chunks around it against their
+	 * checksums.
+	 *
+	 * @throws ChecksumException
+	 *             If a chunk does not match its checksum.
+	 */
+	byte[] readChecked(File file, FileChannel data, long fileSize,
+			long offset, int length) throws IOException {
+		long start = chunkStart(offset);
+		long end = chunkEnd(offset + length, fileSize);
+		ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+		readFully(data, buffer, start);
+		verify(file, data, fileSize, start, buffer.array());
+		if (start == offset && buffer.capacity() == length) {
+			return buffer.array();
+		}
+		int from = (int) (offset - start);
+		return Arrays.copyOfRange(buffer.array(), from, from + length);
+	}
+
+	/**
+	 * Computes the CRC-32C of a range of a file, checking every chunk read on
+	 * the way. Memory use does not depend on the length of the range.
+	 *
+	 * @throws ChecksumException
+	 *             If a chunk does not match its checksum.
+	 */
+	long rangeChecksum(File file, FileChannel data, long offset, long length)
+			throws IOException {
+		return rangeChecksum(file, data, offset, length, true);
+	}
+
+	/**
+	 * Checks every chunk of a range of a file against its stored checksum,
+	 * without adding the checksums of the file to the in-memory cache. Used by
+	 * the scrubber, which reads each file once and would otherwise push out
+	 * the checksums of files that clients are reading.
+	 *
+	 * @throws ChecksumException
+	 *             If a chunk does not match its checksum.
+	 */
+	void scrub(File file, FileChannel data, long offset, long length)
+			throws IOException {
+		rangeChecksum(file, data, offset, length, false);
+	}
+
+	private long rangeChecksum(File file, FileChannel data, long offset,
+			long length, boolean keep) throws IOException {
+		CRC32C range = new CRC32C();
+		long fileSize = data.size();
+		long end = offset + length;
+		long position = chunkStart(offset);
+		while (position < end) {
+			long windowEnd = chunkEnd(Math.min(position + WINDOW, end),
+					fileSize);
+			ByteBuffer window = ByteBuffer
+					.allocate((int) (windowEnd - position));
+			readFully(data, window, position);
+			byte[] bytes = window.array();
+			verify(file, data, fileSize, position, bytes, keep);
+
+			int from = (int) (Math.max(offset, position) - position);
+			int to = (int) (Math.min(end, windowEnd) - position);
+			range.update(bytes, from, to - from);
+			position = windowEnd;
+		}
+		return range.getValue();
+	}
+
+	/**
+	 * Recomputes the checksums of the chunks touched by a write that has
+	 * already been applied to the file.
+	 *
+	 * @param file
+	 *            Local file.
+	 * @param data
+	 *            Open channel for the file.
+	 * @param oldSize
+	 *            Size of the file before the write. Chunks between the old end
+	 *            of the file and the write, which are now zeros, are
+	 *            recomputed as well.
+	 * @param offset
+	 *            File position of the first byte written.
+	 * @param length
+	 *            Number of bytes written.
+	 * @param written
+	 *            The bytes written, or <code>null</code>. Full chunks are
+	 *            checksummed from this array instead of being read back.
+	 */
+	void update(File file, FileChannel data, long oldSize, long offset,
+			long length, byte[] written) throws IOException {
+		if (length == 0 && offset <= oldSize) {
+			return;
+		}
+		long firstChunk = Math.min(offset, oldSize) / BYTES_PER_CHECKSUM;
+		long endChunk = (offset + length + BYTES_PER_CHECKSUM - 1)
+				/ BYTES_PER_CHECKSUM;
+		ChannelCache.CachedChannel cached = acquireSidecar(file);
+		try {
+			FileChannel side = cached.channel();
+			long stored = side.size() / Integer.BYTES;
+			long from = Math.min(stored, firstChunk);
+			// Keep the in-memory copy, if any, in step with the sidecar
+			int[] mirror = cached(file);
+			if (mirror != null && mirror.length < stored) {
+				forget(file);
+				mirror = null;
+			}
+			if (mirror != null && mirror.length < endChunk) {
+				if (endChunk * Integer.BYTES > CACHE_BUDGET / 4) {
+					forget(file);
+					mirror = null;
+				} else {
+					mirror = Arrays.copyOf(mirror, (int) endChunk);
+					remember(file, mirror);
+				}
+			}
+			compute(side, data, from, endChunk, written, offset, mirror);
+		} finally {
+			channels.release(cached);
+		}
+	}
+
+	/** Removes the checksums of a file that was deleted or replaced. */
+	void delete(File file) {
+		forget(file);
+		File side = sidecar(file);
+		channels.invalidate(side);
+		side.delete();
+	}
+
+	/**
+	 * Computes and stores the checksums of chunks <code>from</code> up to
+	 * <code>to</code>, exclusive.
+	 */
+	private void compute(FileChannel side, FileChannel data, long from,
+			long to, byte[] written, long writtenOffset, int[] mirror)
+			throws IOException {
+		long size = data.size();
+		CRC32C crc = new CRC32C();
+		ByteBuffer chunk = ByteBuffer.allocate(BYTES_PER_CHECKSUM);
+		ByteBuffer out = ByteBuffer.allocate(256 * Integer.BYTES);
+		long outPosition = from * Integer.BYTES;
+
+		for (long i = from; i < to; i++) {
+			long start = i * BYTES_PER_CHECKSUM;
+			int length = (int) Math.min(BYTES_PER_CHECKSUM, size - start);
+			if (length <= 0) {
+				break;
+			}
+			crc.reset();
+			if (written != null && start >= writtenOffset
+					&& start + length <= writtenOffset + written.length) {
+				crc.update(written, (int) (start - writtenOffset), length);
+			} else {
+				chunk.clear();
+				chunk.limit(length);
+				readFully(data, chunk, start);
+				chunk.flip();
+				crc.update(chunk);
+			}
+			out.putInt((int) crc.getValue());
+			if (mirror != null) {
+				mirror[(int) i] = (int) crc.getValue();
+			}
+			if (!out.hasRemaining()) {
+				outPosition = flush(side, out, outPosition);
+			}
+		}
+		flush(side, out, outPosition);
+	}
+
+	private static long flush(FileChannel side, ByteBuffer out, long position)
+			throws IOException {
+		out.flip();
+		while (out.hasRemaining()) {
+			position += side.write(out, position);
+		}
+		out.clear();
+		return position;
+	}
+
+	private synchronized int[] cached(File file) {
+		return cache.get(file.getPath());
+	}
+
+	private synchronized void remember(File file, int[] checksums) {
+		int[] old = cache.put(file.getPath(), checksums);
+		if (old != null) {
+			cachedBytes -= (long) old.length * Integer.BYTES;
+		}
+		cachedBytes += (long) checksums.length * Integer.BYTES;
+		Iterator<int[]> iter = cache.values().iterator();
+		while (cachedBytes > CACHE_BUDGET && cache.size() > 1) {
+			cachedBytes -= (long) iter.next().length * Integer.BYTES;
+			iter.remove();
+		}
+	}
+
+	private synchronized void forget(File file) {
+		int[] old = cache.remove(file.getPath());
+		if (old != null) {
+			cachedBytes -= (long) old.length * Integer.BYTES;
+		}
+	}
+
+	private ChannelCache.CachedChannel acquireSidecar(File file)
+			throws IOException {
+		File side = sidecar(file);
+		if (!side.exists()) {
+			side.getParentFile().mkdirs();
+			side.createNewFile();
+		}
+		return channels.acquire(side);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new EOFException("unexpected end of file at " + position);
+			}
+			position += read;
+		}
+	}
+}
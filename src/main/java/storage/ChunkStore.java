@@ -0,0 +1,492 @@
+package storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import common.Path;
+import common.ThroughputLimiter;
+import rmi.RMIException;
+
+/**
+ * Content-addressed store of file chunks, shared by the deduplicated files of
+ * a storage server.
+ *
+ * <p>
+ * A deduplicated file keeps an empty placeholder at its own path, so that it
+ * is still registered with the naming server, and a recipe in the metadata
+ * directory listing its chunks. Each chunk is stored once, in a file named by
+ * its SHA-256 hash, however many files contain it. The store counts the
+ * references to every chunk from recipes and deletes a chunk when its last
+ * reference goes away. The counts are rebuilt from the recipes when the store
+ * is loaded, which also removes chunks left behind by an interrupted
+ * operation.
+ *
+ * <p>
+ * Chunk files carry per-chunk checksums like any other stored file, and every
+ * read is checked against them. A chunk found to be corrupt is no longer
+ * offered for reuse, and is overwritten with good data the next time a copy
+ * brings it in.
+ */
+class ChunkStore {
+
+	static final String CHUNK_DIR = StorageServer.METADATA_DIR + "/chunks";
+	static final String RECIPE_AREA = "recipes";
+
+	private static final int RECIPE_CACHE_ENTRIES = 256;
+
+	private final ChannelCache channels;
+	private final ChunkChecksums checksums;
+	// Number of recipe entries referring to each chunk, by hash
+	private final Map<String, Integer> references = new HashMap<String, Integer>();
+	private final Set<String> corrupt = new HashSet<String>();
+	// Paths of the deduplicated files
+	private final Set<String> deduplicated = ConcurrentHashMap.newKeySet();
+	private final LinkedHashMap<String, Recipe> recipes = new LinkedHashMap<String, Recipe>(
+			16, 0.75f, true);
+	private volatile boolean loaded = false;
+
+	ChunkStore(ChannelCache channels, ChunkChecksums checksums) {
+		this.channels = channels;
+		this.checksums = checksums;
+	}
+
+	static File chunkFile(String hash) {
+		return new File(CHUNK_DIR + "/" + hash.substring(0, 2) + "/" + hash);
+	}
+
+	static File recipeFile(File file) {
+		return StorageServer.metadataFile(RECIPE_AREA,
+				new Path(file.getPath()));
+	}
+
+	/**
+	 * Reads all recipes, counts the references to each chunk and deletes
+	 * chunks that no recipe refers to.
+	 */
+	synchronized void load() throws IOException {
+		if (loaded) {
+			return;
+		}
+		String recipeRoot = StorageServer.METADATA_DIR + "/" + RECIPE_AREA;
+		for (String stored : regularFiles(recipeRoot)) {
+			File file = new File(stored.substring(recipeRoot.length()));
+			if (!file.isFile()) {
+				// The file was deleted before its recipe
+				new File(stored).delete();
+				continue;
+			}
+			Recipe recipe = Recipe.readFrom(new File(stored));
+			for (int i = 0; i < recipe.getChunkCount(); i++) {
+				references.merge(recipe.getHash(i), 1, Integer::sum);
+			}
+			deduplicated.add(file.getPath());
+		}
+		for (String chunk : regularFiles(CHUNK_DIR)) {
+			File chunkFile = new File(chunk);
+			if (!references.containsKey(chunkFile.getName())) {
+				checksums.delete(chunkFile);
+				chunkFile.delete();
+			}
+		}
+		loaded = true;
+	}
+
+	/**
+	 * Returns the recipe of a file, or <code>null</code> if the file is not
+	 * deduplicated.
+	 */
+	Recipe recipe(File file) throws IOException {
+		if (!loaded) {
+			load();
+		}
+		if (!deduplicated.contains(file.getPath())) {
+			return null;
+		}
+		synchronized (recipes) {
+			Recipe recipe = recipes.get(file.getPath());
+			if (recipe != null) {
+				return recipe;
+			}
+		}
+		Recipe recipe = Recipe.readFrom(recipeFile(file));
+		synchronized (recipes) {
+			recipes.put(file.getPath(), recipe);
+			if (recipes.size() > RECIPE_CACHE_ENTRIES) {
+				recipes.remove(recipes.keySet().iterator().next());
+			}
+		}
+		return recipe;
+	}
+
+	/**
+	 * Returns the content of a deduplicated file, or <code>null</code> if the
+	 * file is not deduplicated.
+	 */
+	SealedContent content(File file) throws IOException {
+		Recipe recipe = recipe(file);
+		if (recipe == null) {
+			return null;
+		}
+		return new SealedContent() {
+			@Override
+			public long length() {
+				return recipe.getLength();
+			}
+
+			@Override
+			public byte[] read(long offset, int length) throws IOException {
+				return ChunkStore.this.read(recipe, offset, length);
+			}
+
+			@Override
+			public long checksum(long offset, long length)
+					throws IOException {
+				return rangeChecksum(recipe, offset, length);
+			}
+		};
+	}
+
+	/**
+	 * Splits a stream into chunks and adds them to the store.
+	 *
+	 * @return The recipe of the data. Its references are taken; they are
+	 *         handed on with <code>commit</code> or dropped with
+	 *         <code>release</code>.
+	 */
+	Recipe chunk(InputStream in) throws IOException {
+		ContentChunker chunker = new ContentChunker(in);
+		List<byte[]> hashes = new ArrayList<byte[]>();
+		List<Integer> lengths = new ArrayList<Integer>();
+		try {
+			for (byte[] chunk = chunker.next(); chunk != null; chunk = chunker
+					.next()) {
+				hashes.add(store(chunk));
+				lengths.add(chunk.length);
+			}
+		} catch (IOException | RuntimeException e) {
+			for (byte[] hash : hashes) {
+				release(Recipe.hex(hash));
+			}
+			throw e;
+		}
+		return new Recipe(hashes.toArray(new byte[hashes.size()][]),
+				lengths.stream().mapToInt(Integer::intValue).toArray());
+	}
+
+	/**
+	 * Takes references to the chunks of a recipe held by another storage
+	 * server, fetching only the chunks that are not already here. Each
+	 * fetched chunk is paid for with the limiter before it is read.
+	 */
+	void fetch(Recipe recipe, Storage source, ThroughputLimiter limiter)
+			throws IOException, RMIException, InterruptedException {
+		List<String> taken = new ArrayList<String>();
+		try {
+			for (int i = 0; i < recipe.getChunkCount(); i++) {
+				String hash = recipe.getHash(i);
+				if (!retain(hash)) {
+					limiter.acquire(recipe.getChunkLength(i));
+					byte[] data = source.readChunk(hash);
+					if (!Recipe.hex(digest(data)).equals(hash)) {
+						throw new IOException("chunk " + hash
+								+ " received from source does not match its hash");
+					}
+					store(data);
+				}
+				taken.add(hash);
+			}
+		} catch (IOException | RMIException | InterruptedException
+				| RuntimeException e) {
+			for (String hash : taken) {
+				release(hash);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Makes a recipe the content of a file. The caller holds the file lock
+	 * for exclusive access, and the references of the recipe pass to the
+	 * file. The references of the previous recipe of the file, if any, are
+	 * dropped. The recipe is on disk when this returns; its chunks are
+	 * forced beforehand with <code>force</code>.
+	 */
+	void commit(File file, Recipe recipe) throws IOException {
+		Recipe old = recipe(file);
+		File stored = recipeFile(file);
+		File temporary = staging(file, ".recipe");
+		stored.getParentFile().mkdirs();
+		recipe.writeTo(temporary);
+		Files.move(temporary.toPath(), stored.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		GroupCommitter.force(channels, stored.getParentFile());
+		synchronized (recipes) {
+			recipes.put(file.getPath(), recipe);
+		}
+		deduplicated.add(file.getPath());
+		if (old != null) {
+			release(old);
+		}
+	}
+
+	/**
+	 * Forces the chunks of a recipe, their checksums and the directories
+	 * naming them to disk, so that the recipe can stand in for the data of a
+	 * file. Chunks shared by several entries of the recipe are forced once.
+	 */
+	void force(Recipe recipe) throws IOException {
+		Set<File> forced = new HashSet<File>();
+		for (int i = 0; i < recipe.getChunkCount(); i++) {
+			File chunk = chunkFile(recipe.getHash(i));
+			for (File file : new File[] { chunk, ChunkChecksums.sidecar(chunk),
+					chunk.getParentFile() }) {
+				if (forced.add(file)) {
+					GroupCommitter.force(channels, file);
+				}
+			}
+		}
+		if (!forced.isEmpty()) {
+			// Chunk directories are made as chunks arrive
+			GroupCommitter.force(channels, new File(CHUNK_DIR));
+		}
+	}
+
+	/**
+	 * Forgets the recipe of a file that is deleted or stored in full again,
+	 * and drops its references.
+	 */
+	void remove(File file) throws IOException {
+		Recipe old = recipe(file);
+		if (old == null) {
+			return;
+		}
+		deduplicated.remove(file.getPath());
+		synchronized (recipes) {
+			recipes.remove(file.getPath());
+		}
+		recipeFile(file).delete();
+		release(old);
+	}
+
+	/** Drops the references of a recipe. */
+	void release(Recipe recipe) {
+		for (int i = 0; i < recipe.getChunkCount(); i++) {
+			release(recipe.getHash(i));
+		}
+	}
+
+	/**
+	 * Writes the content of a deduplicated file back to the file itself,
+	 * forces it to disk, and forgets its recipe. The caller holds the file
+	 * lock for exclusive access.
+	 */
+	void materialize(File file, Recipe recipe) throws IOException {
+		File temporary = staging(file, "");
+		try (FileChannel out = FileChannel.open(temporary.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			for (int i = 0; i < recipe.getChunkCount(); i++) {
+				ByteBuffer chunk = ByteBuffer.wrap(readChunk(recipe.getHash(i),
+						0, recipe.getChunkLength(i)));
+				while (chunk.hasRemaining()) {
+					out.write(chunk);
+				}
+			}
+			out.force(true);
+		}
+		Files.move(temporary.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		// On disk before the chunks may go
+		GroupCommitter.force(channels, file.getParentFile());
+		remove(file);
+	}
+
+	/** Reads a range of a deduplicated file. */
+	byte[] read(Recipe recipe, long offset, int length) throws IOException {
+		byte[] data = new byte[length];
+		int done = 0;
+		while (done < length) {
+			int index = recipe.chunkAt(offset + done);
+			int inChunk = (int) (offset + done - recipe.getChunkOffset(index));
+			int count = Math.min(length - done,
+					recipe.getChunkLength(index) - inChunk);
+			byte[] part = readChunk(recipe.getHash(index), inChunk, count);
+			System.arraycopy(part, 0, data, done, count);
+			done += count;
+		}
+		return data;
+	}
+
+	/** Computes the CRC-32C of a range of a deduplicated file. */
+	long rangeChecksum(Recipe recipe, long offset, long length)
+			throws IOException {
+		CRC32C crc = new CRC32C();
+		long end = offset + length;
+		while (offset < end) {
+			int index = recipe.chunkAt(offset);
+			int inChunk = (int) (offset - recipe.getChunkOffset(index));
+			int count = (int) Math.min(end - offset,
+					recipe.getChunkLength(index) - inChunk);
+			crc.update(readChunk(recipe.getHash(index), inChunk, count));
+			offset += count;
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Reads part of a chunk, checking it against the chunk's checksums.
+	 *
+	 * @throws FileNotFoundException
+	 *             If the store does not hold the chunk.
+	 * @throws ChecksumException
+	 *             If the chunk is corrupt.
+	 */
+	byte[] readChunk(String hash, int offset, int length) throws IOException {
+		File file = chunkFile(hash);
+		if (!file.isFile()) {
+			throw new FileNotFoundException("no chunk " + hash);
+		}
+		ChannelCache.CachedChannel cached = channels.acquire(file);
+		try {
+			FileChannel channel = cached.channel();
+			long size = channel.size();
+			if (offset < 0 || length < 0 || offset + length > size) {
+				throw new IndexOutOfBoundsException(
+						"read extends past the end of chunk " + hash);
+			}
+			try {
+				return checksums.readChecked(file, channel, size, offset,
+						length);
+			} catch (ChecksumException e) {
+				synchronized (this) {
+					corrupt.add(hash);
+				}
+				throw e;
+			}
+		} finally {
+			channels.release(cached);
+		}
+	}
+
+	/**
+	 * Adds one reference to a chunk already in the store.
+	 *
+	 * @return <code>false</code> if the store does not hold a good copy of
+	 *         the chunk.
+	 */
+	private synchronized boolean retain(String hash) {
+		Integer count = references.get(hash);
+		if (count == null || corrupt.contains(hash)) {
+			return false;
+		}
+		references.put(hash, count + 1);
+		return true;
+	}
+
+	/**
+	 * Adds one reference to a chunk, storing its data if the store does not
+	 * hold a good copy yet.
+	 *
+	 * @return The hash of the chunk.
+	 */
+	private byte[] store(byte[] data) throws IOException {
+		byte[] digest = digest(data);
+		String hash = Recipe.hex(digest);
+		synchronized (this) {
+			Integer count = references.get(hash);
+			if (count == null || corrupt.contains(hash)) {
+				write(hash, data);
+				corrupt.remove(hash);
+			}
+			references.put(hash, count == null ? 1 : count + 1);
+		}
+		return digest;
+	}
+
+	private synchronized void release(String hash) {
+		Integer count = references.get(hash);
+		if (count == null) {
+			return;
+		}
+		if (count > 1) {
+			references.put(hash, count - 1);
+			return;
+		}
+		references.remove(hash);
+		corrupt.remove(hash);
+		File file = chunkFile(hash);
+		channels.invalidate(file);
+		checksums.delete(file);
+		file.delete();
+	}
+
+	private void write(String hash, byte[] data) throws IOException {
+		File file = chunkFile(hash);
+		File temporary = new File(file.getPath() + ".tmp");
+		file.getParentFile().mkdirs();
+		Files.write(temporary.toPath(), data);
+		channels.invalidate(file);
+		checksums.delete(file);
+		Files.move(temporary.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		ChannelCache.CachedChannel cached = channels.acquire(file);
+		try {
+			checksums.update(file, cached.channel(), 0, 0, data.length, data);
+		} finally {
+			channels.release(cached);
+		}
+	}
+
+	/** Returns a scratch file for building new content of a file. */
+	private static File staging(File file, String suffix) {
+		File staging = StorageServer.metadataFile("staging",
+				new Path(file.getPath() + suffix));
+		staging.getParentFile().mkdirs();
+		return staging;
+	}
+
+	private static byte[] digest(byte[] data) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	private static List<String> regularFiles(String directory)
+			throws IOException {
+		if (!new File(directory).isDirectory()) {
+			return new ArrayList<String>();
+		}
+		try (Stream<java.nio.file.Path> found = Files.find(
+				Paths.get(directory), Integer.MAX_VALUE,
+				(filePath, fileAttr) -> fileAttr.isRegularFile())) {
+			return found.map(java.nio.file.Path::toString)
+					.collect(Collectors.toList());
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package storage;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression codecs for data at rest, each working on blocks of at most
+ * 64 KiB.
+ *
+ * <p>
+ * <code>LZ</code> compresses and decompresses several times faster than
+ * <code>DEFLATE</code>, which in turn stores text in considerably less space.
+ * A codec is chosen per file with <code>choose</code>, which compresses a
+ * sample of the file and picks <code>DEFLATE</code> only where its extra
+ * ratio outweighs its slower reads.
+ */
+public enum Codec {
+	/** Data stored as is. */
+	NONE(0),
+	/** Fast LZ77 compression; see {@link Lz}. */
+	LZ(0),
+	/** Deflate at its default level. */
+	DEFLATE(Deflater.DEFAULT_COMPRESSION);
+
+	/**
+	 * Data that does not shrink below this fraction of its size with
+	 * <code>LZ</code> is stored uncompressed.
+	 */
+	public static final double INCOMPRESSIBLE_RATIO = 0.9;
+
+	/**
+	 * <code>DEFLATE</code> is used only if it stores the sample in at most
+	 * this fraction of the space <code>LZ</code> needs.
+	 */
+	public static final double STRONG_GAIN = 0.6;
+
+	/**
+	 * zlib streams are expensive to set up, so each thread keeps one per
+	 * codec and resets it between uses.
+	 */
+	private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal
+			.withInitial(() -> new Inflater(true));
+
+	private final ThreadLocal<Deflater> deflaters;
+
+	private Codec(int level) {
+		this.deflaters = ThreadLocal
+				.withInitial(() -> new Deflater(level, true));
+	}
+
+	/**
+	 * Compresses data.
+	 *
+	 * @return The compressed bytes, or <code>null</code> if they would not be
+	 *         smaller than the data.
+	 */
+	public byte[] compress(byte[] data, int offset, int length) {
+		if (this == NONE) {
+			return null;
+		}
+		if (this == LZ) {
+			byte[] out = new byte[Math.max(length - 1, 0)];
+			int size = Lz.compress(data, offset, length, out);
+			return size < 0 ? null : Arrays.copyOf(out, size);
+		}
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(data, offset, length);
+		deflater.finish();
+		// Anything not shorter than the input is of no use
+		byte[] out = new byte[Math.max(length - 1, 0)];
+		int size = 0;
+		while (!deflater.finished() && size < out.length) {
+			size += deflater.deflate(out, size, out.length - size);
+		}
+		if (!deflater.finished()) {
+			return null;
+		}
+		return Arrays.copyOf(out, size);
+	}
+
+	/**
+	 * Decompresses data compressed with <code>compress</code>.
+	 *
+	 * @param rawLength
+	 *            Length of the data before compression.
+	 * @throws IllegalArgumentException
+	 *             If the data is not valid compressed data.
+	 */
+	public byte[] decompress(byte[] compressed, int rawLength) {
+		if (this == NONE) {
+			return compressed;
+		}
+		if (this == LZ) {
+			byte[] raw = new byte[rawLength];
+			Lz.decompress(compressed, raw);
+			return raw;
+		}
+		Inflater inflater = INFLATERS.get();
+		inflater.reset();
+		try {
+			inflater.setInput(compressed);
+			byte[] raw = new byte[rawLength];
+			int size = 0;
+			while (size < rawLength) {
+				int inflated = inflater.inflate(raw, size, rawLength - size);
+				if (inflated == 0 && (inflater.finished()
+						|| inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IllegalArgumentException(
+							"compressed data ends early");
+				}
+				size += inflated;
+			}
+			return raw;
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("corrupt compressed data", e);
+		}
+	}
+
+	/**
+	 * Picks the codec for a file from samples of its content.
+	 *
+	 * @param samples
+	 *            Pieces of the file, for example taken at even intervals.
+	 * @return <code>NONE</code> if the samples hardly compress,
+	 *         <code>DEFLATE</code> if it compresses them much better than
+	 *         <code>LZ</code>, and <code>LZ</code> otherwise.
+	 */
+	public static Codec choose(byte[][] samples) {
+		return choose(samples, false);
+	}
+
+	/**
+	 * Picks the codec for a file from samples of its content, optionally
+	 * leaving out <code>DEFLATE</code>, which decompresses about three times
+	 * slower than <code>LZ</code>.
+	 *
+	 * @param fastReads
+	 *            Whether to pick <code>LZ</code> even where
+	 *            <code>DEFLATE</code> compresses much better.
+	 */
+	public static Codec choose(byte[][] samples, boolean fastReads) {
+		long raw = 0;
+		long fast = 0;
+		long strong = 0;
+		for (byte[] sample : samples) {
+			raw += sample.length;
+			fast += compressedLength(LZ, sample);
+		}
+		if (raw == 0 || fast >= raw * INCOMPRESSIBLE_RATIO) {
+			return NONE;
+		}
+		if (fastReads) {
+			return LZ;
+		}
+		for (byte[] sample : samples) {
+			strong += compressedLength(DEFLATE, sample);
+		}
+		return strong <= fast * STRONG_GAIN ? DEFLATE : LZ;
+	}
+
+	private static int compressedLength(Codec codec, byte[] sample) {
+		byte[] compressed = codec.compress(sample, 0, sample.length);
+		return compressed == null ? sample.length : compressed.length;
+	}
+}
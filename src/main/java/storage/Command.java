@@ -71,4 +71,56 @@ public interface Command {
 	 */
 	public boolean copy(Path file, Storage server)
 			throws RMIException, FileNotFoundException, IOException;
+
+	/**
+	 * Copies a file from another storage server, transferring at most the
+	 * given number of bytes per second. The rate is metered chunk by chunk as
+	 * the copy runs, so a large file does not go out in one burst.
+	 * 
+	 * @param file
+	 *            Path to the file to be copied.
+	 * @param server
+	 *            Storage server from which the file is to be downloaded.
+	 * @param bytesPerSecond
+	 *            Transfer rate limit. Zero or a negative value disables the
+	 *            limit.
+	 * @return <code>true</code> if the file is successfully copied;
+	 *         <code>false</code> otherwise.
+	 * @throws FileNotFoundException
+	 *             If the file is not present on the remote storage server, or
+	 *             the path refers to a directory.
+	 * @throws IOException
+	 *             If an I/O exception occurs either on the remote or on this
+	 *             storage server.
+	 * @throws RMIException
+	 *             If the call cannot be completed due to a network error,
+	 *             whether between the caller and this storage server, or
+	 *             between the two storage servers.
+	 */
+	public boolean copy(Path file, Storage server, long bytesPerSecond)
+			throws RMIException, FileNotFoundException, IOException;
+
+	/**
+	 * Creates an empty block on the storage server.
+	 * 
+	 * @param block
+	 *            ID of the block to be created.
+	 * @return <code>true</code> if the block is created; <code>false</code> if
+	 *         it already exists or cannot be created.
+	 * @throws RMIException
+	 *             If the call cannot be completed due to a network error.
+	 */
+	public boolean createBlock(long block) throws RMIException;
+
+	/**
+	 * Deletes a block on the storage server.
+	 * 
+	 * @param block
+	 *            ID of the block to be deleted.
+	 * @return <code>true</code> if the block is deleted; <code>false</code>
+	 *         otherwise.
+	 * @throws RMIException
+	 *             If the call cannot be completed due to a network error.
+	 */
+	public boolean deleteBlock(long block) throws RMIException;
 }
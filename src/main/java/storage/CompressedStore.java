@@ -0,0 +1,638 @@
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import common.ThroughputLimiter;
+
+/**
+ * Compressed copies of the files of a storage server.
+ *
+ * <p>
+ * A compressed file keeps an empty placeholder at its own path, like a
+ * deduplicated one, and its data in a container in the metadata directory.
+ * The container holds the file in blocks of <code>BLOCK_SIZE</code> bytes,
+ * each compressed on its own with the codec chosen for the file, followed by
+ * an index of the blocks:
+ *
+ * <pre>
+ * block 0 ... block n-1
+ * index:  n x (offset: long, stored length: int)
+ * footer: codec: byte, block size: int, file length: long, n: int,
+ *         index offset: long, magic: int
+ * </pre>
+ *
+ * A block whose compressed form would not be smaller is stored as is; it is
+ * recognised by its stored length being its full length. A read decompresses
+ * only the blocks it covers, so random reads stay cheap. The container has
+ * chunk checksums like any stored file, which are checked on every read.
+ *
+ * <p>
+ * Reads are bound by decompression. The blocks a read covers are read from
+ * the container at once and decompressed in parallel, and the blocks
+ * decompressed last are kept, up to <code>RAW_CACHE_BYTES</code> for the
+ * store, so that small reads in a row and reads of hot blocks decompress
+ * each block once.
+ *
+ * <p>
+ * The containers are normally kept in the metadata directory. A store may
+ * keep them under another directory instead, such as the cold tier of the
+ * server; containers are then built in a scratch directory beside them, so
+ * they are moved into place within one filesystem.
+ */
+class CompressedStore {
+
+	static final String AREA = "compressed";
+
+	/** Uncompressed size of a block. */
+	static final int BLOCK_SIZE = 64 * 1024;
+
+	/** Number of blocks sampled to choose the codec of a file. */
+	private static final int SAMPLES = 16;
+
+	private static final int MAGIC = 0x44465343;
+	private static final int FOOTER_SIZE = 1 + 4 + 8 + 4 + 8 + 4;
+	private static final int INDEX_ENTRY_SIZE = 8 + 4;
+	private static final int INDEX_CACHE_ENTRIES = 256;
+
+	private static final ThroughputLimiter UNMETERED = new ThroughputLimiter(
+			0);
+
+	/** Bytes of decompressed blocks kept by a store. */
+	static final long RAW_CACHE_BYTES = 16 * 1024 * 1024;
+
+	private static final int DECOMPRESSORS = Runtime.getRuntime()
+			.availableProcessors();
+
+	/** Threads decompressing the blocks of a read beyond its first. */
+	private static final ExecutorService decompressors = Executors
+			.newFixedThreadPool(DECOMPRESSORS, task -> {
+				Thread thread = new Thread(task, "decompressor");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	private final ChannelCache channels;
+	private final ChunkChecksums checksums;
+	private final String root;
+	private final String stagingRoot;
+	// Paths of the compressed files
+	private final Set<String> compressed = ConcurrentHashMap.newKeySet();
+	private final LinkedHashMap<String, Container> containers = new LinkedHashMap<String, Container>(
+			16, 0.75f, true);
+	// Decompressed blocks, least recently used first
+	private final LinkedHashMap<RawBlock, byte[]> rawBlocks = new LinkedHashMap<RawBlock, byte[]>(
+			16, 0.75f, true);
+	private long rawBytes = 0;
+	private volatile boolean loaded = false;
+
+	CompressedStore(ChannelCache channels, ChunkChecksums checksums) {
+		this(channels, checksums, StorageServer.METADATA_DIR + "/" + AREA,
+				StorageServer.METADATA_DIR + "/staging");
+	}
+
+	/**
+	 * Creates a store keeping its containers under a directory of its own.
+	 *
+	 * @param root
+	 *            Directory under which the container of a file is kept at the
+	 *            path of the file.
+	 * @param stagingRoot
+	 *            Scratch directory for containers being built, on the same
+	 *            filesystem as <code>root</code>.
+	 */
+	CompressedStore(ChannelCache channels, ChunkChecksums checksums,
+			String root, String stagingRoot) {
+		this.channels = channels;
+		this.checksums = checksums;
+		this.root = root;
+		this.stagingRoot = stagingRoot;
+	}
+
+	File containerFile(File file) {
+		return new File(root + file.getPath());
+	}
+
+	/**
+	 * Finds the compressed files, and deletes containers whose file is gone.
+	 */
+	synchronized void load() throws IOException {
+		if (loaded) {
+			return;
+		}
+		if (new File(root).isDirectory()) {
+			try (Stream<java.nio.file.Path> found = Files.find(Paths.get(root),
+					Integer.MAX_VALUE,
+					(filePath, fileAttr) -> fileAttr.isRegularFile())) {
+				for (String stored : found.map(java.nio.file.Path::toString)
+						.collect(Collectors.toList())) {
+					File file = new File(stored.substring(root.length()));
+					if (file.isFile()) {
+						compressed.add(file.getPath());
+					} else {
+						checksums.delete(new File(stored));
+						new File(stored).delete();
+					}
+				}
+			}
+		}
+		loaded = true;
+	}
+
+	/**
+	 * Returns the content of a compressed file, or <code>null</code> if the
+	 * file is not compressed.
+	 */
+	SealedContent content(File file) throws IOException {
+		if (!loaded) {
+			load();
+		}
+		if (!compressed.contains(file.getPath())) {
+			return null;
+		}
+		synchronized (containers) {
+			Container container = containers.get(file.getPath());
+			if (container != null) {
+				return container;
+			}
+		}
+		Container container = new Container(containerFile(file));
+		synchronized (containers) {
+			containers.put(file.getPath(), container);
+			if (containers.size() > INDEX_CACHE_ENTRIES) {
+				containers.remove(containers.keySet().iterator().next());
+			}
+		}
+		return container;
+	}
+
+	/**
+	 * Chooses the codec for a file by compressing blocks taken at even
+	 * intervals through it.
+	 *
+	 * @param fastReads
+	 *            Whether only codecs that decompress quickly may be chosen.
+	 */
+	static Codec choose(File file, boolean fastReads) throws IOException {
+		try (FileChannel in = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ)) {
+			long blocks = (in.size() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+			int count = (int) Math.min(SAMPLES, blocks);
+			byte[][] samples = new byte[count][];
+			for (int i = 0; i < count; i++) {
+				long block = blocks * i / count;
+				samples[i] = readBlock(in, block * BLOCK_SIZE);
+			}
+			return Codec.choose(samples, fastReads);
+		}
+	}
+
+	/**
+	 * Writes a compressed container of a file to a scratch file, and forces
+	 * it to disk. The file is read without its lock; the caller checks that
+	 * it did not change before committing the container.
+	 *
+	 * @return The scratch file holding the container.
+	 */
+	File build(File file, Codec codec) throws IOException {
+		return build(file, codec, UNMETERED);
+	}
+
+	/**
+	 * Builds a container as <code>build(file, codec)</code> does, paying for
+	 * each block with the limiter as it is read.
+	 */
+	File build(File file, Codec codec, ThroughputLimiter limiter)
+			throws IOException {
+		File staged = staging(stagingRoot, file);
+		try (FileChannel in = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(staged.toPath(),
+						StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			long length = in.size();
+			int count = (int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+			ByteBuffer index = ByteBuffer
+					.allocate(count * INDEX_ENTRY_SIZE + FOOTER_SIZE);
+			long position = 0;
+			for (int i = 0; i < count; i++) {
+				byte[] raw = readBlock(in, (long) i * BLOCK_SIZE);
+				pay(limiter, raw.length, file);
+				byte[] stored = codec.compress(raw, 0, raw.length);
+				if (stored == null) {
+					stored = raw;
+				}
+				index.putLong(position).putInt(stored.length);
+				position += writeFully(out, ByteBuffer.wrap(stored), position);
+			}
+			index.put((byte) codec.ordinal()).putInt(BLOCK_SIZE)
+					.putLong(length).putInt(count).putLong(position)
+					.putInt(MAGIC);
+			index.flip();
+			writeFully(out, index, position);
+			// On disk before the file it replaces is truncated
+			out.force(true);
+		}
+		return staged;
+	}
+
+	/**
+	 * Makes a container built with <code>build</code> the content of a file,
+	 * forcing its directory entry and checksums to disk so the file can be
+	 * truncated afterwards. The caller holds the file lock for exclusive
+	 * access.
+	 */
+	void commit(File file, File staged) throws IOException {
+		File container = containerFile(file);
+		container.getParentFile().mkdirs();
+		channels.invalidate(container);
+		checksums.delete(container);
+		Files.move(staged.toPath(), container.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		GroupCommitter.force(channels, container.getParentFile());
+		ChannelCache.CachedChannel cached = channels.acquire(container);
+		try {
+			checksums.update(container, cached.channel(), 0, 0,
+					cached.channel().size(), null);
+		} finally {
+			channels.release(cached);
+		}
+		GroupCommitter.force(channels, ChunkChecksums.sidecar(container));
+		forget(file);
+		compressed.add(file.getPath());
+	}
+
+	/**
+	 * Writes a compressed file back to the file itself, uncompressed, forces
+	 * it to disk, and deletes its container. The caller holds the file lock
+	 * for exclusive access.
+	 */
+	void materialize(File file, SealedContent content) throws IOException {
+		materialize(file, content, UNMETERED);
+	}
+
+	/**
+	 * Writes a compressed file back as <code>materialize(file, content)</code>
+	 * does, paying for each piece with the limiter before it is read.
+	 */
+	void materialize(File file, SealedContent content,
+			ThroughputLimiter limiter) throws IOException {
+		install(file, unpack(file, content, limiter));
+	}
+
+	/**
+	 * Writes a compressed file, uncompressed, to a scratch file of its own,
+	 * and forces it to disk, paying for each piece with the limiter before it
+	 * is read. The file lock is not needed; the caller checks that the file
+	 * is still compressed before installing the copy.
+	 *
+	 * @return The scratch file holding the uncompressed file.
+	 */
+	File unpack(File file, SealedContent content, ThroughputLimiter limiter)
+			throws IOException {
+		// Staged beside the file, which may lie on another filesystem
+		File directory = new File(StorageServer.METADATA_DIR + "/staging"
+				+ file.getParent());
+		directory.mkdirs();
+		File staged = Files.createTempFile(directory.toPath(),
+				file.getName() + ".", ".uncompressed").toFile();
+		try (FileChannel out = FileChannel.open(staged.toPath(),
+				StandardOpenOption.WRITE)) {
+			long position = 0;
+			while (position < content.length()) {
+				int count = (int) Math.min(16 * BLOCK_SIZE,
+						content.length() - position);
+				pay(limiter, count, file);
+				position += writeFully(out,
+						ByteBuffer.wrap(content.read(position, count)),
+						position);
+			}
+			out.force(true);
+		} catch (IOException | RuntimeException e) {
+			staged.delete();
+			throw e;
+		}
+		return staged;
+	}
+
+	/**
+	 * Moves an uncompressed copy made by <code>unpack</code> into place and
+	 * deletes the container. The caller holds the file lock for exclusive
+	 * access.
+	 */
+	void install(File file, File staged) throws IOException {
+		Files.move(staged.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		// On disk before the container goes
+		GroupCommitter.force(channels, file.getParentFile());
+		remove(file);
+	}
+
+	/** Takes bytes read from or for a file from the budget of a limiter. */
+	private static void pay(ThroughputLimiter limiter, long bytes, File file)
+			throws InterruptedIOException {
+		try {
+			limiter.acquire(bytes);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while moving "
+					+ file);
+		}
+	}
+
+	/** Deletes the container of a file, if it has one. */
+	void remove(File file) throws IOException {
+		if (!loaded) {
+			load();
+		}
+		if (!compressed.remove(file.getPath())) {
+			return;
+		}
+		forget(file);
+		File container = containerFile(file);
+		channels.invalidate(container);
+		checksums.delete(container);
+		container.delete();
+	}
+
+	/** Returns the paths of the files held by this store. */
+	Set<String> paths() throws IOException {
+		if (!loaded) {
+			load();
+		}
+		return compressed;
+	}
+
+	/** Drops the index and the decompressed blocks kept for a file. */
+	private void forget(File file) {
+		Container container;
+		synchronized (containers) {
+			container = containers.remove(file.getPath());
+		}
+		if (container == null) {
+			return;
+		}
+		synchronized (rawBlocks) {
+			Iterator<Map.Entry<RawBlock, byte[]>> entries = rawBlocks
+					.entrySet().iterator();
+			while (entries.hasNext()) {
+				Map.Entry<RawBlock, byte[]> entry = entries.next();
+				if (entry.getKey().container == container) {
+					rawBytes -= entry.getValue().length;
+					entries.remove();
+				}
+			}
+		}
+	}
+
+	private byte[] cachedBlock(Container container, int block) {
+		synchronized (rawBlocks) {
+			return rawBlocks.get(new RawBlock(container, block));
+		}
+	}
+
+	private void cacheBlock(Container container, int block, byte[] raw) {
+		synchronized (rawBlocks) {
+			if (rawBlocks.put(new RawBlock(container, block), raw) == null) {
+				rawBytes += raw.length;
+			}
+			Iterator<byte[]> oldest = rawBlocks.values().iterator();
+			while (rawBytes > RAW_CACHE_BYTES && oldest.hasNext()) {
+				rawBytes -= oldest.next().length;
+				oldest.remove();
+			}
+		}
+	}
+
+	/** Returns a scratch file for building new content of a file. */
+	private static File staging(String stagingRoot, File file) {
+		File staging = new File(stagingRoot + file.getPath() + ".compressed");
+		staging.getParentFile().mkdirs();
+		return staging;
+	}
+
+	/** Reads the block starting at the given position, short at the end. */
+	private static byte[] readBlock(FileChannel in, long position)
+			throws IOException {
+		int length = (int) Math.min(BLOCK_SIZE, in.size() - position);
+		ByteBuffer block = ByteBuffer.allocate(length);
+		while (block.hasRemaining()) {
+			if (in.read(block, position + block.position()) < 0) {
+				break;
+			}
+		}
+		return block.array();
+	}
+
+	private static int writeFully(FileChannel out, ByteBuffer buffer,
+			long position) throws IOException {
+		int length = buffer.remaining();
+		while (buffer.hasRemaining()) {
+			position += out.write(buffer, position);
+		}
+		return length;
+	}
+
+	/** Index of a container, read once and kept while in use. */
+	private class Container implements SealedContent {
+		private final File file;
+		private final Codec codec;
+		private final int blockSize;
+		private final long length;
+		private final long[] offsets;
+		private final int[] storedLengths;
+
+		Container(File file) throws IOException {
+			this.file = file;
+			ChannelCache.CachedChannel cached = channels.acquire(file);
+			try {
+				FileChannel channel = cached.channel();
+				long size = channel.size();
+				if (size < FOOTER_SIZE) {
+					throw new IOException(file + " is not a container");
+				}
+				ByteBuffer footer = ByteBuffer.wrap(checksums.readChecked(file,
+						channel, size, size - FOOTER_SIZE, FOOTER_SIZE));
+				codec = Codec.values()[footer.get()];
+				blockSize = footer.getInt();
+				length = footer.getLong();
+				int count = footer.getInt();
+				long indexOffset = footer.getLong();
+				if (footer.getInt() != MAGIC) {
+					throw new IOException(file + " is not a container");
+				}
+				ByteBuffer index = ByteBuffer.wrap(checksums.readChecked(file,
+						channel, size, indexOffset, count * INDEX_ENTRY_SIZE));
+				offsets = new long[count];
+				storedLengths = new int[count];
+				for (int i = 0; i < count; i++) {
+					offsets[i] = index.getLong();
+					storedLengths[i] = index.getInt();
+				}
+			} finally {
+				channels.release(cached);
+			}
+		}
+
+		@Override
+		public long length() {
+			return length;
+		}
+
+		@Override
+		public byte[] read(long offset, int length) throws IOException {
+			if (offset < 0 || length < 0 || offset + length > this.length) {
+				throw new IndexOutOfBoundsException(
+						"read extends past the end of the file");
+			}
+			byte[] data = new byte[length];
+			if (length == 0) {
+				return data;
+			}
+			int first = (int) (offset / blockSize);
+			int last = (int) ((offset + length - 1) / blockSize);
+			byte[][] raw = new byte[last - first + 1][];
+			int firstMissing = -1;
+			int lastMissing = -1;
+			for (int block = first; block <= last; block++) {
+				raw[block - first] = cachedBlock(this, block);
+				if (raw[block - first] == null) {
+					firstMissing = firstMissing < 0 ? block : firstMissing;
+					lastMissing = block;
+				}
+			}
+			if (firstMissing >= 0) {
+				load(firstMissing, lastMissing, raw, first);
+			}
+			int done = 0;
+			while (done < length) {
+				int block = (int) ((offset + done) / blockSize);
+				int inBlock = (int) ((offset + done) % blockSize);
+				byte[] source = raw[block - first];
+				int count = Math.min(length - done, source.length - inBlock);
+				System.arraycopy(source, inBlock, data, done, count);
+				done += count;
+			}
+			return data;
+		}
+
+		/**
+		 * Reads the blocks of a range that are not filled in yet with one
+		 * checked read of the container, and decompresses them.
+		 *
+		 * @param raw
+		 *            Blocks of a read, starting at block <code>base</code>.
+		 */
+		private void load(int firstBlock, int lastBlock, byte[][] raw,
+				int base) throws IOException {
+			byte[] stored;
+			ChannelCache.CachedChannel cached = channels.acquire(file);
+			try {
+				FileChannel channel = cached.channel();
+				// The blocks lie one after the other in the container
+				long start = offsets[firstBlock];
+				long end = offsets[lastBlock] + storedLengths[lastBlock];
+				stored = checksums.readChecked(file, channel, channel.size(),
+						start, (int) (end - start));
+			} finally {
+				channels.release(cached);
+			}
+
+			List<Integer> compressedBlocks = new ArrayList<Integer>();
+			for (int block = firstBlock; block <= lastBlock; block++) {
+				if (raw[block - base] != null) {
+					continue;
+				}
+				int from = (int) (offsets[block] - offsets[firstBlock]);
+				raw[block - base] = Arrays.copyOfRange(stored, from,
+						from + storedLengths[block]);
+				if (storedLengths[block] < rawLength(block)) {
+					compressedBlocks.add(block);
+				}
+			}
+
+			// The first block is decompressed here, the others in parallel
+			List<Future<byte[]>> decompressed = new ArrayList<Future<byte[]>>();
+			try {
+				for (int i = 1; i < compressedBlocks.size()
+						&& DECOMPRESSORS > 1; i++) {
+					int block = compressedBlocks.get(i);
+					byte[] source = raw[block - base];
+					decompressed.add(decompressors.submit(
+							() -> codec.decompress(source, rawLength(block))));
+				}
+				for (int i = 0; i < compressedBlocks.size(); i++) {
+					int block = compressedBlocks.get(i);
+					byte[] source = raw[block - base];
+					raw[block - base] = i == 0 || DECOMPRESSORS == 1
+							? codec.decompress(source, rawLength(block))
+							: decompressed.get(i - 1).get();
+					cacheBlock(this, block, raw[block - base]);
+				}
+			} catch (IllegalArgumentException e) {
+				throw new IOException("corrupt block in " + file, e);
+			} catch (ExecutionException e) {
+				throw new IOException("corrupt block in " + file,
+						e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(
+						"interrupted while decompressing " + file);
+			} finally {
+				for (Future<byte[]> pending : decompressed) {
+					pending.cancel(false);
+				}
+			}
+		}
+
+		private int rawLength(int block) {
+			return (int) Math.min(blockSize, length - (long) block * blockSize);
+		}
+	}
+
+	/** Key of a decompressed block in the cache of a store. */
+	private static class RawBlock {
+		private final Container container;
+		private final int block;
+
+		RawBlock(Container container, int block) {
+			this.container = container;
+			this.block = block;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof RawBlock
+					&& ((RawBlock) other).container == container
+					&& ((RawBlock) other).block == block;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(container) * 31 + block;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Splits a stream into variable-size chunks at content-defined boundaries.
+ *
+ * <p>
+ * A gear rolling hash is computed over the bytes of the stream, and a chunk
+ * ends wherever the low bits of the hash are all zero. Boundaries therefore
+ * depend only on the bytes just before them: inserting or removing data in a
+ * file moves the boundaries near the edit, and the chunks elsewhere stay the
+ * same, so they are found again in the chunk store. Chunks are between
+ * <code>MIN_CHUNK</code> and <code>MAX_CHUNK</code> bytes long and
+ * <code>AVERAGE_CHUNK</code> bytes long on average.
+ */
+class ContentChunker {
+
+	/** Number of hash bits that must be zero at a boundary. */
+	private static final int BOUNDARY_BITS = 16;
+
+	static final int MIN_CHUNK = 16 * 1024;
+	static final int AVERAGE_CHUNK = MIN_CHUNK + (1 << BOUNDARY_BITS);
+	static final int MAX_CHUNK = 256 * 1024;
+
+	/**
+	 * The top bits of the hash are tested, as they depend on the last 64
+	 * bytes, while the low bits only depend on the last few.
+	 */
+	private static final long MASK = -1L << (64 - BOUNDARY_BITS);
+
+	/**
+	 * Random value per byte value. The table is fixed, as every server must
+	 * cut the same data at the same places.
+	 */
+	private static final long[] GEAR = new long[256];
+
+	static {
+		Random random = new Random(0x5eed_c0de_d1f5L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	private final InputStream in;
+	private final byte[] buffer = new byte[2 * MAX_CHUNK];
+	private int start = 0;
+	private int end = 0;
+	private boolean eof = false;
+
+	ContentChunker(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Returns the next chunk of the stream, or <code>null</code> at the end of
+	 * the stream.
+	 */
+	byte[] next() throws IOException {
+		fill();
+		if (start == end) {
+			return null;
+		}
+		int length = boundary(buffer, start, end - start);
+		byte[] chunk = Arrays.copyOfRange(buffer, start, start + length);
+		start += length;
+		return chunk;
+	}
+
+	/**
+	 * Returns the length of the chunk starting at <code>offset</code>, given
+	 * <code>available</code> bytes of data.
+	 */
+	static int boundary(byte[] data, int offset, int available) {
+		int limit = Math.min(available, MAX_CHUNK);
+		if (limit <= MIN_CHUNK) {
+			return limit;
+		}
+		long hash = 0;
+		// The bytes before the minimum size cannot end a chunk, but they
+		// still feed the hash
+		for (int i = MIN_CHUNK - 64; i < limit; i++) {
+			hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+			if (i >= MIN_CHUNK && (hash & MASK) == 0) {
+				return i + 1;
+			}
+		}
+		return limit;
+	}
+
+	/** Keeps at least one maximum chunk in the buffer, unless at the end. */
+	private void fill() throws IOException {
+		if (eof || end - start >= MAX_CHUNK) {
+			return;
+		}
+		System.arraycopy(buffer, start, buffer, 0, end - start);
+		end -= start;
+		start = 0;
+		while (end < buffer.length) {
+			int read = in.read(buffer, end, buffer.length - end);
+			if (read < 0) {
+				eof = true;
+				return;
+			}
+			end += read;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package storage;
+
+import common.Path;
+import naming.Registration;
+
+/**
+ * Probes the disks of a storage server other than its data directory at a
+ * fixed interval, and reports the files of a disk that stopped working to
+ * the naming server as lost.
+ *
+ * <p>
+ * The naming server stops routing clients to this server for the lost files
+ * and copies them again from other replicas, and the server then forgets
+ * them. A server restarted with a failed disk does not offer the files on it
+ * when it registers.
+ */
+public class DiskChecker extends Thread {
+
+	private static final long CHECK_INTERVAL = 10 * 1000;
+
+	private StorageServer storageServer;
+	private Registration naming_server;
+	private Command command_stub;
+	private volatile boolean askedToStopThread = false;
+
+	public DiskChecker(StorageServer storageServer,
+			Registration naming_server, Command command_stub) {
+		this.storageServer = storageServer;
+		this.naming_server = naming_server;
+		this.command_stub = command_stub;
+		setDaemon(true);
+	}
+
+	public void run() {
+		while (!askedToStopThread) {
+			try {
+				Thread.sleep(CHECK_INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+			for (int disk = 1; disk < storageServer.getDiskCount(); disk++) {
+				try {
+					Path[] lost = storageServer.checkDisk(disk);
+					if (lost != null) {
+						reportLost(lost);
+					}
+				} catch (Throwable t) {
+					System.out.println("Disk check failed : "
+							+ t.getMessage());
+				}
+			}
+		}
+	}
+
+	public void stopGracefully() {
+		askedToStopThread = true;
+		interrupt();
+	}
+
+	private void reportLost(Path[] lost) {
+		System.out.println("Reporting " + lost.length + " lost files");
+		try {
+			for (Path file : naming_server.reportLost(command_stub, lost)) {
+				// Copied again elsewhere; the entry here is of no use
+				storageServer.delete(file);
+			}
+		} catch (Throwable t) {
+			System.out.println("Report of lost files failed : "
+					+ t.getMessage());
+		}
+	}
+}
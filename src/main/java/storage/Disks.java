@@ -0,0 +1,302 @@
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import common.Path;
+
+/**
+ * Disks of a storage server.
+ *
+ * <p>
+ * The data directory is the first disk. It holds the namespace of the
+ * server, every file having an entry at its own path there, and the metadata
+ * directory. Further disks are directories on other devices. A file placed on
+ * another disk is kept under that directory at its own path, and its entry in
+ * the data directory is a symbolic link to it, so the file is opened, read
+ * and written through its usual path; only creating, copying in and deleting
+ * it need to know its disk. A partial copy is written in a metadata directory
+ * on the disk the file is copied to, so it is moved into place within one
+ * filesystem.
+ *
+ * <p>
+ * A disk has failed when a probe file can no longer be written to its
+ * directory and read back. It is then left out of placement. The first disk
+ * is never given up, since the server cannot run without its metadata.
+ */
+class Disks {
+
+	/** Name of the file written to check a disk. */
+	static final String PROBE_FILE = ".dfs-probe";
+
+	private static final byte[] PROBE = "probe".getBytes();
+
+	private final File[] directories;
+	private final Placement placement;
+	private final Set<Integer> failed = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger next = new AtomicInteger();
+	// Disk of each file looked up so far
+	private final ConcurrentHashMap<String, Integer> placed = new ConcurrentHashMap<String, Integer>();
+
+	/** Creates a server's disks, with the data directory as the only one. */
+	Disks() {
+		this(new File[0], Placement.ROUND_ROBIN);
+	}
+
+	/**
+	 * Creates a server's disks.
+	 *
+	 * @param others
+	 *            Directories of the disks besides the data directory.
+	 * @param placement
+	 *            How the disk of a new file is chosen.
+	 */
+	Disks(File[] others, Placement placement) {
+		directories = new File[others.length + 1];
+		directories[0] = new File("/data");
+		for (int i = 0; i < others.length; i++) {
+			directories[i + 1] = others[i].getAbsoluteFile();
+		}
+		this.placement = placement;
+	}
+
+	/** Returns the number of disks, the failed ones included. */
+	int count() {
+		return directories.length;
+	}
+
+	File directory(int disk) {
+		return directories[disk];
+	}
+
+	boolean isFailed(int disk) {
+		return failed.contains(disk);
+	}
+
+	/** Takes a disk out of placement for good. */
+	void fail(int disk) {
+		if (disk > 0) {
+			failed.add(disk);
+		}
+	}
+
+	/** Chooses the disk of a new file among those that have not failed. */
+	int place() {
+		if (directories.length == 1) {
+			return 0;
+		}
+		if (placement == Placement.FREE_SPACE) {
+			int best = 0;
+			long bestSpace = -1;
+			for (int disk = 0; disk < directories.length; disk++) {
+				long space = isFailed(disk) ? -1
+						: directories[disk].getUsableSpace();
+				if (space > bestSpace) {
+					best = disk;
+					bestSpace = space;
+				}
+			}
+			return best;
+		}
+		for (int tries = 0; tries < directories.length; tries++) {
+			int disk = Math.floorMod(next.getAndIncrement(),
+					directories.length);
+			if (!isFailed(disk)) {
+				return disk;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the disk holding a file, which is the first one for a file that
+	 * does not exist.
+	 */
+	int diskOf(File file) {
+		if (directories.length == 1) {
+			return 0;
+		}
+		Integer known = placed.get(file.getPath());
+		if (known != null) {
+			return known;
+		}
+		int disk = 0;
+		java.nio.file.Path link = file.toPath();
+		if (Files.isSymbolicLink(link)) {
+			try {
+				java.nio.file.Path target = Files.readSymbolicLink(link);
+				for (int i = 1; i < directories.length; i++) {
+					if (target.startsWith(directories[i].toPath())) {
+						disk = i;
+					}
+				}
+			} catch (IOException e) {
+				// Removed in the meantime
+				return 0;
+			}
+		}
+		placed.put(file.getPath(), disk);
+		return disk;
+	}
+
+	/** Returns the local file holding the data of a file on a given disk. */
+	File dataFile(int disk, File file) {
+		return disk == 0 ? file
+				: new File(directories[disk].getPath() + file.getPath());
+	}
+
+	/**
+	 * Returns the file holding the data of a file kept on a disk other than
+	 * the first, or <code>null</code> if the file is on the first disk.
+	 */
+	File target(File file) {
+		int disk = diskOf(file);
+		return disk == 0 ? null : dataFile(disk, file);
+	}
+
+	/** Returns the partial file of a copy of a file to a given disk. */
+	File partialFile(int disk, Path file) {
+		return disk == 0 ? StorageServer.metadataFile("copies", file)
+				: new File(directories[disk].getPath() + "/.dfs/copies"
+						+ file.getPath());
+	}
+
+	/**
+	 * Chooses the disk a file is copied to: its own disk if it is on one
+	 * that works, then one holding a partial copy of it, so an interrupted
+	 * copy resumes, and otherwise a new one.
+	 */
+	int copyDisk(Path file) {
+		int disk = diskOf(new File(file.getPath()));
+		if (disk > 0 && !isFailed(disk)) {
+			return disk;
+		}
+		for (disk = 0; disk < directories.length; disk++) {
+			if (!isFailed(disk) && partialFile(disk, file).exists()) {
+				return disk;
+			}
+		}
+		return place();
+	}
+
+	/**
+	 * Creates a new, empty file on the disk chosen for it. The caller holds
+	 * the file lock for exclusive access.
+	 *
+	 * @return The local file holding the data of the file.
+	 * @throws FileAlreadyExistsException
+	 *             If the file exists.
+	 */
+	File create(File file) throws IOException {
+		int disk = place();
+		if (disk == 0) {
+			Files.newOutputStream(file.toPath(), StandardOpenOption.CREATE_NEW)
+					.close();
+			return file;
+		}
+		if (Files.exists(file.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+			throw new FileAlreadyExistsException(file.getPath());
+		}
+		File target = dataFile(disk, file);
+		target.getParentFile().mkdirs();
+		// A left-over of a file lost with its link is overwritten
+		Files.newOutputStream(target.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING).close();
+		Files.createSymbolicLink(file.toPath(), target.toPath());
+		placed.put(file.getPath(), disk);
+		return target;
+	}
+
+	/**
+	 * Points the entry of a file at its data on a given disk, once the data
+	 * has been moved there. The entry is replaced in one step. The caller
+	 * holds the file lock for exclusive access.
+	 */
+	void link(File file, int disk) throws IOException {
+		placed.remove(file.getPath());
+		if (disk == 0) {
+			return;
+		}
+		File link = StorageServer.metadataFile("staging",
+				new Path(file.getPath() + ".link"));
+		link.getParentFile().mkdirs();
+		Files.deleteIfExists(link.toPath());
+		Files.createSymbolicLink(link.toPath(), dataFile(disk, file).toPath());
+		Files.move(link.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		placed.put(file.getPath(), disk);
+	}
+
+	/**
+	 * Deletes a file, and its data if it is on another disk that still works.
+	 *
+	 * @throws java.nio.file.NoSuchFileException
+	 *             If the file does not exist.
+	 */
+	void delete(File file) throws IOException {
+		int disk = diskOf(file);
+		if (disk > 0 && !isFailed(disk)) {
+			Files.deleteIfExists(dataFile(disk, file).toPath());
+		}
+		Files.delete(file.toPath());
+		placed.remove(file.getPath());
+	}
+
+	/**
+	 * Deletes the data a file had on another disk, once the file has been
+	 * replaced by a file of the first disk.
+	 *
+	 * @param target
+	 *            Data file of the file before, as returned by
+	 *            <code>target</code>, or <code>null</code>.
+	 */
+	void replaced(File file, File target) throws IOException {
+		placed.remove(file.getPath());
+		if (target != null && !Files.isSymbolicLink(file.toPath())) {
+			Files.deleteIfExists(target.toPath());
+		}
+	}
+
+	/**
+	 * Writes a probe file to a disk, forces it and reads it back.
+	 *
+	 * @return <code>true</code> if the disk works.
+	 */
+	boolean probe(int disk) {
+		java.nio.file.Path probe = new File(directories[disk], PROBE_FILE)
+				.toPath();
+		try {
+			if (!directories[disk].isDirectory()) {
+				return false;
+			}
+			try (FileChannel channel = FileChannel.open(probe,
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.READ,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				channel.write(ByteBuffer.wrap(PROBE), 0);
+				channel.force(true);
+				ByteBuffer read = ByteBuffer.allocate(PROBE.length);
+				channel.read(read, 0);
+				if (!Arrays.equals(read.array(), PROBE)) {
+					return false;
+				}
+			}
+			Files.delete(probe);
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
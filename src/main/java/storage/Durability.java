@@ -0,0 +1,22 @@
+package storage;
+
+/**
+ * When a storage server acknowledges a write.
+ */
+public enum Durability {
+	/**
+	 * Once the data is handed to the operating system. A crash of the host
+	 * may lose acknowledged writes.
+	 */
+	NONE,
+	/**
+	 * Once the written file is forced to disk. Every write pays for a force
+	 * of its own.
+	 */
+	SYNC,
+	/**
+	 * Once the written file is forced to disk, with one force shared by all
+	 * writers of a file waiting at the same time. See {@link GroupCommitter}.
+	 */
+	GROUP_COMMIT
+}
@@ -0,0 +1,220 @@
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Makes writes durable by forcing the written files to disk, sharing each
+ * force among all writers waiting for the same file.
+ *
+ * <p>
+ * A writer hands the files it wrote to <code>commit</code> and waits. This
+ * thread takes every commit waiting at that moment as one batch, forces each
+ * file of the batch once, and wakes the writers of the batch. Writers that
+ * arrive while a batch is being forced form the next batch. Nothing waits
+ * for a batch to fill, so a lone writer waits for one force, and no writer
+ * waits for more than two batches however heavy the load. The distinct files
+ * of a batch are forced side by side by a few helper threads, since the disk
+ * serves concurrent forces of different files together.
+ */
+public class GroupCommitter extends Thread {
+
+	/** Number of files of a batch forced at the same time. */
+	private static final int FORCERS = 8;
+
+	private final ChannelCache channels;
+	private final ExecutorService forcers = Executors.newFixedThreadPool(
+			FORCERS, task -> {
+				Thread thread = new Thread(task, "group-commit-forcer");
+				thread.setDaemon(true);
+				return thread;
+			});
+	private final List<Commit> pending = new ArrayList<Commit>();
+	private volatile boolean askedToStopThread = false;
+	private long batches = 0;
+	private long commits = 0;
+	private long forces = 0;
+
+	public GroupCommitter(ChannelCache channels) {
+		super("group-committer");
+		this.channels = channels;
+		setDaemon(true);
+	}
+
+	/**
+	 * Waits until the data written so far to the given files is on disk.
+	 *
+	 * @throws IOException
+	 *             If a file cannot be forced, or the committer stops first.
+	 */
+	public void commit(File... files) throws IOException {
+		Commit commit = new Commit(files);
+		synchronized (this) {
+			if (askedToStopThread) {
+				throw new IOException("group committer has stopped");
+			}
+			pending.add(commit);
+			notifyAll();
+			boolean interrupted = false;
+			while (!commit.done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// The data is written already; only its ack is waiting
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (commit.failure != null) {
+			throw new IOException("cannot force " + commit.failure.getMessage(),
+					commit.failure);
+		}
+	}
+
+	public void run() {
+		while (true) {
+			List<Commit> batch;
+			synchronized (this) {
+				while (pending.isEmpty() && !askedToStopThread) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Checked by the loop
+					}
+				}
+				if (pending.isEmpty()) {
+					forcers.shutdown();
+					return;
+				}
+				batch = new ArrayList<Commit>(pending);
+				pending.clear();
+			}
+
+			Set<File> files = new LinkedHashSet<File>();
+			for (Commit commit : batch) {
+				for (File file : commit.files) {
+					files.add(file);
+				}
+			}
+			List<File> failed = new ArrayList<File>();
+			IOException failure = null;
+			List<Future<?>> forced = new ArrayList<Future<?>>();
+			for (File file : files) {
+				forced.add(forcers.submit(() -> {
+					force(channels, file);
+					return null;
+				}));
+			}
+			int i = 0;
+			for (File file : files) {
+				try {
+					getUninterruptibly(forced.get(i++));
+				} catch (ExecutionException e) {
+					failed.add(file);
+					failure = e.getCause() instanceof IOException
+							? (IOException) e.getCause()
+							: new IOException(e.getCause());
+				}
+			}
+
+			synchronized (this) {
+				batches++;
+				commits += batch.size();
+				forces += files.size();
+				for (Commit commit : batch) {
+					for (File file : commit.files) {
+						if (failed.contains(file)) {
+							commit.failure = failure;
+						}
+					}
+					commit.done = true;
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	private static void getUninterruptibly(Future<?> future)
+			throws ExecutionException {
+		while (true) {
+			try {
+				future.get();
+				return;
+			} catch (InterruptedException e) {
+				// The force is under way; its outcome is still needed
+			}
+		}
+	}
+
+	/**
+	 * Stops the thread once the commits already waiting have been forced.
+	 */
+	public synchronized void stopGracefully() {
+		askedToStopThread = true;
+		notifyAll();
+	}
+
+	/**
+	 * Forces a file or directory to disk. A file that no longer exists needs
+	 * no forcing.
+	 */
+	static void force(ChannelCache channels, File file) throws IOException {
+		if (file.isDirectory()) {
+			try (FileChannel directory = FileChannel.open(file.toPath(),
+					StandardOpenOption.READ)) {
+				directory.force(true);
+			}
+			return;
+		}
+		ChannelCache.CachedChannel cached;
+		try {
+			cached = channels.acquire(file);
+		} catch (NoSuchFileException e) {
+			return;
+		}
+		try {
+			// Any open channel will do: the data of the file is forced,
+			// whichever descriptor wrote it
+			cached.channel().force(false);
+		} finally {
+			channels.release(cached);
+		}
+	}
+
+	/** Returns the average number of commits served by one batch. */
+	public synchronized double getCommitsPerBatch() {
+		return batches == 0 ? 0 : (double) commits / batches;
+	}
+
+	/** Returns a one-line summary of the batches forced so far. */
+	public synchronized String report() {
+		return String.format(
+				"%d commits in %d batches (%.1f per batch), %d forces",
+				commits, batches, getCommitsPerBatch(), forces);
+	}
+
+	/** Files written by one writer, waiting to be forced. */
+	private static class Commit {
+		final File[] files;
+		boolean done = false;
+		IOException failure;
+
+		Commit(File[] files) {
+			this.files = files;
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package storage;
+
+import naming.FailureDetector;
+import naming.Registration;
+
+/**
+ * Periodically reports liveness and load of a storage server to the naming
+ * server it is registered with.
+ */
+public class HeartbeatSender extends Thread {
+
+	private StorageServer storageServer;
+	private Registration naming_server;
+	private Command command_stub;
+	private volatile boolean askedToStopThread = false;
+
+	public HeartbeatSender(StorageServer storageServer,
+			Registration naming_server, Command command_stub) {
+		this.storageServer = storageServer;
+		this.naming_server = naming_server;
+		this.command_stub = command_stub;
+		setDaemon(true);
+	}
+
+	public void run() {
+		// Heartbeats are due at a fixed rate, however long each call takes,
+		// so that the naming server does not learn the call time as part of
+		// the interval
+		long due = System.currentTimeMillis();
+		while (!askedToStopThread) {
+			try {
+				boolean registered = naming_server.heartbeat(command_stub,
+						storageServer.heartbeatReport());
+				if (!registered) {
+					// The naming server has declared this server dead
+					storageServer.register(naming_server);
+				}
+			} catch (Throwable t) {
+				System.out.println("Heartbeat failed : " + t.getMessage());
+			}
+			due += FailureDetector.HEARTBEAT_INTERVAL;
+			long now = System.currentTimeMillis();
+			if (due < now) {
+				// Calls fell behind; heartbeats missed are not made up
+				due = now;
+			}
+			try {
+				Thread.sleep(due - now);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	public void stopGracefully() {
+		askedToStopThread = true;
+		interrupt();
+	}
+}
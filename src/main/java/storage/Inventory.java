@@ -0,0 +1,410 @@
+package storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Persisted list of the files and directories held by a storage server, so a
+ * restarted server need not walk its whole directory tree to register.
+ *
+ * <p>
+ * The list lives in a manifest in the metadata directory, written out in full
+ * now and then, and a journal next to it, to which every file or directory
+ * created or deleted through the server appends a record. Every record
+ * carries the next generation number; the manifest carries the generation it
+ * includes, so records already in it are skipped on replay:
+ *
+ * <pre>
+ * manifest: magic: int, generation: long, count: int, entries
+ * entry:    directory: boolean, path length: int, path: UTF-8 bytes
+ * record:   generation: long, kind: byte, path length: int,
+ *           path: UTF-8 bytes
+ * </pre>
+ *
+ * <p>
+ * A clean stop leaves a marker next to the manifest, and a start removes it
+ * before anything changes. The manifest is trusted only if the marker is
+ * there: after a crash, or after changes made while the inventory was not
+ * loaded, the tree is walked again, in parallel, and a new manifest written.
+ * Files put in place behind the back of the server are not seen until the
+ * manifest is deleted.
+ */
+public class Inventory {
+
+	static final String MANIFEST = "inventory";
+
+	static final int MAGIC = 0x44465349;
+	private static final byte REMOVED = 0;
+	private static final byte FILE = 1;
+	private static final byte DIRECTORY = 2;
+	/** Journal records after which the manifest is written out again. */
+	private static final long COMPACT_RECORDS = 1 << 20;
+	/** Threads walking the tree; most of their time goes to waiting on disk. */
+	private static final int WALKERS = Math.max(8,
+			4 * Runtime.getRuntime().availableProcessors());
+
+	private final java.nio.file.Path root;
+	private final File directory;
+	private final File manifest;
+	private final File journalFile;
+	private final File clean;
+	// Path of every entry, mapped to whether it is a directory
+	private Map<String, Boolean> entries;
+	private FileChannel journal;
+	private long generation = 0;
+	private long journalRecords = 0;
+	// End of the last complete record of the journal when it was replayed
+	private long journalEnd = 0;
+	private boolean invalidated = false;
+	private boolean scanned = false;
+
+	public Inventory(java.nio.file.Path root) {
+		this(root, new File(StorageServer.METADATA_DIR));
+	}
+
+	/**
+	 * Creates an inventory keeping its manifest and journal in a directory of
+	 * its own, outside the tree it lists.
+	 */
+	public Inventory(java.nio.file.Path root, File directory) {
+		this.root = root;
+		this.directory = directory;
+		this.manifest = new File(directory, MANIFEST);
+		this.journalFile = new File(directory, MANIFEST + ".journal");
+		this.clean = new File(directory, MANIFEST + ".clean");
+	}
+
+	/**
+	 * Returns the files and directories under the root, reading the manifest
+	 * after a clean stop and walking the tree otherwise. From then on, changes
+	 * are recorded in the journal until <code>close</code> is called.
+	 *
+	 * @return Path of every entry, mapped to whether it is a directory. The map
+	 *         is the live inventory and must not be modified.
+	 */
+	public synchronized Map<String, Boolean> load() throws IOException {
+		if (entries != null) {
+			return entries;
+		}
+		directory.mkdirs();
+		Map<String, Boolean> loaded = null;
+		if (clean.exists()) {
+			try {
+				loaded = read();
+			} catch (IOException e) {
+				System.out.println("Inventory unreadable, rescanning : "
+						+ e.getMessage());
+			}
+		}
+		// Anything changed from here on must not be mistaken for clean
+		Files.deleteIfExists(clean.toPath());
+		forceDirectory(directory);
+		invalidated = true;
+
+		scanned = loaded == null;
+		if (loaded == null) {
+			loaded = walk(root);
+			entries = loaded;
+			writeManifest();
+		} else {
+			entries = loaded;
+		}
+		journal = FileChannel.open(journalFile.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		// A record cut short by a crash would swallow the ones after it
+		if (journal.size() > journalEnd) {
+			journal.truncate(journalEnd);
+		}
+		return entries;
+	}
+
+	/** Checks whether the last <code>load</code> had to walk the tree. */
+	public synchronized boolean wasScanned() {
+		return scanned;
+	}
+
+	/** Returns the generation of the last change recorded. */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Records that a file or directory now exists, along with the directories
+	 * above it not recorded yet.
+	 */
+	public synchronized void added(File file, boolean directory)
+			throws IOException {
+		if (!tracking()) {
+			return;
+		}
+		Boolean old = entries.put(file.getPath(), directory);
+		if (old == null || old != directory) {
+			append(directory ? DIRECTORY : FILE, file.getPath());
+		}
+		File parent = file.getParentFile();
+		while (parent != null && parent.toPath().startsWith(root)
+				&& entries.putIfAbsent(parent.getPath(),
+						Boolean.TRUE) == null) {
+			append(DIRECTORY, parent.getPath());
+			parent = parent.getParentFile();
+		}
+	}
+
+	/** Records that a file or directory no longer exists. */
+	public synchronized void removed(File file) throws IOException {
+		if (!tracking()) {
+			return;
+		}
+		if (entries.remove(file.getPath()) != null) {
+			append(REMOVED, file.getPath());
+		}
+	}
+
+	/**
+	 * Writes out what the journal holds and marks the manifest clean, so the
+	 * next <code>load</code> reads it.
+	 */
+	public synchronized void close() {
+		if (entries == null) {
+			return;
+		}
+		try {
+			journal.force(false);
+			journal.close();
+			Files.createFile(clean.toPath());
+			forceDirectory(directory);
+		} catch (IOException e) {
+			System.out.println("Cannot close inventory : " + e.getMessage());
+		}
+		entries = null;
+		journal = null;
+		invalidated = false;
+	}
+
+	/**
+	 * Checks whether changes are to be recorded. Before the inventory is
+	 * loaded they are not, and the first one marks the manifest stale.
+	 */
+	private boolean tracking() throws IOException {
+		if (entries != null) {
+			return true;
+		}
+		if (!invalidated) {
+			Files.deleteIfExists(clean.toPath());
+			invalidated = true;
+		}
+		return false;
+	}
+
+	private void append(byte kind, String path) throws IOException {
+		byte[] name = path.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer record = ByteBuffer.allocate(13 + name.length);
+		record.putLong(++generation).put(kind).putInt(name.length).put(name);
+		record.flip();
+		while (record.hasRemaining()) {
+			journal.write(record);
+		}
+		if (++journalRecords >= Math.max(COMPACT_RECORDS, entries.size())) {
+			writeManifest();
+		}
+	}
+
+	/** Writes the whole inventory to the manifest and empties the journal. */
+	private void writeManifest() throws IOException {
+		File temporary = new File(manifest.getPath() + ".tmp");
+		try (FileOutputStream file = new FileOutputStream(temporary);
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(file, 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeLong(generation);
+			out.writeInt(entries.size());
+			for (Map.Entry<String, Boolean> entry : entries.entrySet()) {
+				byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+				out.writeBoolean(entry.getValue());
+				out.writeInt(name.length);
+				out.write(name);
+			}
+			out.flush();
+			file.getFD().sync();
+		}
+		Files.move(temporary.toPath(), manifest.toPath(),
+				StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+		// Records left in the journal by a crash here are skipped on replay
+		if (journal != null) {
+			journal.truncate(0);
+		} else {
+			Files.deleteIfExists(journalFile.toPath());
+		}
+		journalRecords = 0;
+		journalEnd = 0;
+	}
+
+	/**
+	 * Reads the manifest and replays the journal over it, up to the last
+	 * complete record.
+	 */
+	private Map<String, Boolean> read() throws IOException {
+		Map<String, Boolean> read;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(manifest), 1 << 16))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(manifest + " is not an inventory");
+			}
+			generation = in.readLong();
+			int count = in.readInt();
+			read = new ConcurrentHashMap<String, Boolean>(
+					Math.max(16, count * 4 / 3 + 1));
+			for (int i = 0; i < count; i++) {
+				boolean directory = in.readBoolean();
+				read.put(readPath(in), directory);
+			}
+		}
+
+		journalEnd = 0;
+		if (!journalFile.exists()) {
+			return read;
+		}
+		long journalSize = journalFile.length();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(journalFile), 1 << 16))) {
+			while (true) {
+				long recordGeneration;
+				byte kind;
+				byte[] name;
+				try {
+					recordGeneration = in.readLong();
+					kind = in.readByte();
+					int length = in.readInt();
+					if (length < 0 || journalEnd + 13 + length > journalSize) {
+						break;
+					}
+					name = new byte[length];
+					in.readFully(name);
+				} catch (EOFException e) {
+					break;
+				}
+				journalEnd += 13 + name.length;
+				String path = new String(name, StandardCharsets.UTF_8);
+				if (recordGeneration <= generation) {
+					continue;
+				}
+				generation = recordGeneration;
+				journalRecords++;
+				if (kind == REMOVED) {
+					read.remove(path);
+				} else {
+					read.put(path, kind == DIRECTORY);
+				}
+			}
+		}
+		return read;
+	}
+
+	private static String readPath(DataInputStream in) throws IOException {
+		byte[] name = new byte[in.readInt()];
+		in.readFully(name);
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Lists the files and directories under a directory, itself included, in
+	 * one pass, walking subdirectories in parallel. Symbolic links are taken
+	 * for files kept on other disks. The metadata directory and anything else
+	 * that is neither a file nor a directory are left out.
+	 *
+	 * @return Path of every entry, mapped to whether it is a directory.
+	 */
+	public static Map<String, Boolean> walk(java.nio.file.Path root) {
+		Map<String, Boolean> found = new ConcurrentHashMap<String, Boolean>();
+		if (!Files.isDirectory(root)) {
+			return found;
+		}
+		found.put(root.toString(), Boolean.TRUE);
+		ForkJoinPool walkers = new ForkJoinPool(WALKERS);
+		try {
+			walkers.invoke(new Walk(root, found));
+		} finally {
+			walkers.shutdown();
+		}
+		return found;
+	}
+
+	/** Lists one directory, and walks its subdirectories as subtasks. */
+	private static class Walk extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final java.nio.file.Path directory;
+		private final Map<String, Boolean> found;
+
+		Walk(java.nio.file.Path directory, Map<String, Boolean> found) {
+			this.directory = directory;
+			this.found = found;
+		}
+
+		@Override
+		protected void compute() {
+			List<Walk> subdirectories = new ArrayList<Walk>();
+			try (DirectoryStream<java.nio.file.Path> stream = Files
+					.newDirectoryStream(directory)) {
+				for (java.nio.file.Path entry : stream) {
+					if (StorageServer.isMetadata(entry)) {
+						continue;
+					}
+					BasicFileAttributes attributes;
+					try {
+						attributes = Files.readAttributes(entry,
+								BasicFileAttributes.class,
+								LinkOption.NOFOLLOW_LINKS);
+					} catch (NoSuchFileException e) {
+						continue;
+					}
+					if (attributes.isDirectory()) {
+						found.put(entry.toString(), Boolean.TRUE);
+						subdirectories.add(new Walk(entry, found));
+					} else if (attributes.isRegularFile()
+							|| attributes.isSymbolicLink()) {
+						// A link is a file kept on another disk
+						found.put(entry.toString(), Boolean.FALSE);
+					}
+				}
+			} catch (IOException | DirectoryIteratorException e) {
+				System.err.println("Cannot list " + directory + " : "
+						+ e.getMessage());
+			}
+			invokeAll(subdirectories);
+		}
+	}
+
+	private static void forceDirectory(File directory) throws IOException {
+		try (FileChannel channel = FileChannel.open(directory.toPath(),
+				StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+	}
+}
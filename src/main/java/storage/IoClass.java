@@ -0,0 +1,41 @@
+package storage;
+
+/**
+ * Kind of disk work, which decides its share of the disk under the
+ * {@link IoScheduler} of a storage server.
+ */
+public enum IoClass {
+	/** Reads made by clients, with the largest share. */
+	CLIENT_READ(8, false),
+	/** Writes and appends made by clients. */
+	CLIENT_WRITE(4, false),
+	/** Bulk-data transfers, scheduled a slice at a time. */
+	STREAMING(2, false),
+	/** Checksums of ranges, asked for by servers copying a file. */
+	REPLICATION(2, true),
+	/** Background verification of stored data. */
+	SCRUB(1, true),
+	/** Packing, deduplication and compression of files gone quiet. */
+	MAINTENANCE(1, true);
+
+	private final int weight;
+	private final boolean background;
+
+	private IoClass(int weight, boolean background) {
+		this.weight = weight;
+		this.background = background;
+	}
+
+	/** Returns the share of the disk of this class, relative to the others. */
+	public int weight() {
+		return weight;
+	}
+
+	/**
+	 * Checks whether this class is background work, which is never given the
+	 * last free disk slot.
+	 */
+	public boolean isBackground() {
+		return background;
+	}
+}
@@ -0,0 +1,336 @@
+package storage;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Shares the disk of a storage server among kinds of work by weighted fair
+ * queueing.
+ *
+ * <p>
+ * At most <code>slots</code> disk operations run at once. A thread about to
+ * touch the disk asks for a slot, stating the class of its work and the bytes
+ * it will move, and runs the operation itself once granted one, which spares
+ * a hand-off to another thread. When threads are waiting, the free slot goes
+ * to the one whose work would finish first in virtual time: each operation
+ * ends <code>bytes / weight</code> after the later of the current virtual
+ * time and the end of the previous operation of its class, so under load the
+ * classes share the disk in proportion to their weights. Weights alone do not
+ * keep long background operations from filling every slot, though, so while
+ * foreground work has run within the last <code>FOREGROUND_GRACE</code>
+ * nanoseconds background classes hold a quarter of the slots at most. Once
+ * the disk is left to them they may hold all but one, the last free slot
+ * being kept for the next foreground operation.
+ *
+ * <p>
+ * A slot is always asked for after any file lock, and its holder never waits
+ * for a file lock, so slots and file locks cannot deadlock. An operation run
+ * while its thread already holds a slot runs at once.
+ *
+ * <p>
+ * For each class the scheduler counts the operations waiting and running,
+ * and the time they spent waiting and in total.
+ */
+public class IoScheduler {
+
+	/** Smallest cost of an operation, for the seek it takes at the least. */
+	private static final long MIN_COST = 4096;
+	/** Slots never given to background classes. */
+	private static final int RESERVED_SLOTS = 1;
+	/**
+	 * Time after the last foreground operation during which background
+	 * classes keep to their share of the slots.
+	 */
+	private static final long FOREGROUND_GRACE = 10 * 1000000L;
+
+	private static final IoClass[] CLASSES = IoClass.values();
+
+	private final int slots;
+	private final ClassStatistics[] statistics = new ClassStatistics[CLASSES.length];
+	private final ArrayDeque<Ticket>[] queues;
+	private final double[] lastFinish = new double[CLASSES.length];
+	private final ThreadLocal<Boolean> holding = new ThreadLocal<Boolean>();
+	private double virtualTime = 0;
+	private int queued = 0;
+	private int busy = 0;
+	private int busyBackground = 0;
+	private int queuedForeground = 0;
+	private long lastForeground = System.nanoTime() - FOREGROUND_GRACE;
+
+	/**
+	 * Creates a scheduler.
+	 *
+	 * @param slots
+	 *            Number of disk operations run at once, at least two, or zero
+	 *            to run every operation at once, unscheduled.
+	 * @throws IllegalArgumentException
+	 *             If <code>slots</code> is negative or one.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public IoScheduler(int slots) {
+		if (slots < 0 || slots == 1) {
+			throw new IllegalArgumentException(
+					"an I/O scheduler needs no slots or at least two");
+		}
+		this.slots = slots;
+		this.queues = new ArrayDeque[CLASSES.length];
+		for (int i = 0; i < CLASSES.length; i++) {
+			queues[i] = new ArrayDeque<Ticket>();
+			statistics[i] = new ClassStatistics();
+		}
+	}
+
+	/** Checks whether operations are scheduled at all. */
+	public boolean isEnabled() {
+		return slots > 0;
+	}
+
+	public int getSlots() {
+		return slots;
+	}
+
+	/**
+	 * Runs a disk operation once a slot is free for it.
+	 *
+	 * @param ioClass
+	 *            Class of the operation.
+	 * @param bytes
+	 *            Number of bytes the operation reads or writes.
+	 * @return The result of the operation.
+	 * @throws IOException
+	 *             If the operation throws it.
+	 */
+	public <T> T run(IoClass ioClass, long bytes, IoTask<T> task)
+			throws IOException {
+		if (slots == 0 || holding.get() != null) {
+			return task.run();
+		}
+		Ticket ticket = admit(ioClass, bytes);
+		holding.set(Boolean.TRUE);
+		try {
+			return task.run();
+		} finally {
+			holding.remove();
+			release(ticket);
+		}
+	}
+
+	/** Waits for a slot. */
+	private Ticket admit(IoClass ioClass, long bytes) {
+		Ticket ticket = new Ticket(ioClass);
+		synchronized (this) {
+			int i = ioClass.ordinal();
+			double start = Math.max(virtualTime, lastFinish[i]);
+			ticket.start = start;
+			ticket.finish = start
+					+ (double) Math.max(bytes, MIN_COST) / ioClass.weight();
+			lastFinish[i] = ticket.finish;
+			queues[i].add(ticket);
+			queued++;
+			if (!ioClass.isBackground()) {
+				queuedForeground++;
+			}
+			statistics[i].queued++;
+			dispatch();
+		}
+		boolean interrupted = false;
+		synchronized (ticket) {
+			while (!ticket.granted) {
+				try {
+					ticket.wait();
+				} catch (InterruptedException e) {
+					// The ticket is queued already; its slot is still due
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		ticket.grantedAt = System.nanoTime();
+		return ticket;
+	}
+
+	private void release(Ticket ticket) {
+		long now = System.nanoTime();
+		synchronized (this) {
+			busy--;
+			if (ticket.ioClass.isBackground()) {
+				busyBackground--;
+			} else {
+				lastForeground = now;
+			}
+			ClassStatistics classStatistics = statistics[ticket.ioClass
+					.ordinal()];
+			classStatistics.running--;
+			classStatistics.completed++;
+			classStatistics.waitNanos += ticket.grantedAt - ticket.queuedAt;
+			classStatistics.record(now - ticket.queuedAt);
+			if (queued == 0 && busy == 0) {
+				// Idle: no class is owed anything any more
+				for (double finish : lastFinish) {
+					virtualTime = Math.max(virtualTime, finish);
+				}
+			}
+			dispatch();
+		}
+	}
+
+	/**
+	 * Grants free slots to the waiting operations that finish first in
+	 * virtual time. Called with the scheduler locked.
+	 */
+	private void dispatch() {
+		while (busy < slots && queued > 0) {
+			boolean foreground = queuedForeground > 0
+					|| busy > busyBackground
+					|| System.nanoTime() - lastForeground < FOREGROUND_GRACE;
+			int backgroundSlots = foreground ? Math.max(1, slots / 4)
+					: slots - RESERVED_SLOTS;
+			Ticket next = null;
+			for (int i = 0; i < CLASSES.length; i++) {
+				Ticket head = queues[i].peek();
+				if (head == null || (CLASSES[i].isBackground()
+						&& busyBackground >= backgroundSlots)) {
+					continue;
+				}
+				if (next == null || head.finish < next.finish) {
+					next = head;
+				}
+			}
+			if (next == null) {
+				return;
+			}
+			int i = next.ioClass.ordinal();
+			queues[i].poll();
+			queued--;
+			busy++;
+			if (next.ioClass.isBackground()) {
+				busyBackground++;
+			} else {
+				queuedForeground--;
+			}
+			statistics[i].queued--;
+			statistics[i].running++;
+			virtualTime = Math.max(virtualTime, next.start);
+			synchronized (next) {
+				next.granted = true;
+				next.notify();
+			}
+		}
+	}
+
+	/** Returns the number of operations of a class waiting for a slot. */
+	public synchronized int getQueueDepth(IoClass ioClass) {
+		return statistics[ioClass.ordinal()].queued;
+	}
+
+	/** Returns the number of operations of a class run so far. */
+	public synchronized long getCompleted(IoClass ioClass) {
+		return statistics[ioClass.ordinal()].completed;
+	}
+
+	/**
+	 * Returns the average time operations of a class waited for a slot, in
+	 * milliseconds.
+	 */
+	public synchronized double getMeanWait(IoClass ioClass) {
+		ClassStatistics classStatistics = statistics[ioClass.ordinal()];
+		return classStatistics.completed == 0 ? 0
+				: classStatistics.waitNanos / 1e6 / classStatistics.completed;
+	}
+
+	/**
+	 * Returns the time within which a given fraction of the operations of a
+	 * class were done, waiting included, in milliseconds, to within an eighth.
+	 */
+	public synchronized double getLatency(IoClass ioClass, double fraction) {
+		return statistics[ioClass.ordinal()].percentile(fraction) / 1e6;
+	}
+
+	/** Returns one line per class that has run anything. */
+	public synchronized String report() {
+		StringBuilder report = new StringBuilder();
+		for (IoClass ioClass : CLASSES) {
+			ClassStatistics classStatistics = statistics[ioClass.ordinal()];
+			if (classStatistics.completed == 0
+					&& classStatistics.queued == 0) {
+				continue;
+			}
+			report.append(String.format(
+					"%-12s %9d done, %4d queued, wait %8.3f ms, p50 %8.3f ms, p99 %8.3f ms%n",
+					ioClass, classStatistics.completed, classStatistics.queued,
+					getMeanWait(ioClass), getLatency(ioClass, 0.5),
+					getLatency(ioClass, 0.99)));
+		}
+		return report.toString();
+	}
+
+	/** Operation waiting for or holding a slot. */
+	private static class Ticket {
+		final IoClass ioClass;
+		final long queuedAt = System.nanoTime();
+		long grantedAt;
+		double start;
+		double finish;
+		boolean granted = false;
+
+		Ticket(IoClass ioClass) {
+			this.ioClass = ioClass;
+		}
+	}
+
+	/**
+	 * Counters of one class, with its latencies in a histogram of eight
+	 * buckets per power of two of nanoseconds.
+	 */
+	private static class ClassStatistics {
+		int queued;
+		int running;
+		long completed;
+		long waitNanos;
+		final long[] latencies = new long[64 * 8];
+
+		void record(long nanos) {
+			latencies[bucket(Math.max(nanos, 1))]++;
+		}
+
+		/** Returns the upper bound of the bucket holding the percentile. */
+		long percentile(double fraction) {
+			long total = 0;
+			for (long count : latencies) {
+				total += count;
+			}
+			long wanted = (long) Math.ceil(total * fraction);
+			long seen = 0;
+			for (int i = 0; i < latencies.length; i++) {
+				seen += latencies[i];
+				if (seen >= wanted && seen > 0) {
+					return upperBound(i);
+				}
+			}
+			return 0;
+		}
+
+		private static int bucket(long nanos) {
+			int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+			if (exponent < 3) {
+				return (int) nanos;
+			}
+			return exponent * 8 + (int) ((nanos >>> (exponent - 3)) & 7);
+		}
+
+		private static long upperBound(int bucket) {
+			int exponent = bucket / 8;
+			if (exponent < 3) {
+				return bucket;
+			}
+			return ((8L + bucket % 8 + 1) << (exponent - 3)) - 1;
+		}
+	}
+
+	/** Disk operation run by the scheduler. */
+	public interface IoTask<T> {
+		T run() throws IOException;
+	}
+}
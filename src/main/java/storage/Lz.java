@@ -0,0 +1,213 @@
+package storage;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Byte-oriented LZ77 compression in the style of LZ4, tuned for speed rather
+ * than ratio.
+ *
+ * <p>
+ * Compressed data is a series of sequences. Each starts with a token byte
+ * whose high four bits give the number of literal bytes that follow and whose
+ * low four bits give the length of the match after them, minus four. A value
+ * of 15 in either half is continued by extra bytes, each adding up to 255,
+ * ending with the first byte below 255. The literals come next, then the
+ * distance back to the match as two little-endian bytes, then the extra
+ * match length bytes. The last sequence has literals only. Data compressed by
+ * this class is at most 64 KiB long, so distances fit in two bytes.
+ */
+class Lz {
+
+	/** Largest block the format supports. */
+	static final int MAX_BLOCK = 64 * 1024;
+
+	private static final int MIN_MATCH = 4;
+	private static final int HASH_BITS = 14;
+	private static final int MAX_DISTANCE = 65535;
+
+	private static final VarHandle INT = MethodHandles
+			.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private static final VarHandle LONG = MethodHandles
+			.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private static final ThreadLocal<int[]> TABLES = ThreadLocal
+			.withInitial(() -> new int[1 << HASH_BITS]);
+
+	private Lz() {
+	}
+
+	/**
+	 * Compresses data into a buffer.
+	 *
+	 * @return The number of bytes written to <code>out</code>, or
+	 *         <code>-1</code> if they do not fit.
+	 */
+	static int compress(byte[] in, int offset, int length, byte[] out) {
+		if (length > MAX_BLOCK) {
+			throw new IllegalArgumentException("block longer than 64 KiB");
+		}
+		int[] table = TABLES.get();
+		Arrays.fill(table, -1);
+		int end = offset + length;
+		int matchLimit = end - MIN_MATCH;
+		int anchor = offset;
+		int position = offset;
+		int written = 0;
+
+		while (position <= matchLimit) {
+			int sequence = (int) INT.get(in, position);
+			int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+			int candidate = table[hash];
+			table[hash] = position;
+			if (candidate < 0 || position - candidate > MAX_DISTANCE
+					|| (int) INT.get(in, candidate) != sequence) {
+				// Move faster through data that does not match
+				position += 1 + ((position - anchor) >>> 6);
+				continue;
+			}
+			int matchLength = MIN_MATCH;
+			while (position + matchLength < end
+					&& in[candidate + matchLength] == in[position
+							+ matchLength]) {
+				matchLength++;
+			}
+			written = sequence(in, anchor, position - anchor,
+					position - candidate, matchLength, out, written);
+			if (written < 0) {
+				return -1;
+			}
+			position += matchLength;
+			anchor = position;
+		}
+		return sequence(in, anchor, end - anchor, 0, 0, out, written);
+	}
+
+	/**
+	 * Decompresses data.
+	 *
+	 * @param out
+	 *            Buffer to fill; its length must be that of the original data.
+	 * @throws IllegalArgumentException
+	 *             If the data is malformed or does not fill <code>out</code>
+	 *             exactly.
+	 */
+	static void decompress(byte[] in, byte[] out) {
+		int position = 0;
+		int written = 0;
+		try {
+			while (position < in.length) {
+				int token = in[position++] & 0xff;
+				int literals = token >>> 4;
+				if (literals == 15) {
+					int extra;
+					do {
+						extra = in[position++] & 0xff;
+						literals += extra;
+					} while (extra == 255);
+				}
+				if (literals <= 16 && position + 16 <= in.length
+						&& written + 16 <= out.length) {
+					// Short runs, which dominate in compressed text, are
+					// copied sixteen bytes at once; the bytes past the run
+					// are written again by the next sequence
+					LONG.set(out, written, (long) LONG.get(in, position));
+					LONG.set(out, written + 8,
+							(long) LONG.get(in, position + 8));
+				} else {
+					System.arraycopy(in, position, out, written, literals);
+				}
+				position += literals;
+				written += literals;
+				if (position == in.length) {
+					break;
+				}
+
+				int distance = (in[position] & 0xff)
+						| (in[position + 1] & 0xff) << 8;
+				position += 2;
+				int matchLength = (token & 15) + MIN_MATCH;
+				if ((token & 15) == 15) {
+					int extra;
+					do {
+						extra = in[position++] & 0xff;
+						matchLength += extra;
+					} while (extra == 255);
+				}
+				if (distance == 0 || distance > written
+						|| written + matchLength > out.length) {
+					throw new IllegalArgumentException("malformed match");
+				}
+				int from = written - distance;
+				if (distance >= 8 && written + matchLength + 8 <= out.length) {
+					// Each eight-byte step reads only bytes already written;
+					// the bytes past the match are written again later
+					for (int i = 0; i < matchLength; i += 8) {
+						LONG.set(out, written + i,
+								(long) LONG.get(out, from + i));
+					}
+				} else if (distance >= matchLength) {
+					System.arraycopy(out, from, out, written, matchLength);
+				} else {
+					// The match overlaps the bytes it produces
+					for (int i = 0; i < matchLength; i++) {
+						out[written + i] = out[from + i];
+					}
+				}
+				written += matchLength;
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("malformed compressed data", e);
+		}
+		if (written != out.length) {
+			throw new IllegalArgumentException(
+					"compressed data does not fill the block");
+		}
+	}
+
+	/**
+	 * Writes one sequence; a match length of zero marks the last one.
+	 *
+	 * @return The new number of bytes written, or <code>-1</code> if the
+	 *         sequence does not fit.
+	 */
+	private static int sequence(byte[] in, int literalStart, int literals,
+			int distance, int matchLength, byte[] out, int written) {
+		if (written + 1 + literals / 255 + 1 + literals > out.length) {
+			return -1;
+		}
+		int matchCode = matchLength == 0 ? 0 : matchLength - MIN_MATCH;
+		int tokenPosition = written++;
+		int token = Math.min(literals, 15) << 4 | Math.min(matchCode, 15);
+		if (literals >= 15) {
+			written = length(literals - 15, out, written);
+		}
+		System.arraycopy(in, literalStart, out, written, literals);
+		written += literals;
+		out[tokenPosition] = (byte) token;
+		if (matchLength == 0) {
+			return written;
+		}
+		if (written + 2 + matchCode / 255 + 1 > out.length) {
+			return -1;
+		}
+		out[written++] = (byte) distance;
+		out[written++] = (byte) (distance >>> 8);
+		if (matchCode >= 15) {
+			written = length(matchCode - 15, out, written);
+		}
+		return written;
+	}
+
+	private static int length(int remaining, byte[] out, int written) {
+		while (remaining >= 255) {
+			out[written++] = (byte) 255;
+			remaining -= 255;
+		}
+		out[written++] = (byte) remaining;
+		return written;
+	}
+}
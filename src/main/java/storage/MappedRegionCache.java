@@ -0,0 +1,215 @@
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+/**
+ * Bounded cache of memory-mapped file regions used to serve hot reads.
+ *
+ * <p>
+ * Files are mapped in fixed-size windows, so large files only map the parts
+ * that are actually read. The total size of all mapped windows is kept under
+ * an address-space budget by unmapping the least recently used windows.
+ * Windows are reference counted, and a window is only unmapped once no read
+ * is copying out of it any more.
+ */
+public class MappedRegionCache {
+
+	/** Size of one mapped window. */
+	public static final int WINDOW_SIZE = 64 * 1024 * 1024;
+	/** Default address-space budget for all mapped windows. */
+	public static final long DEFAULT_BUDGET = 1024L * 1024 * 1024;
+
+	private static final Unmapper unmapper = new Unmapper();
+
+	private final long budget;
+	private long mappedBytes = 0;
+	private final LinkedHashMap<String, Region> regions;
+
+	public MappedRegionCache(long budget) {
+		this.budget = budget;
+		this.regions = new LinkedHashMap<String, Region>(16, 0.75f, true);
+	}
+
+	public MappedRegionCache() {
+		this(DEFAULT_BUDGET);
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Checks whether a file of the given size may be served from mapped
+	 * windows. Files larger than half the budget would evict everything else
+	 * and are better read through the channel.
+	 */
+	public boolean accepts(long fileSize) {
+		return budget > 0 && fileSize <= budget / 2;
+	}
+
+	/**
+	 * Copies bytes of a file into the buffer, mapping the windows that cover
+	 * the range as needed.
+	 *
+	 * @param file
+	 *            Local file, used as the cache key.
+	 * @param channel
+	 *            Open channel for the file, used to map missing windows.
+	 * @param position
+	 *            File position of the first byte to copy.
+	 * @param buffer
+	 *            Buffer to fill; all of its remaining bytes are filled.
+	 * @throws IOException
+	 *             If a window cannot be mapped.
+	 */
+	public void read(File file, FileChannel channel, long position,
+			ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			long windowStart = position - position % WINDOW_SIZE;
+			int windowOffset = (int) (position - windowStart);
+			int count = Math.min(buffer.remaining(),
+					WINDOW_SIZE - windowOffset);
+
+			Region region = acquire(file, channel, windowStart,
+					windowOffset + count);
+			try {
+				ByteBuffer view = region.buffer.duplicate();
+				view.position(windowOffset);
+				view.limit(windowOffset + count);
+				buffer.put(view);
+			} finally {
+				release(region);
+			}
+			position += count;
+		}
+	}
+
+	/** Unmaps all windows of a file, for example after it was truncated. */
+	public synchronized void invalidate(File file) {
+		String prefix = file.getPath() + "@";
+		Iterator<Entry<String, Region>> iter = regions.entrySet().iterator();
+		while (iter.hasNext()) {
+			Entry<String, Region> entry = iter.next();
+			if (entry.getKey().startsWith(prefix)) {
+				iter.remove();
+				remove(entry.getValue());
+			}
+		}
+	}
+
+	/** Unmaps every window that is not in use. */
+	public synchronized void clear() {
+		for (Region region : regions.values()) {
+			remove(region);
+		}
+		regions.clear();
+	}
+
+	/** Returns the number of bytes currently mapped. */
+	public synchronized long getMappedBytes() {
+		return mappedBytes;
+	}
+
+	private synchronized Region acquire(File file, FileChannel channel,
+			long windowStart, int neededLength) throws IOException {
+		String key = file.getPath() + "@" + windowStart;
+		Region region = regions.get(key);
+		if (region != null && region.buffer.capacity() < neededLength) {
+			// The file has grown since the window was mapped
+			regions.remove(key);
+			remove(region);
+			region = null;
+		}
+		if (region == null) {
+			long length = Math.min(WINDOW_SIZE, channel.size() - windowStart);
+			if (length < neededLength) {
+				throw new IOException("read extends past the end of " + file);
+			}
+			region = new Region(channel.map(FileChannel.MapMode.READ_ONLY,
+					windowStart, length));
+			regions.put(key, region);
+			mappedBytes += length;
+			evictOverBudget();
+		}
+		region.references++;
+		return region;
+	}
+
+	private synchronized void release(Region region) {
+		region.references--;
+		if (region.references == 0 && region.removed) {
+			unmapper.unmap(region.buffer);
+		}
+	}
+
+	private void evictOverBudget() {
+		Iterator<Entry<String, Region>> iter = regions.entrySet().iterator();
+		// Never evict the window that was just mapped, which is last
+		while (mappedBytes > budget && regions.size() > 1) {
+			Region region = iter.next().getValue();
+			iter.remove();
+			remove(region);
+		}
+	}
+
+	private void remove(Region region) {
+		region.removed = true;
+		mappedBytes -= region.buffer.capacity();
+		if (region.references == 0) {
+			unmapper.unmap(region.buffer);
+		}
+	}
+
+	/** Mapped window together with its reference count. */
+	private static class Region {
+		final MappedByteBuffer buffer;
+		int references = 0;
+		boolean removed = false;
+
+		Region(MappedByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * Releases mappings eagerly where the runtime allows it. Otherwise the
+	 * mapping is released when the buffer is garbage collected.
+	 */
+	private static class Unmapper {
+		private Object unsafe;
+		private Method invokeCleaner;
+
+		Unmapper() {
+			try {
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				unsafe = theUnsafe.get(null);
+				invokeCleaner = unsafeClass.getMethod("invokeCleaner",
+						ByteBuffer.class);
+			} catch (Exception e) {
+				invokeCleaner = null;
+			}
+		}
+
+		void unmap(ByteBuffer buffer) {
+			if (invokeCleaner == null) {
+				return;
+			}
+			try {
+				invokeCleaner.invoke(unsafe, buffer);
+			} catch (Exception e) {
+				invokeCleaner = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,665 @@
+package storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import common.Path;
+
+/**
+ * Small files of a storage server packed into large append-only pack files.
+ *
+ * <p>
+ * A packed file has no local file of its own, so it costs no inode, no
+ * directory entry and no open and close per request. Its data lives in a
+ * record of a pack file in the metadata directory, and an index in memory
+ * maps its path to the record, so a read is a single positional read.
+ * Records are only ever appended:
+ *
+ * <pre>
+ * record: magic: int, path length: int, path: UTF-8 bytes,
+ *         data length: int (-1 for a deletion), CRC-32C of the data: int,
+ *         data
+ * </pre>
+ *
+ * Replacing or deleting a packed file appends a new record and leaves the old
+ * one as garbage. When a pack is full, the headers of its records are written
+ * to a record list next to it. The index is rebuilt on startup from the
+ * record lists of the full packs and the record headers of the current one,
+ * in pack order, so later records win, without looking at the files
+ * themselves. A file left behind by an interrupted packing is shadowed by its
+ * record, and a file being unpacked is recovered from the staging area. Packs
+ * that are mostly garbage are compacted in the background by
+ * copying their live records to the current pack and deleting them.
+ *
+ * <p>
+ * Packing a file and compacting a pack both destroy the only other copy of
+ * the data once the records are written, so the packs written to, and the
+ * pack directory if a pack was started, are forced to disk first.
+ */
+class PackStore {
+
+	static final String PACK_DIR = StorageServer.METADATA_DIR + "/packs";
+
+	/** Size at which a pack is closed and a new one started. */
+	static final long PACK_SIZE = 64L * 1024 * 1024;
+
+	/** Packs with less than this fraction of live data are compacted. */
+	static final double COMPACT_RATIO = 0.5;
+
+	private static final int MAGIC = 0x44465350;
+	private static final int DELETED = -1;
+	private static final String UNPACKED = ".unpacked";
+
+	private final String directory;
+	private final String stagingRoot;
+	// Location of the record of every packed file
+	private final Map<String, Entry> index = new ConcurrentHashMap<String, Entry>();
+	// Open packs by number; the last one is being appended to
+	private final ConcurrentSkipListMap<Integer, Pack> packs = new ConcurrentSkipListMap<Integer, Pack>();
+	// Whether a pack was started since the pack directory was last forced
+	private boolean packStarted = false;
+	private volatile boolean loaded = false;
+
+	PackStore() {
+		this(PACK_DIR, StorageServer.METADATA_DIR + "/staging");
+	}
+
+	/**
+	 * Creates a store keeping its packs in a directory of its own.
+	 *
+	 * @param directory
+	 *            Directory of the packs and their record lists.
+	 * @param stagingRoot
+	 *            Scratch directory for files being unpacked, under which a
+	 *            file is staged at its own path.
+	 */
+	PackStore(String directory, String stagingRoot) {
+		this.directory = directory;
+		this.stagingRoot = stagingRoot;
+	}
+
+	File packFile(int number) {
+		return new File(directory + "/" + String.format("pack-%08d", number));
+	}
+
+	/** Returns the record list written for a full pack. */
+	File recordListFile(int number) {
+		return new File(packFile(number).getPath() + ".records");
+	}
+
+	/**
+	 * Reads the record headers of all packs to rebuild the index. A record
+	 * cut short at the end of the newest pack, left by a crash during an
+	 * append, is cut off.
+	 */
+	synchronized void load() throws IOException {
+		if (loaded) {
+			return;
+		}
+		String[] names = new File(directory).list();
+		List<Integer> numbers = new ArrayList<Integer>();
+		for (String name : names == null ? new String[0] : names) {
+			if (name.matches("pack-[0-9]{8}")) {
+				numbers.add(Integer.parseInt(name.substring(5)));
+			}
+		}
+		numbers.sort(null);
+		for (int number : numbers) {
+			Pack pack = new Pack(number);
+			packs.put(number, pack);
+			boolean current = number == numbers.get(numbers.size() - 1);
+			RecordVisitor visitor = (path, entry) -> {
+				Entry old = entry.length == DELETED ? index.remove(path)
+						: index.put(path, entry);
+				if (old != null) {
+					packs.get(old.pack).live -= old.recordLength;
+				}
+				if (entry.length != DELETED) {
+					pack.live += entry.recordLength;
+				}
+				if (pack.paths != null) {
+					pack.remember(path, entry);
+				}
+			};
+			if (!current && readRecordList(pack, visitor)) {
+				pack.paths = null;
+				pack.entries = null;
+				continue;
+			}
+			long end = scan(pack, visitor);
+			if (end < pack.size) {
+				System.out.println("Pack " + packFile(number)
+						+ " ends in a partial record at " + end);
+				if (current) {
+					pack.channel.truncate(end);
+					pack.size = end;
+				}
+			}
+			if (!current) {
+				writeRecordList(pack);
+			}
+		}
+		recoverUnpacked();
+		loaded = true;
+	}
+
+	/** Checks whether a file is packed. */
+	boolean contains(File file) throws IOException {
+		if (!loaded) {
+			load();
+		}
+		return index.containsKey(file.getPath());
+	}
+
+	/** Returns the paths of all packed files. */
+	Collection<String> paths() throws IOException {
+		if (!loaded) {
+			load();
+		}
+		return new ArrayList<String>(index.keySet());
+	}
+
+	/**
+	 * Returns the content of a packed file, or <code>null</code> if the file
+	 * is not packed.
+	 */
+	SealedContent content(File file) throws IOException {
+		if (!loaded) {
+			load();
+		}
+		Entry entry = index.get(file.getPath());
+		return entry == null ? null : new Packed(file, entry);
+	}
+
+	/**
+	 * Packs a file, replacing any earlier record of it, and forces the record
+	 * to disk. The caller holds the file lock for exclusive access, and
+	 * deletes the file afterwards.
+	 */
+	void add(File file, byte[] data) throws IOException {
+		if (!loaded) {
+			load();
+		}
+		CRC32C crc = new CRC32C();
+		crc.update(data);
+		append(file.getPath(), data, (int) crc.getValue());
+		force();
+	}
+
+	/**
+	 * Drops a file from the packs, if it is packed. The caller holds the file
+	 * lock for exclusive access.
+	 *
+	 * @return <code>true</code> if the file was packed.
+	 */
+	boolean remove(File file) throws IOException {
+		if (!loaded) {
+			load();
+		}
+		if (!index.containsKey(file.getPath())) {
+			return false;
+		}
+		append(file.getPath(), null, 0);
+		return true;
+	}
+
+	/**
+	 * Writes a packed file back to a file of its own and drops it from the
+	 * packs, forcing each step to disk. The caller holds the file lock for
+	 * exclusive access.
+	 */
+	void materialize(File file, SealedContent content) throws IOException {
+		ByteBuffer data = ByteBuffer
+				.wrap(content.read(0, (int) content.length()));
+		File staging = new File(stagingRoot + file.getPath() + UNPACKED);
+		staging.getParentFile().mkdirs();
+		try (FileChannel out = FileChannel.open(staging.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (data.hasRemaining()) {
+				out.write(data, data.position());
+			}
+			out.force(true);
+		}
+		forceDirectory(staging.getParentFile());
+		// Once the record is dropped, the staged file is the only copy
+		remove(file);
+		force();
+		file.getParentFile().mkdirs();
+		Files.move(staging.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		forceDirectory(file.getParentFile());
+	}
+
+	/**
+	 * Finishes unpackings interrupted by a crash: a staged file whose record
+	 * was dropped is moved into place, and one whose record is still there is
+	 * deleted.
+	 */
+	private void recoverUnpacked() throws IOException {
+		String root = stagingRoot;
+		if (!new File(root).isDirectory()) {
+			return;
+		}
+		List<java.nio.file.Path> staged;
+		try (Stream<java.nio.file.Path> found = Files.find(Paths.get(root),
+				Integer.MAX_VALUE,
+				(filePath, fileAttr) -> fileAttr.isRegularFile()
+						&& filePath.toString().endsWith(UNPACKED))) {
+			staged = found.collect(Collectors.toList());
+		}
+		for (java.nio.file.Path file : staged) {
+			String name = file.toString();
+			String path = name.substring(root.length(),
+					name.length() - UNPACKED.length());
+			if (index.containsKey(path)) {
+				Files.delete(file);
+			} else {
+				new File(path).getParentFile().mkdirs();
+				Files.move(file, Paths.get(path),
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			}
+		}
+	}
+
+	/**
+	 * Rewrites every pack that is mostly garbage: copies its live records to
+	 * the current pack, forces them to disk, then deletes it. Each record is
+	 * moved under the exclusive lock of its file, so no read of the old pack
+	 * is in progress once all records have moved.
+	 */
+	void compact(StripedLocks locks) throws IOException {
+		if (!loaded) {
+			load();
+		}
+		for (Pack pack : new ArrayList<Pack>(packs.values())) {
+			if (pack == packs.lastEntry().getValue()
+					|| pack.live >= pack.size * COMPACT_RATIO) {
+				continue;
+			}
+			boolean oldest = pack == packs.firstEntry().getValue();
+			RecordVisitor mover = (path, entry) -> {
+				Path file = new Path(path);
+				locks.lockExclusive(file);
+				try {
+					if (entry.length == DELETED) {
+						// Only needed while an older record may remain
+						if (!oldest && !index.containsKey(path)) {
+							append(path, null, 0);
+						}
+						return;
+					}
+					Entry current = index.get(path);
+					if (current != null && current.pack == pack.number
+							&& current.offset == entry.offset) {
+						append(path, read(current), current.crc);
+					}
+				} finally {
+					locks.unlockExclusive(file);
+				}
+			};
+			if (!readRecordList(pack, mover)) {
+				scan(pack, mover);
+			}
+			force();
+			synchronized (this) {
+				packs.remove(pack.number);
+				pack.channel.close();
+				Files.delete(packFile(pack.number).toPath());
+				Files.deleteIfExists(recordListFile(pack.number).toPath());
+			}
+		}
+	}
+
+	/** Closes all packs. */
+	synchronized void close() {
+		for (Pack pack : packs.values()) {
+			try {
+				pack.channel.close();
+			} catch (IOException e) {
+				System.out.println(e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Forces to disk the packs appended to since they were last forced, and
+	 * the pack directory if a pack was started. The packs are forced outside
+	 * the lock of the store, so appends go on meanwhile.
+	 */
+	private void force() throws IOException {
+		List<Pack> written = new ArrayList<Pack>();
+		boolean started;
+		synchronized (this) {
+			for (Pack pack : packs.values()) {
+				if (pack.unforced) {
+					pack.unforced = false;
+					written.add(pack);
+				}
+			}
+			started = packStarted;
+			packStarted = false;
+		}
+		try {
+			for (Pack pack : written) {
+				try {
+					pack.channel.force(false);
+				} catch (ClosedChannelException e) {
+					// Compacted away meanwhile, so nothing in it is needed
+				}
+			}
+			if (started) {
+				forceDirectory(new File(directory));
+			}
+		} catch (IOException e) {
+			// Forced again by the next caller
+			synchronized (this) {
+				for (Pack pack : written) {
+					pack.unforced = true;
+				}
+				packStarted |= started;
+			}
+			throw e;
+		}
+	}
+
+	private static void forceDirectory(File directory) throws IOException {
+		try (FileChannel channel = FileChannel.open(directory.toPath(),
+				StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Appends a record to the current pack and points the index at it. The
+	 * record is forced to disk by <code>force</code>.
+	 *
+	 * @param data
+	 *            Content of the file, or <code>null</code> to record its
+	 *            deletion.
+	 */
+	private synchronized void append(String path, byte[] data, int crc)
+			throws IOException {
+		byte[] name = path.getBytes(StandardCharsets.UTF_8);
+		int length = data == null ? DELETED : data.length;
+		int header = 4 + 4 + name.length + 4 + 4;
+		ByteBuffer record = ByteBuffer
+				.allocate(header + (data == null ? 0 : data.length));
+		record.putInt(MAGIC).putInt(name.length).put(name).putInt(length)
+				.putInt(crc);
+		if (data != null) {
+			record.put(data);
+		}
+		record.flip();
+
+		Pack pack = packs.isEmpty() ? null : packs.lastEntry().getValue();
+		if (pack == null || (pack.size > 0
+				&& pack.size + record.remaining() > PACK_SIZE)) {
+			if (pack != null) {
+				writeRecordList(pack);
+			}
+			int number = pack == null ? 0 : pack.number + 1;
+			new File(directory).mkdirs();
+			pack = new Pack(number);
+			packs.put(number, pack);
+			packStarted = true;
+		}
+		long position = pack.size;
+		int recordLength = record.remaining();
+		while (record.hasRemaining()) {
+			position += pack.channel.write(record, position);
+		}
+
+		Entry entry = new Entry(pack.number, pack.size + header, length, crc,
+				recordLength);
+		pack.size += recordLength;
+		pack.unforced = true;
+		pack.remember(path, entry);
+		Entry old = data == null ? index.remove(path) : index.put(path, entry);
+		if (old != null) {
+			Pack oldPack = packs.get(old.pack);
+			if (oldPack != null) {
+				oldPack.live -= old.recordLength;
+			}
+		}
+		if (data != null) {
+			pack.live += recordLength;
+		}
+	}
+
+	/** Reads the data of a record in a single positional read. */
+	private byte[] read(Entry entry) throws IOException {
+		Pack pack = packs.get(entry.pack);
+		if (pack == null) {
+			throw new IOException("pack " + entry.pack + " is gone");
+		}
+		ByteBuffer data = ByteBuffer.allocate(entry.length);
+		long position = entry.offset;
+		while (data.hasRemaining()) {
+			int read = pack.channel.read(data, position);
+			if (read < 0) {
+				throw new EOFException(packFile(entry.pack) + " ends early");
+			}
+			position += read;
+		}
+		return data.array();
+	}
+
+	/**
+	 * Reads the record headers of a pack in order.
+	 *
+	 * @return The end of the last complete record.
+	 */
+	private long scan(Pack pack, RecordVisitor visitor)
+			throws IOException {
+		long position = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(packFile(pack.number))))) {
+			while (position < pack.size) {
+				if (in.readInt() != MAGIC) {
+					break;
+				}
+				byte[] name = new byte[in.readInt()];
+				in.readFully(name);
+				int length = in.readInt();
+				int crc = in.readInt();
+				int header = 4 + 4 + name.length + 4 + 4;
+				int data = Math.max(length, 0);
+				if (position + header + data > pack.size) {
+					break;
+				}
+				while (data > 0) {
+					int skipped = in.skipBytes(data);
+					if (skipped == 0) {
+						throw new EOFException();
+					}
+					data -= skipped;
+				}
+				visitor.visit(new String(name, StandardCharsets.UTF_8),
+						new Entry(pack.number, position + header, length, crc,
+								header + Math.max(length, 0)));
+				position += header + Math.max(length, 0);
+			}
+		} catch (EOFException e) {
+			// A partial record at the end
+		}
+		return position;
+	}
+
+	/**
+	 * Writes the record list of a pack that is full, and forces it to disk.
+	 * Without it, the pack is scanned on startup instead.
+	 */
+	private void writeRecordList(Pack pack) throws IOException {
+		File list = recordListFile(pack.number);
+		File temporary = new File(list.getPath() + ".tmp");
+		try (FileOutputStream stream = new FileOutputStream(temporary);
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(stream))) {
+			out.writeInt(pack.paths.size());
+			for (int i = 0; i < pack.paths.size(); i++) {
+				Entry entry = pack.entries.get(i);
+				out.writeUTF(pack.paths.get(i));
+				out.writeLong(entry.offset);
+				out.writeInt(entry.length);
+				out.writeInt(entry.crc);
+				out.writeInt(entry.recordLength);
+			}
+			out.writeLong(pack.size);
+			out.flush();
+			stream.getFD().sync();
+		}
+		Files.move(temporary.toPath(), list.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		pack.paths = null;
+		pack.entries = null;
+	}
+
+	/**
+	 * Visits the records of a pack from its record list.
+	 *
+	 * @return <code>false</code> if the pack has no usable record list.
+	 */
+	private boolean readRecordList(Pack pack, RecordVisitor visitor)
+			throws IOException {
+		File list = recordListFile(pack.number);
+		if (!list.isFile()) {
+			return false;
+		}
+		List<String> paths = new ArrayList<String>();
+		List<Entry> entries = new ArrayList<Entry>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(list)))) {
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				paths.add(in.readUTF());
+				entries.add(new Entry(pack.number, in.readLong(), in.readInt(),
+						in.readInt(), in.readInt()));
+			}
+			if (in.readLong() != pack.size) {
+				return false;
+			}
+		} catch (EOFException e) {
+			return false;
+		}
+		// Only visited once the whole list has been read
+		for (int i = 0; i < paths.size(); i++) {
+			visitor.visit(paths.get(i), entries.get(i));
+		}
+		return true;
+	}
+
+	private interface RecordVisitor {
+		void visit(String path, Entry entry) throws IOException;
+	}
+
+	/** Location of a record. */
+	private static class Entry {
+		final int pack;
+		// Position of the data in the pack
+		final long offset;
+		final int length;
+		final int crc;
+		final int recordLength;
+
+		Entry(int pack, long offset, int length, int crc, int recordLength) {
+			this.pack = pack;
+			this.offset = offset;
+			this.length = length;
+			this.crc = crc;
+			this.recordLength = recordLength;
+		}
+	}
+
+	/**
+	 * Open pack file with its size and amount of live data. The current pack
+	 * also keeps its records, for its record list.
+	 */
+	private class Pack {
+		final int number;
+		final FileChannel channel;
+		long size;
+		long live = 0;
+		// Whether records were appended since the pack was last forced
+		boolean unforced = false;
+		List<String> paths = new ArrayList<String>();
+		List<Entry> entries = new ArrayList<Entry>();
+
+		Pack(int number) throws IOException {
+			this.number = number;
+			this.channel = FileChannel.open(packFile(number).toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			this.size = channel.size();
+		}
+
+		void remember(String path, Entry entry) {
+			paths.add(path);
+			entries.add(entry);
+		}
+	}
+
+	/** Content of a packed file, checked against its CRC on every read. */
+	private class Packed implements SealedContent {
+		private final File file;
+		private final Entry entry;
+
+		Packed(File file, Entry entry) {
+			this.file = file;
+			this.entry = entry;
+		}
+
+		@Override
+		public long length() {
+			return entry.length;
+		}
+
+		@Override
+		public byte[] read(long offset, int length) throws IOException {
+			if (offset < 0 || length < 0 || offset + length > entry.length) {
+				throw new IndexOutOfBoundsException(
+						"read extends past the end of the file");
+			}
+			// Small enough to check whole, so every read does
+			byte[] data = PackStore.this.read(entry);
+			CRC32C crc = new CRC32C();
+			crc.update(data);
+			if ((int) crc.getValue() != entry.crc) {
+				throw new ChecksumException(new Path(file.getPath()), 0);
+			}
+			if (offset == 0 && length == data.length) {
+				return data;
+			}
+			return Arrays.copyOfRange(data, (int) offset,
+					(int) offset + length);
+		}
+	}
+}
@@ -0,0 +1,12 @@
+package storage;
+
+/**
+ * How a storage server with several disks chooses the disk for a new file.
+ * Disks found failed are never chosen.
+ */
+public enum Placement {
+	/** Each disk in turn, so the disks fill evenly if the files are alike. */
+	ROUND_ROBIN,
+	/** The disk with the most usable space left. */
+	FREE_SPACE
+}
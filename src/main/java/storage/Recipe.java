@@ -0,0 +1,121 @@
+package storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Content of a deduplicated file, as the list of chunks that make it up.
+ *
+ * <p>
+ * Each chunk is named by the SHA-256 hash of its bytes, so a recipe describes
+ * the file completely, and two servers holding a chunk with the same hash
+ * hold the same bytes.
+ */
+public class Recipe implements Serializable {
+	private static final long serialVersionUID = 6080409871302040627L;
+
+	/** Length of a chunk hash, in bytes. */
+	static final int HASH_BYTES = 32;
+
+	private final byte[][] hashes;
+	private final int[] lengths;
+	// Offset of each chunk in the file, and the file length at the end
+	private final long[] offsets;
+
+	public Recipe(byte[][] hashes, int[] lengths) {
+		if (hashes.length != lengths.length) {
+			throw new IllegalArgumentException(
+					"one length is needed per chunk hash");
+		}
+		this.hashes = hashes;
+		this.lengths = lengths;
+		this.offsets = new long[lengths.length + 1];
+		for (int i = 0; i < lengths.length; i++) {
+			offsets[i + 1] = offsets[i] + lengths[i];
+		}
+	}
+
+	/** Returns the length of the file, in bytes. */
+	public long getLength() {
+		return offsets[lengths.length];
+	}
+
+	public int getChunkCount() {
+		return lengths.length;
+	}
+
+	/** Returns the hash of a chunk, as lower-case hexadecimal. */
+	public String getHash(int index) {
+		return hex(hashes[index]);
+	}
+
+	public int getChunkLength(int index) {
+		return lengths[index];
+	}
+
+	/** Returns the offset in the file of the first byte of a chunk. */
+	public long getChunkOffset(int index) {
+		return offsets[index];
+	}
+
+	/**
+	 * Returns the index of the chunk holding the byte at the given offset in
+	 * the file.
+	 */
+	public int chunkAt(long offset) {
+		if (offset < 0 || offset >= getLength()) {
+			throw new IndexOutOfBoundsException(
+					"offset " + offset + " is outside the file");
+		}
+		// Chunks are never empty, so offsets are strictly increasing
+		int index = Arrays.binarySearch(offsets, offset);
+		return index >= 0 ? index : -index - 2;
+	}
+
+	static String hex(byte[] hash) {
+		StringBuilder hex = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	/** Stores the recipe in a file, and forces it to disk. */
+	void writeTo(File file) throws IOException {
+		FileOutputStream stream = new FileOutputStream(file);
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(stream))) {
+			out.writeInt(lengths.length);
+			for (int i = 0; i < lengths.length; i++) {
+				out.write(hashes[i]);
+				out.writeInt(lengths[i]);
+			}
+			out.flush();
+			stream.getFD().sync();
+		}
+	}
+
+	/** Reads a recipe stored with <code>writeTo</code>. */
+	static Recipe readFrom(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)))) {
+			int count = in.readInt();
+			byte[][] hashes = new byte[count][HASH_BYTES];
+			int[] lengths = new int[count];
+			for (int i = 0; i < count; i++) {
+				in.readFully(hashes[i]);
+				lengths[i] = in.readInt();
+			}
+			return new Recipe(hashes, lengths);
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import common.Path;
+import common.ThroughputLimiter;
+import naming.Registration;
+
+/**
+ * Reads every file held by a storage server in the background and checks it
+ * against its stored chunk checksums, so that latent disk errors are found
+ * before a client reads the damaged data.
+ *
+ * <p>
+ * Files are visited in path order, including the blocks of block files, one
+ * window at a time. The reads are paced by a bytes-per-second budget, and the
+ * scrubber steps back while the storage server is serving client requests.
+ * Its position is saved in the metadata directory at regular intervals, so a
+ * restarted server resumes the pass where it stopped.
+ *
+ * <p>
+ * A corrupt file is reported to the naming server, which takes this replica
+ * out of service and re-replicates the file from a good copy. The local copy
+ * is deleted unless it is the only one left.
+ */
+public class Scrubber extends Thread {
+
+	/** Default scrubbing budget, in bytes per second. */
+	public static final long DEFAULT_BANDWIDTH = 8L * 1024 * 1024;
+
+	/** File holding the position of the current pass. */
+	static final String CURSOR_FILE = StorageServer.METADATA_DIR
+			+ "/scrub-cursor";
+
+	private static final int WINDOW = 1024 * 1024;
+	private static final long CHECKPOINT_BYTES = 64L * 1024 * 1024;
+	private static final long YIELD_PAUSE = 20;
+	private static final long MAX_YIELD = 1000;
+	private static final long PASS_INTERVAL = 10 * 60 * 1000;
+
+	private StorageServer storageServer;
+	private Registration naming_server;
+	private Command command_stub;
+	private ThroughputLimiter bandwidth;
+	private long sinceCheckpoint = 0;
+	private volatile boolean askedToStopThread = false;
+
+	public Scrubber(StorageServer storageServer, Registration naming_server,
+			Command command_stub, long bytesPerSecond) {
+		this.storageServer = storageServer;
+		this.naming_server = naming_server;
+		this.command_stub = command_stub;
+		// Small bursts, so the scrubber never reads much at once
+		this.bandwidth = new ThroughputLimiter(bytesPerSecond,
+				Math.min(bytesPerSecond, WINDOW));
+		setDaemon(true);
+		setPriority(MIN_PRIORITY);
+	}
+
+	public void run() {
+		while (!askedToStopThread) {
+			try {
+				scrubPass();
+				Thread.sleep(PASS_INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			} catch (Throwable t) {
+				System.out.println("Scrubbing failed : " + t.getMessage());
+				try {
+					Thread.sleep(PASS_INTERVAL);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	public void stopGracefully() {
+		askedToStopThread = true;
+		interrupt();
+	}
+
+	/** Checks every file after the saved cursor, then starts over. */
+	private void scrubPass() throws IOException, InterruptedException {
+		String[] cursor = readCursor();
+		String resumeFile = cursor[0];
+		long resumeOffset = Long.parseLong(cursor[1]);
+
+		for (String file : localFiles()) {
+			if (askedToStopThread) {
+				return;
+			}
+			int order = file.compareTo(resumeFile);
+			if (order < 0) {
+				continue;
+			}
+			scrubFile(file, order == 0 ? resumeOffset : 0);
+		}
+		// The pass is complete; the next one starts from the beginning
+		writeCursor("", 0);
+	}
+
+	private void scrubFile(String file, long offset)
+			throws IOException, InterruptedException {
+		File f = new File(file);
+		while (!askedToStopThread) {
+			yieldToClients();
+			bandwidth.acquire(WINDOW);
+
+			long checked;
+			try {
+				checked = storageServer.scrub(f, offset, WINDOW);
+			} catch (FileNotFoundException e) {
+				// Deleted since the listing was taken
+				return;
+			} catch (ChecksumException e) {
+				reportCorrupt(e);
+				return;
+			}
+			if (checked == 0) {
+				return;
+			}
+			offset += checked;
+			sinceCheckpoint += checked;
+			if (sinceCheckpoint >= CHECKPOINT_BYTES) {
+				writeCursor(file, offset);
+				sinceCheckpoint = 0;
+			}
+		}
+	}
+
+	/**
+	 * Waits while client requests are in progress, but not so long that a
+	 * busy server is never scrubbed.
+	 */
+	private void yieldToClients() throws InterruptedException {
+		long waited = 0;
+		while (storageServer.activeRequests() > 0 && waited < MAX_YIELD) {
+			Thread.sleep(YIELD_PAUSE);
+			waited += YIELD_PAUSE;
+		}
+	}
+
+	private void reportCorrupt(ChecksumException e) {
+		Path file = e.getFile();
+		System.out.println("Scrubber found corruption : " + e.getMessage());
+		try {
+			if (naming_server.reportCorrupt(command_stub, file)) {
+				// Another replica is good; this copy is out of service
+				storageServer.delete(file);
+			}
+		} catch (Throwable t) {
+			System.out.println("Corruption report for " + file + " failed : "
+					+ t.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the files, packed files and blocks held by the server, in path
+	 * order.
+	 */
+	private List<String> localFiles() throws IOException {
+		List<String> files = new ArrayList<String>();
+		try (Stream<java.nio.file.Path> found = Files.find(Paths.get("/data"),
+				Integer.MAX_VALUE,
+				(filePath, fileAttr) -> (fileAttr.isRegularFile()
+						|| fileAttr.isSymbolicLink())
+						&& !StorageServer.isMetadata(filePath))) {
+			files.addAll(found.map(java.nio.file.Path::toString)
+					.collect(Collectors.toList()));
+		}
+		files.addAll(storageServer.packedFiles());
+		String[] blocks = new File(Blocks.BLOCK_DIR).list();
+		if (blocks != null) {
+			for (String name : blocks) {
+				long block = Blocks.idOf(name);
+				if (block >= 0) {
+					files.add(Blocks.path(block).getPath());
+				}
+			}
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+	/** Returns the file and offset at which to resume. */
+	private static String[] readCursor() {
+		try {
+			List<String> lines = Files.readAllLines(Paths.get(CURSOR_FILE),
+					StandardCharsets.UTF_8);
+			if (lines.size() == 2) {
+				Long.parseLong(lines.get(1));
+				return lines.toArray(new String[2]);
+			}
+		} catch (IOException | NumberFormatException e) {
+			// No usable cursor; start a new pass
+		}
+		return new String[] { "", "0" };
+	}
+
+	private static void writeCursor(String file, long offset)
+			throws IOException {
+		java.nio.file.Path cursor = Paths.get(CURSOR_FILE);
+		java.nio.file.Path temporary = Paths.get(CURSOR_FILE + ".tmp");
+		Files.createDirectories(cursor.getParent());
+		Files.write(temporary, (file + "\n" + offset + "\n")
+				.getBytes(StandardCharsets.UTF_8));
+		Files.move(temporary, cursor, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,36 @@
+package storage;
+
+import java.io.IOException;
+import java.util.zip.CRC32C;
+
+/**
+ * Content of a file that is no longer stored in the file itself, but in the
+ * chunk store or in compressed form. The file keeps an empty placeholder at
+ * its path.
+ */
+interface SealedContent {
+
+	/** Returns the length of the file, in bytes. */
+	long length();
+
+	/**
+	 * Reads a range of the file, checking the stored data against its
+	 * checksums.
+	 *
+	 * @throws ChecksumException
+	 *             If the stored data is corrupt.
+	 */
+	byte[] read(long offset, int length) throws IOException;
+
+	/** Computes the CRC-32C of a range of the file. */
+	default long checksum(long offset, long length) throws IOException {
+		CRC32C crc = new CRC32C();
+		long end = offset + length;
+		while (offset < end) {
+			int count = (int) Math.min(end - offset, 1024 * 1024);
+			crc.update(read(offset, count));
+			offset += count;
+		}
+		return crc.getValue();
+	}
+}
@@ -0,0 +1,85 @@
+package storage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Seals files that are no longer being written: moves their content into a
+ * pack if they are small, and otherwise into the chunk store of a storage
+ * server, or into a compressed container. Between scans it has the server
+ * compact packs that have become mostly garbage.
+ *
+ * <p>
+ * Writes go to the files themselves, as before. The storage server notes the
+ * time of the last change to every file, and once a file has not changed for
+ * <code>SEAL_DELAY</code> milliseconds this thread has the server seal it.
+ * Sealing after the fact keeps chunking and compression off the write path,
+ * and leaves files that are still being written, or rewritten in place,
+ * alone.
+ */
+public class Sealer extends Thread {
+
+	/** Time a file must go unchanged before it is sealed. */
+	public static final long SEAL_DELAY = 30 * 1000;
+
+	private static final long SCAN_INTERVAL = 5 * 1000;
+
+	private StorageServer storageServer;
+	// Time of the last change to each file not yet deduplicated, in
+	// nanoseconds
+	private Map<String, Long> unsealed;
+	private volatile boolean askedToStopThread = false;
+
+	public Sealer(StorageServer storageServer,
+			Map<String, Long> unsealed) {
+		this.storageServer = storageServer;
+		this.unsealed = unsealed;
+		setDaemon(true);
+		setPriority(MIN_PRIORITY);
+	}
+
+	public void run() {
+		while (!askedToStopThread) {
+			try {
+				Thread.sleep(SCAN_INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			long quietSince = System.nanoTime() - SEAL_DELAY * 1000000;
+			List<Entry<String, Long>> files = new ArrayList<Entry<String, Long>>(
+					unsealed.entrySet());
+			for (Entry<String, Long> file : files) {
+				if (askedToStopThread) {
+					return;
+				}
+				if (file.getValue() - quietSince > 0) {
+					continue;
+				}
+				try {
+					storageServer.seal(new File(file.getKey()),
+							file.getValue());
+				} catch (Throwable t) {
+					System.out.println("Sealing of " + file.getKey()
+							+ " failed : " + t.getMessage());
+					unsealed.remove(file.getKey(), file.getValue());
+				}
+			}
+
+			try {
+				storageServer.compactPacks();
+			} catch (Throwable t) {
+				System.out.println("Pack compaction failed : "
+						+ t.getMessage());
+			}
+		}
+	}
+
+	public void stopGracefully() {
+		askedToStopThread = true;
+		interrupt();
+	}
+}
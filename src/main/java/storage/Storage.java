@@ -39,6 +39,8 @@ public interface Storage
                                           <code>length</code> is negative.
         @throws FileNotFoundException If the file cannot be found or the path
                                       refers to a directory.
+        @throws ChecksumException If the data read does not match its stored
+                                  chunk checksums.
         @throws IOException If the file read cannot be completed on the server.
         @throws RMIException If the call cannot be completed due to a network
                              error.
@@ -46,6 +48,88 @@ public interface Storage
     public byte[] read(Path file, long offset, int length)
         throws RMIException, FileNotFoundException, IOException;
 
+    /** Reads several ranges of a file in one request.
+
+        <p>
+        The server reads the ranges in file order, merging ranges that lie
+        close together into single reads, so many small reads cost one round
+        trip and few disk accesses.
+
+        @param file Path to the file.
+        @param offsets Offset into the file of each range.
+        @param lengths Length of each range.
+        @return The bytes of each range, in the order the ranges were given.
+        @throws IllegalArgumentException If <code>offsets</code> and
+                                         <code>lengths</code> differ in length.
+        @throws IndexOutOfBoundsException If a range specified by an offset
+                                          and length is outside the bounds of
+                                          the file, or if an offset or length
+                                          is negative.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws ChecksumException If the data read does not match its stored
+                                  checksums.
+        @throws IOException If the file read cannot be completed on the server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public byte[][] readv(Path file, long[] offsets, int[] lengths)
+        throws RMIException, FileNotFoundException, IOException;
+
+    /** Reads ranges of several files in one request.
+
+        <p>
+        The ranges of each file are read as by <code>readv</code> on that file
+        alone.
+
+        @param files Path to the file of each range.
+        @param offsets Offset into its file of each range.
+        @param lengths Length of each range.
+        @return The bytes of each range, in the order the ranges were given.
+        @throws IllegalArgumentException If <code>files</code>,
+                                         <code>offsets</code> and
+                                         <code>lengths</code> differ in length.
+        @throws IndexOutOfBoundsException If a range is outside the bounds of
+                                          its file, or if an offset or length
+                                          is negative.
+        @throws FileNotFoundException If a file cannot be found or its path
+                                      refers to a directory.
+        @throws ChecksumException If the data read does not match its stored
+                                  checksums.
+        @throws IOException If a file read cannot be completed on the server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public byte[][] readv(Path[] files, long[] offsets, int[] lengths)
+        throws RMIException, FileNotFoundException, IOException;
+
+    /** Reads a sequence of bytes from a file together with the checksums
+        that cover it, so that the reader can check the data itself.
+
+        <p>
+        The returned data is widened to whole checksum chunks: it starts at or
+        before <code>offset</code>, and ends at or after <code>offset +
+        length</code>, or at the end of the file.
+
+        @param file Path to the file.
+        @param offset Offset into the file to the beginning of the sequence.
+        @param length The number of bytes to be read.
+        @return The data and its chunk checksums.
+        @throws IndexOutOfBoundsException If the sequence specified by
+                                          <code>offset</code> and
+                                          <code>length</code> is outside the
+                                          bounds of the file, or if
+                                          <code>length</code> is negative.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws IOException If the file read cannot be completed on the server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public ChecksummedData readWithChecksums(Path file, long offset,
+                                             int length)
+        throws RMIException, FileNotFoundException, IOException;
+
     /** Writes bytes to a file.
 
         @param file Path to the file.
@@ -60,4 +144,201 @@ public interface Storage
      */
     public void write(Path file, long offset, byte[] data)
         throws RMIException, FileNotFoundException, IOException;
+
+    /** Writes several ranges of a file in one request.
+
+        <p>
+        The server writes the ranges in file order while it holds the file for
+        exclusive access, so readers see either none or all of them. Ranges
+        that overlap are written in the order given.
+
+        @param file Path to the file.
+        @param offsets Offset into the file of each range.
+        @param data Bytes to be written at each offset.
+        @throws IllegalArgumentException If <code>offsets</code> and
+                                         <code>data</code> differ in length.
+        @throws IndexOutOfBoundsException If an offset is negative.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws IOException If the file write cannot be completed on the server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void writev(Path file, long[] offsets, byte[][] data)
+        throws RMIException, FileNotFoundException, IOException;
+
+    /** Appends bytes to the end of a file, and to the other replicas of the
+        file.
+
+        <p>
+        This server acts as the primary replica of the file. Appends to the
+        same file are made one at a time, and each is written at the size of
+        the file on the primary, so concurrent appenders to the same file never
+        overwrite each other, and need no lock on the naming server beyond a
+        shared one. The bytes are written at that offset to each of the other
+        replicas before the primary, so the replicas receive appends in the
+        order the primary chose them, and all replicas hold the same bytes at
+        the same offsets.
+
+        <p>
+        If a replica cannot be written, the others are still written, and the
+        call then fails without writing the primary. The size of the file on
+        the primary is unchanged, so retrying the append writes the same
+        offset again, over the bytes that reached some of the replicas.
+
+        @param file Path to the file.
+        @param data Array of bytes to be appended.
+        @param replicas Stubs for the other storage servers hosting the file.
+        @return The offset in the file at which the data was written.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws IOException If the file write cannot be completed on the
+                            server, or on one of the other replicas.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public long append(Path file, byte[] data, Storage[] replicas)
+        throws RMIException, FileNotFoundException, IOException;
+
+    /** Computes the checksum of a sequence of bytes in a file.
+
+        <p>
+        Servers copying a file from this server use the checksum to verify
+        each chunk they receive, and the whole file once it is complete.
+
+        @param file Path to the file.
+        @param offset Offset into the file to the beginning of the sequence.
+        @param length The number of bytes to be covered.
+        @return The CRC-32C of the sequence.
+        @throws IndexOutOfBoundsException If the sequence specified by
+                                          <code>offset</code> and
+                                          <code>length</code> is outside the
+                                          bounds of the file, or if
+                                          <code>length</code> is negative.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws ChecksumException If the data on the server does not match
+                                  its stored chunk checksums.
+        @throws IOException If the file cannot be read on the server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public long checksum(Path file, long offset, long length)
+        throws RMIException, FileNotFoundException, IOException;
+
+    /** Negotiates a transfer of a range of a file over the bulk-data port.
+
+        <p>
+        The bytes themselves do not pass through this interface. The caller
+        hands the returned ticket to {@link BulkTransfer}, which moves them
+        over a plain socket without serializing them. A ticket is good for
+        one transfer, and expires if it is not used within a minute.
+
+        @param file Path to the file.
+        @param offset Offset into the file to the beginning of the range.
+        @param length The number of bytes to be transferred.
+        @param write <code>true</code> if the caller sends bytes to be written
+                     to the file, <code>false</code> if it receives bytes
+                     read from the file.
+        @return The ticket, or <code>null</code> if the server has no
+                bulk-data port. Callers then fall back to <code>read</code>
+                and <code>write</code>. A ticket for a read carries the
+                stored checksums of the range.
+        @throws IndexOutOfBoundsException If <code>offset</code> or
+                                          <code>length</code> is negative, or
+                                          if a range to be read is outside the
+                                          bounds of the file.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws IOException If the transfer cannot be set up on the server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public TransferTicket openTransfer(Path file, long offset, long length,
+                                       boolean write)
+        throws RMIException, FileNotFoundException, IOException;
+
+    /** Returns the recipe of a deduplicated file.
+
+        <p>
+        Storage servers that deduplicate stored data keep a file that has not
+        changed for a while as a list of content-addressed chunks. A server
+        copying the file fetches the recipe first, and then only the chunks it
+        does not hold yet, with <code>readChunk</code>.
+
+        @param file Path to the file.
+        @return The list of chunks making up the file, or <code>null</code> if
+                the file is stored in one piece.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws IOException If the recipe cannot be read on the server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Recipe recipe(Path file)
+        throws RMIException, FileNotFoundException, IOException;
+
+    /** Reads a chunk from the chunk store of the server.
+
+        @param hash SHA-256 hash of the chunk, in lower-case hexadecimal, as
+                    listed in a recipe.
+        @return The bytes of the chunk.
+        @throws IllegalArgumentException If <code>hash</code> is not a
+                                         well-formed hash.
+        @throws FileNotFoundException If the server does not hold the chunk.
+        @throws ChecksumException If the stored chunk is corrupt.
+        @throws IOException If the chunk cannot be read on the server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public byte[] readChunk(String hash)
+        throws RMIException, FileNotFoundException, IOException;
+
+    /** Returns the length of a block, in bytes.
+
+        @param block ID of the block.
+        @return The length of the block, at most {@link Blocks#BLOCK_SIZE}.
+        @throws FileNotFoundException If the server does not hold the block.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public long blockSize(long block)
+        throws RMIException, FileNotFoundException;
+
+    /** Reads a sequence of bytes from a block.
+
+        @param block ID of the block.
+        @param offset Offset into the block to the beginning of the sequence.
+        @param length The number of bytes to be read.
+        @return An array containing the bytes read.
+        @throws IndexOutOfBoundsException If the sequence specified by
+                                          <code>offset</code> and
+                                          <code>length</code> is outside the
+                                          bounds of the block, or if
+                                          <code>length</code> is negative.
+        @throws FileNotFoundException If the server does not hold the block.
+        @throws IOException If the block read cannot be completed on the
+                            server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public byte[] readBlock(long block, int offset, int length)
+        throws RMIException, FileNotFoundException, IOException;
+
+    /** Writes bytes to a block.
+
+        @param block ID of the block.
+        @param offset Offset into the block where data is to be written.
+        @param data Array of bytes to be written.
+        @throws IndexOutOfBoundsException If <code>offset</code> is negative,
+                                          or if the data would extend past
+                                          {@link Blocks#BLOCK_SIZE}.
+        @throws FileNotFoundException If the server does not hold the block.
+        @throws IOException If the block write cannot be completed on the
+                            server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void writeBlock(long block, int offset, byte[] data)
+        throws RMIException, FileNotFoundException, IOException;
 }
@@ -2,18 +2,32 @@ package storage;
 
 import java.io.*;
 import java.net.*;
-import java.nio.file.DirectoryIteratorException;
-import java.nio.file.DirectoryStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.nio.file.StandardOpenOption.*;
 
 import common.Path;
+import common.ThroughputLimiter;
 import rmi.*;
 import naming.*;
 
@@ -29,11 +43,82 @@ public class StorageServer implements Storage, Command, Serializable {
 	private static final long serialVersionUID = -8695381589816038827L;
 	private int client_port;
 	private int command_port;
+	private int bulk_port = StorageStubs.BULK_PORT;
 	private File root;
 	private Storage client_stub;
 	private Command command_stub;
 	Skeleton<Command> cmdSkeleton;
 	Skeleton<Storage> strgSkeleton;
+	private transient HeartbeatSender heartbeatSender;
+	private transient BulkDataServer bulkDataServer;
+	private transient Scrubber scrubber;
+	private transient long scrubBandwidth = Scrubber.DEFAULT_BANDWIDTH;
+	private transient AtomicInteger activeRequests = new AtomicInteger();
+	private transient StripedLocks fileLocks = new StripedLocks();
+	private transient ChannelCache channels = new ChannelCache();
+	private transient ChunkChecksums checksums = new ChunkChecksums(channels);
+	private transient volatile boolean verifyChecksums = true;
+	private transient ChunkStore chunkStore = new ChunkStore(channels,
+			checksums);
+	private transient CompressedStore compressedStore = new CompressedStore(
+			channels, checksums);
+	private transient PackStore packStore = new PackStore();
+	private transient CompressedStore coldStore;
+	private transient File coldTier;
+	private transient long coldAge;
+	private transient boolean compressColdFiles;
+	private transient long migrationBandwidth = TierMigrator.DEFAULT_BANDWIDTH;
+	private transient TierMigrator tierMigrator;
+	private transient Inventory inventory = new Inventory(Paths.get("/data"));
+	private transient boolean deduplicate = false;
+	private transient boolean compress = false;
+	private transient boolean fastCompression = false;
+	private transient long packThreshold = 0;
+	private transient Sealer sealer;
+	private transient Map<String, Long> unsealed = new ConcurrentHashMap<String, Long>();
+	private transient MappedRegionCache mappedRegions = new MappedRegionCache();
+	private transient BlockCache blockCache = new BlockCache(0);
+	private transient Durability durability = Durability.NONE;
+	private transient GroupCommitter groupCommitter;
+	private transient Disks disks = new Disks();
+	private transient int ioSlots = 0;
+	private transient IoScheduler[] ioSchedulers = { new IoScheduler(0) };
+	private transient DiskChecker diskChecker;
+	private transient AccessStatistics accessStatistics = new AccessStatistics();
+	private transient ExecutorService copyFetchers = Executors
+			.newCachedThreadPool(task -> {
+				Thread thread = new Thread(task, "copy-fetcher");
+				thread.setDaemon(true);
+				return thread;
+			});
+	private transient Set<String> copiesInProgress = ConcurrentHashMap
+			.newKeySet();
+	// Files being appended to, guarded by itself
+	private transient Set<String> appending = new HashSet<String>();
+
+	/**
+	 * Largest gap between two ranges of a vectored read that is read through
+	 * rather than costing a read of its own.
+	 */
+	static final int COALESCE_GAP = ChunkChecksums.BYTES_PER_CHECKSUM;
+
+	/** Largest read that ranges of a vectored read are merged into. */
+	static final int MAX_COALESCED_READ = 1024 * 1024;
+
+	/** Bytes of a bulk-data transfer moved under one disk slot. */
+	static final long TRANSFER_SLICE = 1024 * 1024;
+
+	/** Number of reads after which a file is served from mapped memory. */
+	static final long HOT_FILE_READS = 8;
+
+	/**
+	 * Directory holding the storage server's own bookkeeping, such as partial
+	 * copies. It is never registered with the naming server.
+	 */
+	static final String METADATA_DIR = "/data/.dfs";
+
+	/** Directory in which bulk-data writes are received before applied. */
+	static final String INCOMING_DIR = METADATA_DIR + "/incoming";
 
 	/**
 	 * Creates a storage server, given a directory on the local filesystem, and
@@ -108,30 +193,88 @@ public class StorageServer implements Storage, Command, Serializable {
 	 */
 	public synchronized void start(String hostname, Registration naming_server)
 			throws RMIException, UnknownHostException, FileNotFoundException {
+		// Initialize client and command stubs
+		initializeStubs(hostname);
+
+		register(naming_server);
+
+		// Report liveness to the naming server from now on
+		heartbeatSender = new HeartbeatSender(this, naming_server,
+				command_stub);
+		heartbeatSender.start();
+
+		// Pack, deduplicate or compress files that have gone quiet
+		if (sealing()) {
+			sealer = new Sealer(this, unsealed);
+			sealer.start();
+		}
+
+		// Look for latent corruption in the background
+		if (scrubBandwidth > 0) {
+			scrubber = new Scrubber(this, naming_server, command_stub,
+					scrubBandwidth);
+			scrubber.start();
+		}
+
+		// Move files between the fast and the cold tier
+		if (coldStore != null) {
+			tierMigrator = new TierMigrator(this, migrationBandwidth);
+			tierMigrator.start();
+		}
+
+		// Give up disks that stop working
+		if (disks.count() > 1) {
+			diskChecker = new DiskChecker(this, naming_server, command_stub);
+			diskChecker.start();
+		}
+	}
+
+	/**
+	 * Registers this storage server and its files with the naming server,
+	 * deletes the duplicate files the naming server names and prunes empty
+	 * directories.
+	 * 
+	 * <p>
+	 * This is done on startup, and again whenever the naming server no longer
+	 * knows this storage server because it declared it dead. The files are
+	 * taken from the inventory, which reads its manifest after a clean stop
+	 * and walks the tree otherwise.
+	 * 
+	 * @param naming_server
+	 *            Remote interface for the naming server.
+	 */
+	synchronized void register(Registration naming_server) {
 		// Gather this storage server files
-		List<java.nio.file.Path> paths = new ArrayList<java.nio.file.Path>();
 		Path[] files = null;
 		try {
-			paths.addAll(Files
-					.find(Paths.get("/data"), Integer.MAX_VALUE,
-							(filePath, fileAttr) -> fileAttr.isRegularFile())
-					.collect(Collectors.toList()));
-			paths.addAll(Files
-					.find(Paths.get("/data"), Integer.MAX_VALUE,
-							(filePath, fileAttr) -> fileAttr.isDirectory())
-					.collect(Collectors.toList()));
-			files = new Path[paths.size()];
-			for (int i = 0; i < paths.size(); i++) {
-				files[i] = new Path(paths.get(i).toString());
+			Map<String, Boolean> entries = inventory.load();
+			// Packed files have no local file for a walk to find
+			for (String packed : packStore.paths()) {
+				inventory.added(new File(packed), false);
+			}
+			// Files on a disk that no longer works are not offered
+			for (int disk = 1; disk < disks.count(); disk++) {
+				if (!disks.isFailed(disk) && !disks.probe(disk)) {
+					System.out.println("Disk " + disks.directory(disk)
+							+ " failed");
+					disks.fail(disk);
+				}
 			}
+			List<Path> offered = new ArrayList<Path>();
+			for (String entry : entries.keySet()) {
+				if (!disks.isFailed(disks.diskOf(new File(entry)))) {
+					offered.add(new Path(entry));
+				}
+			}
+			files = offered.toArray(new Path[offered.size()]);
+			System.out.println("Inventory of " + files.length + " entries "
+					+ (inventory.wasScanned() ? "scanned" : "loaded")
+					+ ", generation " + inventory.getGeneration());
 		} catch (IOException e) {
 			System.out.println(e.getMessage());
 			e.printStackTrace();
 		}
 
-		// Initialize client and command stubs
-		initializeStubs(hostname);
-
 		// register using naming_server, client_stub, command_stub
 		try {
 			Path[] filesToDelete = naming_server.register(client_stub,
@@ -145,8 +288,34 @@ public class StorageServer implements Storage, Command, Serializable {
 			System.out.println(e.getMessage());
 			e.printStackTrace();
 		}
+
+		// Tell the naming server which blocks this server holds
+		try {
+			naming_server.reportBlocks(client_stub, command_stub,
+					localBlocks());
+		} catch (RMIException e) {
+			System.out.println("Block report failed : " + e.getMessage());
+		}
+
 		// Prune this storage server directories
-		pruneLocalStorage(Paths.get("/data"));
+		pruneLocalStorage();
+	}
+
+	/** Returns the IDs of the blocks held by this storage server. */
+	private long[] localBlocks() {
+		String[] names = new File(Blocks.BLOCK_DIR).list();
+		if (names == null) {
+			return new long[0];
+		}
+		long[] blocks = new long[names.length];
+		int count = 0;
+		for (String name : names) {
+			long block = Blocks.idOf(name);
+			if (block >= 0) {
+				blocks[count++] = block;
+			}
+		}
+		return Arrays.copyOf(blocks, count);
 	}
 
 	/**
@@ -157,8 +326,35 @@ public class StorageServer implements Storage, Command, Serializable {
 	 */
 	public void stop() {
 		// TODO: NOTIFY NAMING SERVER
+		if (heartbeatSender != null) {
+			heartbeatSender.stopGracefully();
+		}
+		if (bulkDataServer != null) {
+			bulkDataServer.stopGracefully();
+		}
+		if (scrubber != null) {
+			scrubber.stopGracefully();
+		}
+		if (sealer != null) {
+			sealer.stopGracefully();
+		}
+		if (tierMigrator != null) {
+			tierMigrator.stopGracefully();
+		}
+		if (diskChecker != null) {
+			diskChecker.stopGracefully();
+		}
+		if (groupCommitter != null) {
+			groupCommitter.stopGracefully();
+		}
+		packStore.close();
+		inventory.close();
 		cmdSkeleton.stop();
 		strgSkeleton.stop();
+		channels.closeAll();
+		mappedRegions.clear();
+		blockCache.clear();
+		copyFetchers.shutdownNow();
 	}
 
 	/**
@@ -172,154 +368,2083 @@ public class StorageServer implements Storage, Command, Serializable {
 		System.out.println(cause.getMessage());
 	}
 
+	/**
+	 * Returns the current liveness and load figures of this storage server.
+	 */
+	HeartbeatReport heartbeatReport() {
+		File store = new File("/data");
+		long used = store.getTotalSpace() - store.getFreeSpace();
+		return new HeartbeatReport(System.currentTimeMillis(), used,
+				store.getUsableSpace(), activeRequests.get());
+	}
+
+	/** Returns the number of client requests being served right now. */
+	int activeRequests() {
+		return activeRequests.get();
+	}
+
 	@Override
-	public synchronized long size(Path file) throws FileNotFoundException {
-		File f = new File(file.getPath());
-		if (!f.exists()) {
-			throw new FileNotFoundException("not implemented");
+	public long size(Path file) throws FileNotFoundException {
+		fileLocks.lockShared(file);
+		try {
+			File f = new File(file.getPath());
+			SealedContent sealed;
+			try {
+				if (!f.exists() && !packStore.contains(f)) {
+					throw new FileNotFoundException("not implemented");
+				}
+				sealed = sealed(f);
+			} catch (FileNotFoundException e) {
+				throw e;
+			} catch (IOException e) {
+				throw new UncheckedIOException(
+						"cannot read the index of " + file, e);
+			}
+			return sealed != null ? sealed.length() : f.length();
+		} finally {
+			fileLocks.unlockShared(file);
 		}
-		return f.length();
 	}
 
 	@Override
-	public synchronized byte[] read(Path file, long offset, int length)
+	public byte[] read(Path file, long offset, int length)
 			throws IOException {
-		File f = new File(file.getPath());
-		if (!f.exists()) {
-			throw new FileNotFoundException("not implemented");
+		fileLocks.lockShared(file);
+		try {
+			File f = new File(file.getPath());
+			if (offset < 0 || length < 0) {
+				throw new IndexOutOfBoundsException(
+						"offset or length is negative");
+			}
+			// A hit needs no system call at all
+			byte[] hit = blockCache.read(f, offset, length);
+			if (hit != null) {
+				return hit;
+			}
+			return ioScheduler(f).run(IoClass.CLIENT_READ, length,
+					() -> readStored(file, f, offset, length));
+		} finally {
+			fileLocks.unlockShared(file);
 		}
-		DataInputStream in = new DataInputStream(new FileInputStream(f));
-		byte fileContent[] = new byte[(int) f.length()];
-		// REVISIT TYPE CAST
-		in.read(fileContent, (int) offset, length);
-		in.close();
-		return fileContent;
 	}
 
-	@Override
-	public synchronized void write(Path file, long offset, byte[] data)
-			throws FileNotFoundException, IOException {
-		File f = new File(file.getPath());
-		if (!f.exists()) {
-			throw new FileNotFoundException("not implemented");
+	/**
+	 * Reads a range of a file not found in the block cache. The caller holds
+	 * the file lock for shared access.
+	 */
+	private byte[] readStored(Path file, File f, long offset, int length)
+			throws IOException {
+		if (!isStored(f)) {
+			throw new FileNotFoundException(
+					file + " does not exist or is a directory");
+		}
+		SealedContent sealed = sealed(f);
+		activeRequests.incrementAndGet();
+		if (sealed != null) {
+			// Counted for the tier migrator, which promotes busy cold files
+			accessStatistics.recordRead(f);
+			try {
+				if (offset + length > sealed.length()) {
+					throw new IndexOutOfBoundsException(
+							"read extends past the end of " + file);
+				}
+				// Sealed content is always checked
+				if (blockCache.isEnabled()) {
+					return cachedRead(f, sealed, null, sealed.length(),
+							offset, length);
+				}
+				return sealed.read(offset, length);
+			} finally {
+				activeRequests.decrementAndGet();
+			}
+		}
+		ChannelCache.CachedChannel cached = channels.acquire(f);
+		try {
+			FileChannel channel = cached.channel();
+			long size = channel.size();
+			if (offset + length > size) {
+				throw new IndexOutOfBoundsException(
+						"read extends past the end of " + file);
+			}
+			if (blockCache.isEnabled()) {
+				return cachedRead(f, null, channel, size, offset, length);
+			}
+			if (!verifyChecksums) {
+				return readRange(f, channel, size, offset, length);
+			}
+			// Checksums cover whole chunks, so read the chunks around the
+			// range, check them and hand out the requested part
+			long start = ChunkChecksums.chunkStart(offset);
+			long end = ChunkChecksums.chunkEnd(offset + length, size);
+			byte[] chunks = readRange(f, channel, size, start,
+					(int) (end - start));
+			checksums.verify(f, channel, size, start, chunks);
+			if (start == offset && chunks.length == length) {
+				return chunks;
+			}
+			int from = (int) (offset - start);
+			return Arrays.copyOfRange(chunks, from, from + length);
+		} finally {
+			channels.release(cached);
+			activeRequests.decrementAndGet();
 		}
-		DataOutputStream out = new DataOutputStream(new FileOutputStream(f));
-		// REVISIT TYPE CAST
-		out.write(data, (int) offset, data.length);
-		out.flush();
-		out.close();
 	}
 
 	@Override
-	public synchronized boolean create(Path file) {
-		java.nio.file.Path p = Paths.get(file.getPath());
+	public byte[][] readv(Path file, long[] offsets, int[] lengths)
+			throws IOException {
+		if (offsets.length != lengths.length) {
+			throw new IllegalArgumentException(
+					"offsets and lengths differ in number");
+		}
+		for (int i = 0; i < offsets.length; i++) {
+			if (offsets[i] < 0 || lengths[i] < 0) {
+				throw new IndexOutOfBoundsException(
+						"offset or length is negative");
+			}
+		}
+		fileLocks.lockShared(file);
 		try {
-			OutputStream out = Files.newOutputStream(p, CREATE_NEW);
-			out.close();
-			return true;
-		} catch (IOException e) {
-			System.out.println(e.getMessage());
-			e.printStackTrace();
-			return false;
+			File f = new File(file.getPath());
+			if (!isStored(f)) {
+				throw new FileNotFoundException(
+						file + " does not exist or is a directory");
+			}
+			long bytes = 0;
+			for (int length : lengths) {
+				bytes += length;
+			}
+			return ioScheduler(f).run(IoClass.CLIENT_READ, bytes,
+					() -> readvStored(file, f, offsets, lengths));
+		} finally {
+			fileLocks.unlockShared(file);
 		}
 	}
 
-	@Override
-	public synchronized boolean delete(Path path) {
-		// REVISIT WHEN DIRECTORY IS NOT DELETABLE?
+	/**
+	 * Reads ranges of a file. The caller holds the file lock for shared
+	 * access.
+	 */
+	private byte[][] readvStored(Path file, File f, long[] offsets,
+			int[] lengths) throws IOException {
+		Integer[] order = byOffset(offsets);
+		byte[][] data = new byte[offsets.length][];
+		SealedContent sealed = sealed(f);
+		activeRequests.incrementAndGet();
+		if (sealed != null) {
+			accessStatistics.recordRead(f);
+			try {
+				long size = sealed.length();
+				checkRanges(file, size, offsets, lengths);
+				for (int i : order) {
+					data[i] = blockCache.isEnabled()
+							? cachedRead(f, sealed, null, size,
+									offsets[i], lengths[i])
+							: sealed.read(offsets[i], lengths[i]);
+				}
+				return data;
+			} finally {
+				activeRequests.decrementAndGet();
+			}
+		}
+		ChannelCache.CachedChannel cached = channels.acquire(f);
 		try {
-			Files.delete(Paths.get(path.getPath()));
-			return true;
-		} catch (IOException e) {
-			System.out.println(e.getMessage());
-			e.printStackTrace();
-			return false;
+			FileChannel channel = cached.channel();
+			long size = channel.size();
+			checkRanges(file, size, offsets, lengths);
+			if (blockCache.isEnabled()) {
+				for (int i : order) {
+					data[i] = cachedRead(f, null, channel, size,
+							offsets[i], lengths[i]);
+				}
+				return data;
+			}
+			readCoalesced(f, channel, size, order, offsets, lengths, data);
+			return data;
+		} finally {
+			channels.release(cached);
+			activeRequests.decrementAndGet();
 		}
 	}
 
 	@Override
-	public synchronized boolean copy(Path file, Storage server)
-			throws RMIException, FileNotFoundException, IOException {
+	public byte[][] readv(Path[] files, long[] offsets, int[] lengths)
+			throws IOException {
+		if (files.length != offsets.length || files.length != lengths.length) {
+			throw new IllegalArgumentException(
+					"files, offsets and lengths differ in number");
+		}
+		// One file at a time, so no two file locks are ever held together
+		Map<Path, List<Integer>> byFile = new TreeMap<Path, List<Integer>>();
+		for (int i = 0; i < files.length; i++) {
+			byFile.computeIfAbsent(files[i], file -> new ArrayList<Integer>())
+					.add(i);
+		}
+		byte[][] data = new byte[files.length][];
+		for (Map.Entry<Path, List<Integer>> file : byFile.entrySet()) {
+			List<Integer> ranges = file.getValue();
+			long[] fileOffsets = new long[ranges.size()];
+			int[] fileLengths = new int[ranges.size()];
+			for (int i = 0; i < fileOffsets.length; i++) {
+				fileOffsets[i] = offsets[ranges.get(i)];
+				fileLengths[i] = lengths[ranges.get(i)];
+			}
+			byte[][] read = readv(file.getKey(), fileOffsets, fileLengths);
+			for (int i = 0; i < read.length; i++) {
+				data[ranges.get(i)] = read[i];
+			}
+		}
+		return data;
+	}
+
+	private static void checkRanges(Path file, long size, long[] offsets,
+			int[] lengths) {
+		for (int i = 0; i < offsets.length; i++) {
+			if (offsets[i] + lengths[i] > size) {
+				throw new IndexOutOfBoundsException(
+						"read extends past the end of " + file);
+			}
+		}
+	}
+
+	/**
+	 * Reads ranges of a file in file order, merging ranges that overlap or
+	 * lie within <code>COALESCE_GAP</code> bytes of each other into one read,
+	 * up to <code>MAX_COALESCED_READ</code> bytes. With checksums checked,
+	 * ranges are widened to whole chunks first.
+	 *
+	 * @param order
+	 *            Indices of the ranges, sorted by offset.
+	 * @param data
+	 *            Array that receives the bytes of each range.
+	 */
+	private void readCoalesced(File f, FileChannel channel, long size,
+			Integer[] order, long[] offsets, int[] lengths, byte[][] data)
+			throws IOException {
+		boolean verify = verifyChecksums;
+		int first = 0;
+		while (first < order.length) {
+			long start = rangeStart(offsets[order[first]], verify);
+			long end = rangeEnd(offsets[order[first]] + lengths[order[first]],
+					size, verify);
+			int last = first + 1;
+			while (last < order.length) {
+				int next = order[last];
+				long nextEnd = Math.max(end,
+						rangeEnd(offsets[next] + lengths[next], size, verify));
+				if (rangeStart(offsets[next], verify) > end + COALESCE_GAP
+						|| nextEnd - start > MAX_COALESCED_READ) {
+					break;
+				}
+				end = nextEnd;
+				last++;
+			}
+			byte[] read = readRange(f, channel, size, start,
+					(int) (end - start));
+			if (verify) {
+				checksums.verify(f, channel, size, start, read);
+			}
+			for (int i = first; i < last; i++) {
+				int from = (int) (offsets[order[i]] - start);
+				data[order[i]] = Arrays.copyOfRange(read, from,
+						from + lengths[order[i]]);
+			}
+			first = last;
+		}
+	}
+
+	private static long rangeStart(long offset, boolean chunks) {
+		return chunks ? ChunkChecksums.chunkStart(offset) : offset;
+	}
+
+	private static long rangeEnd(long end, long size, boolean chunks) {
+		return chunks ? ChunkChecksums.chunkEnd(end, size) : end;
+	}
+
+	/**
+	 * Reads a range of a file through the block cache, loading the blocks
+	 * that are not cached from the sealed content if there is one, and
+	 * otherwise from the channel, checked against their checksums.
+	 */
+	private byte[] cachedRead(File f, SealedContent sealed,
+			FileChannel channel, long size, long offset, int length)
+			throws IOException {
+		byte[] data = new byte[length];
+		int done = 0;
+		while (done < length) {
+			long block = (offset + done) / BlockCache.BLOCK_SIZE;
+			int inBlock = (int) ((offset + done) % BlockCache.BLOCK_SIZE);
+			int count = Math.min(length - done,
+					BlockCache.BLOCK_SIZE - inBlock);
+			if (!blockCache.copy(f, block, inBlock, data, done, count)) {
+				long start = block * BlockCache.BLOCK_SIZE;
+				int blockLength = (int) Math.min(BlockCache.BLOCK_SIZE,
+						size - start);
+				byte[] loaded;
+				if (sealed != null) {
+					loaded = sealed.read(start, blockLength);
+				} else {
+					loaded = readRange(f, channel, size, start, blockLength);
+					if (verifyChecksums) {
+						checksums.verify(f, channel, size, start, loaded);
+					}
+				}
+				blockCache.put(f, block, loaded);
+				System.arraycopy(loaded, inBlock, data, done, count);
+			}
+			done += count;
+		}
+		return data;
+	}
+
+	/**
+	 * Reads a range of a file, from mapped memory if the file is hot and
+	 * otherwise through the channel.
+	 */
+	private byte[] readRange(File f, FileChannel channel, long size,
+			long position, int length) throws IOException {
+		// Allocate exactly the range, whatever the file size
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		long reads = accessStatistics.recordRead(f);
+		if (reads >= HOT_FILE_READS && mappedRegions.accepts(size)) {
+			mappedRegions.read(f, channel, position, buffer);
+		} else {
+			// Cold or huge files are read through the channel
+			readFully(channel, buffer, position);
+		}
+		return buffer.array();
+	}
+
+	@Override
+	public ChecksummedData readWithChecksums(Path file, long offset,
+			int length) throws IOException {
+		fileLocks.lockShared(file);
 		try {
-			// REVISIT TYPE CAST
-			byte data[] = server.read(file, 0, (int) server.size(file));
-			java.nio.file.Path p = Paths.get(file.getPath());
-			OutputStream out = new BufferedOutputStream(
-					Files.newOutputStream(p, CREATE_NEW));
-			out.write(data, 0, data.length);
-			out.flush();
-			out.close();
-			return true;
-		} catch (Exception e) {
-			System.out.println(e.getMessage());
-			e.printStackTrace();
-			return false;
+			File f = new File(file.getPath());
+			if (!isStored(f)) {
+				throw new FileNotFoundException(
+						file + " does not exist or is a directory");
+			}
+			if (offset < 0 || length < 0) {
+				throw new IndexOutOfBoundsException(
+						"offset or length is negative");
+			}
+			return ioScheduler(f).run(IoClass.CLIENT_READ, length,
+					() -> readWithChecksumsStored(file, f, offset, length));
+		} finally {
+			fileLocks.unlockShared(file);
 		}
 	}
 
-	private void initializeStubs(String hostname) {
-		// Command stub
-		InetSocketAddress cmdAddr = new InetSocketAddress(hostname,
-				StorageStubs.COMMAND_PORT);
-		cmdSkeleton = new Skeleton<Command>(Command.class, this, cmdAddr);
+	/**
+	 * Reads a range of a file with its checksums. The caller holds the file
+	 * lock for shared access.
+	 */
+	private ChecksummedData readWithChecksumsStored(Path file, File f,
+			long offset, int length) throws IOException {
+		SealedContent sealed = sealed(f);
+		activeRequests.incrementAndGet();
+		if (sealed != null) {
+			try {
+				long size = sealed.length();
+				if (offset + length > size) {
+					throw new IndexOutOfBoundsException(
+							"read extends past the end of " + file);
+				}
+				// Checked against the stored form, then summed afresh
+				long start = ChunkChecksums.chunkStart(offset);
+				long end = ChunkChecksums.chunkEnd(offset + length, size);
+				byte[] data = sealed.read(start, (int) (end - start));
+				return new ChecksummedData(start, data,
+						ChunkChecksums.checksumsOf(data),
+						ChunkChecksums.BYTES_PER_CHECKSUM);
+			} finally {
+				activeRequests.decrementAndGet();
+			}
+		}
+		ChannelCache.CachedChannel cached = channels.acquire(f);
 		try {
-			cmdSkeleton.start();
-		} catch (Exception e) {
-			System.out.println(e.getMessage());
-			e.printStackTrace();
+			FileChannel channel = cached.channel();
+			long size = channel.size();
+			if (offset + length > size) {
+				throw new IndexOutOfBoundsException(
+						"read extends past the end of " + file);
+			}
+			// The reader checks the data, so the server does not
+			long start = ChunkChecksums.chunkStart(offset);
+			long end = ChunkChecksums.chunkEnd(offset + length, size);
+			byte[] chunks = readRange(f, channel, size, start,
+					(int) (end - start));
+			return new ChecksummedData(start, chunks,
+					checksums.load(f, channel, size, start, chunks.length),
+					ChunkChecksums.BYTES_PER_CHECKSUM);
+		} finally {
+			channels.release(cached);
+			activeRequests.decrementAndGet();
 		}
-		command_stub = StorageStubs.command(hostname);
+	}
 
-		// Storage stub
-		InetSocketAddress strgAddr = new InetSocketAddress(hostname,
-				StorageStubs.STORAGE_PORT);
-		strgSkeleton = new Skeleton<Storage>(Storage.class, this, strgAddr);
+	/**
+	 * Fills the buffer from the channel, starting at the given file position.
+	 * A single positional read may return fewer bytes than requested.
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new EOFException("unexpected end of file at " + position);
+			}
+			position += read;
+		}
+	}
+
+	@Override
+	public long checksum(Path file, long offset, long length)
+			throws IOException {
+		fileLocks.lockShared(file);
 		try {
-			strgSkeleton.start();
-		} catch (Exception e) {
-			System.out.println(e.getMessage());
-			e.printStackTrace();
+			File f = new File(file.getPath());
+			if (!isStored(f)) {
+				throw new FileNotFoundException(
+						file + " does not exist or is a directory");
+			}
+			if (offset < 0 || length < 0) {
+				throw new IndexOutOfBoundsException(
+						"offset or length is negative");
+			}
+			return ioScheduler(f).run(IoClass.REPLICATION, length,
+					() -> checksumStored(file, f, offset, length));
+		} finally {
+			fileLocks.unlockShared(file);
 		}
-		client_stub = StorageStubs.storage(hostname);
 	}
 
-	private void pruneLocalStorage(java.nio.file.Path dir) {
-		try (DirectoryStream<java.nio.file.Path> stream = Files
-				.newDirectoryStream(dir)) {
-			System.out.println("Iterating : " + dir);
-			Iterator<java.nio.file.Path> it = stream.iterator();
-			if (!it.hasNext()) {
-				// Directory is empty, delete it
-				File currentDir = new File(dir.toString());
-				currentDir.delete();
-				return;
-			}
-			while (it.hasNext()) {
-				java.nio.file.Path file = it.next();
-				if (Files.isDirectory(file)) {
-					pruneLocalStorage(file);
+	/**
+	 * Computes the checksum of a range of a file. The caller holds the file
+	 * lock for shared access.
+	 */
+	private long checksumStored(Path file, File f, long offset, long length)
+			throws IOException {
+		SealedContent sealed = sealed(f);
+		activeRequests.incrementAndGet();
+		if (sealed != null) {
+			try {
+				if (offset + length > sealed.length()) {
+					throw new IndexOutOfBoundsException(
+							"range extends past the end of " + file);
 				}
+				return sealed.checksum(offset, length);
+			} finally {
+				activeRequests.decrementAndGet();
 			}
-		} catch (IOException | DirectoryIteratorException e) {
-			System.err.println(e.getMessage());
-			e.printStackTrace();
+		}
+		ChannelCache.CachedChannel cached = channels.acquire(f);
+		try {
+			if (offset + length > cached.channel().size()) {
+				throw new IndexOutOfBoundsException(
+						"range extends past the end of " + file);
+			}
+			// A corrupt source must not pass its corruption on to copies
+			return checksums.rangeChecksum(f, cached.channel(), offset,
+					length);
+		} finally {
+			channels.release(cached);
+			activeRequests.decrementAndGet();
 		}
 	}
 
-	public int getClient_port() {
-		return client_port;
+	/**
+	 * Checks a range of a local file against its stored checksums on behalf
+	 * of the scrubber. The read does not count as a client request, and does
+	 * not make the file hot.
+	 *
+	 * @param f
+	 *            Local file, or block.
+	 * @param offset
+	 *            Start of the range, at a chunk boundary.
+	 * @param length
+	 *            Maximum number of bytes to check.
+	 * @return The number of bytes checked, which is zero at the end of the
+	 *         file.
+	 * @throws FileNotFoundException
+	 *             If the file no longer exists.
+	 * @throws ChecksumException
+	 *             If part of the range does not match its checksum.
+	 */
+	long scrub(File f, long offset, long length) throws IOException {
+		Path file = new Path(f.getPath());
+		fileLocks.lockShared(file);
+		try {
+			if (!isStored(f)) {
+				throw new FileNotFoundException(file + " no longer exists");
+			}
+			SealedContent sealed = sealed(f);
+			if (sealed != null) {
+				return scrubSealed(file, sealed, offset, length);
+			}
+			ChannelCache.CachedChannel cached = channels.acquire(f);
+			try {
+				long size = cached.channel().size();
+				if (offset >= size) {
+					return 0;
+				}
+				long checked = Math.min(length, size - offset);
+				ioScheduler(f).run(IoClass.SCRUB, checked, () -> {
+					checksums.scrub(f, cached.channel(), offset, checked);
+					return null;
+				});
+				return checked;
+			} finally {
+				channels.release(cached);
+			}
+		} finally {
+			fileLocks.unlockShared(file);
+		}
 	}
 
-	public void setClient_port(int client_port) {
-		this.client_port = client_port;
+	@Override
+	public Recipe recipe(Path file) throws IOException {
+		fileLocks.lockShared(file);
+		try {
+			File f = new File(file.getPath());
+			if (!isStored(f)) {
+				throw new FileNotFoundException(
+						file + " does not exist or is a directory");
+			}
+			return chunkStore.recipe(f);
+		} finally {
+			fileLocks.unlockShared(file);
+		}
 	}
 
-	public int getCommand_port() {
-		return command_port;
+	@Override
+	public byte[] readChunk(String hash) throws IOException {
+		if (!hash.matches("[0-9a-f]{64}")) {
+			throw new IllegalArgumentException("malformed chunk hash " + hash);
+		}
+		File chunk = ChunkStore.chunkFile(hash);
+		if (!chunk.isFile()) {
+			throw new FileNotFoundException("no chunk " + hash);
+		}
+		activeRequests.incrementAndGet();
+		try {
+			return chunkStore.readChunk(hash, 0, (int) chunk.length());
+		} finally {
+			activeRequests.decrementAndGet();
+		}
 	}
 
-	public void setCommand_port(int command_port) {
-		this.command_port = command_port;
+	/**
+	 * Checks a range of a deduplicated or compressed file by reading it.
+	 * Corruption is reported against the file, which is what the naming
+	 * server knows.
+	 */
+	private long scrubSealed(Path file, SealedContent sealed, long offset,
+			long length) throws IOException {
+		if (offset >= sealed.length()) {
+			return 0;
+		}
+		int checked = (int) Math.min(length, sealed.length() - offset);
+		try {
+			sealed.read(offset, checked);
+		} catch (ChecksumException e) {
+			throw new ChecksumException(file, offset);
+		}
+		return checked;
+	}
+
+	@Override
+	public TransferTicket openTransfer(Path file, long offset, long length,
+			boolean write) throws IOException {
+		if (offset < 0 || length < 0) {
+			throw new IndexOutOfBoundsException("offset or length is negative");
+		}
+		// The range is checked now, so a bad request fails over RMI with the
+		// usual exceptions rather than as a refused connection
+		File f = new File(file.getPath());
+		if (!isStored(f)) {
+			throw new FileNotFoundException(
+					file + " does not exist or is a directory");
+		}
+		if (sealed(f) != null) {
+			// Sealed files are not stored as one piece to send
+			return null;
+		}
+		if (!write && offset + length > f.length()) {
+			throw new IndexOutOfBoundsException(
+					"transfer extends past the end of " + file);
+		}
+		BulkDataServer bulk = bulkDataServer;
+		if (bulk == null) {
+			return null;
+		}
+		if (write) {
+			return bulk.offer(file, offset, length, true, null);
+		}
+		// The checksums go with the ticket, so the receiver can check the
+		// bytes without asking for them separately
+		fileLocks.lockShared(file);
+		try {
+			ChannelCache.CachedChannel cached = channels.acquire(f);
+			try {
+				FileChannel channel = cached.channel();
+				long size = channel.size();
+				if (offset + length > size) {
+					throw new IndexOutOfBoundsException(
+							"transfer extends past the end of " + file);
+				}
+				long start = ChunkChecksums.chunkStart(offset);
+				long end = ChunkChecksums.chunkEnd(offset + length, size);
+				return bulk.offer(file, offset, length, false,
+						checksums.load(f, channel, size, start, end - start));
+			} finally {
+				channels.release(cached);
+			}
+		} finally {
+			fileLocks.unlockShared(file);
+		}
+	}
+
+	/**
+	 * Sends a range of a file to a bulk-data connection.
+	 */
+	void transferOut(Path file, long offset, long length,
+			WritableByteChannel target) throws IOException {
+		fileLocks.lockShared(file);
+		try {
+			File f = new File(file.getPath());
+			if (!f.isFile()) {
+				throw new FileNotFoundException(
+						file + " does not exist or is a directory");
+			}
+			activeRequests.incrementAndGet();
+			accessStatistics.recordRead(f);
+			ChannelCache.CachedChannel cached = channels.acquire(f);
+			try {
+				FileChannel channel = cached.channel();
+				long end = offset + length;
+				if (end > channel.size()) {
+					throw new EOFException(file + " shrank below the transfer");
+				}
+				while (offset < end) {
+					long position = offset;
+					long slice = Math.min(end - position, TRANSFER_SLICE);
+					offset += ioScheduler(f).run(IoClass.STREAMING, slice,
+							() -> channel.transferTo(position, slice, target));
+				}
+			} finally {
+				channels.release(cached);
+				activeRequests.decrementAndGet();
+			}
+		} finally {
+			fileLocks.unlockShared(file);
+		}
+	}
+
+	/**
+	 * Stores a range of a file received on a bulk-data connection. The range
+	 * is received into a staging file first, at the pace of the sender and
+	 * holding neither the file lock nor a disk slot. It is then copied into
+	 * the file under the exclusive lock.
+	 */
+	void transferIn(Path file, long offset, long length,
+			ReadableByteChannel source) throws IOException {
+		File f = new File(file.getPath());
+		if (!isStored(f)) {
+			throw new FileNotFoundException(
+					file + " does not exist or is a directory");
+		}
+		File incoming = new File(INCOMING_DIR);
+		incoming.mkdirs();
+		java.nio.file.Path staging = Files.createTempFile(incoming.toPath(),
+				"transfer", ".part");
+		try (FileChannel staged = FileChannel.open(staging, READ, WRITE)) {
+			long received = 0;
+			while (received < length) {
+				long count = staged.transferFrom(source, received,
+						Math.min(length - received, TRANSFER_SLICE));
+				if (count == 0) {
+					throw new EOFException("transfer of " + file + " ended "
+							+ (length - received) + " bytes early");
+				}
+				received += count;
+			}
+			staged.position(0);
+			applyTransfer(file, f, offset, length, staged);
+		} finally {
+			Files.deleteIfExists(staging);
+		}
+		makeDurable(f);
+	}
+
+	/**
+	 * Copies a received range from its staging file into the file.
+	 */
+	private void applyTransfer(Path file, File f, long offset, long length,
+			FileChannel source) throws IOException {
+		fileLocks.lockExclusive(file);
+		try {
+			if (!isStored(f)) {
+				throw new FileNotFoundException(
+						file + " does not exist or is a directory");
+			}
+			materialize(f);
+			activeRequests.incrementAndGet();
+			accessStatistics.recordWrite(f);
+			ChannelCache.CachedChannel cached = channels.acquire(f);
+			try {
+				FileChannel channel = cached.channel();
+				long oldSize = channel.size();
+				long start = offset;
+				long end = offset + length;
+				try {
+					BulkTransfer.extend(channel, end);
+					while (offset < end) {
+						long position = offset;
+						long slice = Math.min(end - position, TRANSFER_SLICE);
+						long received = ioScheduler(f).run(IoClass.STREAMING,
+								slice, () -> channel.transferFrom(source,
+										position, slice));
+						if (received == 0) {
+							throw new EOFException("staged transfer of "
+									+ file + " ended " + (end - offset)
+									+ " bytes early");
+						}
+						offset += received;
+					}
+				} finally {
+					// Even a failed transfer has extended the file and
+					// overwritten part of the range, which readers must not
+					// see through stale cached blocks or checksums
+					long touched = Math.max(0,
+							Math.min(end, channel.size()) - start);
+					blockCache.invalidate(f, Math.min(start, oldSize), end);
+					checksums.update(f, channel, oldSize, start, touched,
+							null);
+					changed(f);
+				}
+			} finally {
+				channels.release(cached);
+				activeRequests.decrementAndGet();
+			}
+		} finally {
+			fileLocks.unlockExclusive(file);
+		}
+	}
+
+	@Override
+	public void write(Path file, long offset, byte[] data)
+			throws FileNotFoundException, IOException {
+		write(file, new long[] { offset }, new byte[][] { data });
+	}
+
+	@Override
+	public void writev(Path file, long[] offsets, byte[][] data)
+			throws FileNotFoundException, IOException {
+		if (offsets.length != data.length) {
+			throw new IllegalArgumentException(
+					"offsets and data differ in number");
+		}
+		write(file, offsets, data);
+	}
+
+	/**
+	 * Appends to a file. Appends to the same file run one at a time, so the
+	 * size of the file on this server, the primary replica, is the offset of
+	 * the next append. The bytes go to the other replicas first, at that
+	 * offset, without the file lock: a replica being written never waits for
+	 * a lock held across a call to another server. They are written here
+	 * only once every replica has them, so an append that fails leaves the
+	 * size unchanged, and a retry writes the same offset again, over the
+	 * bytes of the failed attempt on the replicas that got them.
+	 */
+	@Override
+	public long append(Path file, byte[] data, Storage[] replicas)
+			throws FileNotFoundException, IOException {
+		File f = new File(file.getPath());
+		beginAppend(f);
+		try {
+			long offset = appendPosition(file, f);
+			if (replicas != null) {
+				forwardAppend(file, offset, data, replicas);
+			}
+			write(file, new long[] { offset }, new byte[][] { data });
+			return offset;
+		} finally {
+			endAppend(f);
+		}
+	}
+
+	/** Waits until no other append to a file is in progress. */
+	private void beginAppend(File f) throws InterruptedIOException {
+		synchronized (appending) {
+			while (!appending.add(f.getPath())) {
+				try {
+					appending.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(
+							"interrupted while waiting to append to " + f);
+				}
+			}
+		}
+	}
+
+	private void endAppend(File f) {
+		synchronized (appending) {
+			appending.remove(f.getPath());
+			appending.notifyAll();
+		}
+	}
+
+	/** Returns the size of a file, at which the next append is written. */
+	private long appendPosition(Path file, File f) throws IOException {
+		fileLocks.lockShared(file);
+		try {
+			if (!isStored(f)) {
+				throw new FileNotFoundException(
+						file + " does not exist or is a directory");
+			}
+			SealedContent sealed = sealed(f);
+			return sealed != null ? sealed.length() : f.length();
+		} finally {
+			fileLocks.unlockShared(file);
+		}
+	}
+
+	/**
+	 * Writes ranges of a file, in file order unless they overlap.
+	 */
+	private void write(Path file, long[] offsets, byte[][] data)
+			throws FileNotFoundException, IOException {
+		File f = new File(file.getPath());
+		fileLocks.lockExclusive(file);
+		try {
+			if (!isStored(f)) {
+				throw new FileNotFoundException(
+						file + " does not exist or is a directory");
+			}
+			for (long position : offsets) {
+				if (position < 0) {
+					throw new IndexOutOfBoundsException("offset is negative");
+				}
+			}
+			long bytes = 0;
+			for (byte[] range : data) {
+				bytes += range.length;
+			}
+			ioScheduler(f).run(IoClass.CLIENT_WRITE, bytes, () -> {
+				writeStored(f, offsets, data);
+				return null;
+			});
+		} finally {
+			fileLocks.unlockExclusive(file);
+		}
+		// Waited for without the lock, so writers of the same file can share
+		// a force
+		makeDurable(f);
+	}
+
+	/**
+	 * Writes an append to this server, the primary replica, at the same
+	 * offset on the other replicas. Every replica is tried before a failure
+	 * is reported.
+	 */
+	private static void forwardAppend(Path file, long offset, byte[] data,
+			Storage[] replicas) throws IOException {
+		IOException failure = null;
+		for (Storage replica : replicas) {
+			try {
+				replica.write(file, offset, data);
+			} catch (RMIException | IOException e) {
+				if (failure == null) {
+					failure = new IOException("append to " + file + " at "
+							+ offset + " not written to every replica", e);
+				} else {
+					failure.addSuppressed(e);
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Writes ranges of a file. The caller holds the file lock for exclusive
+	 * access.
+	 */
+	private void writeStored(File f, long[] offsets, byte[][] data)
+			throws IOException {
+		materialize(f);
+		activeRequests.incrementAndGet();
+		accessStatistics.recordWrite(f);
+		ChannelCache.CachedChannel cached = channels.acquire(f);
+		try {
+			// Writes past the end extend the file, leaving a hole if
+			// offset is beyond it. Nothing is ever truncated, so mapped
+			// windows stay valid and see the new data.
+			long oldSize = cached.channel().size();
+			for (int i : writeOrder(offsets, data)) {
+				long offset = offsets[i];
+				writeFully(cached.channel(), ByteBuffer.wrap(data[i]),
+						offset);
+				blockCache.invalidate(f, Math.min(offset, oldSize),
+						offset + data[i].length);
+				checksums.update(f, cached.channel(), oldSize, offset,
+						data[i].length, data[i]);
+				oldSize = Math.max(oldSize, offset + data[i].length);
+			}
+			changed(f);
+		} finally {
+			channels.release(cached);
+			activeRequests.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the order in which to write ranges: by offset, unless two of
+	 * them overlap, in which case the order given decides which wins.
+	 */
+	private static Integer[] writeOrder(long[] offsets, byte[][] data) {
+		Integer[] order = byOffset(offsets);
+		for (int i = 1; i < order.length; i++) {
+			int previous = order[i - 1];
+			if (offsets[previous] + data[previous].length > offsets[order[i]]) {
+				for (int j = 0; j < order.length; j++) {
+					order[j] = j;
+				}
+				break;
+			}
+		}
+		return order;
+	}
+
+	/** Returns the indices of the given offsets, sorted by offset. */
+	private static Integer[] byOffset(long[] offsets) {
+		Integer[] order = new Integer[offsets.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Long.compare(offsets[a], offsets[b]));
+		return order;
+	}
+
+	/**
+	 * Waits until the given files are on disk, as the durability mode of the
+	 * server requires. The checksums of a file go with its data, so a file
+	 * that survives a crash is never checked against stale checksums.
+	 */
+	private void makeDurable(File... files) throws IOException {
+		if (durability == Durability.NONE) {
+			return;
+		}
+		List<File> durable = new ArrayList<File>();
+		for (File file : files) {
+			durable.add(file);
+			if (!file.isDirectory()) {
+				durable.add(ChunkChecksums.sidecar(file));
+			}
+		}
+		switch (durability) {
+		case SYNC:
+			for (File file : durable) {
+				GroupCommitter.force(channels, file);
+			}
+			break;
+		case GROUP_COMMIT:
+			groupCommitter.commit(durable.toArray(new File[durable.size()]));
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Writes the whole buffer to the channel, starting at the given file
+	 * position. A single positional write may write fewer bytes than given.
+	 */
+	private static void writeFully(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	@Override
+	public boolean create(Path file) {
+		java.nio.file.Path p = Paths.get(file.getPath());
+		File data;
+		fileLocks.lockExclusive(file);
+		try {
+			channels.invalidate(p.toFile());
+			if (packStore.contains(p.toFile())) {
+				return false;
+			}
+			data = disks.create(p.toFile());
+			checksums.delete(p.toFile());
+			inventory.added(p.toFile(), false);
+			changed(p.toFile());
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			e.printStackTrace();
+			return false;
+		} finally {
+			fileLocks.unlockExclusive(file);
+		}
+		// The new directory entry must survive a crash too. Waited for
+		// without the lock, as in write.
+		try {
+			if (data.equals(p.toFile())) {
+				makeDurable(p.toFile().getParentFile());
+			} else {
+				makeDurable(p.toFile().getParentFile(), data.getParentFile());
+			}
+			return true;
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	@Override
+	public boolean delete(Path path) {
+		fileLocks.lockExclusive(path);
+		try {
+			// REVISIT WHEN DIRECTORY IS NOT DELETABLE?
+			try {
+				channels.invalidate(new File(path.getPath()));
+				mappedRegions.invalidate(new File(path.getPath()));
+				blockCache.invalidate(new File(path.getPath()));
+				accessStatistics.forget(new File(path.getPath()));
+				checksums.delete(new File(path.getPath()));
+				chunkStore.remove(new File(path.getPath()));
+				compressedStore.remove(new File(path.getPath()));
+				removeCold(new File(path.getPath()));
+				unsealed.remove(path.getPath());
+				if (packStore.remove(new File(path.getPath()))) {
+					// A packed file has no local file of its own
+					Files.deleteIfExists(Paths.get(path.getPath()));
+				} else {
+					disks.delete(new File(path.getPath()));
+				}
+				inventory.removed(new File(path.getPath()));
+				return true;
+			} catch (IOException e) {
+				System.out.println(e.getMessage());
+				e.printStackTrace();
+				return false;
+			}
+		} finally {
+			fileLocks.unlockExclusive(path);
+		}
+	}
+
+	@Override
+	public boolean copy(Path file, Storage server)
+			throws RMIException, FileNotFoundException, IOException {
+		return copy(file, server, 0);
+	}
+
+	@Override
+	public boolean copy(Path file, Storage server, long bytesPerSecond)
+			throws RMIException, FileNotFoundException, IOException {
+		// Only one copy of a file runs at a time, as they share the partial
+		// file. The transfer itself runs without the file lock, so the old
+		// version stays readable until the new one is swapped in.
+		if (!copiesInProgress.add(file.getPath())) {
+			return false;
+		}
+		try {
+			// Paid for one chunk at a time, as the chunks are fetched
+			ThroughputLimiter limiter = new ThroughputLimiter(bytesPerSecond,
+					StreamingCopy.CHUNK_SIZE);
+			// A deduplicating server only needs the chunks it lacks
+			Recipe recipe = deduplicate ? server.recipe(file) : null;
+			if (recipe != null) {
+				copyChunks(file, server, recipe, limiter);
+				return true;
+			}
+
+			// Written on the disk the file will live on
+			File f = new File(file.getPath());
+			int disk = disks.copyDisk(file);
+			StreamingCopy copy = new StreamingCopy(file, server,
+					disks.dataFile(disk, f), disks.partialFile(disk, file),
+					copyFetchers, limiter);
+			copy.run();
+
+			fileLocks.lockExclusive(file);
+			try {
+				channels.invalidate(f);
+				mappedRegions.invalidate(f);
+				blockCache.invalidate(f);
+				copy.install();
+				disks.link(f, disk);
+				inventory.added(f, false);
+				// Recomputed from the verified copy on first use
+				checksums.delete(f);
+				chunkStore.remove(f);
+				compressedStore.remove(f);
+				removeCold(f);
+				packStore.remove(f);
+				changed(f);
+			} finally {
+				fileLocks.unlockExclusive(file);
+			}
+			// The data was forced during the transfer; the new entries of
+			// the file remain
+			File data = disks.dataFile(disk, f);
+			if (data.equals(f)) {
+				makeDurable(f.getParentFile());
+			} else {
+				makeDurable(f.getParentFile(), data.getParentFile());
+			}
+			return true;
+		} catch (Exception e) {
+			// The partial copy is kept, so a retry resumes where this stopped
+			System.out.println(e.getMessage());
+			e.printStackTrace();
+			return false;
+		} finally {
+			copiesInProgress.remove(file.getPath());
+		}
+	}
+
+	/**
+	 * Copies a deduplicated file by its recipe, fetching only the chunks that
+	 * this server does not hold yet.
+	 */
+	private void copyChunks(Path file, Storage server, Recipe recipe,
+			ThroughputLimiter limiter)
+			throws IOException, RMIException, InterruptedException {
+		chunkStore.fetch(recipe, server, limiter);
+		forceChunks(recipe);
+		fileLocks.lockExclusive(file);
+		try {
+			File f = new File(file.getPath());
+			channels.invalidate(f);
+			mappedRegions.invalidate(f);
+			blockCache.invalidate(f);
+			commit(f, recipe);
+			compressedStore.remove(f);
+			removeCold(f);
+			packStore.remove(f);
+			installPlaceholder(f);
+			inventory.added(f, false);
+			unsealed.remove(f.getPath());
+		} finally {
+			fileLocks.unlockExclusive(file);
+		}
+		makeDurable(new File(file.getPath()));
+	}
+
+	/**
+	 * Packs, deduplicates or compresses a file right away, instead of waiting
+	 * for it to go unchanged for {@link Sealer#SEAL_DELAY} milliseconds. This
+	 * is useful after a bulk import. Does nothing if neither small-file
+	 * packing, deduplication nor compression is turned on.
+	 *
+	 * @param file
+	 *            Path to the file.
+	 * @return <code>true</code> if the file was sealed, <code>false</code> if
+	 *         it is empty, already sealed, incompressible, or was written in
+	 *         the meantime.
+	 */
+	public boolean seal(Path file) throws IOException {
+		if (!sealing()) {
+			return false;
+		}
+		Long now = System.nanoTime();
+		unsealed.put(file.getPath(), now);
+		return seal(new File(file.getPath()), now);
+	}
+
+	/**
+	 * Moves the content of a file that has not changed since the given time
+	 * into a pack if it is small, and otherwise into the chunk store, or into
+	 * a compressed container if deduplication is off. Large files are read
+	 * without holding their lock, and the result is dropped if the file was
+	 * written in the meantime.
+	 *
+	 * @param f
+	 *            Local file.
+	 * @param changedAt
+	 *            Time of the last change to the file, as noted by the server.
+	 * @return <code>true</code> if the file was sealed.
+	 */
+	boolean seal(File f, Long changedAt) throws IOException {
+		if (packThreshold > 0 && f.isFile() && f.length() <= packThreshold
+				&& sealed(f) == null) {
+			return pack(f, changedAt);
+		}
+		if (!f.isFile() || f.length() == 0) {
+			// Gone, empty, or a placeholder already
+			unsealed.remove(f.getPath(), changedAt);
+			return false;
+		}
+		if (deduplicate) {
+			return deduplicate(f, changedAt);
+		}
+		if (compress) {
+			return compress(f, changedAt);
+		}
+		unsealed.remove(f.getPath(), changedAt);
+		return false;
+	}
+
+	private boolean pack(File f, Long changedAt) throws IOException {
+		Path file = new Path(f.getPath());
+		fileLocks.lockExclusive(file);
+		try {
+			// Small enough to read under the lock
+			if (!unsealed.remove(f.getPath(), changedAt) || !f.isFile()
+					|| f.length() > packThreshold) {
+				return false;
+			}
+			channels.invalidate(f);
+			mappedRegions.invalidate(f);
+			accessStatistics.forget(f);
+			// The record is forced to disk before the file goes, so the data
+			// is never lost
+			ioScheduler(f).run(IoClass.MAINTENANCE, 2 * f.length(), () -> {
+				packStore.add(f, Files.readAllBytes(f.toPath()));
+				return null;
+			});
+			checksums.delete(f);
+			disks.delete(f);
+		} finally {
+			fileLocks.unlockExclusive(file);
+		}
+		// The deletion, waited for without the lock as in write
+		makeDurable(f.getParentFile());
+		return true;
+	}
+
+	private boolean deduplicate(File f, Long changedAt) throws IOException {
+		Path file = new Path(f.getPath());
+		Recipe recipe;
+		try {
+			recipe = ioScheduler(f).run(IoClass.MAINTENANCE, f.length(), () -> {
+				try (InputStream in = new BufferedInputStream(
+						new FileInputStream(f))) {
+					return chunkStore.chunk(in);
+				}
+			});
+		} catch (FileNotFoundException e) {
+			unsealed.remove(f.getPath(), changedAt);
+			return false;
+		}
+		// Forced before the lock is taken, as it may take a while
+		forceChunks(recipe);
+
+		fileLocks.lockExclusive(file);
+		try {
+			if (!unsealed.remove(f.getPath(), changedAt) || !f.isFile()
+					|| f.length() != recipe.getLength()) {
+				chunkStore.release(recipe);
+				return false;
+			}
+			channels.invalidate(f);
+			mappedRegions.invalidate(f);
+			// The chunks and the recipe are on disk before the data goes, so
+			// a crash loses neither
+			commit(f, recipe);
+			installPlaceholder(f);
+		} finally {
+			fileLocks.unlockExclusive(file);
+		}
+		// The truncation, waited for without the lock as in write
+		makeDurable(f);
+		return true;
+	}
+
+	private boolean compress(File f, Long changedAt) throws IOException {
+		Path file = new Path(f.getPath());
+		File staged;
+		try {
+			Codec codec = CompressedStore.choose(f, fastCompression);
+			if (codec == Codec.NONE) {
+				// Incompressible; stored as is until it changes
+				unsealed.remove(f.getPath(), changedAt);
+				return false;
+			}
+			staged = ioScheduler(f).run(IoClass.MAINTENANCE, f.length(),
+					() -> compressedStore.build(f, codec));
+		} catch (FileNotFoundException | NoSuchFileException e) {
+			unsealed.remove(f.getPath(), changedAt);
+			return false;
+		}
+
+		fileLocks.lockExclusive(file);
+		try {
+			if (!unsealed.remove(f.getPath(), changedAt) || !f.isFile()) {
+				staged.delete();
+				return false;
+			}
+			channels.invalidate(f);
+			mappedRegions.invalidate(f);
+			// The container is on disk before the data goes, so the data is
+			// never lost
+			compressedStore.commit(f, staged);
+			installPlaceholder(f);
+		} finally {
+			fileLocks.unlockExclusive(file);
+		}
+		makeDurable(f);
+		return true;
+	}
+
+	/** Commits a recipe, or drops its references if that fails. */
+	private void commit(File f, Recipe recipe) throws IOException {
+		try {
+			chunkStore.commit(f, recipe);
+		} catch (IOException | RuntimeException e) {
+			chunkStore.release(recipe);
+			throw e;
+		}
+	}
+
+	/**
+	 * Forces the chunks of a recipe to disk, or drops its references if that
+	 * fails.
+	 */
+	private void forceChunks(Recipe recipe) throws IOException {
+		try {
+			chunkStore.force(recipe);
+		} catch (IOException | RuntimeException e) {
+			chunkStore.release(recipe);
+			throw e;
+		}
+	}
+
+	/** Leaves an empty file in place of a sealed file. */
+	private void installPlaceholder(File f) throws IOException {
+		f.getParentFile().mkdirs();
+		try (FileChannel placeholder = FileChannel.open(f.toPath(), CREATE,
+				WRITE)) {
+			placeholder.truncate(0);
+		}
+		checksums.delete(f);
+	}
+
+	/**
+	 * Writes a sealed file back in full before it is modified in place. The
+	 * caller holds the file lock for exclusive access.
+	 */
+	private void materialize(File f) throws IOException {
+		materialize(f, new ThroughputLimiter(0));
+	}
+
+	/**
+	 * Writes a file back as <code>materialize(f)</code> does, paying the
+	 * limiter as a cold file is written back.
+	 */
+	private void materialize(File f, ThroughputLimiter bandwidth)
+			throws IOException {
+		SealedContent packed = packStore.content(f);
+		Recipe recipe = packed == null ? chunkStore.recipe(f) : null;
+		SealedContent compressed = packed == null && recipe == null
+				? compressedStore.content(f) : null;
+		SealedContent cold = packed == null && recipe == null
+				&& compressed == null ? coldContent(f) : null;
+		if (packed == null && recipe == null && compressed == null
+				&& cold == null) {
+			return;
+		}
+		channels.invalidate(f);
+		mappedRegions.invalidate(f);
+		checksums.delete(f);
+		// Written back to the data directory, where the sealed content is
+		File target = disks.target(f);
+		if (packed != null) {
+			packStore.materialize(f, packed);
+		} else if (recipe != null) {
+			chunkStore.materialize(f, recipe);
+		} else if (compressed != null) {
+			compressedStore.materialize(f, compressed);
+		} else {
+			coldStore.materialize(f, cold, bandwidth);
+		}
+		disks.replaced(f, target);
+	}
+
+	/**
+	 * Returns the content of a packed, deduplicated, compressed or cold file,
+	 * or <code>null</code> if the file is stored as is on the fast tier.
+	 */
+	private SealedContent sealed(File f) throws IOException {
+		SealedContent sealed = packStore.content(f);
+		if (sealed == null) {
+			sealed = chunkStore.content(f);
+		}
+		if (sealed == null) {
+			sealed = compressedStore.content(f);
+		}
+		return sealed != null ? sealed : coldContent(f);
+	}
+
+	/**
+	 * Returns the content of a file kept on the cold tier, or
+	 * <code>null</code> if the file is not cold.
+	 */
+	private SealedContent coldContent(File f) throws IOException {
+		return coldStore == null ? null : coldStore.content(f);
+	}
+
+	/** Deletes the cold-tier copy of a file, if it has one. */
+	private void removeCold(File f) throws IOException {
+		if (coldStore != null) {
+			coldStore.remove(f);
+		}
+	}
+
+	/**
+	 * Moves a file to the cold tier right away, however recently it was
+	 * used. Does nothing if the server has no cold tier.
+	 *
+	 * @param file
+	 *            Path to the file.
+	 * @return <code>true</code> if the file was moved, <code>false</code> if
+	 *         it is empty, sealed, already cold, or was written in the
+	 *         meantime.
+	 */
+	public boolean demote(Path file) throws IOException {
+		return demote(new File(file.getPath()), Long.MAX_VALUE,
+				new ThroughputLimiter(0));
+	}
+
+	/**
+	 * Brings a file on the cold tier back to the fast tier.
+	 *
+	 * @param file
+	 *            Path to the file.
+	 * @return <code>true</code> if the file was moved, <code>false</code> if
+	 *         it was not on the cold tier.
+	 */
+	public boolean promote(Path file) throws IOException {
+		return promote(new File(file.getPath()), new ThroughputLimiter(0));
+	}
+
+	/**
+	 * Moves a file not used since the given time to the cold tier, compressed
+	 * if the server compresses cold files and the file compresses well. The
+	 * file is read without its lock, and the copy is dropped if the file was
+	 * used in the meantime.
+	 *
+	 * @param f
+	 *            Local file.
+	 * @param coldBefore
+	 *            Time in milliseconds since the epoch; the file is left where
+	 *            it is if it was used since.
+	 * @param bandwidth
+	 *            Limiter paid block by block as the file is read.
+	 * @return <code>true</code> if the file was moved.
+	 */
+	boolean demote(File f, long coldBefore, ThroughputLimiter bandwidth)
+			throws IOException {
+		if (coldStore == null || !f.isFile() || f.length() == 0
+				|| isMetadata(f.toPath()) || sealed(f) != null) {
+			return false;
+		}
+		Path file = new Path(f.getPath());
+		long writes = accessStatistics.writes(f);
+		FileTime modified;
+		File staged;
+		try {
+			modified = Files.getLastModifiedTime(f.toPath());
+			if (lastUse(f) >= coldBefore) {
+				return false;
+			}
+			Codec codec = compressColdFiles
+					? CompressedStore.choose(f, fastCompression) : Codec.NONE;
+			staged = ioScheduler(f).run(IoClass.MAINTENANCE, f.length(),
+					() -> coldStore.build(f, codec, bandwidth));
+		} catch (FileNotFoundException | NoSuchFileException e) {
+			return false;
+		}
+
+		fileLocks.lockExclusive(file);
+		try {
+			if (!f.isFile() || accessStatistics.writes(f) != writes
+					|| !modified.equals(Files.getLastModifiedTime(f.toPath()))
+					|| accessStatistics.lastAccess(f) >= coldBefore
+					|| sealed(f) != null) {
+				staged.delete();
+				return false;
+			}
+			channels.invalidate(f);
+			mappedRegions.invalidate(f);
+			// The cold copy is on disk before the data goes, so the data is
+			// never lost
+			coldStore.commit(f, staged);
+			installPlaceholder(f);
+			unsealed.remove(f.getPath());
+			// Reads from now on decide whether the file goes back
+			accessStatistics.forget(f);
+		} finally {
+			fileLocks.unlockExclusive(file);
+		}
+		makeDurable(f);
+		return true;
+	}
+
+	/**
+	 * Brings a cold file back to the fast tier, paying the limiter piece by
+	 * piece as it is written back. The file is written back without its
+	 * lock, and the copy only swapped in if the file is still cold and was
+	 * not written in the meantime, so readers and writers are held up for
+	 * the swap alone.
+	 */
+	boolean promote(File f, ThroughputLimiter bandwidth) throws IOException {
+		if (coldStore == null) {
+			return false;
+		}
+		Path file = new Path(f.getPath());
+		SealedContent cold = coldStore.content(f);
+		if (cold == null) {
+			return false;
+		}
+		long writes = accessStatistics.writes(f);
+		File staged;
+		try {
+			staged = ioScheduler(f).run(IoClass.MAINTENANCE, cold.length(),
+					() -> coldStore.unpack(f, cold, bandwidth));
+		} catch (IOException e) {
+			if (coldStore.content(f) == null) {
+				// Written back by a writer, which took the container away
+				return false;
+			}
+			throw e;
+		}
+
+		fileLocks.lockExclusive(file);
+		try {
+			if (coldStore.content(f) == null
+					|| accessStatistics.writes(f) != writes) {
+				staged.delete();
+				return false;
+			}
+			channels.invalidate(f);
+			mappedRegions.invalidate(f);
+			checksums.delete(f);
+			// Written back to the data directory, where the cold file is
+			File target = disks.target(f);
+			coldStore.install(f, staged);
+			disks.replaced(f, target);
+			accessStatistics.forget(f);
+			return true;
+		} finally {
+			fileLocks.unlockExclusive(file);
+		}
+	}
+
+	/**
+	 * Returns the time of the last use of a file, in milliseconds since the
+	 * epoch: its last recorded access, or its last modification if later.
+	 * Accesses are recorded in memory only, so a file is taken to have been
+	 * used when the server started; the access time of the local file is no
+	 * help, since the scrubber reads every file.
+	 */
+	long lastUse(File f) {
+		return Math.max(
+				Math.max(accessStatistics.lastAccess(f), f.lastModified()),
+				accessStatistics.since());
+	}
+
+	/**
+	 * Checks whether a cold file has been read often enough since it was
+	 * demoted, and recently enough, to be worth bringing back.
+	 */
+	boolean isReadOften(File f) {
+		return accessStatistics.reads(f) >= HOT_FILE_READS
+				&& accessStatistics.lastAccess(f) >= System.currentTimeMillis()
+						- coldAge;
+	}
+
+	/** Returns the paths of the files on the cold tier, in path order. */
+	public List<String> coldFiles() throws IOException {
+		if (coldStore == null) {
+			return new ArrayList<String>();
+		}
+		List<String> files = new ArrayList<String>(coldStore.paths());
+		Collections.sort(files);
+		return files;
+	}
+
+	/**
+	 * Checks that a disk other than the data directory still works, and
+	 * gives it up otherwise.
+	 *
+	 * @return The files on the disk, which are lost, if it has just been
+	 *         given up, and otherwise <code>null</code>.
+	 */
+	Path[] checkDisk(int disk) throws IOException {
+		if (disk == 0 || disks.isFailed(disk) || disks.probe(disk)) {
+			return null;
+		}
+		System.out.println("Disk " + disks.directory(disk) + " failed");
+		disks.fail(disk);
+		List<Path> lost = new ArrayList<Path>();
+		for (String file : inventoriedFiles()) {
+			if (disks.diskOf(new File(file)) == disk) {
+				lost.add(new Path(file));
+			}
+		}
+		return lost.toArray(new Path[lost.size()]);
+	}
+
+	/** Returns the files in the inventory, in path order. */
+	List<String> inventoriedFiles() throws IOException {
+		List<String> files = new ArrayList<String>();
+		for (Map.Entry<String, Boolean> entry : inventory.load()
+				.entrySet()) {
+			if (!entry.getValue()) {
+				files.add(entry.getKey());
+			}
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+	/**
+	 * Checks whether a file is held by this server, either as a local file or
+	 * packed.
+	 */
+	private boolean isStored(File f) throws IOException {
+		return f.isFile() || packStore.contains(f);
+	}
+
+	/** Returns the paths of the packed files, which have no local file. */
+	public Collection<String> packedFiles() throws IOException {
+		return packStore.paths();
+	}
+
+	/**
+	 * Copies the live records out of packs that are mostly garbage, and
+	 * deletes those packs. The sealer does this between its scans.
+	 */
+	public void compactPacks() throws IOException {
+		if (packThreshold > 0) {
+			packStore.compact(fileLocks);
+			// The moved records are forced; the deleted packs remain
+			makeDurable(new File(PackStore.PACK_DIR));
+		}
+	}
+
+	/** Checks whether files are sealed once they go quiet. */
+	private boolean sealing() {
+		return deduplicate || compress || packThreshold > 0;
+	}
+
+	/** Notes that a file changed, for the sealer. */
+	private void changed(File f) {
+		if (sealing() && !isMetadata(f.toPath())) {
+			unsealed.put(f.getPath(), System.nanoTime());
+		}
+	}
+
+	/**
+	 * Returns the file under which the given area of the metadata directory
+	 * keeps its data for a file.
+	 */
+	static File metadataFile(String area, Path file) {
+		return new File(METADATA_DIR + "/" + area + file.getPath());
+	}
+
+	/** Checks whether a local path lies in the metadata directory. */
+	static boolean isMetadata(java.nio.file.Path path) {
+		return path.startsWith(METADATA_DIR);
+	}
+
+	@Override
+	public long blockSize(long block) throws FileNotFoundException {
+		return size(Blocks.path(block));
+	}
+
+	@Override
+	public byte[] readBlock(long block, int offset, int length)
+			throws IOException {
+		return read(Blocks.path(block), offset, length);
+	}
+
+	@Override
+	public void writeBlock(long block, int offset, byte[] data)
+			throws IOException {
+		if (offset < 0 || (long) offset + data.length > Blocks.BLOCK_SIZE) {
+			throw new IndexOutOfBoundsException(
+					"write extends past the end of block " + block);
+		}
+		write(Blocks.path(block), offset, data);
+	}
+
+	@Override
+	public boolean createBlock(long block) {
+		new File(Blocks.BLOCK_DIR).mkdirs();
+		return create(Blocks.path(block));
+	}
+
+	@Override
+	public boolean deleteBlock(long block) {
+		return delete(Blocks.path(block));
+	}
+
+	private void initializeStubs(String hostname) {
+		// Command stub
+		InetSocketAddress cmdAddr = new InetSocketAddress(hostname,
+				StorageStubs.COMMAND_PORT);
+		cmdSkeleton = new Skeleton<Command>(Command.class, this, cmdAddr);
+		try {
+			cmdSkeleton.start();
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			e.printStackTrace();
+		}
+		command_stub = StorageStubs.command(hostname);
+
+		// Storage stub
+		InetSocketAddress strgAddr = new InetSocketAddress(hostname,
+				StorageStubs.STORAGE_PORT);
+		strgSkeleton = new Skeleton<Storage>(Storage.class, this, strgAddr);
+		try {
+			strgSkeleton.start();
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			e.printStackTrace();
+		}
+		client_stub = StorageStubs.storage(hostname);
+
+		// Bulk-data port. Without it, clients fall back to RMI reads and
+		// writes.
+		try {
+			bulkDataServer = new BulkDataServer(this, hostname, bulk_port);
+			bulkDataServer.start();
+		} catch (IOException e) {
+			System.out.println("Bulk-data port unavailable : " + e.getMessage());
+			bulkDataServer = null;
+		}
+	}
+
+	/**
+	 * Deletes the directories that hold nothing, as far as the inventory
+	 * knows. A directory that does hold something is not deleted anyway.
+	 */
+	private void pruneLocalStorage() {
+		Map<String, Boolean> entries;
+		try {
+			entries = inventory.load();
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			return;
+		}
+		Set<String> parents = new HashSet<String>();
+		for (String entry : entries.keySet()) {
+			String parent = new File(entry).getParent();
+			if (parent != null) {
+				parents.add(parent);
+			}
+		}
+		for (Map.Entry<String, Boolean> entry : entries.entrySet()) {
+			File directory = new File(entry.getKey());
+			if (entry.getValue() && !parents.contains(entry.getKey())
+					&& !directory.toPath().equals(Paths.get("/data"))
+					&& directory.delete()) {
+				try {
+					inventory.removed(directory);
+				} catch (IOException e) {
+					System.err.println(e.getMessage());
+				}
+			}
+		}
+	}
+
+	public int getClient_port() {
+		return client_port;
+	}
+
+	public void setClient_port(int client_port) {
+		this.client_port = client_port;
+	}
+
+	public int getCommand_port() {
+		return command_port;
+	}
+
+	public void setCommand_port(int command_port) {
+		this.command_port = command_port;
+	}
+
+	public int getBulk_port() {
+		return bulk_port;
+	}
+
+	/**
+	 * Sets the port of the bulk-data server. This must be called before the
+	 * server is started.
+	 */
+	public void setBulk_port(int bulk_port) {
+		this.bulk_port = bulk_port;
+	}
+
+	/**
+	 * Sets the address-space budget for memory-mapped reads of hot files.
+	 * Zero disables memory-mapped reads.
+	 */
+	public void setMappedReadBudget(long bytes) {
+		MappedRegionCache old = mappedRegions;
+		mappedRegions = new MappedRegionCache(bytes);
+		old.clear();
+	}
+
+	public long getMappedReadBudget() {
+		return mappedRegions.getBudget();
+	}
+
+	/**
+	 * Sets the amount of direct memory used to cache blocks of the files read
+	 * through this server, outside the Java heap. Zero, the default, turns
+	 * the cache off. This must be called before the server is started.
+	 */
+	public void setBlockCacheCapacity(long bytes) {
+		BlockCache old = blockCache;
+		blockCache = new BlockCache(bytes);
+		old.clear();
+	}
+
+	/**
+	 * Sets when writes are acknowledged: as soon as they are handed to the
+	 * operating system, the default, or only once they are on disk.
+	 */
+	public synchronized void setDurability(Durability durability) {
+		if (groupCommitter != null) {
+			groupCommitter.stopGracefully();
+			groupCommitter = null;
+		}
+		if (durability == Durability.GROUP_COMMIT) {
+			groupCommitter = new GroupCommitter(channels);
+			groupCommitter.start();
+		}
+		this.durability = durability;
+	}
+
+	public Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * Returns the group committer, with its batching figures, or
+	 * <code>null</code> unless writes are group committed.
+	 */
+	public GroupCommitter getGroupCommitter() {
+		return groupCommitter;
+	}
+
+	/**
+	 * Sets the number of disk operations the server runs at once, shared
+	 * among client reads and writes, copies, scrubbing and sealing by
+	 * weighted fair queueing, or zero, the default, to run every operation
+	 * as soon as it comes. See {@link IoScheduler}. This must be called
+	 * before the server is started.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If <code>slots</code> is negative or one.
+	 */
+	public void setIoSlots(int slots) {
+		ioSlots = slots;
+		ioSchedulers = newIoSchedulers(disks.count(), slots);
+	}
+
+	/**
+	 * Returns the I/O scheduler of the data directory, with its per-class
+	 * queue depths and latencies.
+	 */
+	public IoScheduler getIoScheduler() {
+		return ioSchedulers[0];
+	}
+
+	/**
+	 * Returns the I/O scheduler of a disk.
+	 *
+	 * @param disk
+	 *            Index of the disk: zero for the data directory, and one
+	 *            more than its index in the list given to
+	 *            <code>setDisks</code> for the others.
+	 */
+	public IoScheduler getIoScheduler(int disk) {
+		return ioSchedulers[disk];
+	}
+
+	/** Returns the I/O scheduler of the disk holding a file. */
+	private IoScheduler ioScheduler(File f) {
+		return ioSchedulers[disks.diskOf(f)];
+	}
+
+	private static IoScheduler[] newIoSchedulers(int count, int slots) {
+		IoScheduler[] schedulers = new IoScheduler[count];
+		for (int i = 0; i < count; i++) {
+			schedulers[i] = new IoScheduler(slots);
+		}
+		return schedulers;
+	}
+
+	/**
+	 * Spreads the files of the server over more disks than the one of the
+	 * data directory. New files, and files copied from other servers, are
+	 * placed on a disk chosen by the given policy; their entry in the data
+	 * directory is a link to their data. Each disk has an I/O scheduler of
+	 * its own, with the number of slots set by <code>setIoSlots</code>, so
+	 * the disks are driven in parallel. A disk that stops working is left
+	 * out of placement, and the files on it are reported to the naming
+	 * server as lost. This must be called before the server is started.
+	 *
+	 * @param directories
+	 *            Directories of the further disks, each on a device of its
+	 *            own.
+	 * @param placement
+	 *            How the disk of a new file is chosen.
+	 */
+	public void setDisks(File[] directories, Placement placement) {
+		for (File directory : directories) {
+			directory.mkdirs();
+		}
+		disks = new Disks(directories, placement);
+		ioSchedulers = newIoSchedulers(disks.count(), ioSlots);
+	}
+
+	/** Returns the number of disks, the data directory included. */
+	public int getDiskCount() {
+		return disks.count();
+	}
+
+	/** Checks whether a disk has been found failed. */
+	public boolean isDiskFailed(int disk) {
+		return disks.isFailed(disk);
+	}
+
+	/** Returns the block cache, with its hit, miss and eviction counters. */
+	public BlockCache getBlockCache() {
+		return blockCache;
+	}
+
+	/**
+	 * Sets the number of lock stripes used to order concurrent operations on
+	 * files. This must be called before the server is started.
+	 */
+	public void setLockStripes(int stripes) {
+		fileLocks = new StripedLocks(stripes);
+	}
+
+	/**
+	 * Turns checking of chunk checksums on plain reads on or off. Checksums
+	 * are maintained on writes either way.
+	 */
+	public void setChecksumVerification(boolean verify) {
+		verifyChecksums = verify;
+	}
+
+	/**
+	 * Sets the bandwidth the background scrubber may use to read stored data,
+	 * in bytes per second. Zero turns scrubbing off. This must be called
+	 * before the server is started.
+	 */
+	public void setScrubBandwidth(long bytesPerSecond) {
+		scrubBandwidth = bytesPerSecond;
+	}
+
+	/**
+	 * Turns deduplication of stored files on or off. Files already
+	 * deduplicated stay readable either way. This must be called before the
+	 * server is started.
+	 */
+	public void setDeduplication(boolean deduplicate) {
+		this.deduplicate = deduplicate;
+	}
+
+	/**
+	 * Turns compression of stored files on or off. Files are compressed once
+	 * they have not changed for a while, with a codec chosen per file from a
+	 * sample of its data; incompressible files are left alone. Deduplication,
+	 * if also turned on, takes precedence. Files already compressed stay
+	 * readable either way. This must be called before the server is started.
+	 */
+	public void setCompression(boolean compress) {
+		this.compress = compress;
+	}
+
+	/**
+	 * Restricts compression, of stored and cold files alike, to the LZ codec.
+	 * Text compressed with DEFLATE takes markedly less space, but reads from
+	 * it are bound by decompression at a few hundred MB/s per core, about a
+	 * third of the speed of LZ; servers whose reads matter more than their
+	 * space turn this on. Files already compressed keep their codec. This
+	 * must be called before the server is started.
+	 */
+	public void setFastCompression(boolean fast) {
+		this.fastCompression = fast;
+	}
+
+	/**
+	 * Turns packing of small files on or off. Files of at most the given
+	 * number of bytes are moved into large pack files once they have not
+	 * changed for a while, so they no longer take an inode and a directory
+	 * entry each; zero turns packing off. Packing takes precedence over
+	 * deduplication and compression. Files already packed stay readable
+	 * either way. This must be called before the server is started.
+	 */
+	public void setSmallFilePacking(long thresholdBytes) {
+		this.packThreshold = thresholdBytes;
+	}
+
+	/**
+	 * Gives the server a cold tier: a directory on slower, cheaper storage to
+	 * which files move once they have not been read or written for the given
+	 * time, and from which they move back once read often. Cold files keep an
+	 * empty placeholder in the data directory and stay readable through
+	 * <code>read</code>; a write brings a file back first. This must be
+	 * called before the server is started.
+	 *
+	 * @param directory
+	 *            Directory of the cold tier, or <code>null</code> for none.
+	 * @param coldAge
+	 *            Time a file must go unused before it is moved, in
+	 *            milliseconds.
+	 * @param compress
+	 *            Whether cold files are compressed, with a codec chosen per
+	 *            file; incompressible files are moved as they are.
+	 * @param bytesPerSecond
+	 *            Bandwidth the migration between the tiers may use; zero
+	 *            leaves it unlimited.
+	 */
+	public void setColdTier(File directory, long coldAge, boolean compress,
+			long bytesPerSecond) {
+		coldTier = directory == null ? null : directory.getAbsoluteFile();
+		coldStore = coldTier == null ? null
+				: new CompressedStore(channels, checksums,
+						coldTier.getPath() + "/files",
+						coldTier.getPath() + "/staging");
+		this.coldAge = coldAge;
+		this.compressColdFiles = compress;
+		this.migrationBandwidth = bytesPerSecond;
+	}
+
+	/** Returns the directory of the cold tier, or <code>null</code>. */
+	public File getColdTier() {
+		return coldTier;
+	}
+
+	/**
+	 * Returns the time a file must go unused before it is moved to the cold
+	 * tier, in milliseconds.
+	 */
+	public long getColdAge() {
+		return coldAge;
+	}
+
+	/** Returns the per-file lock table, with its contention counters. */
+	public StripedLocks getFileLocks() {
+		return fileLocks;
 	}
 
 	public File getRoot() {
@@ -14,6 +14,8 @@ public abstract class StorageStubs {
 	public static final int COMMAND_PORT = 5000;
 	/** Default storage server storage service port. */
 	public static final int STORAGE_PORT = 5001;
+	/** Default storage server bulk-data port. */
+	public static final int BULK_PORT = 5002;
 
 	/**
 	 * Returns a stub for a storage server command interface.
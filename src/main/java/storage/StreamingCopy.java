@@ -0,0 +1,334 @@
+package storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+import common.Path;
+import common.ThroughputLimiter;
+import rmi.RMIException;
+
+/**
+ * Copies one file from another storage server in fixed-size chunks.
+ *
+ * <p>
+ * Up to <code>MAX_IN_FLIGHT</code> chunks are in transfer at any time, so the
+ * link stays busy while earlier chunks are written, and memory use does not
+ * depend on the file size. Chunks move over the source's bulk-data port
+ * straight into the local file where the source has one, and through RMI
+ * reads otherwise. Either way the source hands out the stored checksums of
+ * a chunk with the chunk itself, and every chunk is checked against them on
+ * arrival. Data is first written to a partial file in the metadata
+ * directory, next to a progress file recording the end of the verified
+ * prefix, which is only advanced once the prefix is on disk. A copy that
+ * fails resumes from that offset. A copy retried after a restart resumes
+ * from it as well, once the recorded prefix has been checked against the
+ * source, which may have changed in between. Since the source may also
+ * change while chunks are in transfer, the finished copy is compared with
+ * the whole source file before it can be installed.
+ */
+class StreamingCopy {
+
+	/** Size of one chunk read from the source server. */
+	static final int CHUNK_SIZE = 1024 * 1024;
+	/** Maximum number of chunk reads outstanding at once. */
+	static final int MAX_IN_FLIGHT = 4;
+	/** Number of times a failed transfer is resumed before giving up. */
+	static final int MAX_ATTEMPTS = 5;
+	/** Number of chunks verified between two progress records. */
+	static final int PROGRESS_CHUNKS = 8;
+
+	private final Path file;
+	private final Storage source;
+	private final File target;
+	private final File partial;
+	private final File progress;
+	private final ExecutorService fetchers;
+	private final ThroughputLimiter limiter;
+
+	/**
+	 * Prepares a copy.
+	 *
+	 * @param file
+	 *            Path of the file on the source server.
+	 * @param source
+	 *            Storage server to copy from.
+	 * @param target
+	 *            Local file to create or replace.
+	 * @param partial
+	 *            Local file receiving the data until it is verified. The
+	 *            progress file is kept next to it.
+	 * @param fetchers
+	 *            Threads used to issue chunk reads.
+	 * @param limiter
+	 *            Rate limit, paid for chunk by chunk before each read.
+	 */
+	StreamingCopy(Path file, Storage source, File target, File partial,
+			ExecutorService fetchers, ThroughputLimiter limiter) {
+		this.file = file;
+		this.source = source;
+		this.target = target;
+		this.partial = partial;
+		this.progress = new File(partial.getPath() + ".progress");
+		this.fetchers = fetchers;
+		this.limiter = limiter;
+	}
+
+	/**
+	 * Transfers and verifies the whole file. The copy is left in the partial
+	 * file until <code>install</code> is called.
+	 *
+	 * @throws FileNotFoundException
+	 *             If the file does not exist on the source server.
+	 * @throws IOException
+	 *             If the copy still fails after all attempts, or the copied
+	 *             file does not match the source.
+	 * @throws RMIException
+	 *             If the source server cannot be reached.
+	 */
+	void run() throws IOException, RMIException, InterruptedException {
+		long size = source.size(file);
+		partial.getParentFile().mkdirs();
+
+		try (FileChannel channel = FileChannel.open(partial.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			long verified = readProgress(channel);
+			// Left by an earlier copy, when the source may have differed
+			long resumed = Math.min(verified, size);
+			if (resumed > 0 && checksum(channel, 0, resumed) != source
+					.checksum(file, 0, resumed)) {
+				progress.delete();
+				channel.truncate(0);
+				verified = 0;
+			}
+			int attempt = 0;
+			while (verified < size) {
+				try {
+					verified = transfer(channel, verified, size);
+				} catch (IOException | RMIException e) {
+					if (++attempt >= MAX_ATTEMPTS) {
+						throw new IOException("copy of " + file
+								+ " failed after " + attempt + " attempts", e);
+					}
+					verified = readProgress(channel);
+					System.out.println("Resuming copy of " + file + " at "
+							+ verified + " : " + e.getMessage());
+				}
+			}
+			// The source may have been longer when an earlier attempt ran
+			channel.truncate(size);
+			channel.force(true);
+
+			// Each chunk matched the source when it was read, but a write
+			// to a chunk already copied would not have been noticed
+			if (source.size(file) != size || checksum(channel, 0,
+					size) != source.checksum(file, 0, size)) {
+				progress.delete();
+				channel.truncate(0);
+				throw new IOException("copy of " + file
+						+ " does not match the source, which changed while "
+						+ "it was copied");
+			}
+		}
+	}
+
+	/**
+	 * Moves the verified copy into place, replacing any older version of the
+	 * file. The caller must hold the file's exclusive lock.
+	 */
+	void install() throws IOException {
+		target.getParentFile().mkdirs();
+		Files.move(partial.toPath(), target.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		progress.delete();
+	}
+
+	/** Removes the partial file and its progress record. */
+	void discard() {
+		partial.delete();
+		progress.delete();
+	}
+
+	/**
+	 * Transfers chunks starting at the verified offset, keeping several reads
+	 * in flight. Progress is recorded every <code>PROGRESS_CHUNKS</code>
+	 * chunks and at the end, each time after forcing the data it covers.
+	 *
+	 * @return The end of the verified prefix, which is <code>size</code> on
+	 *         success.
+	 */
+	private long transfer(FileChannel channel, long verified, long size)
+			throws IOException, RMIException, InterruptedException {
+		Deque<Future<Void>> inFlight = new ArrayDeque<Future<Void>>();
+		long next = verified;
+		int unrecorded = 0;
+		try {
+			while (verified < size) {
+				while (inFlight.size() < MAX_IN_FLIGHT && next < size) {
+					int length = (int) Math.min(CHUNK_SIZE, size - next);
+					inFlight.addLast(fetchers.submit(new Fetch(channel, next,
+							length)));
+					next += length;
+				}
+
+				// Chunks may complete out of order, but the verified prefix
+				// only grows in order
+				await(inFlight.removeFirst());
+				verified += Math.min(CHUNK_SIZE, size - verified);
+				if (++unrecorded == PROGRESS_CHUNKS || verified == size) {
+					// The record must never cover data that is not on disk
+					channel.force(false);
+					writeProgress(verified);
+					unrecorded = 0;
+				}
+			}
+			return verified;
+		} finally {
+			for (Future<Void> pending : inFlight) {
+				pending.cancel(true);
+			}
+		}
+	}
+
+	private void await(Future<Void> chunk)
+			throws IOException, RMIException, InterruptedException {
+		try {
+			chunk.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RMIException) {
+				throw (RMIException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Returns the verified offset recorded by an earlier attempt, or zero if
+	 * there is no usable record.
+	 */
+	private long readProgress(FileChannel channel) throws IOException {
+		if (!progress.exists()) {
+			channel.truncate(0);
+			return 0;
+		}
+		try {
+			long verified = Long.parseLong(new String(
+					Files.readAllBytes(progress.toPath()),
+					StandardCharsets.US_ASCII).trim());
+			return Math.max(0, Math.min(verified, channel.size()));
+		} catch (NumberFormatException e) {
+			channel.truncate(0);
+			return 0;
+		}
+	}
+
+	private void writeProgress(long verified) throws IOException {
+		Files.write(progress.toPath(), Long.toString(verified)
+				.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/** Computes the checksum of a range of a local file. */
+	static long checksum(FileChannel channel, long offset, long length)
+			throws IOException {
+		CRC32C crc = new CRC32C();
+		ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+		long position = offset;
+		long end = offset + length;
+		while (position < end) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), end - position));
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("unexpected end of file at " + position);
+			}
+			buffer.flip();
+			crc.update(buffer);
+			position += read;
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Computes the per-chunk checksums of a range of a local file that
+	 * starts at a chunk boundary.
+	 */
+	static int[] chunkChecksums(FileChannel channel, long offset, int length)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		long position = offset;
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("unexpected end of file at " + position);
+			}
+			position += read;
+		}
+		return ChunkChecksums.checksumsOf(buffer.array());
+	}
+
+	/** Transfers one chunk into the partial file and checks it on arrival. */
+	private class Fetch implements Callable<Void> {
+		private final FileChannel channel;
+		private final long offset;
+		private final int length;
+
+		Fetch(FileChannel channel, long offset, int length) {
+			this.channel = channel;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			limiter.acquire(length);
+			TransferTicket ticket = source.openTransfer(file, offset, length,
+					false);
+			if (ticket != null) {
+				BulkTransfer.receive(ticket, channel, offset);
+				// Chunks start at chunk boundaries, and only the last one
+				// of the file is short, so the checksums line up
+				if (!Arrays.equals(chunkChecksums(channel, offset, length),
+						ticket.getChecksums())) {
+					throw new IOException("chunk of " + file + " at "
+							+ offset + " is corrupt");
+				}
+				return null;
+			}
+			ChecksummedData read = source.readWithChecksums(file, offset,
+					length);
+			if (read.verify() != -1) {
+				throw new IOException("chunk of " + file + " at " + offset
+						+ " is corrupt");
+			}
+			ByteBuffer data = ByteBuffer.wrap(read.getData());
+			long position = read.getPosition();
+			while (data.hasRemaining()) {
+				position += channel.write(data, position);
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package storage;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import common.Path;
+
+/**
+ * Table of read-write locks striped by path.
+ *
+ * <p>
+ * Every path hashes to one of a fixed number of stripes. Operations that only
+ * read a file take the stripe's read lock, operations that modify it take the
+ * write lock. Operations on files in different stripes never wait for each
+ * other, and reads never wait for reads.
+ *
+ * <p>
+ * Each stripe counts how often it was acquired, how often an acquisition had
+ * to wait, and for how long. Many contended acquisitions spread evenly over
+ * the stripes point at real conflicts on the same files; contention
+ * concentrated on few stripes, or high overall contention with little
+ * per-file overlap, means the stripe count is too low.
+ */
+public class StripedLocks {
+
+	/** Default number of stripes. */
+	public static final int DEFAULT_STRIPES = 64;
+
+	private final ReentrantReadWriteLock[] stripes;
+	private final AtomicLongArray acquisitions;
+	private final AtomicLongArray contended;
+	private final AtomicLongArray waitNanos;
+
+	/**
+	 * Creates the lock table.
+	 *
+	 * @param stripeCount
+	 *            Number of stripes, rounded up to a power of two.
+	 */
+	public StripedLocks(int stripeCount) {
+		int count = Integer.highestOneBit(Math.max(stripeCount, 1) * 2 - 1);
+		stripes = new ReentrantReadWriteLock[count];
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new ReentrantReadWriteLock();
+		}
+		acquisitions = new AtomicLongArray(count);
+		contended = new AtomicLongArray(count);
+		waitNanos = new AtomicLongArray(count);
+	}
+
+	public StripedLocks() {
+		this(DEFAULT_STRIPES);
+	}
+
+	/** Locks a path for reading. */
+	public void lockShared(Path path) {
+		int stripe = stripeOf(path);
+		acquire(stripe, stripes[stripe].readLock());
+	}
+
+	public void unlockShared(Path path) {
+		stripes[stripeOf(path)].readLock().unlock();
+	}
+
+	/** Locks a path for modification. */
+	public void lockExclusive(Path path) {
+		int stripe = stripeOf(path);
+		acquire(stripe, stripes[stripe].writeLock());
+	}
+
+	public void unlockExclusive(Path path) {
+		stripes[stripeOf(path)].writeLock().unlock();
+	}
+
+	public int getStripeCount() {
+		return stripes.length;
+	}
+
+	public long getAcquisitions(int stripe) {
+		return acquisitions.get(stripe);
+	}
+
+	public long getContendedAcquisitions(int stripe) {
+		return contended.get(stripe);
+	}
+
+	public long getWaitNanos(int stripe) {
+		return waitNanos.get(stripe);
+	}
+
+	/** Fraction of all acquisitions that had to wait. */
+	public double getContentionRatio() {
+		long total = 0;
+		long waited = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			total += acquisitions.get(i);
+			waited += contended.get(i);
+		}
+		return total == 0 ? 0 : (double) waited / total;
+	}
+
+	/** Returns a one-line-per-stripe summary of stripes that saw waiting. */
+	public String report() {
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%d stripes, %.2f%% contended%n",
+				stripes.length, getContentionRatio() * 100));
+		for (int i = 0; i < stripes.length; i++) {
+			if (contended.get(i) > 0) {
+				report.append(String.format(
+						"  stripe %3d: %d acquisitions, %d contended, %.3f ms waited%n",
+						i, acquisitions.get(i), contended.get(i),
+						waitNanos.get(i) / 1e6));
+			}
+		}
+		return report.toString();
+	}
+
+	private void acquire(int stripe, Lock lock) {
+		acquisitions.incrementAndGet(stripe);
+		if (lock.tryLock()) {
+			return;
+		}
+		contended.incrementAndGet(stripe);
+		long start = System.nanoTime();
+		lock.lock();
+		waitNanos.addAndGet(stripe, System.nanoTime() - start);
+	}
+
+	private int stripeOf(Path path) {
+		int hash = path.getPath().hashCode();
+		// Spread the high bits, as HashMap does
+		hash ^= hash >>> 16;
+		return hash & (stripes.length - 1);
+	}
+}
@@ -0,0 +1,99 @@
+package storage;
+
+import java.io.File;
+
+import common.ThroughputLimiter;
+
+/**
+ * Moves files between the fast tier of a storage server, its data directory,
+ * and its cold tier, a directory on slower and cheaper storage.
+ *
+ * <p>
+ * At every pass the migrator demotes the files that have not been read or
+ * written for the cold age of the server to the cold tier, and promotes the
+ * cold files that have been read <code>StorageServer.HOT_FILE_READS</code>
+ * times since they were demoted back to the fast tier. Files written by
+ * clients are always written on the fast tier, since a write brings a cold
+ * file back first. Both directions are paced by one bytes-per-second budget,
+ * paid block by block as a file moves rather than for the whole file up
+ * front, and the disk work is scheduled as maintenance, so migration stays
+ * behind client requests.
+ */
+public class TierMigrator extends Thread {
+
+	/** Default migration budget, in bytes per second. */
+	public static final long DEFAULT_BANDWIDTH = 16L * 1024 * 1024;
+
+	private static final long PASS_INTERVAL = 10 * 60 * 1000;
+
+	private StorageServer storageServer;
+	private ThroughputLimiter bandwidth;
+	private volatile boolean askedToStopThread = false;
+
+	public TierMigrator(StorageServer storageServer, long bytesPerSecond) {
+		this.storageServer = storageServer;
+		this.bandwidth = new ThroughputLimiter(bytesPerSecond);
+		setDaemon(true);
+		setPriority(MIN_PRIORITY);
+	}
+
+	public void run() {
+		while (!askedToStopThread) {
+			try {
+				migrationPass();
+				Thread.sleep(PASS_INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			} catch (Throwable t) {
+				System.out.println("Tier migration failed : " + t.getMessage());
+				try {
+					Thread.sleep(PASS_INTERVAL);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	public void stopGracefully() {
+		askedToStopThread = true;
+		interrupt();
+	}
+
+	/** Promotes the cold files gone hot, then demotes the hot ones gone cold. */
+	private void migrationPass() throws Exception {
+		for (String file : storageServer.coldFiles()) {
+			if (askedToStopThread) {
+				return;
+			}
+			File f = new File(file);
+			if (!storageServer.isReadOften(f)) {
+				continue;
+			}
+			try {
+				storageServer.promote(f, bandwidth);
+			} catch (Throwable t) {
+				System.out.println("Promotion of " + file + " failed : "
+						+ t.getMessage());
+			}
+		}
+
+		long coldBefore = System.currentTimeMillis()
+				- storageServer.getColdAge();
+		for (String file : storageServer.inventoriedFiles()) {
+			if (askedToStopThread) {
+				return;
+			}
+			File f = new File(file);
+			if (storageServer.lastUse(f) >= coldBefore) {
+				continue;
+			}
+			try {
+				storageServer.demote(f, coldBefore, bandwidth);
+			} catch (Throwable t) {
+				System.out.println("Demotion of " + file + " failed : "
+						+ t.getMessage());
+			}
+		}
+	}
+}
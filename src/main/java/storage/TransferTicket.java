@@ -0,0 +1,80 @@
+package storage;
+
+import java.io.Serializable;
+
+import common.Path;
+
+/**
+ * Permission to move one range of a file over a storage server's bulk-data
+ * port.
+ *
+ * <p>
+ * Tickets are handed out by <code>Storage.openTransfer</code>. The holder
+ * connects to the address in the ticket, presents the token, and then streams
+ * the bytes of the range. A token is accepted once, and only until it
+ * expires. A ticket for a read carries the stored checksums of the range, so
+ * the holder can check the bytes it receives without another call.
+ */
+public class TransferTicket implements Serializable {
+	private static final long serialVersionUID = 4174592317309436522L;
+
+	private final long token;
+	private final String hostname;
+	private final int port;
+	private final Path file;
+	private final long offset;
+	private final long length;
+	private final boolean write;
+	private final int[] checksums;
+
+	public TransferTicket(long token, String hostname, int port, Path file,
+			long offset, long length, boolean write, int[] checksums) {
+		this.token = token;
+		this.hostname = hostname;
+		this.port = port;
+		this.file = file;
+		this.offset = offset;
+		this.length = length;
+		this.write = write;
+		this.checksums = checksums;
+	}
+
+	public long getToken() {
+		return token;
+	}
+
+	public String getHostname() {
+		return hostname;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	/** Whether the holder sends bytes to the server rather than receiving. */
+	public boolean isWrite() {
+		return write;
+	}
+
+	/**
+	 * Returns the stored checksums of the chunks covering the range, starting
+	 * with the chunk holding <code>offset</code>, each covering
+	 * <code>ChunkChecksums.BYTES_PER_CHECKSUM</code> bytes. Returns
+	 * <code>null</code> for a write ticket.
+	 */
+	public int[] getChecksums() {
+		return checksums;
+	}
+}
@@ -2,11 +2,7 @@ package unit;
 
 import test.*;
 
-/** Runs all unit tests on distributed filesystem components.
-
-    <p>
-    There are currently no unit tests.
- */
+/** Runs all unit tests on distributed filesystem components. */
 public class UnitTests
 {
     /** Runs the tests.
@@ -18,7 +14,20 @@ public class UnitTests
         // Create the test list, the series object, and run the test series.
         @SuppressWarnings("unchecked")
         Class<? extends Test>[]     tests =
-            new Class[] {};
+            new Class[] {client.DFSInputStreamTest.class,
+                         client.DFSStripedFileTest.class,
+                         common.GaloisTest.class,
+                         common.ReedSolomonTest.class,
+                         naming.FailureDetectorTest.class,
+                         naming.DeleteTest.class,
+                         naming.RebalancerTest.class,
+                         naming.ReplicationTest.class,
+                         storage.BlockCacheTest.class,
+                         storage.ChunkChecksumsTest.class,
+                         storage.CodecTest.class,
+                         storage.ContentChunkerTest.class,
+                         storage.InventoryTest.class,
+                         storage.PackStoreTest.class};
         Series                      series = new Series(tests);
         SeriesReport                report = series.run(3, System.out);
 
@@ -0,0 +1,368 @@
+package client;
+
+import test.*;
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.zip.*;
+
+import common.*;
+import naming.*;
+import storage.*;
+
+/** Checks the readahead of <code>DFSInputStream</code>.
+
+    <p>
+    The stream reads from a storage server that keeps the file in memory and
+    records the requests it serves. Properties checked are:
+    <ul>
+    <li>A sequential reader gets the file as it is, in block requests rather
+        than one request per read once it has read a little.</li>
+    <li>A reader that skips between short reads soon stops reading ahead,
+        and a stream with readahead turned off makes one request per
+        read.</li>
+    <li>A read spanning into a block that cannot be read returns the bytes
+        before it as a short read; the next read fails without moving the
+        stream offset, and succeeds once the block can be read.</li>
+    <li>A closed stream cannot be read.</li>
+    </ul>
+ */
+public class DFSInputStreamTest extends test.Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking input stream readahead";
+
+    /** Size of a block read ahead. */
+    private static final int    BLOCK = DFSInputStream.READAHEAD_BLOCK_SIZE;
+    /** Size of each read by the tests. */
+    private static final int    READ = 64 * 1024;
+
+    /** Path to the file. */
+    private final Path          path = new Path("/file");
+    /** Contents of the file. */
+    private final byte[]        data = new byte[20 * BLOCK + 12345];
+    /** Storage server holding the file. */
+    private MemoryServer        server;
+    /** Naming server stub returning the storage server. */
+    private Service             naming_server;
+
+    /** Creates the file and the servers. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        new Random(29).nextBytes(data);
+        server = new MemoryServer(data);
+        naming_server = (Service)Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class<?>[] {Service.class},
+            (proxy, method, arguments) ->
+            {
+                if(method.getName().equals("getStorage"))
+                    return server.stub;
+                throw new UnsupportedOperationException(method.getName());
+            });
+    }
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            checkSequential();
+            checkRandom();
+            checkFailure();
+            checkClosed();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unexpected I/O exception", e);
+        }
+    }
+
+    /** Reads the whole file sequentially.
+
+        @throws TestFailed If the file reads back wrongly, or is not read in
+                           blocks.
+     */
+    private void checkSequential() throws TestFailed, IOException
+    {
+        DFSInputStream  stream = new DFSInputStream(naming_server, path);
+        server.requests.clear();
+
+        byte[]          read = readAll(stream);
+        if(!Arrays.equals(read, data))
+            throw new TestFailed("sequential reads returned wrong data");
+
+        int             blocks = (data.length + BLOCK - 1) / BLOCK;
+        int             reads = (data.length + READ - 1) / READ;
+        List<long[]>    requests = server.requests();
+
+        // The first read is made on its own, the rest from blocks.
+        if(requests.size() > blocks + 1)
+        {
+            throw new TestFailed(requests.size() + " requests for " + reads +
+                                 " sequential reads of " + blocks +
+                                 " blocks");
+        }
+
+        for(long[] request : requests.subList(1, requests.size()))
+        {
+            if(request[0] % BLOCK != 0 ||
+               (request[1] != BLOCK && request[0] + request[1] != data.length))
+            {
+                throw new TestFailed("sequential read not served by whole " +
+                                     "blocks");
+            }
+        }
+
+        stream.close();
+    }
+
+    /** Reads short ranges between skips, and with readahead turned off.
+
+        @throws TestFailed If the reads return wrong data, or whole blocks
+                           are still read ahead.
+     */
+    private void checkRandom() throws TestFailed, IOException
+    {
+        DFSInputStream  stream = new DFSInputStream(naming_server, path);
+        byte[]          buffer = new byte[100];
+        long            offset = 0;
+
+        // Reading sequentially first opens the readahead window.
+        for(int read = 0; read < 40; ++read)
+            offset += readFully(stream, new byte[READ], offset, READ);
+
+        server.requests.clear();
+        for(int read = 0; read < 12; ++read)
+        {
+            offset += stream.skip(BLOCK + 1000);
+            offset += readFully(stream, buffer, offset, buffer.length);
+        }
+
+        // Each skip halves the window, so only the first reads after the
+        // sequential ones are served from blocks.
+        int             direct = 0;
+        for(long[] request : server.requests())
+        {
+            if(request[1] == buffer.length)
+                ++direct;
+        }
+
+        if(direct < 8)
+        {
+            throw new TestFailed("only " + direct + " of 12 short reads " +
+                                 "between skips made on their own");
+        }
+        stream.close();
+
+        stream = new DFSInputStream(naming_server, path);
+        stream.setReadahead(0);
+        server.requests.clear();
+        offset = 0;
+        for(int read = 0; read < 10; ++read)
+            offset += readFully(stream, buffer, offset, buffer.length);
+
+        if(server.requests().size() != 10)
+        {
+            throw new TestFailed("stream without readahead made " +
+                                 server.requests().size() + " requests for " +
+                                 "10 reads");
+        }
+        stream.close();
+    }
+
+    /** Fails the reads of one block while reading sequentially.
+
+        @throws TestFailed If bytes read before the failure are lost, the
+                           failure moves the stream offset, or the stream
+                           does not recover.
+     */
+    private void checkFailure() throws TestFailed, IOException
+    {
+        DFSInputStream  stream = new DFSInputStream(naming_server, path);
+        long            failing = 3L * BLOCK;
+        long            offset = 0;
+        byte[]          buffer = new byte[4000];
+
+        // Reads of the fourth block fail, including those started ahead.
+        server.failing = failing;
+
+        while(offset < failing - READ)
+            offset += readFully(stream, new byte[READ], offset, READ);
+        offset += readFully(stream, new byte[READ], offset,
+                            (int)(failing - 1000 - offset));
+
+        int             count = stream.read(buffer, 0, buffer.length);
+        if(count != 1000)
+        {
+            throw new TestFailed("read into a failing block returned " +
+                                 count + " bytes instead of the 1000 before " +
+                                 "it");
+        }
+        checkRange(buffer, 0, offset, count, "short read");
+        offset += count;
+
+        for(int attempt = 0; attempt < 2; ++attempt)
+        {
+            try
+            {
+                stream.read(buffer, 0, buffer.length);
+                throw new TestFailed("read of a failing block succeeded");
+            }
+            catch(IOException e) { }
+
+            if(stream.available() != data.length - offset)
+                throw new TestFailed("failed read moved the stream offset");
+        }
+
+        server.failing = -1;
+        offset += readFully(stream, buffer, offset, buffer.length);
+        offset += readFully(stream, new byte[BLOCK], offset, BLOCK);
+        stream.close();
+    }
+
+    /** Checks that a closed stream cannot be read.
+
+        @throws TestFailed If it can.
+     */
+    private void checkClosed() throws TestFailed, IOException
+    {
+        DFSInputStream  stream = new DFSInputStream(naming_server, path);
+        readFully(stream, new byte[READ], 0, READ);
+        stream.close();
+
+        try
+        {
+            stream.read(new byte[10], 0, 10);
+            throw new TestFailed("closed stream read");
+        }
+        catch(IOException e) { }
+    }
+
+    /** Reads the stream to its end, <code>READ</code> bytes at a time. */
+    private byte[] readAll(DFSInputStream stream)
+        throws TestFailed, IOException
+    {
+        ByteArrayOutputStream   contents = new ByteArrayOutputStream();
+        byte[]                  buffer = new byte[READ];
+        int                     count;
+
+        while((count = stream.read(buffer, 0, buffer.length)) != -1)
+            contents.write(buffer, 0, count);
+
+        return contents.toByteArray();
+    }
+
+    /** Reads a range from the stream and checks it.
+
+        @param offset Offset of the stream.
+        @return The number of bytes read.
+        @throws TestFailed If the range is not read in full, or differs.
+     */
+    private int readFully(DFSInputStream stream, byte[] buffer, long offset,
+                          int length) throws TestFailed, IOException
+    {
+        int             done = 0;
+
+        while(done < length)
+        {
+            int         count = stream.read(buffer, done, length - done);
+            if(count < 0)
+                throw new TestFailed("stream ended early");
+            done += count;
+        }
+
+        checkRange(buffer, 0, offset, length, "read at " + offset);
+        return length;
+    }
+
+    /** Checks that part of a buffer holds a range of the file. */
+    private void checkRange(byte[] buffer, int buffer_offset, long offset,
+                            int length, String what) throws TestFailed
+    {
+        if(!Arrays.equals(buffer, buffer_offset, buffer_offset + length, data,
+                          (int)offset, (int)offset + length))
+        {
+            throw new TestFailed(what + " returned wrong data");
+        }
+    }
+
+    /** Storage server holding one file in memory, recording the reads it
+        serves and failing those that reach a given offset. */
+    private static class MemoryServer implements InvocationHandler
+    {
+        /** Bytes covered by each checksum. */
+        private static final int    CHUNK = 4096;
+
+        /** Contents of the file. */
+        private final byte[]    data;
+        /** Stub for the client interface. */
+        final Storage           stub;
+        /** Offset and length of each read served, in order. */
+        final List<long[]>      requests =
+            Collections.synchronizedList(new ArrayList<long[]>());
+        /** Offset whose reads fail, or <code>-1</code>. */
+        volatile long           failing = -1;
+
+        MemoryServer(byte[] data)
+        {
+            this.data = data;
+            stub = (Storage)Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] {Storage.class},
+                this);
+        }
+
+        /** Returns a copy of the reads served. */
+        List<long[]> requests()
+        {
+            synchronized(requests)
+            {
+                return new ArrayList<long[]>(requests);
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] arguments)
+            throws Throwable
+        {
+            switch(method.getName())
+            {
+            case "size":
+                return (long)data.length;
+            case "readWithChecksums":
+            {
+                long    offset = (Long)arguments[1];
+                int     length = (Integer)arguments[2];
+                if(failing >= offset && failing < offset + length)
+                    throw new IOException("disk failure");
+
+                requests.add(new long[] {offset, length});
+                byte[]  read = Arrays.copyOfRange(data, (int)offset,
+                                                  (int)offset + length);
+                return new ChecksummedData(offset, read, checksums(read),
+                                           CHUNK);
+            }
+            }
+
+            throw new UnsupportedOperationException(method.getName());
+        }
+
+        /** Computes the checksum of each chunk of data. */
+        private static int[] checksums(byte[] data)
+        {
+            int[]       checksums = new int[(data.length + CHUNK - 1) / CHUNK];
+            CRC32C      crc = new CRC32C();
+
+            for(int chunk = 0; chunk < checksums.length; ++chunk)
+            {
+                crc.reset();
+                crc.update(data, chunk * CHUNK,
+                           Math.min(CHUNK, data.length - chunk * CHUNK));
+                checksums[chunk] = (int)crc.getValue();
+            }
+
+            return checksums;
+        }
+    }
+}
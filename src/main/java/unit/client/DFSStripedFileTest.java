@@ -0,0 +1,412 @@
+package client;
+
+import test.*;
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+import rmi.*;
+import naming.*;
+import storage.*;
+
+/** Checks reads and writes of erasure-coded files by
+    <code>DFSStripedFile</code>.
+
+    <p>
+    The file is laid out by a naming server over storage servers that keep
+    their blocks in memory. Properties checked are:
+    <ul>
+    <li>Bytes appended in pieces, with flushes that leave a partial last row,
+        read back as written, before and after the file is opened again.</li>
+    <li>With up to <code>m</code> cells of a stripe lost or unreachable,
+        reads reconstruct the missing bytes; with more, they fail.</li>
+    <li>A write that fails on its cells leaves the file as it was, and the
+        same bytes can be written once the cells are writable again.</li>
+    <li>The naming server refuses to shrink the file unless it is truncated,
+        and a truncated file reads back as the start of what was written and
+        can be appended to again.</li>
+    </ul>
+ */
+public class DFSStripedFileTest extends test.Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking erasure-coded file writes and degraded reads";
+
+    /** Number of data cells in a stripe. */
+    private static final int    DATA_CELLS = 3;
+    /** Number of parity cells in a stripe. */
+    private static final int    PARITY_CELLS = 2;
+    /** Number of storage servers, one more than the cells of a stripe. */
+    private static final int    SERVERS = DATA_CELLS + PARITY_CELLS + 1;
+    /** Bytes of the file held by one row. */
+    private static final int    ROW = DATA_CELLS * StripeMap.CELL_SIZE;
+
+    /** Naming server laying out the file. */
+    private NamingServer        naming_server;
+    /** Storage servers holding the cells. */
+    private final List<MemoryServer>    servers =
+        new ArrayList<MemoryServer>();
+    /** Path to the file. */
+    private final common.Path   path = new common.Path("/striped/file");
+    /** Bytes written to the file. */
+    private byte[]              data;
+
+    /** Creates the naming server, the storage servers and the file. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        naming_server = new NamingServer();
+
+        for(int index = 0; index < SERVERS; ++index)
+        {
+            MemoryServer    server = new MemoryServer();
+            servers.add(server);
+
+            // The first server registers a file, which creates the
+            // directory holding the striped file.
+            common.Path[]   files = index == 0
+                ? new common.Path[] {new common.Path("/striped/other")}
+                : new common.Path[0];
+            naming_server.register((Storage)server.stub, (Command)server.stub,
+                                  files);
+        }
+
+        try
+        {
+            if(!naming_server.createStripedFile(path, DATA_CELLS,
+                                                PARITY_CELLS))
+            {
+                throw new TestFailed("unable to create striped file");
+            }
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("unable to create striped file", e);
+        }
+
+        data = new byte[4 * ROW + 1000];
+        new Random(17).nextBytes(data);
+    }
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            checkWrites();
+            checkDegradedReads();
+            checkFailedWrite();
+            checkTruncate();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unexpected I/O exception", e);
+        }
+    }
+
+    /** Appends the bytes in pieces, flushing partial rows along the way.
+
+        @throws TestFailed If the file reads back wrongly, or its length is
+                           wrong.
+     */
+    private void checkWrites() throws TestFailed, IOException
+    {
+        DFSStripedFile  file = new DFSStripedFile(naming_server, path);
+        int[]           pieces = {1000, ROW / 2, ROW, 2 * ROW + 7};
+        int             written = 0;
+
+        for(int piece : pieces)
+        {
+            file.append(data, written, piece);
+            written += piece;
+            file.flush();
+
+            if(file.length() != written)
+            {
+                throw new TestFailed("length " + file.length() + " after " +
+                                     "flushing " + written + " bytes");
+            }
+
+            checkContents(file, written, "after flushing " + written +
+                          " bytes");
+        }
+
+        file.append(data, written, data.length - written);
+        file.close();
+
+        checkContents(new DFSStripedFile(naming_server, path), data.length,
+                      "after opening the file again");
+    }
+
+    /** Makes cells of the first stripe and of the tail lost or unreachable,
+        and reads the file.
+
+        @throws TestFailed If a read with up to <code>m</code> cells missing
+                           fails or differs, or a read with more succeeds.
+     */
+    private void checkDegradedReads() throws TestFailed, IOException
+    {
+        StripeMap       map = naming_server.getStripeMap(path);
+
+        // A data cell of the stripe unreachable, and one lost.
+        MemoryServer    down = server(map.getHolder(0, 0));
+        MemoryServer    losing = server(map.getHolder(0, 2));
+        byte[]          lost = losing.blocks.remove(map.getCell(0, 2));
+
+        down.down = true;
+        checkContents(new DFSStripedFile(naming_server, path), data.length,
+                      "with two cells of a stripe missing");
+
+        // A third cell is more than the parity makes up for.
+        MemoryServer    third = server(map.getHolder(0, 1));
+        byte[]          removed = third.blocks.remove(map.getCell(0, 1));
+        try
+        {
+            read(new DFSStripedFile(naming_server, path), 0, ROW);
+            throw new TestFailed("read with three cells of a stripe " +
+                                 "missing succeeded");
+        }
+        catch(IOException e) { }
+
+        third.blocks.put(map.getCell(0, 1), removed);
+        losing.blocks.put(map.getCell(0, 2), lost);
+        down.down = false;
+
+        // Two cells of the tail.
+        if(!map.hasTail())
+            throw new TestFailed("partial last row not kept in a tail");
+
+        server(map.getTailHolder(1)).down = true;
+        server(map.getTailHolder(DATA_CELLS)).down = true;
+        checkContents(new DFSStripedFile(naming_server, path), data.length,
+                      "with two cells of the tail missing");
+
+        for(MemoryServer server : servers)
+            server.down = false;
+    }
+
+    /** Fails a write on its cells, and checks that the file is unchanged.
+
+        @throws TestFailed If the failed write changes the file, or the write
+                           does not succeed once the cells are writable.
+     */
+    private void checkFailedWrite() throws TestFailed, IOException
+    {
+        DFSStripedFile  file = new DFSStripedFile(naming_server, path);
+        byte[]          more = new byte[ROW];
+        new Random(23).nextBytes(more);
+
+        for(MemoryServer server : servers)
+            server.failWrites = true;
+
+        file.append(more, 0, 500);
+        try
+        {
+            file.flush();
+            throw new TestFailed("flush succeeded with cells not writable");
+        }
+        catch(IOException e) { }
+
+        DFSStripedFile  reopened = new DFSStripedFile(naming_server, path);
+        if(reopened.length() != data.length)
+            throw new TestFailed("failed write changed the length");
+        checkContents(reopened, data.length, "after a failed write");
+
+        for(MemoryServer server : servers)
+            server.failWrites = false;
+
+        file.flush();
+        byte[]          grown = Arrays.copyOf(data, data.length + 500);
+        System.arraycopy(more, 0, grown, data.length, 500);
+        data = grown;
+
+        checkContents(new DFSStripedFile(naming_server, path), data.length,
+                      "after writing again");
+    }
+
+    /** Shrinks the file, and appends to it again.
+
+        @throws TestFailed If shrinking without truncating is accepted, or
+                           the truncated file reads back wrongly.
+     */
+    private void checkTruncate() throws TestFailed, IOException
+    {
+        try
+        {
+            naming_server.setStripedLength(path, 10, false);
+            throw new TestFailed("file shrunk without truncating it");
+        }
+        catch(IllegalArgumentException e) { }
+
+        DFSStripedFile  file = new DFSStripedFile(naming_server, path);
+        long            length = ROW + 100;
+
+        file.truncate(length);
+        if(file.length() != length ||
+           naming_server.getStripeMap(path).getLength() != length)
+        {
+            throw new TestFailed("truncated file has the wrong length");
+        }
+
+        checkContents(file, length, "after truncating");
+
+        // Bytes appended after the truncation replace those cut off.
+        file.append(data, (int)length, 2 * ROW);
+        file.close();
+        checkContents(new DFSStripedFile(naming_server, path),
+                      length + 2 * ROW, "after appending to a truncated file");
+
+        file = new DFSStripedFile(naming_server, path);
+        file.truncate(0);
+        if(naming_server.getStripeMap(path).getStripeCount() != 0)
+            throw new TestFailed("stripes kept after truncating to nothing");
+
+        try
+        {
+            file.truncate(1);
+            throw new TestFailed("truncation lengthened the file");
+        }
+        catch(IllegalArgumentException e) { }
+    }
+
+    /** Checks that the file holds the first bytes written.
+
+        @throws TestFailed If its contents differ.
+     */
+    private void checkContents(DFSStripedFile file, long length, String when)
+        throws TestFailed, IOException
+    {
+        byte[]          read = read(file, 0, (int)length);
+
+        if(!Arrays.equals(read, 0, (int)length, data, 0, (int)length))
+            throw new TestFailed("file contents differ " + when);
+
+        byte[]          past = new byte[1];
+        if(file.read(length, past, 0, 1) != -1)
+            throw new TestFailed("read past the end of the file " + when);
+    }
+
+    /** Reads a range of the file, in reads spanning several cells. */
+    private static byte[] read(DFSStripedFile file, long offset, int length)
+        throws IOException
+    {
+        byte[]          buffer = new byte[length];
+        int             done = 0;
+
+        while(done < length)
+        {
+            int         count = file.read(offset + done, buffer, done,
+                                          Math.min(length - done,
+                                                   2 * StripeMap.CELL_SIZE +
+                                                   12345));
+            if(count < 0)
+                throw new EOFException("file ended early");
+
+            done += count;
+        }
+
+        return buffer;
+    }
+
+    /** Returns the storage server behind a stub. */
+    private MemoryServer server(Storage stub) throws TestFailed
+    {
+        for(MemoryServer server : servers)
+        {
+            if(server.stub == stub)
+                return server;
+        }
+
+        throw new TestFailed("cell held by an unknown server");
+    }
+
+    /** Storage server keeping blocks in memory, reached through a stub that
+        can be made unreachable. */
+    private static class MemoryServer implements InvocationHandler
+    {
+        /** Blocks held, by ID. */
+        final Map<Long, byte[]>     blocks = new HashMap<Long, byte[]>();
+        /** Stub for both the client and command interfaces. */
+        final Object                stub;
+        /** Whether every call fails as if the server were unreachable. */
+        volatile boolean            down = false;
+        /** Whether block writes fail. */
+        volatile boolean            failWrites = false;
+
+        MemoryServer()
+        {
+            stub = Proxy.newProxyInstance(getClass().getClassLoader(),
+                                          new Class<?>[] {Storage.class,
+                                                          Command.class},
+                                          this);
+        }
+
+        @Override
+        public synchronized Object invoke(Object proxy, Method method,
+                                          Object[] arguments)
+            throws Throwable
+        {
+            switch(method.getName())
+            {
+            case "equals":
+                return proxy == arguments[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "memory server " + System.identityHashCode(proxy);
+            }
+
+            if(down)
+                throw new RMIException("server unreachable");
+
+            switch(method.getName())
+            {
+            case "size":
+                return 0L;
+            case "createBlock":
+                return blocks.putIfAbsent((Long)arguments[0],
+                                          new byte[0]) == null;
+            case "deleteBlock":
+                return blocks.remove((Long)arguments[0]) != null;
+            case "blockSize":
+                return (long)block((Long)arguments[0]).length;
+            case "readBlock":
+            {
+                byte[]  block = block((Long)arguments[0]);
+                int     offset = (Integer)arguments[1];
+                int     length = (Integer)arguments[2];
+                if(offset < 0 || length < 0 || offset + length > block.length)
+                    throw new IndexOutOfBoundsException("read past block");
+                return Arrays.copyOfRange(block, offset, offset + length);
+            }
+            case "writeBlock":
+            {
+                long    id = (Long)arguments[0];
+                byte[]  block = block(id);
+                int     offset = (Integer)arguments[1];
+                byte[]  written = (byte[])arguments[2];
+                if(failWrites)
+                    throw new IOException("disk failure");
+                if(block.length < offset + written.length)
+                    block = Arrays.copyOf(block, offset + written.length);
+                System.arraycopy(written, 0, block, offset, written.length);
+                blocks.put(id, block);
+                return null;
+            }
+            }
+
+            throw new UnsupportedOperationException(method.getName());
+        }
+
+        /** Returns a block held by the server. */
+        private byte[] block(long id) throws FileNotFoundException
+        {
+            byte[]      block = blocks.get(id);
+            if(block == null)
+                throw new FileNotFoundException("no block " + id);
+            return block;
+        }
+    }
+}
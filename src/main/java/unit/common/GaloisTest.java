@@ -0,0 +1,223 @@
+package common;
+
+import test.*;
+import java.util.*;
+
+/** Checks the arithmetic of <code>Galois</code> over GF(2^8).
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Products match multiplication of polynomials reduced by the
+        generating polynomial, for every pair of elements.</li>
+    <li>Division undoes multiplication, and division by zero raises
+        <code>ArithmeticException</code>.</li>
+    <li>Powers match repeated products.</li>
+    <li>Products over ranges of arrays, plain and added, touch only the
+        given range.</li>
+    <li>Inverted matrices multiply with the original into the identity, and
+        singular matrices raise <code>IllegalArgumentException</code>.</li>
+    </ul>
+ */
+public class GaloisTest extends test.Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking GF(2^8) arithmetic";
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        checkMultiply();
+        checkDivide();
+        checkPower();
+        checkRanges();
+        checkInvert();
+    }
+
+    /** Checks every product against a reference computation.
+
+        @throws TestFailed If a product differs.
+     */
+    private void checkMultiply() throws TestFailed
+    {
+        for(int a = 0; a < 256; ++a)
+        {
+            for(int b = 0; b < 256; ++b)
+            {
+                byte    product = Galois.multiply((byte)a, (byte)b);
+                if((product & 0xff) != reference(a, b))
+                {
+                    throw new TestFailed(a + " * " + b + " gave " +
+                                         (product & 0xff) + " instead of " +
+                                         reference(a, b));
+                }
+            }
+        }
+    }
+
+    /** Checks that division undoes multiplication.
+
+        @throws TestFailed If a quotient is wrong, or division by zero is
+                           accepted.
+     */
+    private void checkDivide() throws TestFailed
+    {
+        for(int a = 0; a < 256; ++a)
+        {
+            for(int b = 1; b < 256; ++b)
+            {
+                byte    product = Galois.multiply((byte)a, (byte)b);
+                if(Galois.divide(product, (byte)b) != (byte)a)
+                {
+                    throw new TestFailed("(" + a + " * " + b + ") / " + b +
+                                         " is not " + a);
+                }
+            }
+        }
+
+        try
+        {
+            Galois.divide((byte)1, (byte)0);
+            throw new TestFailed("division by zero accepted");
+        }
+        catch(ArithmeticException e) { }
+    }
+
+    /** Checks powers against repeated products.
+
+        @throws TestFailed If a power differs.
+     */
+    private void checkPower() throws TestFailed
+    {
+        for(int a = 0; a < 256; ++a)
+        {
+            byte        expected = 1;
+            for(int exponent = 0; exponent < 600; ++exponent)
+            {
+                if(Galois.power((byte)a, exponent) != expected)
+                {
+                    throw new TestFailed(a + " to the power " + exponent +
+                                         " is wrong");
+                }
+
+                expected = Galois.multiply(expected, (byte)a);
+            }
+        }
+    }
+
+    /** Checks products over ranges of arrays.
+
+        @throws TestFailed If a byte of the range is wrong, or a byte outside
+                           it is changed.
+     */
+    private void checkRanges() throws TestFailed
+    {
+        Random      random = new Random(7);
+        byte[]      in = new byte[1000];
+        byte[]      out = new byte[1000];
+        random.nextBytes(in);
+        random.nextBytes(out);
+
+        byte        coefficient = (byte)0x8e;
+        byte[]      before = out.clone();
+
+        Galois.multiply(coefficient, in, 100, out, 300, 500);
+        for(int index = 0; index < out.length; ++index)
+        {
+            byte    expected = index >= 300 && index < 800
+                ? Galois.multiply(coefficient, in[index - 200])
+                : before[index];
+            if(out[index] != expected)
+                throw new TestFailed("multiplied range wrong at " + index);
+        }
+
+        before = out.clone();
+        Galois.multiplyAdd(coefficient, in, 0, out, 10, 20);
+        for(int index = 0; index < out.length; ++index)
+        {
+            byte    expected = index >= 10 && index < 30
+                ? (byte)(before[index] ^
+                         Galois.multiply(coefficient, in[index - 10]))
+                : before[index];
+            if(out[index] != expected)
+                throw new TestFailed("added range wrong at " + index);
+        }
+    }
+
+    /** Checks matrix inversion.
+
+        @throws TestFailed If an inverse is wrong, or a singular matrix is
+                           inverted.
+     */
+    private void checkInvert() throws TestFailed
+    {
+        Random      random = new Random(11);
+
+        for(int size = 1; size <= 12; ++size)
+        {
+            // Rows of a Vandermonde matrix on distinct points are independent.
+            List<Integer>   points = new ArrayList<Integer>();
+            for(int point = 0; point < 256; ++point)
+                points.add(point);
+            Collections.shuffle(points, random);
+
+            byte[][]    matrix = new byte[size][size];
+            for(int row = 0; row < size; ++row)
+            {
+                for(int column = 0; column < size; ++column)
+                {
+                    matrix[row][column] =
+                        Galois.power((byte)(int)points.get(row), column);
+                }
+            }
+
+            byte[][]    product =
+                Galois.multiply(matrix, Galois.invert(matrix));
+            for(int row = 0; row < size; ++row)
+            {
+                for(int column = 0; column < size; ++column)
+                {
+                    if(product[row][column] != (row == column ? 1 : 0))
+                    {
+                        throw new TestFailed("inverse of a " + size + "x" +
+                                             size + " matrix is wrong");
+                    }
+                }
+            }
+
+            if(size < 2)
+                continue;
+
+            matrix[size - 1] = matrix[0].clone();
+            try
+            {
+                Galois.invert(matrix);
+                throw new TestFailed("singular " + size + "x" + size +
+                                     " matrix inverted");
+            }
+            catch(IllegalArgumentException e) { }
+        }
+    }
+
+    /** Multiplies two elements as polynomials over GF(2), reduced by the
+        generating polynomial <code>x^8 + x^4 + x^3 + x^2 + 1</code>. */
+    private static int reference(int a, int b)
+    {
+        int         product = 0;
+
+        for(int bit = 0; bit < 8; ++bit)
+        {
+            if((b & (1 << bit)) != 0)
+                product ^= a << bit;
+        }
+
+        for(int bit = 15; bit >= 8; --bit)
+        {
+            if((product & (1 << bit)) != 0)
+                product ^= 0x11d << (bit - 8);
+        }
+
+        return product;
+    }
+}
@@ -0,0 +1,277 @@
+package common;
+
+import test.*;
+import java.util.*;
+
+/** Checks the Reed-Solomon erasure code of <code>ReedSolomon</code>.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Encoding leaves the data shards as they are, and touches only the
+        given range of the parity shards.</li>
+    <li>With any <code>m</code> or fewer shards missing, decoding rebuilds
+        the missing data shards, and encoding the rebuilt data gives back the
+        missing parity shards, for ranges spanning several slices.</li>
+    <li>Decoding with more than <code>m</code> shards missing, and codes with
+        invalid shard counts, raise <code>IllegalArgumentException</code>;
+        shard arrays of the wrong number or too short for the range are
+        rejected.</li>
+    </ul>
+ */
+public class ReedSolomonTest extends test.Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking Reed-Solomon erasure code";
+
+    /** Codes checked, as pairs of data and parity shard counts. */
+    private static final int[][]    codes =
+        {{1, 1}, {2, 1}, {3, 2}, {4, 2}, {6, 3}, {10, 4}};
+    /** Length of the coded range, longer than the slices the code works
+        in. */
+    private static final int    LENGTH = 40000;
+    /** Offset of the coded range in each shard. */
+    private static final int    OFFSET = 123;
+    /** Number of sets of missing shards tried for each number of missing
+        shards, when there are more sets than this. */
+    private static final int    SAMPLES = 40;
+
+    /** Random source for the shards and the sets of missing shards. */
+    private final Random        random = new Random(3);
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        for(int[] counts : codes)
+        {
+            ReedSolomon code = new ReedSolomon(counts[0], counts[1]);
+            byte[][]    shards = encoded(code);
+
+            for(int missing = 1; missing <= counts[1]; ++missing)
+            {
+                for(boolean[] present : presentSets(counts[0] + counts[1],
+                                                    missing))
+                {
+                    checkDecode(code, shards, present);
+                }
+            }
+
+            checkTooFew(code, shards);
+        }
+
+        checkRange();
+        checkInvalid();
+    }
+
+    /** Creates random data shards with a margin around the coded range,
+        and encodes them.
+
+        @throws TestFailed If encoding changes the data shards.
+     */
+    private byte[][] encoded(ReedSolomon code) throws TestFailed
+    {
+        int         width = code.getDataShards() + code.getParityShards();
+        byte[][]    shards = new byte[width][OFFSET + LENGTH + 50];
+
+        for(int shard = 0; shard < code.getDataShards(); ++shard)
+            random.nextBytes(shards[shard]);
+
+        byte[][]    data = copy(shards);
+        code.encode(shards, OFFSET, LENGTH);
+
+        for(int shard = 0; shard < code.getDataShards(); ++shard)
+        {
+            if(!Arrays.equals(shards[shard], data[shard]))
+                throw new TestFailed("encoding changed data shard " + shard);
+        }
+
+        return shards;
+    }
+
+    /** Wipes the missing shards of a copy of the stripe, decodes it, and
+        encodes the rebuilt data.
+
+        @throws TestFailed If a data or parity shard is not rebuilt exactly.
+     */
+    private void checkDecode(ReedSolomon code, byte[][] shards,
+                             boolean[] present) throws TestFailed
+    {
+        byte[][]    degraded = copy(shards);
+
+        for(int shard = 0; shard < degraded.length; ++shard)
+        {
+            if(!present[shard])
+                random.nextBytes(degraded[shard]);
+        }
+
+        code.decode(degraded, present, OFFSET, LENGTH);
+        code.encode(degraded, OFFSET, LENGTH);
+
+        for(int shard = 0; shard < degraded.length; ++shard)
+        {
+            if(!Arrays.equals(degraded[shard], OFFSET, OFFSET + LENGTH,
+                              shards[shard], OFFSET, OFFSET + LENGTH))
+            {
+                throw new TestFailed(describe(code) + ": shard " + shard +
+                                     " not rebuilt with shards " +
+                                     missingList(present) + " missing");
+            }
+        }
+    }
+
+    /** Checks that a stripe with more than <code>m</code> shards missing is
+        not decoded.
+
+        @throws TestFailed If it is decoded.
+     */
+    private void checkTooFew(ReedSolomon code, byte[][] shards)
+        throws TestFailed
+    {
+        boolean[]   present = new boolean[shards.length];
+        for(int shard = code.getParityShards() + 1; shard < shards.length;
+            ++shard)
+        {
+            present[shard] = true;
+        }
+
+        try
+        {
+            code.decode(copy(shards), present, OFFSET, LENGTH);
+            throw new TestFailed(describe(code) + ": decoded with " +
+                                 (code.getParityShards() + 1) +
+                                 " shards missing");
+        }
+        catch(IllegalArgumentException e) { }
+    }
+
+    /** Checks that encoding and decoding keep to the given range.
+
+        @throws TestFailed If a byte outside the range is changed.
+     */
+    private void checkRange() throws TestFailed
+    {
+        ReedSolomon code = new ReedSolomon(4, 2);
+        byte[][]    shards = new byte[6][1000];
+        for(byte[] shard : shards)
+            random.nextBytes(shard);
+
+        byte[][]    before = copy(shards);
+        code.encode(shards, 200, 300);
+
+        boolean[]   present = {false, true, true, false, true, true};
+        code.decode(shards, present, 200, 300);
+
+        for(int shard = 0; shard < shards.length; ++shard)
+        {
+            if(!Arrays.equals(shards[shard], 0, 200, before[shard], 0, 200) ||
+               !Arrays.equals(shards[shard], 500, 1000, before[shard], 500,
+                              1000))
+            {
+                throw new TestFailed("shard " + shard + " changed outside " +
+                                     "the coded range");
+            }
+        }
+    }
+
+    /** Checks that invalid codes and shard arrays are rejected.
+
+        @throws TestFailed If one is accepted.
+     */
+    private void checkInvalid() throws TestFailed
+    {
+        int[][]     invalid = {{0, 1}, {1, 0}, {200, 57}, {-1, 2}};
+        for(int[] counts : invalid)
+        {
+            try
+            {
+                new ReedSolomon(counts[0], counts[1]);
+                throw new TestFailed("code " + counts[0] + "+" + counts[1] +
+                                     " accepted");
+            }
+            catch(IllegalArgumentException e) { }
+        }
+
+        // The widest code is accepted.
+        new ReedSolomon(200, 56);
+
+        ReedSolomon code = new ReedSolomon(3, 2);
+        try
+        {
+            code.encode(new byte[4][10], 0, 10);
+            throw new TestFailed("wrong number of shards accepted");
+        }
+        catch(IllegalArgumentException e) { }
+
+        try
+        {
+            code.encode(new byte[5][10], 5, 10);
+            throw new TestFailed("range past the end of the shards accepted");
+        }
+        catch(IndexOutOfBoundsException e) { }
+    }
+
+    /** Lists sets of present shards with the given number missing: all of
+        them, or a random sample if there are many. */
+    private List<boolean[]> presentSets(int width, int missing)
+    {
+        List<boolean[]>     sets = new ArrayList<boolean[]>();
+        int[]               chosen = new int[missing];
+
+        for(int index = 0; index < missing; ++index)
+            chosen[index] = index;
+
+        // Walk all combinations in order.
+        while(true)
+        {
+            boolean[]       present = new boolean[width];
+            Arrays.fill(present, true);
+            for(int shard : chosen)
+                present[shard] = false;
+            sets.add(present);
+
+            int             index = missing - 1;
+            while(index >= 0 && chosen[index] == width - missing + index)
+                --index;
+            if(index < 0)
+                break;
+
+            ++chosen[index];
+            for(int next = index + 1; next < missing; ++next)
+                chosen[next] = chosen[next - 1] + 1;
+        }
+
+        if(sets.size() <= SAMPLES)
+            return sets;
+
+        Collections.shuffle(sets, random);
+        return sets.subList(0, SAMPLES);
+    }
+
+    /** Copies an array of shards. */
+    private static byte[][] copy(byte[][] shards)
+    {
+        byte[][]    copy = new byte[shards.length][];
+        for(int shard = 0; shard < shards.length; ++shard)
+            copy[shard] = shards[shard].clone();
+        return copy;
+    }
+
+    /** Returns the shard counts of a code. */
+    private static String describe(ReedSolomon code)
+    {
+        return "code " + code.getDataShards() + "+" + code.getParityShards();
+    }
+
+    /** Lists the missing shards. */
+    private static String missingList(boolean[] present)
+    {
+        List<Integer>   missing = new ArrayList<Integer>();
+        for(int shard = 0; shard < present.length; ++shard)
+        {
+            if(!present[shard])
+                missing.add(shard);
+        }
+        return missing.toString();
+    }
+}
@@ -0,0 +1,262 @@
+package naming;
+
+import test.*;
+import java.io.*;
+import java.util.*;
+
+import common.*;
+import storage.*;
+
+/** Checks deletion of files kept in blocks.
+
+    <p>
+    The naming server keeps a block file and an erasure-coded file on
+    storage servers that keep their blocks in memory. Properties checked are:
+    <ul>
+    <li>Deleting a block file waits for a client holding its shared lock, and
+        then deletes every replica of every block.</li>
+    <li>Deleting an erasure-coded file deletes every cell.</li>
+    <li>A deleted file is gone from the naming server, and its name can be
+        used for a new file.</li>
+    </ul>
+ */
+public class DeleteTest extends test.Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking deletion of block and erasure-coded files";
+
+    /** Plain file in the same directory. */
+    private final Path          file = new Path("/dir/file");
+    /** Block file. */
+    private final Path          block_file = new Path("/dir/blocks");
+    /** Erasure-coded file. */
+    private final Path          striped_file = new Path("/dir/striped");
+    /** Naming server under test. */
+    private NamingServer        naming_server;
+    /** Storage servers. */
+    private final List<MemoryStorageServer> servers =
+        new ArrayList<MemoryStorageServer>();
+
+    /** Creates the naming server and registers the storage servers. The
+        first server registers a plain file, which creates the directory of
+        the files under test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        naming_server = new NamingServer();
+
+        for(int index = 0; index < NamingServer.BLOCK_REPLICATION; ++index)
+        {
+            Path[]              held = index == 0 ? new Path[] {file}
+                                                  : new Path[0];
+            MemoryStorageServer server = new MemoryStorageServer(held);
+            servers.add(server);
+            naming_server.register(server.client(), server.command(), held);
+        }
+    }
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            checkBlockFile();
+            checkStripedFile();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Deletes a block file with two blocks while a client holds its shared
+        lock.
+
+        @throws TestFailed If the file is deleted while locked, or a replica
+                           of a block survives the deletion.
+     */
+    private void checkBlockFile() throws Throwable
+    {
+        if(!naming_server.createBlockFile(block_file))
+            throw new TestFailed("unable to create block file");
+
+        for(int index = 0; index < 2; ++index)
+        {
+            BlockMap    map = naming_server.addBlock(block_file);
+            for(Storage replica : map.getReplicas(index))
+            {
+                replica.writeBlock(map.getBlock(index), 0,
+                                   MemoryStorageServer.contents(block_file));
+            }
+        }
+
+        long[]          blocks = blocks(naming_server.getBlockMap(block_file));
+        if(held(blocks) == 0)
+            throw new TestFailed("blocks not placed on any server");
+
+        // Clients pass their own copies of paths, as they would over RMI.
+        Deletion        deletion = new Deletion(new Path(block_file.getPath()));
+
+        naming_server.lock(block_file, false);
+        try
+        {
+            deletion.start();
+            Thread.sleep(500);
+
+            if(!deletion.isAlive())
+                throw new TestFailed("block file deleted while locked");
+        }
+        finally
+        {
+            naming_server.unlock(block_file, false);
+        }
+
+        deletion.check();
+
+        try
+        {
+            naming_server.getBlockMap(block_file);
+            throw new TestFailed("block map kept after deletion");
+        }
+        catch(FileNotFoundException e) { }
+
+        checkGone(block_file, blocks);
+    }
+
+    /** Deletes an erasure-coded file with one stripe.
+
+        @throws TestFailed If a cell survives the deletion.
+     */
+    private void checkStripedFile() throws Throwable
+    {
+        if(!naming_server.createStripedFile(striped_file, 2, 1))
+            throw new TestFailed("unable to create erasure-coded file");
+
+        StripeMap       map = naming_server.addStripe(striped_file);
+        long[]          cells =
+            new long[map.getDataCells() + map.getParityCells()];
+        for(int index = 0; index < cells.length; ++index)
+            cells[index] = map.getCell(0, index);
+
+        if(held(cells) != cells.length)
+            throw new TestFailed("cells not placed on the servers");
+
+        if(!naming_server.delete(new Path(striped_file.getPath())))
+            throw new TestFailed("erasure-coded file not deleted");
+
+        try
+        {
+            naming_server.getStripeMap(striped_file);
+            throw new TestFailed("stripe map kept after deletion");
+        }
+        catch(FileNotFoundException e) { }
+
+        checkGone(striped_file, cells);
+    }
+
+    /** Checks that a deleted file and its blocks are gone.
+
+        @throws TestFailed If a block is still held or listed, the naming
+                           server still knows the file, or its name cannot be
+                           reused.
+     */
+    private void checkGone(Path file, long[] blocks) throws Throwable
+    {
+        if(held(blocks) != 0)
+            throw new TestFailed("blocks of " + file + " left on servers");
+
+        for(long block : blocks)
+        {
+            if(!naming_server.liveReplicas(Blocks.path(block).getPath())
+                    .isEmpty())
+            {
+                throw new TestFailed("blocks of " + file + " still listed");
+            }
+        }
+
+        try
+        {
+            naming_server.isDirectory(file);
+            throw new TestFailed(file + " still exists after deletion");
+        }
+        catch(FileNotFoundException e) { }
+
+        if(!naming_server.createBlockFile(file))
+            throw new TestFailed("name of " + file + " not freed");
+    }
+
+    /** Returns the block IDs of a block file. */
+    private static long[] blocks(BlockMap map)
+    {
+        long[]          blocks = new long[map.getBlockCount()];
+        for(int index = 0; index < blocks.length; ++index)
+            blocks[index] = map.getBlock(index);
+        return blocks;
+    }
+
+    /** Counts the replicas of blocks held by the servers. */
+    private int held(long[] blocks)
+    {
+        int             count = 0;
+        for(MemoryStorageServer server : servers)
+        {
+            for(long block : blocks)
+            {
+                if(server.holds(Blocks.path(block)))
+                    ++count;
+            }
+        }
+        return count;
+    }
+
+    /** Thread deleting a file, so that the test can check that the deletion
+        waits for a lock. */
+    private class Deletion extends Thread
+    {
+        /** File to be deleted. */
+        private final Path      file;
+        /** Result of the deletion. */
+        private boolean         deleted = false;
+        /** Exception thrown by the deletion, if any. */
+        private Throwable       error = null;
+
+        /** Creates the thread. */
+        Deletion(Path file)
+        {
+            this.file = file;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                deleted = naming_server.delete(file);
+            }
+            catch(Throwable t)
+            {
+                error = t;
+            }
+        }
+
+        /** Waits for the deletion and checks that it succeeded.
+
+            @throws TestFailed If the deletion failed or did not finish.
+         */
+        void check() throws TestFailed, InterruptedException
+        {
+            join(10000);
+
+            if(isAlive())
+                throw new TestFailed(file + " not deleted once unlocked");
+            if(error != null)
+                throw new TestFailed("unable to delete " + file, error);
+            if(!deleted)
+                throw new TestFailed(file + " not deleted");
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package naming;
+
+import test.*;
+import java.util.*;
+
+/** Checks the suspicion levels computed by <code>FailureDetector</code>.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>A server sending regular heartbeats is not suspected when a heartbeat
+        is a little late, nor after a pause of up to the acceptable pause,
+        and is suspected once a few more are missing.</li>
+    <li>The same silence is suspected less for a server whose heartbeats
+        arrive irregularly.</li>
+    <li>The window of intervals slides, so a server that slows down for good
+        stops being suspected.</li>
+    <li>A server that dies right after registering is suspected as well.</li>
+    <li>Checking reports every suspected server to the naming server once and
+        stops tracking it, and leaves live and removed servers alone.</li>
+    </ul>
+ */
+public class FailureDetectorTest extends test.Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking phi-accrual failure detector";
+
+    /** Expected interval between two heartbeats. */
+    private static final long   INTERVAL = FailureDetector.HEARTBEAT_INTERVAL;
+    /** Silence beyond the mean interval that is not suspected. */
+    private static final long   PAUSE = FailureDetector.ACCEPTABLE_PAUSE;
+    /** Suspicion level above which a server is reported dead. */
+    private static final double THRESHOLD = 8.0;
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        checkRegular();
+        checkIrregular();
+        checkSlowdown();
+        checkRegistration();
+        checkReports();
+    }
+
+    /** Checks the suspicion of a server sending regular heartbeats.
+
+        @throws TestFailed If the server is suspected while on time, or not
+                           suspected after missing heartbeats.
+     */
+    private void checkRegular() throws TestFailed
+    {
+        FailureDetector detector = new FailureDetector(new ReportingServer());
+        long            last = beat(detector, "regular", 0, 50, INTERVAL, 0);
+
+        expectBelow(detector, "regular", last + INTERVAL, 1.0,
+                    "regular server suspected on time");
+        expectBelow(detector, "regular", last + INTERVAL * 6 / 5, THRESHOLD,
+                    "regular server suspected a fifth of an interval late");
+        expectBelow(detector, "regular", last + INTERVAL + PAUSE, 1.0,
+                    "regular server suspected after an acceptable pause");
+        expectAbove(detector, "regular", last + 2 * INTERVAL + PAUSE,
+                    "regular server not suspected after missing a " +
+                    "heartbeat past the acceptable pause");
+
+        // Suspicion only grows with silence.
+        if(detector.phi("regular", last + INTERVAL + PAUSE) >
+           detector.phi("regular", last + 2 * INTERVAL + PAUSE))
+        {
+            throw new TestFailed("suspicion fell as silence grew");
+        }
+    }
+
+    /** Checks that a server with irregular heartbeats is given more slack.
+
+        @throws TestFailed If a silence suspected for a regular server is
+                           also suspected for an irregular one.
+     */
+    private void checkIrregular() throws TestFailed
+    {
+        FailureDetector detector = new FailureDetector(new ReportingServer());
+        long            regular = beat(detector, "regular", 0, 50, INTERVAL,
+                                       0);
+        long            irregular = beat(detector, "irregular", 0, 50,
+                                         INTERVAL, INTERVAL / 2);
+
+        expectAbove(detector, "regular", regular + 2 * INTERVAL + PAUSE,
+                    "regular server not suspected after a silence of an " +
+                    "interval past the acceptable pause");
+        expectBelow(detector, "irregular", irregular + 2 * INTERVAL + PAUSE,
+                    THRESHOLD, "irregular server suspected after a silence " +
+                    "of an interval past the acceptable pause");
+        expectAbove(detector, "irregular", irregular + 10 * INTERVAL + PAUSE,
+                    "irregular server not suspected after a long silence");
+    }
+
+    /** Checks that the intervals of a server that slowed down replace the old
+        ones.
+
+        @throws TestFailed If the server is still suspected once the window
+                           holds only the slower intervals.
+     */
+    private void checkSlowdown() throws TestFailed
+    {
+        FailureDetector detector = new FailureDetector(new ReportingServer());
+        long            last = beat(detector, "slow", 0, 200, INTERVAL, 0);
+
+        last = beat(detector, "slow", last + 3 * INTERVAL, 200, 3 * INTERVAL,
+                    0);
+        expectBelow(detector, "slow", last + 3 * INTERVAL, 1.0,
+                    "slowed down server suspected at its new pace");
+    }
+
+    /** Checks that a server that never sends a heartbeat after registering is
+        suspected.
+
+        @throws TestFailed If the server is suspected right away, or never.
+     */
+    private void checkRegistration() throws TestFailed
+    {
+        FailureDetector detector = new FailureDetector(new ReportingServer());
+        detector.heartbeat("registered", 0);
+
+        expectBelow(detector, "registered", INTERVAL, THRESHOLD,
+                    "registered server suspected before its first heartbeat " +
+                    "is due");
+        expectAbove(detector, "registered", 3 * INTERVAL + PAUSE,
+                    "server silent since registering not suspected");
+    }
+
+    /** Checks the servers reported dead to the naming server.
+
+        @throws TestFailed If a live or removed server is reported, a dead one
+                           is not, or a dead one is reported twice.
+     */
+    private void checkReports() throws TestFailed
+    {
+        ReportingServer server = new ReportingServer();
+        FailureDetector detector = new FailureDetector(server);
+
+        beat(detector, "dead", 0, 20, INTERVAL, 0);
+        beat(detector, "removed", 0, 20, INTERVAL, 0);
+        long            live = beat(detector, "live", 0, 40, INTERVAL, 0);
+        detector.remove("removed");
+
+        detector.check(live);
+        detector.check(live + INTERVAL / 2);
+
+        if(!server.failed.equals(Arrays.asList("dead")))
+        {
+            throw new TestFailed("reported " + server.failed + " instead " +
+                                 "of the dead server only");
+        }
+
+        if(detector.phi("dead", live) != Double.POSITIVE_INFINITY ||
+           detector.phi("removed", live) != Double.POSITIVE_INFINITY)
+        {
+            throw new TestFailed("server still tracked after being reported " +
+                                 "or removed");
+        }
+
+        // A server heard from again is tracked afresh.
+        detector.heartbeat("dead", live);
+        expectBelow(detector, "dead", live + INTERVAL / 2, THRESHOLD,
+                    "server heard from again still suspected");
+    }
+
+    /** Sends heartbeats from a server.
+
+        @param start Time of the first heartbeat.
+        @param count Number of heartbeats.
+        @param interval Mean interval between two heartbeats.
+        @param jitter Largest distance of an interval from the mean.
+        @return Time of the last heartbeat.
+     */
+    private static long beat(FailureDetector detector, String server,
+                             long start, int count, long interval, long jitter)
+    {
+        Random      random = new Random(server.hashCode());
+        long        now = start;
+
+        for(int index = 0; index < count; ++index)
+        {
+            if(index > 0)
+            {
+                now += interval;
+                if(jitter > 0)
+                    now += random.nextInt((int)(2 * jitter + 1)) - jitter;
+            }
+
+            detector.heartbeat(server, now);
+        }
+
+        return now;
+    }
+
+    /** Checks that a server is not suspected at the given time. */
+    private static void expectBelow(FailureDetector detector, String server,
+                                    long now, double level, String message)
+        throws TestFailed
+    {
+        double      phi = detector.phi(server, now);
+
+        if(!(phi < level))
+            throw new TestFailed(message + " (phi " + phi + ")");
+    }
+
+    /** Checks that a server is suspected at the given time. */
+    private static void expectAbove(FailureDetector detector, String server,
+                                    long now, String message)
+        throws TestFailed
+    {
+        double      phi = detector.phi(server, now);
+
+        if(!(phi > THRESHOLD))
+            throw new TestFailed(message + " (phi " + phi + ")");
+    }
+
+    /** Naming server that only notes the servers reported dead to it. */
+    private static class ReportingServer extends NamingServer
+    {
+        private static final long   serialVersionUID = 5302184760173412297L;
+
+        /** Servers reported dead, in order. */
+        final List<String>  failed = new ArrayList<String>();
+
+        @Override
+        void storageServerFailed(String serverId)
+        {
+            failed.add(serverId);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package naming;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+import rmi.*;
+import common.*;
+import storage.*;
+
+/** Storage server keeping its files and blocks in memory, for tests of the
+    naming server.
+
+    <p>
+    One stub serves both the client and command interfaces. Blocks are kept
+    as files under their local paths, as a storage server does, so that the
+    naming server can copy and delete them like any other file. Copies
+    between servers go through the client interface of the source. Every call
+    can be made to fail as if the server were unreachable.
+ */
+class MemoryStorageServer implements InvocationHandler
+{
+    /** Files held, by path string. */
+    final Map<String, byte[]>   files =
+        Collections.synchronizedMap(new HashMap<String, byte[]>());
+    /** Stub for both the client and command interfaces. */
+    final Object                stub;
+    /** Whether every call fails as if the server were unreachable. */
+    volatile boolean            down = false;
+    /** Rates passed to metered copies, in order. */
+    final List<Long>            copyRates =
+        Collections.synchronizedList(new ArrayList<Long>());
+
+    /** Creates a server holding the given files, filled with their own
+        paths so that each has distinct contents. */
+    MemoryStorageServer(Path... held)
+    {
+        stub = Proxy.newProxyInstance(getClass().getClassLoader(),
+                                      new Class<?>[] {Storage.class,
+                                                      Command.class},
+                                      this);
+
+        for(Path file : held)
+            files.put(file.getPath(), contents(file));
+    }
+
+    /** Returns the client interface of the server. */
+    Storage client()
+    {
+        return (Storage)stub;
+    }
+
+    /** Returns the command interface of the server. */
+    Command command()
+    {
+        return (Command)stub;
+    }
+
+    /** Returns the contents a file is created with. */
+    static byte[] contents(Path file)
+    {
+        return (file.getPath() + " contents").getBytes();
+    }
+
+    /** Checks whether the server holds a file. */
+    boolean holds(Path file)
+    {
+        return files.containsKey(file.getPath());
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] arguments)
+        throws Throwable
+    {
+        switch(method.getName())
+        {
+        case "equals":
+            return proxy == arguments[0];
+        case "hashCode":
+            return System.identityHashCode(proxy);
+        case "toString":
+            return "memory server " + System.identityHashCode(proxy);
+        }
+
+        if(down)
+            throw new RMIException("server unreachable");
+
+        switch(method.getName())
+        {
+        case "size":
+        {
+            Path    file = (Path)arguments[0];
+            if(file.getPath().equals("/data"))
+            {
+                long    used = 0;
+                synchronized(files)
+                {
+                    for(byte[] contents : files.values())
+                        used += contents.length;
+                }
+                return used;
+            }
+            return (long)file(file.getPath()).length;
+        }
+        case "read":
+        {
+            byte[]  contents = file(((Path)arguments[0]).getPath());
+            int     offset = (int)(long)(Long)arguments[1];
+            int     length = (Integer)arguments[2];
+            if(offset < 0 || length < 0 || offset + length > contents.length)
+                throw new IndexOutOfBoundsException("read past the end");
+            return Arrays.copyOfRange(contents, offset, offset + length);
+        }
+        case "create":
+            return files.putIfAbsent(((Path)arguments[0]).getPath(),
+                                     new byte[0]) == null;
+        case "delete":
+            return files.remove(((Path)arguments[0]).getPath()) != null;
+        case "copy":
+        {
+            Path    file = (Path)arguments[0];
+            Storage source = (Storage)arguments[1];
+            if(arguments.length > 2)
+                copyRates.add((Long)arguments[2]);
+
+            long    size = source.size(file);
+            files.put(file.getPath(), source.read(file, 0, (int)size));
+            return true;
+        }
+        case "createBlock":
+            return files.putIfAbsent(block((Long)arguments[0]),
+                                     new byte[0]) == null;
+        case "deleteBlock":
+            return files.remove(block((Long)arguments[0])) != null;
+        case "blockSize":
+            return (long)file(block((Long)arguments[0])).length;
+        case "readBlock":
+        {
+            byte[]  contents = file(block((Long)arguments[0]));
+            int     offset = (Integer)arguments[1];
+            int     length = (Integer)arguments[2];
+            if(offset < 0 || length < 0 || offset + length > contents.length)
+                throw new IndexOutOfBoundsException("read past the block");
+            return Arrays.copyOfRange(contents, offset, offset + length);
+        }
+        case "writeBlock":
+        {
+            String  path = block((Long)arguments[0]);
+            int     offset = (Integer)arguments[1];
+            byte[]  written = (byte[])arguments[2];
+            synchronized(files)
+            {
+                byte[]  contents = file(path);
+                if(contents.length < offset + written.length)
+                    contents = Arrays.copyOf(contents,
+                                             offset + written.length);
+                System.arraycopy(written, 0, contents, offset,
+                                 written.length);
+                files.put(path, contents);
+            }
+            return null;
+        }
+        }
+
+        throw new UnsupportedOperationException(method.getName());
+    }
+
+    /** Returns the local path of a block. */
+    private static String block(long id)
+    {
+        return Blocks.path(id).getPath();
+    }
+
+    /** Returns the contents of a file held by the server. */
+    private byte[] file(String path) throws FileNotFoundException
+    {
+        byte[]      contents = files.get(path);
+        if(contents == null)
+            throw new FileNotFoundException("no file " + path);
+        return contents;
+    }
+}
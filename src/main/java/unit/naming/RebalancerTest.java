@@ -0,0 +1,190 @@
+package naming;
+
+import test.*;
+import java.util.*;
+
+import common.*;
+import storage.*;
+
+/** Checks that the rebalancer moves files from an over-utilised storage
+    server to an under-utilised one.
+
+    <p>
+    Two storage servers keep their files in memory and report their size to
+    the naming server in heartbeats. The first holds two files and reports
+    itself well above the mean utilisation, the second holds nothing. Moving
+    one file brings both within the band. Properties checked are:
+    <ul>
+    <li>The rebalancer finishes balanced, having moved exactly one file.</li>
+    <li>The moved file is held by the target with the right contents, is
+        deleted from the source, and is listed only on the target.</li>
+    <li>The target is asked to meter the copy at the rebalancing rate.</li>
+    </ul>
+ */
+public class RebalancerTest extends test.Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking rebalancing";
+
+    /** Time allowed for the rebalancer to finish, in milliseconds. */
+    private static final long   TIMEOUT = 10000;
+    /** Capacity reported by each server, in bytes. */
+    private static final long   CAPACITY = 100;
+    /** Rebalancing rate, in bytes per second. */
+    private static final long   RATE = 1000;
+
+    /** Files initially held by the over-utilised server. */
+    private final Path[]        files =
+        {new Path("/dir/a"), new Path("/dir/b")};
+    /** Naming server under test. */
+    private NamingServer        naming_server;
+    /** Over-utilised server, holding both files. */
+    private MemoryStorageServer source;
+    /** Empty server. */
+    private MemoryStorageServer target;
+
+    /** Creates the naming server, registers the storage servers, and sends
+        their size reports. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        naming_server = new NamingServer();
+        source = new MemoryStorageServer(files);
+        target = new MemoryStorageServer();
+
+        naming_server.register(source.client(), source.command(), files);
+        naming_server.register(target.client(), target.command(),
+                               new Path[0]);
+
+        long                used = 0;
+        for(Path file : files)
+            used += MemoryStorageServer.contents(file).length;
+
+        report(source, used);
+        report(target, 0);
+    }
+
+    /** Stops the rebalancer. */
+    @Override
+    protected void clean()
+    {
+        if(naming_server != null && naming_server.rebalancer != null)
+            naming_server.rebalancer.stopGracefully();
+    }
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            if(!naming_server.rebalance(Rebalancer.DEFAULT_BAND, RATE))
+                throw new TestFailed("rebalancing not started");
+
+            RebalanceStatus status = awaitFinished();
+            if(!status.getState().equals("balanced"))
+            {
+                throw new TestFailed("rebalancer finished with state " +
+                                     status.getState());
+            }
+
+            if(status.getFilesMoved() != 1)
+            {
+                throw new TestFailed("rebalancer moved " +
+                                     status.getFilesMoved() +
+                                     " files instead of one");
+            }
+
+            checkMoved();
+
+            if(!target.copyRates.equals(Arrays.asList(RATE)))
+            {
+                throw new TestFailed("target asked to copy at rates " +
+                                     target.copyRates + " instead of " +
+                                     RATE);
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks that one file moved from the source to the target, and the
+        other stayed.
+
+        @throws TestFailed If a file is not where it is listed, or is listed
+                           on both servers.
+     */
+    private void checkMoved() throws TestFailed
+    {
+        int                 moved = 0;
+
+        for(Path file : files)
+        {
+            List<Storage>   replicas = naming_server.liveReplicas(
+                file.getPath());
+
+            if(replicas.size() != 1)
+            {
+                throw new TestFailed(file + " listed with " + replicas.size() +
+                                     " replicas instead of one");
+            }
+
+            MemoryStorageServer holder =
+                replicas.get(0) == target.stub ? target : source;
+            MemoryStorageServer other = holder == target ? source : target;
+
+            if(!Arrays.equals(holder.files.get(file.getPath()),
+                              MemoryStorageServer.contents(file)))
+            {
+                throw new TestFailed(file + " has the wrong contents on the " +
+                                     "server listing it");
+            }
+
+            if(other.holds(file))
+                throw new TestFailed(file + " left on an unlisted server");
+
+            if(holder == target)
+                ++moved;
+        }
+
+        if(moved != 1)
+            throw new TestFailed(moved + " files moved instead of one");
+    }
+
+    /** Sends a heartbeat reporting the given number of used bytes. */
+    private void report(MemoryStorageServer server, long used)
+        throws TestFailed
+    {
+        HeartbeatReport     report = new HeartbeatReport(
+            System.currentTimeMillis(), used, CAPACITY - used, 0);
+
+        if(!naming_server.heartbeat(server.command(), report))
+            throw new TestFailed("heartbeat from a registered server refused");
+    }
+
+    /** Waits until the rebalancer is no longer running.
+
+        @return The final status.
+        @throws TestFailed If the rebalancer does not finish in time.
+     */
+    private RebalanceStatus awaitFinished()
+        throws TestFailed, InterruptedException
+    {
+        long                deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while(true)
+        {
+            RebalanceStatus status = naming_server.rebalanceStatus();
+            if(!status.isRunning())
+                return status;
+
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed("rebalancer still running");
+
+            Thread.sleep(50);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package naming;
+
+import test.*;
+import java.util.*;
+
+import common.*;
+import storage.*;
+
+/** Checks that the naming server restores the replicas of files lost with a
+    storage server.
+
+    <p>
+    The naming server runs its re-replication scheduler over storage servers
+    that keep their files in memory. A server is lost by reporting it dead to
+    the naming server directly. Properties checked are:
+    <ul>
+    <li>A file that loses a replica is copied from a surviving replica to a
+        server that did not hold it, and the new replica is listed.</li>
+    <li>The copy waits for a client holding the file's exclusive lock, and
+        the file is not copied more times than it lost replicas.</li>
+    <li>A block of a block file that loses a replica is copied the same way,
+        back to its number of replicas.</li>
+    <li>A cell of an erasure-coded file that is lost is rebuilt from the
+        other cells of its stripe, on a server holding none of them.</li>
+    </ul>
+ */
+public class ReplicationTest extends test.Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking re-replication of lost replicas";
+
+    /** Time allowed for a lost replica to be restored, in milliseconds. */
+    private static final long   TIMEOUT = 10000;
+
+    /** Plain file held by two servers. */
+    private final Path          file = new Path("/dir/file");
+    /** Block file with one block. */
+    private final Path          block_file = new Path("/dir/blocks");
+    /** Erasure-coded file with one stripe of two data cells and one parity
+        cell. */
+    private final Path          striped_file = new Path("/dir/striped");
+    /** Naming server under test. */
+    private NamingServer        naming_server;
+    /** Storage servers, the first two holding the plain file. */
+    private final List<MemoryStorageServer> servers =
+        new ArrayList<MemoryStorageServer>();
+
+    /** Creates the naming server, registers the storage servers, and
+        creates the block file. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        naming_server = new NamingServer();
+
+        // Enough servers for a stripe to find a new one after three losses.
+        for(int index = 0; index < NamingServer.BLOCK_REPLICATION + 3;
+            ++index)
+        {
+            MemoryStorageServer server = index < 2
+                ? new MemoryStorageServer(file)
+                : new MemoryStorageServer();
+            servers.add(server);
+            naming_server.register(server.client(), server.command(),
+                                   index < 2 ? new Path[] {file}
+                                             : new Path[0]);
+        }
+
+        try
+        {
+            if(!naming_server.createBlockFile(block_file))
+                throw new TestFailed("unable to create block file");
+
+            BlockMap    map = naming_server.addBlock(block_file);
+            for(Storage replica : map.getReplicas(0))
+            {
+                replica.writeBlock(map.getBlock(0), 0,
+                                   MemoryStorageServer.contents(block_file));
+            }
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create block file", t);
+        }
+
+        naming_server.reReplicationScheduler.start();
+    }
+
+    /** Stops the re-replication scheduler. */
+    @Override
+    protected void clean()
+    {
+        if(naming_server != null)
+            naming_server.reReplicationScheduler.stopGracefully();
+    }
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            checkFile();
+            checkBlock();
+            checkCell();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Loses a replica of the plain file while a client holds its exclusive
+        lock.
+
+        @throws TestFailed If the file is copied while locked, or is not
+                           copied to a new server once unlocked.
+     */
+    private void checkFile() throws Throwable
+    {
+        MemoryStorageServer lost = servers.get(0);
+
+        naming_server.lock(file, true);
+        try
+        {
+            fail(lost);
+            Thread.sleep(500);
+
+            for(MemoryStorageServer server : servers.subList(2, servers.size()))
+            {
+                if(server.holds(file))
+                    throw new TestFailed("file copied while locked");
+            }
+        }
+        finally
+        {
+            naming_server.unlock(file, true);
+        }
+
+        Storage[]       replicas = awaitReplicas(file.getPath(), 2, lost);
+        for(Storage replica : replicas)
+        {
+            MemoryStorageServer server = server(replica);
+            if(!Arrays.equals(server.files.get(file.getPath()),
+                              MemoryStorageServer.contents(file)))
+            {
+                throw new TestFailed("replica of the file has the wrong " +
+                                     "contents");
+            }
+        }
+
+        if(server(replicas[0]) != servers.get(1) &&
+           server(replicas[1]) != servers.get(1))
+        {
+            throw new TestFailed("surviving replica of the file dropped");
+        }
+
+        // The file is back at its number of replicas, and stays there.
+        Thread.sleep(500);
+        if(naming_server.liveReplicas(file.getPath()).size() != 2)
+            throw new TestFailed("file copied to more servers than it lost");
+    }
+
+    /** Loses a replica of the block.
+
+        @throws TestFailed If the block is not copied back to its number of
+                           replicas.
+     */
+    private void checkBlock() throws Throwable
+    {
+        BlockMap            map = naming_server.getBlockMap(block_file);
+        String              path = Blocks.path(map.getBlock(0)).getPath();
+        MemoryStorageServer lost = null;
+
+        for(Storage replica : map.getReplicas(0))
+        {
+            if(!server(replica).down)
+                lost = server(replica);
+        }
+
+        fail(lost);
+
+        for(Storage replica : awaitReplicas(path, map.getReplicas(0).length,
+                                            lost))
+        {
+            if(!Arrays.equals(server(replica).files.get(path),
+                              MemoryStorageServer.contents(block_file)))
+            {
+                throw new TestFailed("replica of the block has the wrong " +
+                                     "contents");
+            }
+        }
+    }
+
+    /** Loses the server holding a data cell of the erasure-coded file.
+
+        @throws TestFailed If the cell is not rebuilt with its contents on a
+                           server holding no other cell of its stripe.
+     */
+    private void checkCell() throws Throwable
+    {
+        if(!naming_server.createStripedFile(striped_file, 2, 1))
+            throw new TestFailed("unable to create erasure-coded file");
+
+        StripeMap           map = naming_server.addStripe(striped_file);
+        int                 width = map.getDataCells() + map.getParityCells();
+        byte[][]            shards = new byte[width][StripeMap.CELL_SIZE];
+        Random              random = new Random(0);
+
+        for(int cell = 0; cell < map.getDataCells(); ++cell)
+            random.nextBytes(shards[cell]);
+        new ReedSolomon(map.getDataCells(), map.getParityCells())
+            .encode(shards, 0, StripeMap.CELL_SIZE);
+
+        for(int cell = 0; cell < width; ++cell)
+        {
+            map.getHolder(0, cell).writeBlock(map.getCell(0, cell), 0,
+                                              shards[cell]);
+        }
+        naming_server.setStripedLength(striped_file, map.getRowSize(), false);
+
+        String              path = Blocks.path(map.getCell(0, 0)).getPath();
+        MemoryStorageServer lost = server(map.getHolder(0, 0));
+
+        fail(lost);
+
+        Storage             rebuilt = awaitReplicas(path, 1, lost)[0];
+        for(int cell = 1; cell < width; ++cell)
+        {
+            if(rebuilt == map.getHolder(0, cell))
+                throw new TestFailed("cell rebuilt beside another cell of " +
+                                     "its stripe");
+        }
+
+        if(!Arrays.equals(server(rebuilt).files.get(path), shards[0]))
+            throw new TestFailed("rebuilt cell has the wrong contents");
+    }
+
+    /** Makes a server unreachable and reports it dead. */
+    private void fail(MemoryStorageServer server)
+    {
+        server.down = true;
+        naming_server.storageServerFailed(
+            NamingServer.serverId(server.command()));
+    }
+
+    /** Waits until a file is listed with the given number of replicas, none
+        of them on the lost server.
+
+        @return The replicas.
+        @throws TestFailed If they are not restored in time.
+     */
+    private Storage[] awaitReplicas(String path, int count,
+                                    MemoryStorageServer lost)
+        throws TestFailed, InterruptedException
+    {
+        long            deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while(true)
+        {
+            List<Storage>   replicas = naming_server.liveReplicas(path);
+            boolean         restored = replicas.size() == count;
+
+            for(Storage replica : replicas)
+            {
+                if(server(replica) == lost || !server(replica).holds(
+                       new Path(path)))
+                {
+                    restored = false;
+                }
+            }
+
+            if(restored)
+                return replicas.toArray(new Storage[count]);
+
+            if(System.currentTimeMillis() > deadline)
+            {
+                throw new TestFailed(path + " has " + replicas.size() +
+                                     " replicas instead of " + count +
+                                     " after losing one");
+            }
+
+            Thread.sleep(50);
+        }
+    }
+
+    /** Returns the storage server behind a stub. */
+    private MemoryStorageServer server(Storage stub) throws TestFailed
+    {
+        for(MemoryStorageServer server : servers)
+        {
+            if(server.stub == stub)
+                return server;
+        }
+
+        throw new TestFailed("replica on an unknown server");
+    }
+}
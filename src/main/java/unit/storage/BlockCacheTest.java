@@ -0,0 +1,292 @@
+package storage;
+
+import test.*;
+import java.io.*;
+import java.util.*;
+
+/** Checks the off-heap block cache <code>BlockCache</code>.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Cached blocks read back as put, across block boundaries and up to the
+        end of a short last block, and a range with a missing block is not
+        served at all.</li>
+    <li>A cache of no capacity caches nothing.</li>
+    <li>Blocks read again and again stay cached through a sequential scan of
+        many times the capacity of the cache, while the scan itself is
+        evicted.</li>
+    <li>Invalidating a range drops exactly the blocks it overlaps, in the
+        given file only; invalidating a file or clearing the cache drops all
+        its blocks, and blocks put afterwards are cached again.</li>
+    <li>Hits and misses are counted.</li>
+    </ul>
+ */
+public class BlockCacheTest extends test.Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking block cache eviction and invalidation";
+
+    /** Size of a block. */
+    private static final int    BLOCK = BlockCache.BLOCK_SIZE;
+    /** Number of blocks the cache holds. */
+    private static final int    CAPACITY = 1024;
+    /** Number of blocks read again and again. */
+    private static final int    HOT = CAPACITY / 8;
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        checkDisabled();
+        checkReads();
+        checkScanResistance();
+        checkInvalidation();
+    }
+
+    /** Checks that a cache of no capacity caches nothing. */
+    private void checkDisabled() throws TestFailed
+    {
+        BlockCache  cache = new BlockCache(0);
+        File        file = new File("/disabled");
+
+        if(cache.isEnabled())
+            throw new TestFailed("cache of no capacity enabled");
+
+        cache.put(file, 0, block(file, 0));
+        if(cache.read(file, 0, 10) != null || cache.getCachedBlocks() != 0)
+            throw new TestFailed("cache of no capacity cached a block");
+    }
+
+    /** Checks reads of cached ranges, and the hit and miss counters.
+
+        @throws TestFailed If a range reads back wrongly, a range with a
+                           missing block is served, or a count is wrong.
+     */
+    private void checkReads() throws TestFailed
+    {
+        BlockCache  cache = cache();
+        File        file = new File("/reads");
+
+        if(!cache.isEnabled() ||
+           cache.getCapacity() != (long)CAPACITY * BLOCK)
+        {
+            throw new TestFailed("cache capacity not as requested");
+        }
+
+        byte[]      contents = new byte[3 * BLOCK + 100];
+        for(int block = 0; block < 4; ++block)
+        {
+            byte[]  data = block(file, block);
+            if(block == 3)
+                data = Arrays.copyOf(data, 100);
+
+            cache.put(file, block, data);
+            System.arraycopy(data, 0, contents, block * BLOCK, data.length);
+        }
+
+        checkRange(cache, file, contents, 0, contents.length);
+        checkRange(cache, file, contents, BLOCK - 10, 20);
+        checkRange(cache, file, contents, 3 * BLOCK, 100);
+        checkRange(cache, file, contents, 100, 2 * BLOCK);
+
+        // The last block holds only 100 bytes, and the fifth none.
+        if(cache.read(file, 3 * BLOCK + 50, 51) != null)
+            throw new TestFailed("read past the end of a short block served");
+
+        if(cache.read(file, 3 * BLOCK, BLOCK + 10) != null)
+            throw new TestFailed("read of an uncached block served");
+
+        if(cache.getHits() != 4 || cache.getMisses() != 2)
+        {
+            throw new TestFailed("counted " + cache.getHits() + " hits and " +
+                                 cache.getMisses() + " misses instead of 4 " +
+                                 "and 2");
+        }
+
+        // Putting a block again replaces its content.
+        byte[]      replaced = block(new File("/other"), 1);
+        cache.put(file, 1, replaced);
+        System.arraycopy(replaced, 0, contents, BLOCK, BLOCK);
+        checkRange(cache, file, contents, 0, contents.length);
+
+        if(cache.getCachedBlocks() != 4)
+            throw new TestFailed("replaced block cached twice");
+    }
+
+    /** Reads a working set again and again between scans, and checks that it
+        stays cached through a long scan.
+
+        @throws TestFailed If blocks of the working set are evicted by the
+                           scan, or the scan stays cached.
+     */
+    private void checkScanResistance() throws TestFailed
+    {
+        BlockCache  cache = cache();
+        File        hot = new File("/hot");
+        File        scan = new File("/scan");
+        long        scanned = 0;
+
+        // Short scans between the reads of the working set push it out of
+        // the queue of blocks read once; read again soon after, it is
+        // remembered and moves to the main queue.
+        for(int round = 0; round < 20; ++round)
+        {
+            for(int block = 0; block < HOT; ++block)
+                readThrough(cache, hot, block);
+
+            for(int block = 0; block < CAPACITY / 4; ++block)
+                readThrough(cache, scan, scanned++);
+        }
+
+        long        evictions = cache.getEvictions();
+        for(int block = 0; block < 8 * CAPACITY; ++block)
+            readThrough(cache, scan, scanned++);
+
+        if(cache.getEvictions() - evictions < 7 * CAPACITY)
+            throw new TestFailed("scan did not evict blocks");
+
+        int         hits = 0;
+        for(int block = 0; block < HOT; ++block)
+        {
+            if(cache.read(hot, (long)block * BLOCK, BLOCK) != null)
+                ++hits;
+        }
+
+        if(hits < HOT * 9 / 10)
+        {
+            throw new TestFailed("only " + hits + " of " + HOT + " blocks " +
+                                 "read again and again survived a scan");
+        }
+
+        if(cache.getCachedBlocks() > CAPACITY)
+            throw new TestFailed("cache holds more blocks than its capacity");
+
+        int         early = 0;
+        for(long block = scanned - 8 * CAPACITY;
+            block < scanned - 4 * CAPACITY; ++block)
+        {
+            if(cache.read(scan, block * BLOCK, BLOCK) != null)
+                ++early;
+        }
+
+        if(early != 0)
+            throw new TestFailed(early + " early blocks of a scan cached");
+    }
+
+    /** Checks that invalidation drops exactly the blocks asked for.
+
+        @throws TestFailed If a block survives its invalidation, or another
+                           is dropped with it.
+     */
+    private void checkInvalidation() throws TestFailed
+    {
+        BlockCache  cache = cache();
+        File        first = new File("/first");
+        File        second = new File("/second");
+
+        for(int block = 0; block < 10; ++block)
+        {
+            cache.put(first, block, block(first, block));
+            cache.put(second, block, block(second, block));
+        }
+
+        // From the middle of block 1 to the first byte of block 3.
+        cache.invalidate(first, BLOCK + BLOCK / 2, 3 * BLOCK + 1);
+        checkCached(cache, first, new int[] {0, 4, 5, 6, 7, 8, 9},
+                    new int[] {1, 2, 3});
+        checkCached(cache, second, new int[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9},
+                    new int[0]);
+
+        // Empty ranges and ranges past the cached blocks change nothing.
+        cache.invalidate(first, 5 * BLOCK, 5 * BLOCK);
+        cache.invalidate(first, 100 * BLOCK, 200 * BLOCK);
+        cache.invalidate(new File("/unknown"), 0, 10 * BLOCK);
+        if(cache.getCachedBlocks() != 17)
+            throw new TestFailed("invalidating nothing dropped blocks");
+
+        cache.invalidate(first);
+        checkCached(cache, first, new int[0],
+                    new int[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9});
+        checkCached(cache, second, new int[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9},
+                    new int[0]);
+
+        // Blocks put after an invalidation are cached again.
+        cache.put(first, 2, block(first, 2));
+        checkCached(cache, first, new int[] {2}, new int[] {0, 1, 3});
+
+        cache.clear();
+        if(cache.getCachedBlocks() != 0 ||
+           cache.read(first, 0, BLOCK) != null)
+        {
+            throw new TestFailed("cleared cache still holds blocks");
+        }
+
+        cache.put(second, 0, block(second, 0));
+        checkCached(cache, second, new int[] {0}, new int[0]);
+    }
+
+    /** Checks that a range reads back from the cache as expected. */
+    private void checkRange(BlockCache cache, File file, byte[] contents,
+                            int offset, int length) throws TestFailed
+    {
+        byte[]      read = cache.read(file, offset, length);
+
+        if(read == null)
+        {
+            throw new TestFailed("cached range at " + offset + " not " +
+                                 "served");
+        }
+
+        if(!Arrays.equals(read, 0, length, contents, offset, offset + length))
+            throw new TestFailed("cached range at " + offset + " differs");
+    }
+
+    /** Checks which blocks of a file are cached. */
+    private void checkCached(BlockCache cache, File file, int[] cached,
+                             int[] dropped) throws TestFailed
+    {
+        for(int block : cached)
+        {
+            byte[]  read = cache.read(file, (long)block * BLOCK, BLOCK);
+            if(read == null || !Arrays.equals(read, block(file, block)))
+            {
+                throw new TestFailed("block " + block + " of " + file +
+                                     " not cached");
+            }
+        }
+
+        for(int block : dropped)
+        {
+            if(cache.read(file, (long)block * BLOCK, 1) != null)
+            {
+                throw new TestFailed("block " + block + " of " + file +
+                                     " still cached");
+            }
+        }
+    }
+
+    /** Reads a block through the cache, putting it there on a miss. */
+    private static void readThrough(BlockCache cache, File file, long block)
+    {
+        byte[]      target = new byte[BLOCK];
+
+        if(!cache.copy(file, block, 0, target, 0, BLOCK))
+            cache.put(file, block, block(file, block));
+    }
+
+    /** Creates a cache of <code>CAPACITY</code> blocks. */
+    private static BlockCache cache()
+    {
+        return new BlockCache((long)CAPACITY * BLOCK);
+    }
+
+    /** Returns the content of a block of a file. */
+    private static byte[] block(File file, long block)
+    {
+        byte[]      data = new byte[BLOCK];
+        new Random(file.getPath().hashCode() * 31L + block).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,249 @@
+package storage;
+
+import test.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/** Checks the per-chunk checksums kept by <code>ChunkChecksums</code>.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Chunk boundaries are rounded as documented.</li>
+    <li>Checksums stored for a file match those computed from its data.</li>
+    <li>Writes in the middle of a file and past its end update the chunks they
+        touch, including the zeros of a hole.</li>
+    <li>Data changed behind the checksums' back is reported at the first bad
+        chunk, whether the checksums are cached or read from the sidecar.</li>
+    <li>A missing sidecar is rebuilt from the current contents of the
+        file.</li>
+    </ul>
+ */
+public class ChunkChecksumsTest extends test.Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking per-chunk checksums";
+
+    /** Size of a chunk covered by one checksum. */
+    private static final int    CHUNK = ChunkChecksums.BYTES_PER_CHECKSUM;
+
+    /** Temporary directory holding the checked file. */
+    private TemporaryDirectory  directory = null;
+    /** The checked file. */
+    private File                file = null;
+    /** Channels shared by the checksums objects. */
+    private ChannelCache        channels = null;
+
+    /** Creates the temporary directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create temporary directory", t);
+        }
+
+        file = new File(directory.root(), "data");
+        channels = new ChannelCache();
+    }
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        checkBoundaries();
+
+        try
+        {
+            checkChecksums();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unexpected I/O exception", e);
+        }
+    }
+
+    /** Removes the file, its sidecar and the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        if(channels != null)
+        {
+            new ChunkChecksums(channels).delete(file);
+            channels.invalidate(file);
+            channels = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Checks the rounding of positions to chunk boundaries.
+
+        @throws TestFailed If a position is rounded wrongly.
+     */
+    private void checkBoundaries() throws TestFailed
+    {
+        if(ChunkChecksums.chunkStart(0) != 0 ||
+           ChunkChecksums.chunkStart(CHUNK - 1) != 0 ||
+           ChunkChecksums.chunkStart(CHUNK) != CHUNK ||
+           ChunkChecksums.chunkStart(2 * CHUNK + 7) != 2 * CHUNK)
+        {
+            throw new TestFailed("chunkStart rounds positions wrongly");
+        }
+
+        if(ChunkChecksums.chunkEnd(1, 10 * CHUNK) != CHUNK ||
+           ChunkChecksums.chunkEnd(CHUNK, 10 * CHUNK) != CHUNK ||
+           ChunkChecksums.chunkEnd(CHUNK + 1, 10 * CHUNK) != 2 * CHUNK ||
+           ChunkChecksums.chunkEnd(CHUNK + 1, CHUNK + 100) != CHUNK + 100)
+        {
+            throw new TestFailed("chunkEnd rounds positions wrongly");
+        }
+    }
+
+    /** Writes the file through the checksums, changes it behind their back,
+        and checks what they report.
+
+        @throws TestFailed If the checksums do not match the data, or a
+                           corrupt chunk is not reported.
+        @throws IOException If the file cannot be accessed.
+     */
+    private void checkChecksums() throws TestFailed, IOException
+    {
+        Random              random = new Random(11);
+        byte[]              contents = new byte[3 * CHUNK + CHUNK / 2];
+        random.nextBytes(contents);
+
+        ChunkChecksums      checksums = new ChunkChecksums(channels);
+        try(FileChannel channel = open())
+        {
+            write(channel, 0, contents);
+            checksums.update(file, channel, 0, 0, contents.length, contents);
+            checkStored(checksums, channel, contents);
+
+            // Overwrite a range straddling two chunks.
+            byte[]          patch = new byte[CHUNK];
+            random.nextBytes(patch);
+            int             patch_offset = CHUNK + 100;
+            write(channel, patch_offset, patch);
+            System.arraycopy(patch, 0, contents, patch_offset, patch.length);
+            checksums.update(file, channel, contents.length, patch_offset,
+                             patch.length, null);
+            checkStored(checksums, channel, contents);
+
+            // Write past the end, leaving a hole of zeros.
+            byte[]          tail = new byte[100];
+            random.nextBytes(tail);
+            long            old_size = contents.length;
+            int             tail_offset = 5 * CHUNK + 10;
+            write(channel, tail_offset, tail);
+            contents = Arrays.copyOf(contents, tail_offset + tail.length);
+            System.arraycopy(tail, 0, contents, tail_offset, tail.length);
+            checksums.update(file, channel, old_size, tail_offset,
+                             tail.length, tail);
+            checkStored(checksums, channel, contents);
+
+            // Change one byte of the third chunk behind the checksums' back.
+            byte[]          corrupt = contents.clone();
+            corrupt[2 * CHUNK + 5] ^= 1;
+            write(channel, 2 * CHUNK + 5,
+                  new byte[] {corrupt[2 * CHUNK + 5]});
+
+            checkCorrupt(checksums, channel, corrupt, 2 * CHUNK);
+            checkCorrupt(new ChunkChecksums(channels), channel, corrupt,
+                         2 * CHUNK);
+
+            // Without a sidecar, the checksums are taken from the data as it
+            // is now.
+            checksums.delete(file);
+            if(ChunkChecksums.sidecar(file).exists())
+                throw new TestFailed("sidecar not deleted");
+
+            checkStored(new ChunkChecksums(channels), channel, corrupt);
+        }
+    }
+
+    /** Checks that the stored checksums of a file match its contents.
+
+        @throws TestFailed If the loaded checksums differ from those of the
+                           contents, or the contents fail verification.
+     */
+    private void checkStored(ChunkChecksums checksums, FileChannel channel,
+                             byte[] contents) throws TestFailed, IOException
+    {
+        int[]       loaded = checksums.load(file, channel, contents.length, 0,
+                                            contents.length);
+
+        if(!Arrays.equals(loaded, ChunkChecksums.checksumsOf(contents)))
+            throw new TestFailed("stored checksums do not match the data");
+
+        try
+        {
+            checksums.verify(file, channel, contents.length, 0, contents);
+        }
+        catch(ChecksumException e)
+        {
+            throw new TestFailed("good data reported as corrupt at " +
+                                 e.getPosition(), e);
+        }
+
+        // A single chunk in the middle is checked on its own as well.
+        checksums.verify(file, channel, contents.length, CHUNK,
+                         Arrays.copyOfRange(contents, CHUNK, 2 * CHUNK));
+    }
+
+    /** Checks that verifying corrupt contents fails at the given chunk.
+
+        @throws TestFailed If no corruption, or corruption elsewhere, is
+                           reported.
+     */
+    private void checkCorrupt(ChunkChecksums checksums, FileChannel channel,
+                              byte[] contents, long bad_chunk)
+        throws TestFailed, IOException
+    {
+        try
+        {
+            checksums.verify(file, channel, contents.length, 0, contents);
+        }
+        catch(ChecksumException e)
+        {
+            if(e.getPosition() != bad_chunk)
+            {
+                throw new TestFailed("corruption reported at " +
+                                     e.getPosition() + " instead of " +
+                                     bad_chunk);
+            }
+
+            return;
+        }
+
+        throw new TestFailed("corrupt chunk not reported");
+    }
+
+    /** Opens the checked file for reading and writing. */
+    private FileChannel open() throws IOException
+    {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                StandardOpenOption.READ,
+                                StandardOpenOption.WRITE);
+    }
+
+    /** Writes bytes to a channel at the given position. */
+    private static void write(FileChannel channel, long position, byte[] data)
+        throws IOException
+    {
+        ByteBuffer  buffer = ByteBuffer.wrap(data);
+        while(buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+}
@@ -0,0 +1,238 @@
+package storage;
+
+import test.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/** Checks the compression codecs of <code>Codec</code> and <code>Lz</code>.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Data compressed by each codec decompresses to the same bytes, for
+        text, long runs, matches overlapping the bytes they produce, short
+        and empty blocks, and blocks of the largest size.</li>
+    <li>Data that would not shrink is reported as such rather than
+        compressed.</li>
+    <li>Truncated or corrupt compressed data, and data that does not fill
+        the original length, raise
+        <code>IllegalArgumentException</code>.</li>
+    <li>The codec chosen from samples follows the ratio of each codec, and
+        never is <code>DEFLATE</code> when fast reads are asked for.</li>
+    </ul>
+ */
+public class CodecTest extends test.Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking compression codecs";
+
+    /** Largest block a codec is given. */
+    private static final int    BLOCK = Lz.MAX_BLOCK;
+
+    /** Codecs that compress. */
+    private static final Codec[]    codecs = {Codec.LZ, Codec.DEFLATE};
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Random      random = new Random(5);
+        byte[]      text = text(BLOCK, random);
+        byte[]      noise = new byte[BLOCK];
+        random.nextBytes(noise);
+
+        for(Codec codec : codecs)
+        {
+            checkRoundTrip(codec, text, 0, text.length);
+            checkRoundTrip(codec, text, 100, 1000);
+            checkRoundTrip(codec, new byte[BLOCK], 0, BLOCK);
+            checkRoundTrip(codec, runs(BLOCK), 0, BLOCK);
+
+            // Random bytes do not shrink, and nothing cannot.
+            if(codec.compress(noise, 0, noise.length) != null)
+                throw new TestFailed(codec + " compressed random bytes");
+
+            if(codec.compress(new byte[0], 0, 0) != null)
+                throw new TestFailed(codec + " compressed an empty block");
+
+            checkCorrupt(codec, text);
+        }
+
+        // Many short blocks of mixed content exercise the ends of blocks.
+        for(int index = 0; index < 2000; ++index)
+        {
+            byte[]  data = index % 2 == 0
+                ? text(1000 + random.nextInt(3000), random)
+                : runs(64 + random.nextInt(300));
+            for(Codec codec : codecs)
+                checkRoundTrip(codec, data, 0, data.length);
+        }
+
+        try
+        {
+            Lz.compress(new byte[BLOCK + 1], 0, BLOCK + 1, new byte[BLOCK]);
+            throw new TestFailed("LZ accepted a block longer than the " +
+                                 "largest");
+        }
+        catch(IllegalArgumentException e) { }
+
+        checkChoice(random, text, noise);
+    }
+
+    /** Compresses part of an array and checks that it decompresses to the
+        same bytes.
+
+        @throws TestFailed If the data does not shrink or is not restored.
+     */
+    private void checkRoundTrip(Codec codec, byte[] data, int offset,
+                                int length) throws TestFailed
+    {
+        byte[]      compressed = codec.compress(data, offset, length);
+        if(compressed == null)
+        {
+            throw new TestFailed(codec + " failed to compress " + length +
+                                 " compressible bytes");
+        }
+
+        if(compressed.length >= length)
+            throw new TestFailed(codec + " output not shorter than input");
+
+        byte[]      raw;
+        try
+        {
+            raw = codec.decompress(compressed, length);
+        }
+        catch(IllegalArgumentException e)
+        {
+            throw new TestFailed(codec + " rejected its own output", e);
+        }
+
+        if(!Arrays.equals(raw, 0, length, data, offset, offset + length))
+        {
+            throw new TestFailed(codec + " did not restore " + length +
+                                 " bytes");
+        }
+    }
+
+    /** Checks that damaged compressed data is rejected.
+
+        @throws TestFailed If truncated data, data with a bad match distance
+                           or a wrong original length is accepted.
+     */
+    private void checkCorrupt(Codec codec, byte[] text) throws TestFailed
+    {
+        byte[]      compressed = codec.compress(text, 0, text.length);
+
+        expectRejected(codec, Arrays.copyOf(compressed,
+                                            compressed.length / 2),
+                       text.length, "truncated data");
+        expectRejected(codec, compressed, text.length + 1,
+                       "a longer original length");
+
+        if(codec == Codec.LZ)
+        {
+            expectRejected(codec, compressed, text.length - 1,
+                           "a shorter original length");
+
+            // A match reaching back before the start of the block.
+            byte[]  bad = {(byte)0x10, 'a', (byte)0xff, (byte)0x00};
+            expectRejected(codec, bad, 5, "a match before the block");
+        }
+        else
+        {
+            byte[]  bad = compressed.clone();
+            bad[0] = (byte)0xff;
+            expectRejected(codec, bad, text.length, "a corrupt stream");
+        }
+    }
+
+    /** Checks that decompressing data raises
+        <code>IllegalArgumentException</code>.
+
+        @throws TestFailed If the data is accepted, or a different exception
+                           is raised.
+     */
+    private void expectRejected(Codec codec, byte[] compressed,
+                                int raw_length, String what)
+        throws TestFailed
+    {
+        try
+        {
+            codec.decompress(compressed, raw_length);
+        }
+        catch(IllegalArgumentException e)
+        {
+            return;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed(codec + " raised an unexpected exception " +
+                                 "for " + what, t);
+        }
+
+        throw new TestFailed(codec + " accepted " + what);
+    }
+
+    /** Checks the codecs chosen from samples.
+
+        @throws TestFailed If a codec is chosen against the documented rules.
+     */
+    private void checkChoice(Random random, byte[] text, byte[] noise)
+        throws TestFailed
+    {
+        if(Codec.choose(new byte[][] {noise, noise}) != Codec.NONE)
+            throw new TestFailed("random samples not left uncompressed");
+
+        if(Codec.choose(new byte[0][]) != Codec.NONE)
+            throw new TestFailed("no samples not left uncompressed");
+
+        byte[][]    samples = {text, text(BLOCK, random)};
+        Codec       chosen = Codec.choose(samples);
+        if(chosen == Codec.NONE)
+            throw new TestFailed("text samples left uncompressed");
+
+        int         lz = Codec.LZ.compress(text, 0, text.length).length;
+        int         deflate =
+            Codec.DEFLATE.compress(text, 0, text.length).length;
+        if(chosen == Codec.DEFLATE && deflate > lz * Codec.STRONG_GAIN)
+            throw new TestFailed("DEFLATE chosen without a strong gain");
+
+        if(Codec.choose(samples, true) != Codec.LZ)
+            throw new TestFailed("codec other than LZ chosen for fast reads");
+    }
+
+    /** Generates lines of text looking like a log. */
+    private static byte[] text(int length, Random random)
+    {
+        String[]        words = {"GET", "PUT", "status", "request", "latency",
+                                 "/api/v1/items", "INFO", "WARN", "worker"};
+        StringBuilder   text = new StringBuilder(length + 64);
+
+        while(text.length() < length)
+        {
+            text.append(words[random.nextInt(words.length)]).append(' ')
+                .append(random.nextInt(1000))
+                .append(random.nextInt(8) == 0 ? '\n' : ' ');
+        }
+
+        return Arrays.copyOf(text.toString()
+                                 .getBytes(StandardCharsets.US_ASCII), length);
+    }
+
+    /** Generates runs of repeated short patterns, whose matches overlap the
+        bytes they produce. */
+    private static byte[] runs(int length)
+    {
+        byte[]      data = new byte[length];
+        int         period = 1;
+
+        for(int index = 0; index < length; ++index)
+        {
+            if(index % 1000 == 0)
+                period = 1 + (index / 1000) % 9;
+            data[index] = (byte)('a' + index % period);
+        }
+
+        return data;
+    }
+}
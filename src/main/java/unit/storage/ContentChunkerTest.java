@@ -0,0 +1,185 @@
+package storage;
+
+import test.*;
+import java.io.*;
+import java.util.*;
+
+/** Checks the boundaries chosen by <code>ContentChunker</code>.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>The chunks of a stream put together give the stream back.</li>
+    <li>Every chunk but the last is between <code>MIN_CHUNK</code> and
+        <code>MAX_CHUNK</code> bytes long.</li>
+    <li>Boundaries do not depend on how the stream delivers its bytes.</li>
+    <li>Inserting bytes near the start of a stream leaves the chunks further
+        on unchanged.</li>
+    <li>An empty stream has no chunks.</li>
+    </ul>
+ */
+public class ContentChunkerTest extends test.Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking content-defined chunk boundaries";
+
+    /** Length of the random data chunked by the test. */
+    private static final int    DATA_LENGTH = 8 * 1024 * 1024;
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        byte[]          data = new byte[DATA_LENGTH];
+        new Random(17).nextBytes(data);
+
+        List<byte[]>    chunks = chunks(new ByteArrayInputStream(data));
+        checkChunks(data, chunks);
+
+        // A stream that hands out a few bytes per read is cut at the same
+        // places.
+        List<byte[]>    trickled = chunks(new TrickleInputStream(data));
+        if(!sameChunks(chunks, trickled))
+        {
+            throw new TestFailed("chunk boundaries depend on the sizes of " +
+                                 "the reads from the stream");
+        }
+
+        // Insert a few bytes into the first chunk, and check that the chunks
+        // after the first few are found again.
+        byte[]          edited = new byte[data.length + 100];
+        System.arraycopy(data, 0, edited, 0, 1000);
+        System.arraycopy(data, 1000, edited, 1100, data.length - 1000);
+        List<byte[]>    edited_chunks =
+            chunks(new ByteArrayInputStream(edited));
+        checkChunks(edited, edited_chunks);
+
+        Set<String>     hashes = new HashSet<String>();
+        for(byte[] chunk : chunks)
+            hashes.add(Arrays.toString(chunk));
+
+        int             found = 0;
+        for(byte[] chunk : edited_chunks)
+        {
+            if(hashes.contains(Arrays.toString(chunk)))
+                ++found;
+        }
+
+        if(found < edited_chunks.size() - 3)
+        {
+            throw new TestFailed("inserting bytes into the first chunk " +
+                                 "changed " + (edited_chunks.size() - found) +
+                                 " of " + edited_chunks.size() + " chunks");
+        }
+
+        if(!chunks(new ByteArrayInputStream(new byte[0])).isEmpty())
+            throw new TestFailed("empty stream has chunks");
+    }
+
+    /** Checks that chunks cover the data in order, with allowed lengths.
+
+        @param data The data that was chunked.
+        @param chunks The chunks of the data.
+        @throws TestFailed If the chunks do not put the data back together, or
+                           a chunk other than the last has a length outside the
+                           allowed range.
+     */
+    private void checkChunks(byte[] data, List<byte[]> chunks)
+        throws TestFailed
+    {
+        int     offset = 0;
+
+        for(int index = 0; index < chunks.size(); ++index)
+        {
+            byte[]  chunk = chunks.get(index);
+
+            if(chunk.length > ContentChunker.MAX_CHUNK)
+                throw new TestFailed("chunk longer than the maximum");
+
+            if(index < chunks.size() - 1 &&
+               chunk.length < ContentChunker.MIN_CHUNK)
+            {
+                throw new TestFailed("chunk other than the last shorter " +
+                                     "than the minimum");
+            }
+
+            if(!Arrays.equals(chunk, 0, chunk.length, data, offset,
+                              offset + chunk.length))
+            {
+                throw new TestFailed("chunk at offset " + offset + " does " +
+                                     "not match the data");
+            }
+
+            offset += chunk.length;
+        }
+
+        if(offset != data.length)
+            throw new TestFailed("chunks do not cover the whole data");
+    }
+
+    /** Splits a stream into chunks.
+
+        @param stream The stream.
+        @return The chunks, in order.
+        @throws TestFailed If the stream cannot be read.
+     */
+    private List<byte[]> chunks(InputStream stream) throws TestFailed
+    {
+        ContentChunker  chunker = new ContentChunker(stream);
+        List<byte[]>    chunks = new ArrayList<byte[]>();
+
+        try
+        {
+            for(byte[] chunk = chunker.next(); chunk != null;
+                chunk = chunker.next())
+            {
+                chunks.add(chunk);
+            }
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to chunk stream", e);
+        }
+
+        return chunks;
+    }
+
+    /** Checks that two lists of chunks are the same. */
+    private boolean sameChunks(List<byte[]> first, List<byte[]> second)
+    {
+        if(first.size() != second.size())
+            return false;
+
+        for(int index = 0; index < first.size(); ++index)
+        {
+            if(!Arrays.equals(first.get(index), second.get(index)))
+                return false;
+        }
+
+        return true;
+    }
+
+    /** Stream that returns at most a few hundred bytes from each read. */
+    private static class TrickleInputStream extends ByteArrayInputStream
+    {
+        /** Sizes of successive reads. */
+        private final Random    sizes = new Random(3);
+
+        /** Creates the stream.
+
+            @param data Bytes read from the stream.
+         */
+        TrickleInputStream(byte[] data)
+        {
+            super(data);
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length)
+        {
+            return super.read(buffer, offset,
+                              Math.min(length, 1 + sizes.nextInt(300)));
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package storage;
+
+import test.*;
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/** Checks the manifest and journal kept by <code>Inventory</code>.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>The first load walks the tree and finds every file and directory,
+        the root included.</li>
+    <li>Files recorded as added or removed show in the inventory, with the
+        directories above added files.</li>
+    <li>After a clean close, the next load reads the manifest and replays the
+        journal over it instead of walking the tree, and finds the same
+        entries and generation.</li>
+    <li>Journal records at or below the generation of the manifest are
+        skipped on replay.</li>
+    <li>A record cut short at the end of the journal is ignored and cut off,
+        and records appended afterwards are replayed.</li>
+    <li>A change recorded while the inventory is not loaded, a load without
+        a clean close before it, and an unreadable manifest all make the next
+        load walk the tree again.</li>
+    </ul>
+ */
+public class InventoryTest extends test.Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking inventory manifest and journal replay";
+
+    /** Temporary directory holding the tree and the metadata. */
+    private TemporaryDirectory  directory = null;
+    /** Root of the listed tree. */
+    private File                root = null;
+    /** Directory holding the manifest and journal. */
+    private File                metadata = null;
+    /** Inventory under test. */
+    private Inventory           inventory = null;
+
+    /** Creates the temporary directory and the initial tree. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create temporary directory", t);
+        }
+
+        root = new File(directory.root(), "tree");
+        metadata = new File(directory.root(), "metadata");
+
+        try
+        {
+            create("a/b/first");
+            create("a/second");
+            new File(root, "c").mkdirs();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to create tree", e);
+        }
+    }
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            checkScan();
+            checkJournal();
+            checkStaleRecords();
+            checkTornRecord();
+            checkRescans();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unexpected I/O exception", e);
+        }
+    }
+
+    /** Closes the inventory and removes the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        if(inventory != null)
+        {
+            inventory.close();
+            inventory = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Loads the inventory for the first time.
+
+        @throws TestFailed If the tree is not walked, or an entry is missing.
+        @throws IOException If the metadata cannot be accessed.
+     */
+    private void checkScan() throws TestFailed, IOException
+    {
+        inventory = open();
+
+        if(!inventory.wasScanned())
+            throw new TestFailed("first load did not walk the tree");
+
+        checkEntries(inventory.load(), tree());
+
+        if(!inventory.load().get(root.getPath()) ||
+           inventory.load().get(file("a/second").getPath()))
+        {
+            throw new TestFailed("files and directories mixed up");
+        }
+    }
+
+    /** Records changes, closes the inventory and loads it again.
+
+        @throws TestFailed If a change is lost, or the tree is walked again.
+        @throws IOException If the metadata or tree cannot be accessed.
+     */
+    private void checkJournal() throws TestFailed, IOException
+    {
+        File        added = create("d/e/third");
+        inventory.added(added, false);
+        inventory.added(file("c/f"), true);
+        file("c/f").mkdir();
+
+        File        removed = file("a/second");
+        Files.delete(removed.toPath());
+        inventory.removed(removed);
+
+        Map<String, Boolean>    expected = tree();
+        checkEntries(inventory.load(), expected);
+
+        if(!inventory.load().get(file("d/e").getPath()))
+            throw new TestFailed("directory above an added file not recorded");
+
+        long        generation = inventory.getGeneration();
+        if(generation == 0)
+            throw new TestFailed("changes did not advance the generation");
+
+        reopen();
+        checkEntries(inventory.load(), expected);
+
+        if(inventory.getGeneration() != generation)
+        {
+            throw new TestFailed("generation " + inventory.getGeneration() +
+                                 " after replay instead of " + generation);
+        }
+    }
+
+    /** Writes a manifest at the current generation while leaving the journal
+        as it is, as a crash between the two does, and checks that the records
+        already included are not replayed again.
+
+        @throws TestFailed If a stale record is replayed.
+        @throws IOException If the metadata cannot be accessed.
+     */
+    private void checkStaleRecords() throws TestFailed, IOException
+    {
+        long                    generation = inventory.getGeneration();
+        inventory.close();
+
+        // The journal removes a/second; a manifest that lists it anyway shows
+        // whether that record is replayed.
+        Map<String, Boolean>    expected = tree();
+        expected.put(file("a/second").getPath(), false);
+        writeManifest(generation, expected);
+
+        inventory = open();
+        if(inventory.wasScanned())
+            throw new TestFailed("clean manifest not read");
+
+        checkEntries(inventory.load(), expected);
+
+        // Later records are replayed as usual.
+        inventory.removed(file("a/second"));
+        reopen();
+        checkEntries(inventory.load(), tree());
+    }
+
+    /** Leaves part of a record at the end of the journal, and checks that it
+        is ignored, and cut off before new records are appended.
+
+        @throws TestFailed If the torn record changes the inventory, or a
+                           record appended after it is lost.
+        @throws IOException If the metadata or tree cannot be accessed.
+     */
+    private void checkTornRecord() throws TestFailed, IOException
+    {
+        inventory.close();
+
+        File        journal = new File(metadata, Inventory.MANIFEST +
+                                       ".journal");
+        long        length = journal.length();
+
+        // Generation, kind and a path length promising more than is there.
+        try(DataOutputStream out =
+                new DataOutputStream(new FileOutputStream(journal, true)))
+        {
+            out.writeLong(inventory.getGeneration() + 1);
+            out.writeByte(1);
+            out.writeInt(100);
+            out.write("d/torn".getBytes(StandardCharsets.UTF_8));
+        }
+
+        inventory = open();
+        if(inventory.wasScanned())
+            throw new TestFailed("manifest with a torn journal not read");
+
+        checkEntries(inventory.load(), tree());
+
+        if(journal.length() != length)
+            throw new TestFailed("torn record not cut off");
+
+        File        added = create("d/fourth");
+        inventory.added(added, false);
+        reopen();
+        checkEntries(inventory.load(), tree());
+    }
+
+    /** Checks that the tree is walked again whenever the manifest cannot be
+        trusted.
+
+        @throws TestFailed If an untrusted manifest is read, or a walk misses
+                           an entry.
+        @throws IOException If the metadata or tree cannot be accessed.
+     */
+    private void checkRescans() throws TestFailed, IOException
+    {
+        // A change made while the inventory is not loaded.
+        inventory.close();
+        File        added = create("g/fifth");
+        inventory.added(added, false);
+
+        inventory = open();
+        if(!inventory.wasScanned())
+            throw new TestFailed("change while not loaded did not rescan");
+        checkEntries(inventory.load(), tree());
+
+        // A crash: the inventory is loaded again without being closed, and a
+        // change it recorded but that never reached the tree is gone.
+        inventory.added(file("g/lost"), false);
+        inventory = open();
+        if(!inventory.wasScanned())
+            throw new TestFailed("load after a crash did not rescan");
+        checkEntries(inventory.load(), tree());
+
+        // A manifest that cannot be read.
+        inventory.close();
+        try(RandomAccessFile manifest =
+                new RandomAccessFile(new File(metadata, Inventory.MANIFEST),
+                                     "rw"))
+        {
+            manifest.writeInt(~Inventory.MAGIC);
+        }
+
+        inventory = open();
+        if(!inventory.wasScanned())
+            throw new TestFailed("unreadable manifest did not rescan");
+        checkEntries(inventory.load(), tree());
+    }
+
+    /** Closes the inventory and loads it again from its manifest.
+
+        @throws TestFailed If the load walks the tree.
+     */
+    private void reopen() throws TestFailed, IOException
+    {
+        inventory.close();
+        inventory = open();
+
+        if(inventory.wasScanned())
+            throw new TestFailed("clean manifest not read");
+    }
+
+    /** Checks the entries of the inventory against those expected. */
+    private void checkEntries(Map<String, Boolean> entries,
+                              Map<String, Boolean> expected) throws TestFailed
+    {
+        for(Map.Entry<String, Boolean> entry : expected.entrySet())
+        {
+            if(!entry.getValue().equals(entries.get(entry.getKey())))
+            {
+                throw new TestFailed(entry.getKey() + " missing from the " +
+                                     "inventory or of the wrong kind");
+            }
+        }
+
+        for(String path : entries.keySet())
+        {
+            if(!expected.containsKey(path))
+                throw new TestFailed(path + " listed but not expected");
+        }
+    }
+
+    /** Writes a manifest listing the given entries at the given generation. */
+    private void writeManifest(long generation, Map<String, Boolean> entries)
+        throws IOException
+    {
+        File        manifest = new File(metadata, Inventory.MANIFEST);
+
+        try(DataOutputStream out =
+                new DataOutputStream(new FileOutputStream(manifest)))
+        {
+            out.writeInt(Inventory.MAGIC);
+            out.writeLong(generation);
+            out.writeInt(entries.size());
+            for(Map.Entry<String, Boolean> entry : entries.entrySet())
+            {
+                byte[]  name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeBoolean(entry.getValue());
+                out.writeInt(name.length);
+                out.write(name);
+            }
+        }
+    }
+
+    /** Creates an inventory of the tree and loads it. */
+    private Inventory open() throws IOException
+    {
+        Inventory   opened = new Inventory(root.toPath(), metadata);
+        opened.load();
+        return opened;
+    }
+
+    /** Lists the tree as it is on disk. */
+    private Map<String, Boolean> tree()
+    {
+        return new HashMap<String, Boolean>(Inventory.walk(root.toPath()));
+    }
+
+    /** Creates a file in the tree, along with the directories above it. */
+    private File create(String path) throws IOException
+    {
+        File        created = file(path);
+        created.getParentFile().mkdirs();
+        Files.write(created.toPath(), path.getBytes(StandardCharsets.UTF_8));
+        return created;
+    }
+
+    /** Returns a path in the tree. */
+    private File file(String path)
+    {
+        return new File(root, path);
+    }
+}
@@ -0,0 +1,293 @@
+package storage;
+
+import test.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/** Checks the packing of small files by <code>PackStore</code>.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Packed files read back as written, and replaced or removed files
+        show their latest state.</li>
+    <li>Compaction moves the live records out of a pack that is mostly
+        garbage and deletes it, without changing what the files hold.</li>
+    <li>A store opened again over the same directory finds the same files,
+        from the record lists of full packs and the records of the current
+        one, including removals whose older records were compacted away.</li>
+    <li>A record cut short at the end of the current pack, as left by a
+        crash, is cut off, and packing goes on after it.</li>
+    <li>A file unpacked or being unpacked when the store is opened ends up
+        in place, whole.</li>
+    </ul>
+ */
+public class PackStoreTest extends test.Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking small file packing";
+
+    /** Size of each packed file. */
+    private static final int    FILE_SIZE = 1024 * 1024;
+    /** Number of packed files, enough to fill more than one pack. */
+    private static final int    FILES =
+        (int)(PackStore.PACK_SIZE / FILE_SIZE) + 8;
+
+    /** Temporary directory holding the packs and the files. */
+    private TemporaryDirectory  directory = null;
+    /** Store under test. */
+    private PackStore           store = null;
+    /** Version of the content of each file, or <code>-1</code> once it is
+        removed. */
+    private int[]               versions = new int[FILES];
+
+    /** Creates the temporary directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create temporary directory", t);
+        }
+    }
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            checkPacking();
+            checkCompaction();
+            checkTornRecord();
+            checkUnpacking();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unexpected I/O exception", e);
+        }
+    }
+
+    /** Closes the store and removes the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        if(store != null)
+        {
+            store.close();
+            store = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Packs files, replaces and removes some, and checks what is read.
+
+        @throws TestFailed If a file reads back wrongly.
+        @throws IOException If the packs cannot be accessed.
+     */
+    private void checkPacking() throws TestFailed, IOException
+    {
+        store = open();
+
+        for(int index = 0; index < FILES; ++index)
+        {
+            store.add(file(index), data(index, 0));
+            versions[index] = 0;
+        }
+
+        if(!store.packFile(1).isFile())
+            throw new TestFailed("files did not fill more than one pack");
+
+        store.add(file(1), data(1, 1));
+        versions[1] = 1;
+
+        // Most of the first pack becomes garbage.
+        for(int index = 2; index < FILES / 2 + 8; ++index)
+        {
+            if(!store.remove(file(index)))
+                throw new TestFailed("packed file " + index + " not removed");
+            versions[index] = -1;
+        }
+
+        if(store.remove(file(2)))
+            throw new TestFailed("removed file removed again");
+
+        checkFiles(store);
+    }
+
+    /** Compacts the packs, and checks the files before and after the store is
+        opened again.
+
+        @throws TestFailed If the first pack is not deleted, or a file changes.
+        @throws IOException If the packs cannot be accessed.
+     */
+    private void checkCompaction() throws TestFailed, IOException
+    {
+        store.compact(new StripedLocks());
+
+        if(store.packFile(0).exists() || store.recordListFile(0).exists())
+            throw new TestFailed("pack of mostly garbage not deleted");
+
+        checkFiles(store);
+
+        store.close();
+        store = open();
+        checkFiles(store);
+    }
+
+    /** Leaves half a record at the end of the current pack, and checks that
+        it is cut off when the store is opened again.
+
+        @throws TestFailed If a file changes, or a new file cannot be packed
+                           after the cut.
+        @throws IOException If the packs cannot be accessed.
+     */
+    private void checkTornRecord() throws TestFailed, IOException
+    {
+        int         current = 0;
+        while(store.packFile(current + 1).exists())
+            ++current;
+
+        File        pack = store.packFile(current);
+        long        length = pack.length();
+
+        store.add(file(0), data(0, 2));
+        store.close();
+        store = null;
+
+        // Only part of the replacing record reached the disk.
+        try(RandomAccessFile cut = new RandomAccessFile(pack, "rw"))
+        {
+            cut.setLength(length + FILE_SIZE / 2);
+        }
+
+        store = open();
+        checkFiles(store);
+
+        if(pack.length() != length)
+            throw new TestFailed("partial record not cut off");
+
+        store.add(file(0), data(0, 3));
+        versions[0] = 3;
+        store.close();
+        store = open();
+        checkFiles(store);
+    }
+
+    /** Unpacks a file, and finishes an unpacking interrupted after its record
+        was dropped.
+
+        @throws TestFailed If an unpacked file is missing or differs, or is
+                           still packed.
+        @throws IOException If the packs or files cannot be accessed.
+     */
+    private void checkUnpacking() throws TestFailed, IOException
+    {
+        int         unpacked = FILES - 1;
+        store.materialize(file(unpacked), store.content(file(unpacked)));
+        checkUnpacked(unpacked);
+
+        // A crash between dropping the record and moving the staged file.
+        int         interrupted = FILES - 2;
+        byte[]      data = data(interrupted, versions[interrupted]);
+        File        staged = new File(directory.root(), "staging" +
+                                      file(interrupted).getPath() +
+                                      ".unpacked");
+        staged.getParentFile().mkdirs();
+        Files.write(staged.toPath(), data);
+        store.remove(file(interrupted));
+        store.close();
+
+        store = open();
+        checkUnpacked(unpacked);
+        checkUnpacked(interrupted);
+
+        if(staged.exists())
+            throw new TestFailed("staged file left behind");
+    }
+
+    /** Checks that a file is unpacked in place with its latest content. */
+    private void checkUnpacked(int index) throws TestFailed, IOException
+    {
+        File        file = file(index);
+
+        if(store.contains(file))
+            throw new TestFailed("unpacked file " + index + " still packed");
+
+        if(!file.isFile() ||
+           !Arrays.equals(Files.readAllBytes(file.toPath()),
+                          data(index, versions[index])))
+        {
+            throw new TestFailed("unpacked file " + index + " missing or " +
+                                 "wrong");
+        }
+    }
+
+    /** Checks that every file not unpacked reads back as last written.
+
+        @throws TestFailed If a file is missing, differs, or was not removed.
+     */
+    private void checkFiles(PackStore store) throws TestFailed, IOException
+    {
+        for(int index = 0; index < FILES; ++index)
+        {
+            SealedContent   content = store.content(file(index));
+
+            if(versions[index] < 0)
+            {
+                if(content != null)
+                    throw new TestFailed("removed file " + index + " found");
+                continue;
+            }
+
+            if(content == null)
+                throw new TestFailed("packed file " + index + " missing");
+
+            if(content.length() != FILE_SIZE ||
+               !Arrays.equals(content.read(0, FILE_SIZE),
+                              data(index, versions[index])))
+            {
+                throw new TestFailed("packed file " + index + " differs");
+            }
+        }
+
+        SealedContent       first = store.content(file(0));
+        byte[]              middle = first.read(100, 50);
+        if(!Arrays.equals(middle, 0, 50, data(0, versions[0]), 100, 150))
+            throw new TestFailed("partial read of a packed file differs");
+    }
+
+    /** Opens a store over the temporary directory. */
+    private PackStore open() throws IOException
+    {
+        PackStore   opened = new PackStore(
+            new File(directory.root(), "packs").getPath(),
+            new File(directory.root(), "staging").getPath());
+        opened.load();
+        return opened;
+    }
+
+    /** Returns the path of a packed file. */
+    private File file(int index)
+    {
+        return new File(new File(directory.root(), "files"), "file-" + index);
+    }
+
+    /** Returns a version of the content of a file. */
+    private static byte[] data(int index, int version)
+    {
+        byte[]      data = new byte[FILE_SIZE];
+        new Random(index * 1000 + version).nextBytes(data);
+        return data;
+    }
+}